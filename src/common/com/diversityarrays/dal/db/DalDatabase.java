@@ -112,6 +112,12 @@ public interface DalDatabase {
 
 	public UserInfo doLogin(String sessionId, String userName, SessionExpiryOption seo, Map<String, String> parms) throws AuthenticationException;
 	public void doLogout(DalSession session);
+	
+	/**
+	 * Called after the session has been switched to a different group.
+	 * @param session
+	 */
+	public void groupSwitched(DalSession session);
 
 	public boolean isInitialiseRequired();
 
@@ -19,11 +19,11 @@ package com.diversityarrays.dal.db;
 
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import javax.crypto.Mac;
@@ -33,6 +33,7 @@ import javax.persistence.Column;
 import org.apache.commons.codec.binary.Hex;
 
 import com.diversityarrays.dal.entity.DalEntity;
+import com.diversityarrays.dal.entity.EntityMetadata;
 import com.diversityarrays.dal.ops.DalOperation;
 import com.diversityarrays.dal.ops.OperationMatch;
 import com.diversityarrays.dal.ops.WordNode;
@@ -153,36 +154,52 @@ public class DalDatabaseUtil {
 		return signature.equals(parms_signature) ? null : "Invalid username or password";
 	}
 	
+	/**
+	 * The <i>list/field</i> response bodies rendered by each kind of DalResponseBuilder,
+	 * keyed by entity class and builder class names.
+	 */
+	static private final ConcurrentMap<String,String> LIST_FIELD_BODY_BY_KEY = new ConcurrentHashMap<String,String>();
+	
+	/**
+	 * Append the <i>list/field</i> response for the entity class. The response is
+	 * rendered once for each format and then passed through if the builder allows it.
+	 * @param entityClass
+	 * @param responseBuilder
+	 */
 	static public void addEntityFields(Class<? extends DalEntity> entityClass, DalResponseBuilder responseBuilder) {
+		String key = entityClass.getName() + "|" + responseBuilder.getClass().getName();
+		String body = LIST_FIELD_BODY_BY_KEY.get(key);
+		if (body == null) {
+			DalResponseBuilder empty = responseBuilder.createEmptyBuilder();
+			if (empty != null) {
+				appendEntityFields(entityClass, empty);
+				body = empty.asString();
+				LIST_FIELD_BODY_BY_KEY.putIfAbsent(key, body);
+			}
+		}
+		
+		if (body != null) {
+			if (responseBuilder.passThrough(body, false) || responseBuilder.passThrough(body, true)) {
+				return;
+			}
+		}
+		appendEntityFields(entityClass, responseBuilder);
+	}
+	
+	static private void appendEntityFields(Class<? extends DalEntity> entityClass, DalResponseBuilder responseBuilder) {
 
 		responseBuilder.addResponseMeta("SCol");
 		
-		for (Field fld : entityClass.getDeclaredFields()) {
-			if (! Modifier.isStatic(fld.getModifiers())) {
-				Column column = fld.getAnnotation(Column.class);
-				if (column != null) {
-					
-					DalResponseBuilder builder = responseBuilder.startTag("SCol");
-					
-					builder.attribute("Required", column.nullable() ? "0" : "1");
-					
-					int colSize = 11;
-					Class<?> fieldType = fld.getType();
-					if (String.class == fieldType) {
-						colSize = column.length();
-					}
-					builder.attribute("ColSize", Integer.toString(colSize));
-
-					builder.attribute("Description", "");
-
-					builder.attribute("Name", column.name());
-
-					// TODO Synchronise with the Perl DAL code
-					builder.attribute("DataType", fieldType.getSimpleName().toLowerCase());
-					
-					builder.endTag();
-				}
-			}
+		for (EntityMetadata.FieldInfo info : EntityMetadata.forClass(entityClass).getFields()) {
+			DalResponseBuilder builder = responseBuilder.startTag("SCol");
+			
+			builder.attribute("Required", info.required ? "1" : "0");
+			builder.attribute("ColSize", Integer.toString(info.colSize));
+			builder.attribute("Description", "");
+			builder.attribute("Name", info.attributeName);
+			builder.attribute("DataType", info.dataType);
+			
+			builder.endTag();
 		}
 	}
 	
@@ -201,18 +218,12 @@ public class DalDatabaseUtil {
 //		return columnByName;
 //	}
 	
+	/**
+	 * @param entityClass
+	 * @return an unmodifiable Map of the entity's fields to their @Column annotations
+	 */
 	static public Map<Field,Column> buildEntityFieldColumnMap(Class<? extends DalEntity> entityClass) {
-		Map<Field,Column> columnByField = new LinkedHashMap<Field, Column>();
-		
-		for (Field fld : entityClass.getDeclaredFields()) {
-			if (! Modifier.isStatic(fld.getModifiers())) {
-				Column column = fld.getAnnotation(Column.class);
-				fld.setAccessible(true);
-				columnByField.put(fld, column);
-			}
-		}
-		
-		return columnByField;
+		return EntityMetadata.forClass(entityClass).getColumnByField();
 	}
 		
 	private DalDatabaseUtil() {
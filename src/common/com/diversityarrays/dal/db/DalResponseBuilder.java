@@ -52,6 +52,33 @@ public abstract class DalResponseBuilder {
 	protected Iterable<String> getResponseMetaTags() {
 		return responseMetaTags;
 	}
+	
+	protected boolean hasResponseMetaTags() {
+		return ! responseMetaTags.isEmpty();
+	}
+	
+	/**
+	 * Offer a complete response body (e.g. from an upstream DAL server) to be sent
+	 * unchanged instead of building the response with this builder.
+	 * <p>
+	 * The default implementation declines; builders which can send the body as-is
+	 * (i.e. it is in their format and nothing has been built yet) should accept it.
+	 * @param body
+	 * @param bodyIsJson true if the body is JSON, false if it is XML
+	 * @return true if the body will be sent, false if the caller must build the response
+	 */
+	public boolean passThrough(String body, boolean bodyIsJson) {
+		return false;
+	}
+
+	/**
+	 * Return a new, empty builder for the same format as this one so that a response
+	 * can be rendered once and then sent with <code>passThrough()</code>.
+	 * @return a new DalResponseBuilder or null if this kind of builder doesn't support it
+	 */
+	public DalResponseBuilder createEmptyBuilder() {
+		return null;
+	}
 
 	abstract public String asString();
 
@@ -0,0 +1,94 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the single-id "get" requests which have been combined into
+ * a batch query by the database implementation.
+ * @author brian
+ *
+ */
+public class GetBatchStatistics {
+	
+	static private final AtomicLong BATCH_COUNT = new AtomicLong();
+	static private final AtomicLong ID_COUNT = new AtomicLong();
+	static private final AtomicLong MAX_BATCH_SIZE = new AtomicLong();
+	static private final AtomicLong REQUEST_COUNT = new AtomicLong();
+	static private final AtomicLong WAIT_NANOS = new AtomicLong();
+	static private final AtomicLong MAX_WAIT_NANOS = new AtomicLong();
+	
+	/**
+	 * Record that a batch query was performed.
+	 * @param nIds the number of distinct ids in the batch
+	 */
+	static public void recordBatch(int nIds) {
+		BATCH_COUNT.incrementAndGet();
+		ID_COUNT.addAndGet(nIds);
+		updateMax(MAX_BATCH_SIZE, nIds);
+	}
+	
+	/**
+	 * Record the time that a request waited for its batch to be started.
+	 * @param nanos
+	 */
+	static public void recordWait(long nanos) {
+		REQUEST_COUNT.incrementAndGet();
+		WAIT_NANOS.addAndGet(nanos);
+		updateMax(MAX_WAIT_NANOS, nanos);
+	}
+	
+	static private void updateMax(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+	
+	static public long getBatchCount() {
+		return BATCH_COUNT.get();
+	}
+	
+	static public long getRequestCount() {
+		return REQUEST_COUNT.get();
+	}
+	
+	/**
+	 * @return a one-line summary or null if no batches have been performed
+	 */
+	static public String getSummary() {
+		long nBatches = BATCH_COUNT.get();
+		if (nBatches <= 0) {
+			return null;
+		}
+		long nRequests = REQUEST_COUNT.get();
+		double meanSize = ID_COUNT.get() / (double) nBatches;
+		double meanWaitMillis = nRequests <= 0 ? 0 : WAIT_NANOS.get() / (double) nRequests / TimeUnit.MILLISECONDS.toNanos(1);
+		double maxWaitMillis = MAX_WAIT_NANOS.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		
+		return String.format("%d requests in %d batches: mean size %.1f, max size %d; added wait mean %.2fms, max %.2fms",
+				nRequests, nBatches, meanSize, MAX_BATCH_SIZE.get(), meanWaitMillis, maxWaitMillis);
+	}
+	
+	private GetBatchStatistics() {
+	}
+}
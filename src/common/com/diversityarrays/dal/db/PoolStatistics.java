@@ -0,0 +1,117 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * The pools of threads and connections in use by the server and its
+ * DalDatabase, so that their utilisation can be shown and exported.
+ * Each pool is registered when it is created and unregistered when it is closed.
+ * @author brian
+ *
+ */
+public class PoolStatistics {
+	
+	/**
+	 * The current use of one pool of threads or connections.
+	 */
+	static public abstract class Pool {
+		private final String name;
+		
+		protected Pool(String name) {
+			this.name = name;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * @return the number currently in use
+		 */
+		abstract public int getInUse();
+		
+		/**
+		 * @return the number kept open or alive but not in use
+		 */
+		abstract public int getIdle();
+		
+		/**
+		 * @return the number of callers or tasks waiting for one
+		 */
+		abstract public int getWaiting();
+		
+		/**
+		 * @return the most that may be in use at once or -1 if there is no limit
+		 */
+		abstract public int getMax();
+	}
+	
+	/**
+	 * @param name
+	 * @param executor
+	 * @return a Pool reporting on the threads of the executor
+	 */
+	static public Pool forExecutor(String name, final ThreadPoolExecutor executor) {
+		return new Pool(name) {
+			@Override
+			public int getInUse() {
+				return executor.getActiveCount();
+			}
+			
+			@Override
+			public int getIdle() {
+				return Math.max(0, executor.getPoolSize() - executor.getActiveCount());
+			}
+			
+			@Override
+			public int getWaiting() {
+				return executor.getQueue().size();
+			}
+			
+			@Override
+			public int getMax() {
+				return executor.getMaximumPoolSize();
+			}
+		};
+	}
+	
+	static private final List<Pool> POOLS = new CopyOnWriteArrayList<Pool>();
+	
+	static public void register(Pool pool) {
+		POOLS.add(pool);
+	}
+	
+	static public void unregister(Pool pool) {
+		POOLS.remove(pool);
+	}
+	
+	/**
+	 * @return the registered pools in the order they were registered
+	 */
+	static public List<Pool> getPools() {
+		return new ArrayList<Pool>(POOLS);
+	}
+	
+	private PoolStatistics() {
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts of the requests which were performed and of those which
+ * instead shared the result of an identical request already in progress.
+ * @author brian
+ *
+ */
+public class SingleFlightStatistics {
+	
+	static private final AtomicLong PERFORMED_COUNT = new AtomicLong();
+	static private final AtomicLong SHARED_COUNT = new AtomicLong();
+	
+	static public void recordPerformed() {
+		PERFORMED_COUNT.incrementAndGet();
+	}
+	
+	static public void recordShared() {
+		SHARED_COUNT.incrementAndGet();
+	}
+	
+	static public long getPerformedCount() {
+		return PERFORMED_COUNT.get();
+	}
+	
+	static public long getSharedCount() {
+		return SHARED_COUNT.get();
+	}
+	
+	private SingleFlightStatistics() {
+	}
+}
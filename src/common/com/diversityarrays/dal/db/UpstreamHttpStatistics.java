@@ -0,0 +1,167 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counters for the requests made to an upstream DAL server
+ * by a forwarding DalDatabase implementation.
+ * @author brian
+ *
+ */
+public class UpstreamHttpStatistics {
+	
+	/**
+	 * Count, total and maximum of a duration.
+	 */
+	static public class Timing {
+		private final String name;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		
+		Timing(String name) {
+			this.name = name;
+		}
+		
+		public void record(long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long current;
+			while (nanos > (current = maxNanos.get())) {
+				if (maxNanos.compareAndSet(current, nanos)) {
+					break;
+				}
+			}
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public long getCount() {
+			return count.get();
+		}
+		
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+		
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+		
+		@Override
+		public String toString() {
+			long n = count.get();
+			double nanosPerMilli = TimeUnit.MILLISECONDS.toNanos(1);
+			double mean = n <= 0 ? 0 : totalNanos.get() / (double) n / nanosPerMilli;
+			return String.format("%s %d (mean %.2fms, max %.2fms)", name, n, mean, maxNanos.get() / nanosPerMilli);
+		}
+	}
+	
+	/** Time spent waiting to lease a pooled connection */
+	static public final Timing LEASE_WAIT = new Timing("lease-wait");
+	/** Time to establish new connections (including any TLS handshake) */
+	static public final Timing CONNECT = new Timing("connect");
+	/** Time from sending the request until the response headers are received */
+	static public final Timing RESPONSE = new Timing("response");
+	/** Time to read the response body */
+	static public final Timing READ = new Timing("read");
+	
+	/**
+	 * @return the phase Timings in the order of a request
+	 */
+	static public Timing[] getTimings() {
+		return new Timing[] { LEASE_WAIT, CONNECT, RESPONSE, READ };
+	}
+	
+	/** Responses served from the cache while still fresh */
+	static public final AtomicLong CACHE_HITS = new AtomicLong();
+	/** Responses served from the cache while being refreshed */
+	static public final AtomicLong CACHE_STALE_HITS = new AtomicLong();
+	/** Cacheable requests that had to wait for the upstream server */
+	static public final AtomicLong CACHE_MISSES = new AtomicLong();
+	
+	/** Upstream responses sent to the client unchanged */
+	static public final AtomicLong PASSED_THROUGH = new AtomicLong();
+	/** Upstream responses that had to be copied into a response builder */
+	static public final AtomicLong TRANSCODED = new AtomicLong();
+	
+	/** Calls rejected because the circuit breaker was open */
+	static public final AtomicLong BREAKER_REJECTED = new AtomicLong();
+	/** Calls rejected because too many were already in progress */
+	static public final AtomicLong BULKHEAD_REJECTED = new AtomicLong();
+	/** Calls abandoned because no response arrived in time */
+	static public final AtomicLong DEADLINE_EXCEEDED = new AtomicLong();
+	
+	/** Upstream DAL sessions currently leased from the pool */
+	static public final AtomicInteger SESSIONS_LEASED = new AtomicInteger();
+	
+	static private volatile int maxSessions;
+	
+	static public void setMaxSessions(int max) {
+		maxSessions = max;
+	}
+	
+	/**
+	 * @return the size of the upstream DAL session pool or zero if there isn't one
+	 */
+	static public int getMaxSessions() {
+		return maxSessions;
+	}
+	
+	static private volatile String breakerState;
+	
+	static public void setBreakerState(String state) {
+		breakerState = state;
+	}
+	
+	/**
+	 * @return the state of the upstream circuit breaker or null if there isn't one
+	 */
+	static public String getBreakerState() {
+		return breakerState;
+	}
+	
+	/**
+	 * @return a one-line summary or null if no requests have been made
+	 */
+	static public String getSummary() {
+		String state = breakerState;
+		if (state == null && RESPONSE.getCount() <= 0) {
+			return null;
+		}
+		return "breaker " + state
+				+ " (rejected " + BREAKER_REJECTED.get()
+				+ ", bulkhead rejected " + BULKHEAD_REJECTED.get()
+				+ ", deadline exceeded " + DEADLINE_EXCEEDED.get() + "); "
+				+ LEASE_WAIT + ", " + CONNECT + ", " + RESPONSE + ", " + READ
+				+ "; cache hits " + CACHE_HITS.get()
+				+ ", stale hits " + CACHE_STALE_HITS.get()
+				+ ", misses " + CACHE_MISSES.get()
+				+ "; passed through " + PASSED_THROUGH.get()
+				+ ", transcoded " + TRANSCODED.get();
+	}
+	
+	private UpstreamHttpStatistics() {
+	}
+}
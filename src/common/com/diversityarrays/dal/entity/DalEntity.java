@@ -18,10 +18,10 @@
 package com.diversityarrays.dal.entity;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This is the super class for all entities that are served by a DalServer/DalDatabase.
@@ -30,7 +30,10 @@ import java.util.Map;
  */
 public abstract class DalEntity {
 	
-	static private Map<Class<? extends DalEntity>,Map<String,EntityColumn>> ENTITY_COLUMN_MAP_BY_CLASS = new HashMap<Class<? extends DalEntity>, Map<String,EntityColumn>>();
+	/**
+	 * Each inner map is only changed while its entity class is being initialised.
+	 */
+	static private final Map<Class<? extends DalEntity>,Map<String,EntityColumn>> ENTITY_COLUMN_MAP_BY_CLASS = new ConcurrentHashMap<Class<? extends DalEntity>, Map<String,EntityColumn>>();
 	
 	static protected EntityColumn createEntityColumn(Class<? extends DalEntity> eclass, String fieldName) {
 		EntityColumn result = new EntityColumnImpl(eclass, fieldName);
@@ -51,14 +54,21 @@ public abstract class DalEntity {
 	
 
 	public static EntityColumn[] getEntityColumns(Class<? extends DalEntity> cls) {
+		return EntityMetadata.forClass(cls).getEntityColumns();
+	}
+	
+	/**
+	 * Used by EntityMetadata.
+	 * @param cls
+	 * @return the EntityColumns created for the class, in order of creation
+	 */
+	static List<EntityColumn> getDeclaredEntityColumns(Class<? extends DalEntity> cls) {
 		Map<String, EntityColumn> map = ENTITY_COLUMN_MAP_BY_CLASS.get(cls);
-		
-		// TODO check if the return order is the same as the key order
-		List<EntityColumn> tmp = new ArrayList<EntityColumn>();
+		List<EntityColumn> result = new ArrayList<EntityColumn>();
 		if (map != null) {
-			tmp.addAll(map.values());
+			result.addAll(map.values());
 		}
-		return tmp.toArray(new EntityColumn[tmp.size()]);
+		return result;
 	}
 
 
@@ -0,0 +1,191 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.entity;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.Column;
+
+import com.diversityarrays.dal.sqldb.SqlDataType;
+
+/**
+ * The reflected metadata for a DalEntity class: its tag, fields, columns and
+ * EntityColumns. This is computed once for each class and is immutable,
+ * so it can be shared by any number of threads.
+ * <p>
+ * The entity classes known to this package are registered when the class is
+ * loaded; others are added the first time they are asked for.
+ * @author brian
+ *
+ */
+public class EntityMetadata {
+	
+	/**
+	 * The metadata for one of the fields that has a @Column annotation.
+	 */
+	static public class FieldInfo {
+		public final Field field;
+		public final Column column;
+		/** The name used for the attribute in a response */
+		public final String attributeName;
+		public final boolean required;
+		/** The ColSize reported by <i>list/field</i> */
+		public final int colSize;
+		/** The DataType reported by <i>list/field</i> */
+		public final String dataType;
+		/** May be null if no SqlDataType matches the type of the field */
+		public final SqlDataType sqlDataType;
+		
+		FieldInfo(Field field, Column column) {
+			this.field = field;
+			this.column = column;
+			this.attributeName = column.name();
+			this.required = ! column.nullable();
+			
+			Class<?> fieldType = field.getType();
+			this.colSize = String.class == fieldType ? column.length() : 11;
+			// TODO Synchronise with the Perl DAL code
+			this.dataType = fieldType.getSimpleName().toLowerCase();
+			
+			SqlDataType sdt = null;
+			for (SqlDataType t : SqlDataType.values()) {
+				if (t.valueClass.isAssignableFrom(fieldType)) {
+					sdt = t;
+					break;
+				}
+			}
+			this.sqlDataType = sdt;
+		}
+		
+		public Object getValue(DalEntity entity) throws IllegalAccessException {
+			return field.get(entity);
+		}
+		
+		@Override
+		public String toString() {
+			return field.getDeclaringClass().getSimpleName() + "." + attributeName;
+		}
+	}
+	
+	static private final ConcurrentMap<Class<? extends DalEntity>,EntityMetadata> METADATA_BY_CLASS = 
+			new ConcurrentHashMap<Class<? extends DalEntity>,EntityMetadata>();
+	
+	static {
+		forClass(Genus.class);
+		forClass(Genotype.class);
+		forClass(GenotypeAlias.class);
+	}
+	
+	/**
+	 * @param entityClass
+	 * @return the EntityMetadata for the class
+	 */
+	static public EntityMetadata forClass(Class<? extends DalEntity> entityClass) {
+		EntityMetadata result = METADATA_BY_CLASS.get(entityClass);
+		if (result == null) {
+			EntityMetadata tmp = new EntityMetadata(entityClass);
+			result = METADATA_BY_CLASS.putIfAbsent(entityClass, tmp);
+			if (result == null) {
+				result = tmp;
+			}
+		}
+		return result;
+	}
+
+	private final Class<? extends DalEntity> entityClass;
+	private final String tagName;
+	private final List<FieldInfo> fields;
+	private final Map<Field,Column> columnByField;
+	private final EntityColumn[] entityColumns;
+	
+	private EntityMetadata(Class<? extends DalEntity> entityClass) {
+		this.entityClass = entityClass;
+		
+		EntityTag entityTag = entityClass.getAnnotation(EntityTag.class);
+		this.tagName = entityTag == null ? null : entityTag.value();
+		
+		List<FieldInfo> fieldList = new ArrayList<FieldInfo>();
+		Map<Field,Column> map = new LinkedHashMap<Field,Column>();
+		for (Field fld : entityClass.getDeclaredFields()) {
+			if (! Modifier.isStatic(fld.getModifiers())) {
+				Column column = fld.getAnnotation(Column.class);
+				if (column != null) {
+					fld.setAccessible(true);
+					fieldList.add(new FieldInfo(fld, column));
+					map.put(fld, column);
+				}
+			}
+		}
+		this.fields = Collections.unmodifiableList(fieldList);
+		this.columnByField = Collections.unmodifiableMap(map);
+		
+		// Ensure the EntityColumn initializers have been run
+		try {
+			Class.forName(entityClass.getName(), true, entityClass.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+		List<EntityColumn> columns = DalEntity.getDeclaredEntityColumns(entityClass);
+		this.entityColumns = columns.toArray(new EntityColumn[columns.size()]);
+	}
+	
+	public Class<? extends DalEntity> getEntityClass() {
+		return entityClass;
+	}
+	
+	/**
+	 * @return the value of the @EntityTag annotation or null if there isn't one
+	 */
+	public String getTagName() {
+		return tagName;
+	}
+	
+	/**
+	 * @return the fields with a @Column annotation, in declaration order
+	 */
+	public List<FieldInfo> getFields() {
+		return fields;
+	}
+	
+	/**
+	 * @return an unmodifiable Map of the fields (in declaration order) to their @Column annotations
+	 */
+	public Map<Field,Column> getColumnByField() {
+		return columnByField;
+	}
+	
+	/**
+	 * @return a copy of the EntityColumns declared by the class
+	 */
+	public EntityColumn[] getEntityColumns() {
+		return entityColumns.clone();
+	}
+	
+	@Override
+	public String toString() {
+		return "EntityMetadata[" + entityClass.getSimpleName() + "]";
+	}
+}
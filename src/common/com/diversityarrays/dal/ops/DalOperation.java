@@ -34,6 +34,13 @@ public interface DalOperation {
 	 * for commands of the form <code>list/<i>entity</i>/_nperpage/page/_page_number</code>.
 	 */
 	static public final String OPTION_FILTERING = "Filtering";
+	
+	/**
+	 * Parameter name used to request that the aliases for each genotype be nested
+	 * inside the genotype record for <code>get/genotype/_id</code> and
+	 * <code>list/genotype/_nperpage/page/_num</code>. Use a value of "1" or "true".
+	 */
+	static public final String OPTION_INCLUDE_ALIAS = "IncludeAlias";
 
 	public static final String LIST_ALL_GROUP = "list/all/group";
 	
@@ -0,0 +1,35 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.ops;
+
+/**
+ * A DalOperation whose response may be sent to the client while it is
+ * still being produced. When <code>isStreamingResponse()</code> returns true
+ * the DalServer will supply a DalResponseBuilder that writes each record
+ * directly to the HTTP response instead of collecting them all in memory.
+ * <p>
+ * Such operations must call <code>addResponseMeta()</code> before they add
+ * any records to the response.
+ * @author brian
+ *
+ */
+public interface StreamingDalOperation extends DalOperation {
+
+	public boolean isStreamingResponse();
+
+}
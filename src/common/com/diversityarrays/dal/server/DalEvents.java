@@ -0,0 +1,116 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+/**
+ * Timed events (for a profiler such as Java Flight Recorder) around DAL operations,
+ * SQL statements, response building and upstream DAL calls.
+ * <p>
+ * Nothing is recorded until a Recorder is installed with <code>setRecorder()</code>;
+ * until then (and while the Recorder has the event type disabled) <code>begin()</code>
+ * returns null and the only cost is that check.
+ * <pre>
+ * DalEvents.Event event = DalEvents.begin(DalEvents.Type.SQL);
+ * ... run the statement ...
+ * if (event != null) {
+ *     event.commit(fingerprint, rows);
+ * }
+ * </pre>
+ * @author brian
+ *
+ */
+public class DalEvents {
+	
+	/**
+	 * The kinds of event, with the names and types of the values passed to <code>commit()</code>.
+	 */
+	public enum Type {
+		OPERATION("Operation", "A DAL operation",
+				new String[] { "commandTemplate", "rows", "bytes" },
+				new Class<?>[] { String.class, long.class, long.class }),
+		SQL("Sql", "An SQL statement and the reading of its rows",
+				new String[] { "fingerprint", "rows" },
+				new Class<?>[] { String.class, long.class }),
+		BUILD("ResponseBuild", "Building a response",
+				new String[] { "builder", "bytes" },
+				new Class<?>[] { String.class, long.class }),
+		UPSTREAM("UpstreamCall", "A call to the upstream DAL server",
+				new String[] { "command", "outcome" },
+				new Class<?>[] { String.class, String.class }),
+		;
+		
+		public final String eventName;
+		public final String description;
+		public final String[] fieldNames;
+		public final Class<?>[] fieldTypes;
+		
+		Type(String eventName, String description, String[] fieldNames, Class<?>[] fieldTypes) {
+			this.eventName = eventName;
+			this.description = description;
+			this.fieldNames = fieldNames;
+			this.fieldTypes = fieldTypes;
+		}
+	}
+	
+	/**
+	 * An event that has begun.
+	 */
+	public interface Event {
+		/**
+		 * End the event and record it.
+		 * @param values in the order of the Type's fieldNames
+		 */
+		void commit(Object... values);
+	}
+	
+	/**
+	 * Creates the Events.
+	 */
+	public interface Recorder {
+		/**
+		 * @param type
+		 * @return a started Event or null if the type is not being recorded
+		 */
+		Event begin(Type type);
+	}
+	
+	static private volatile Recorder recorder;
+	
+	/**
+	 * @param r may be null to stop recording
+	 */
+	static public void setRecorder(Recorder r) {
+		recorder = r;
+	}
+	
+	static public Recorder getRecorder() {
+		return recorder;
+	}
+	
+	/**
+	 * @param type
+	 * @return a started Event or null if nothing is being recorded
+	 */
+	static public Event begin(Type type) {
+		Recorder r = recorder;
+		return r == null ? null : r.begin(type);
+	}
+	
+	private DalEvents() {
+	}
+}
@@ -59,6 +59,8 @@ public class DalSession {
 	private String randomNumber;
 	private String downloadSessionId;
 	private String download;
+	
+	private final SessionUsage usage = new SessionUsage();
 
 	public DalSession(String newSessionId,
 			UserInfo userInfo,
@@ -123,6 +125,13 @@ public class DalSession {
 		return userInfo.getUserId();
 	}
 	
+	/**
+	 * @return the resources used by the requests for this session
+	 */
+	public SessionUsage getUsage() {
+		return usage;
+	}
+	
 	public void delayExpiry() {
 		lastActive = new java.util.Date();
 	}
@@ -0,0 +1,232 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logging for the code that handles requests, without the console I/O.
+ * <p>
+ * Messages are put into a bounded (circular) buffer and written to
+ * <code>System.out</code> (DEBUG and INFO) or <code>System.err</code> (WARN and ERROR)
+ * by a single background thread, so a slow or redirected console never delays a request.
+ * If the buffer is full the message is dropped and counted rather than waiting.
+ * <p>
+ * Messages below <code>DAL_LOG_LEVEL</code> (default INFO) are discarded. With
+ * <code>DAL_LOG_SAMPLE=N</code> the DEBUG and INFO messages are only kept for one
+ * request in every N; WARN and ERROR are always kept. The DalServer calls
+ * <code>beginRequest()</code> and <code>endRequest()</code> so that all of
+ * the messages of a request are either kept or discarded together.
+ * @author brian
+ *
+ */
+public class RequestLog {
+	
+	static public enum Level {
+		DEBUG,
+		INFO,
+		WARN,
+		ERROR;
+		
+		static public Level lookup(String s) {
+			for (Level level : values()) {
+				if (level.name().equalsIgnoreCase(s)) {
+					return level;
+				}
+			}
+			return null;
+		}
+	}
+	
+	static public final Level LEVEL;
+	static {
+		Level level = Level.lookup(System.getProperty("DAL_LOG_LEVEL", "INFO").trim());
+		LEVEL = level == null ? Level.INFO : level;
+	}
+	
+	static public final int SAMPLE = Math.max(1, Integer.getInteger("DAL_LOG_SAMPLE", 1));
+	
+	static public final int BUFFER_SIZE = Math.max(16, Integer.getInteger("DAL_LOG_BUFFER_SIZE", 8192));
+	
+	static private final int MAX_BATCH = 256;
+	
+	static private class Entry {
+		final Level level;
+		final String message;
+		Entry(Level level, String message) {
+			this.level = level;
+			this.message = message;
+		}
+	}
+	
+	static private final BlockingQueue<Entry> QUEUE = new ArrayBlockingQueue<Entry>(BUFFER_SIZE);
+	
+	static private final AtomicLong REQUEST_COUNT = new AtomicLong();
+	static private final AtomicLong WRITTEN_COUNT = new AtomicLong();
+	static private final AtomicLong DROPPED_COUNT = new AtomicLong();
+	
+	/**
+	 * Whether the DEBUG and INFO messages of the current thread's request are kept;
+	 * absent outside of a request.
+	 */
+	static private final ThreadLocal<Boolean> SAMPLED = new ThreadLocal<Boolean>();
+	
+	static {
+		Thread writer = new Thread("DAL log writer") {
+			@Override
+			public void run() {
+				List<Entry> batch = new ArrayList<Entry>(MAX_BATCH);
+				try {
+					while (true) {
+						batch.add(QUEUE.take());
+						QUEUE.drainTo(batch, MAX_BATCH - 1);
+						write(batch);
+						batch.clear();
+					}
+				} catch (InterruptedException e) {
+					// just stop
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		
+		Runtime.getRuntime().addShutdownHook(new Thread("DAL log flush") {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+	
+	/**
+	 * Decide whether the current thread's request has its DEBUG and INFO messages kept.
+	 */
+	static public void beginRequest() {
+		SAMPLED.set(SAMPLE <= 1 || (REQUEST_COUNT.getAndIncrement() % SAMPLE) == 0);
+	}
+	
+	static public void endRequest() {
+		SAMPLED.remove();
+	}
+	
+	/**
+	 * Callers that build expensive messages should check this first.
+	 * @param level
+	 * @return true if a message at the level would be kept
+	 */
+	static public boolean isEnabled(Level level) {
+		if (level.compareTo(LEVEL) < 0) {
+			return false;
+		}
+		if (level.compareTo(Level.WARN) >= 0) {
+			return true;
+		}
+		Boolean sampled = SAMPLED.get();
+		return sampled == null || sampled;
+	}
+	
+	static public void debug(String message) {
+		log(Level.DEBUG, message);
+	}
+	
+	static public void info(String message) {
+		log(Level.INFO, message);
+	}
+	
+	static public void warn(String message) {
+		log(Level.WARN, message);
+	}
+	
+	static public void error(String message) {
+		log(Level.ERROR, message);
+	}
+	
+	static public void log(Level level, String message) {
+		if (isEnabled(level)) {
+			if (! QUEUE.offer(new Entry(level, message))) {
+				DROPPED_COUNT.incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of messages that have been written
+	 */
+	static public long getWrittenCount() {
+		return WRITTEN_COUNT.get();
+	}
+	
+	/**
+	 * @return the number of messages dropped because the buffer was full
+	 */
+	static public long getDroppedCount() {
+		return DROPPED_COUNT.get();
+	}
+	
+	/**
+	 * Write the messages still in the buffer on the current thread.
+	 */
+	static public void flush() {
+		List<Entry> batch = new ArrayList<Entry>();
+		QUEUE.drainTo(batch);
+		write(batch);
+	}
+	
+	static private long droppedReported;
+	
+	static synchronized private void write(List<Entry> batch) {
+		// Look these up each time as the ServerGui replaces them
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+		
+		long dropped = DROPPED_COUNT.get();
+		if (dropped > droppedReported) {
+			err.println("?" + (dropped - droppedReported) + " log messages were dropped");
+			droppedReported = dropped;
+		}
+		
+		boolean wroteOut = false;
+		boolean wroteErr = false;
+		for (Entry entry : batch) {
+			if (entry.level.compareTo(Level.WARN) >= 0) {
+				err.println(entry.message);
+				wroteErr = true;
+			}
+			else {
+				out.println(entry.message);
+				wroteOut = true;
+			}
+		}
+		if (wroteOut) {
+			out.flush();
+		}
+		if (wroteErr) {
+			err.flush();
+		}
+		WRITTEN_COUNT.addAndGet(batch.size());
+	}
+	
+	private RequestLog() {
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates the time spent in each phase (routing, session lookup,
+ * count query, page query, entity mapping, serialisation, ...) of a single request.
+ * <p>
+ * The DalServer attaches one to the thread that handles each request. Code that
+ * wants its time to be broken out takes <code>System.nanoTime()</code> at the start
+ * of a phase and passes it to <code>record()</code> (or <code>recordCurrent()</code>)
+ * at the end. Time recorded more than once under the same phase name is added up.
+ * @author brian
+ *
+ */
+public class RequestTrace {
+	
+	static private final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<RequestTrace>();
+	
+	/**
+	 * @return the RequestTrace for the current thread or null
+	 */
+	static public RequestTrace current() {
+		return CURRENT.get();
+	}
+	
+	/**
+	 * Restore the RequestTrace returned by <code>attach()</code>.
+	 * @param previous may be null
+	 */
+	static public void restore(RequestTrace previous) {
+		if (previous == null) {
+			CURRENT.remove();
+		}
+		else {
+			CURRENT.set(previous);
+		}
+	}
+	
+	/**
+	 * Record a phase in the current RequestTrace (if any).
+	 * @param phase
+	 * @param startNanos from <code>System.nanoTime()</code> at the start of the phase
+	 */
+	static public void recordCurrent(String phase, long startNanos) {
+		RequestTrace trace = CURRENT.get();
+		if (trace != null) {
+			trace.record(phase, startNanos);
+		}
+	}
+	
+	/**
+	 * Time spent in one phase.
+	 */
+	static public class Phase {
+		public final String name;
+		public final int count;
+		public final long nanos;
+		
+		Phase(String name, int count, long nanos) {
+			this.name = name;
+			this.count = count;
+			this.nanos = nanos;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%s=%.2fms", name, nanos / (double) TimeUnit.MILLISECONDS.toNanos(1))
+					+ (count > 1 ? "(x" + count + ")" : "");
+		}
+	}
+	
+	private final String name;
+	private final long startMillis;
+	private final long startNanos;
+	
+	private volatile String operation;
+	private volatile String userName;
+	private volatile SessionUsage sessionUsage;
+	private volatile long totalNanos;
+	private volatile long cpuNanos = -1;
+	private volatile long allocatedBytes = -1;
+	private volatile long writeNanos = -1;
+	private volatile int status;
+	
+	// phase name => { count, nanos }
+	private final Map<String,long[]> nanosByPhase = new LinkedHashMap<String,long[]>();
+	
+	/**
+	 * @param name for display
+	 * @param startMillis when the request was received
+	 * @param startNanos <code>System.nanoTime()</code> when the request was received
+	 */
+	public RequestTrace(String name, long startMillis, long startNanos) {
+		this.name = name;
+		this.startMillis = startMillis;
+		this.startNanos = startNanos;
+	}
+	
+	/**
+	 * Make this the RequestTrace for the current thread.
+	 * @return the previous value which should be passed to <code>restore()</code>
+	 */
+	public RequestTrace attach() {
+		RequestTrace previous = CURRENT.get();
+		CURRENT.set(this);
+		return previous;
+	}
+	
+	/**
+	 * @param phase
+	 * @param phaseStartNanos from <code>System.nanoTime()</code> at the start of the phase
+	 */
+	public void record(String phase, long phaseStartNanos) {
+		add(phase, System.nanoTime() - phaseStartNanos);
+	}
+	
+	/**
+	 * @param phase
+	 * @param nanos time to add to the phase
+	 */
+	public synchronized void add(String phase, long nanos) {
+		long[] entry = nanosByPhase.get(phase);
+		if (entry == null) {
+			entry = new long[2];
+			nanosByPhase.put(phase, entry);
+		}
+		++entry[0];
+		entry[1] += nanos;
+	}
+	
+	/**
+	 * @return the phases in the order they were first recorded
+	 */
+	public synchronized List<Phase> getPhases() {
+		List<Phase> result = new ArrayList<Phase>(nanosByPhase.size());
+		for (Map.Entry<String,long[]> e : nanosByPhase.entrySet()) {
+			long[] entry = e.getValue();
+			result.add(new Phase(e.getKey(), (int) entry[0], entry[1]));
+		}
+		return result;
+	}
+	
+	/**
+	 * Mark the request as handled; the time until now is the total.
+	 * @param status the HTTP status of the response
+	 */
+	public void finish(int status) {
+		this.status = status;
+		this.totalNanos = System.nanoTime() - startNanos;
+	}
+	
+	/**
+	 * @param nanos time taken to send the response to the client
+	 */
+	public void setWriteNanos(long nanos) {
+		this.writeNanos = nanos;
+	}
+	
+	/**
+	 * @return the time taken to send the response or -1 if it has not been sent yet
+	 */
+	public long getWriteNanos() {
+		return writeNanos;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public long getStartMillis() {
+		return startMillis;
+	}
+	
+	/**
+	 * @param cpuNanos CPU time used by the thread that handled the request or -1 if unknown
+	 * @param allocatedBytes bytes allocated by the thread that handled the request or -1 if unknown
+	 */
+	public void setCost(long cpuNanos, long allocatedBytes) {
+		this.cpuNanos = cpuNanos;
+		this.allocatedBytes = allocatedBytes;
+	}
+	
+	public long getCpuNanos() {
+		return cpuNanos;
+	}
+	
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+	
+	/**
+	 * @param session the DalSession the request is for
+	 */
+	public void setSession(DalSession session) {
+		this.userName = session.getUserName();
+		this.sessionUsage = session.getUsage();
+	}
+	
+	/**
+	 * @return the SessionUsage of the request's DalSession or null
+	 */
+	public SessionUsage getSessionUsage() {
+		return sessionUsage;
+	}
+	
+	/**
+	 * @return the user of the request's DalSession or null
+	 */
+	public String getUserName() {
+		return userName;
+	}
+	
+	public void setOperation(String operation) {
+		this.operation = operation;
+	}
+	
+	public String getOperation() {
+		return operation;
+	}
+	
+	/**
+	 * @return the time from receipt of the request until <code>finish()</code>
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+	
+	public int getStatus() {
+		return status;
+	}
+	
+	/**
+	 * @return the phases and total as the value of a <code>Server-Timing</code> header
+	 */
+	public String getServerTimingHeader() {
+		StringBuilder sb = new StringBuilder();
+		for (Phase p : getPhases()) {
+			appendServerTiming(sb, p.name, p.nanos);
+			if (p.count > 1) {
+				sb.append(";desc=\"x").append(p.count).append('"');
+			}
+		}
+		appendServerTiming(sb, "total", totalNanos);
+		long cpu = cpuNanos;
+		if (cpu >= 0) {
+			appendServerTiming(sb, "cpu", cpu);
+		}
+		return sb.toString();
+	}
+	
+	static private void appendServerTiming(StringBuilder sb, String name, long nanos) {
+		if (sb.length() > 0) {
+			sb.append(", ");
+		}
+		sb.append(name).append(";dur=")
+			.append(String.format(Locale.ROOT, "%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1)));
+	}
+	
+	@Override
+	public String toString() {
+		return name + ": " + getServerTimingHeader();
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.diversityarrays.dal.sqldb.QueryContext;
+
+/**
+ * Marks a pool thread as working on behalf of a request: while it does, the
+ * thread's stack is included by the profiler and, when it finishes, the CPU time
+ * and bytes allocated by the thread are added to the request's QueryContext.
+ * <pre>
+ * RequestWorker worker = RequestWorker.start(queryContext);
+ * try {
+ *     ...
+ * } finally {
+ *     worker.finish();
+ * }
+ * </pre>
+ * @author brian
+ *
+ */
+public class RequestWorker {
+	
+	static private final ConcurrentMap<Thread,QueryContext> ACTIVE_WORKERS = new ConcurrentHashMap<Thread,QueryContext>();
+	
+	/**
+	 * @param queryContext of the request; may be null
+	 * @return RequestWorker whose <code>finish()</code> must be called on the same thread
+	 */
+	static public RequestWorker start(QueryContext queryContext) {
+		return new RequestWorker(queryContext);
+	}
+	
+	/**
+	 * @return the threads currently working for requests and the QueryContext of each
+	 */
+	static public Map<Thread,QueryContext> getActiveWorkers() {
+		return Collections.unmodifiableMap(ACTIVE_WORKERS);
+	}
+	
+	private final QueryContext queryContext;
+	private final long startCpuNanos;
+	private final long startAllocatedBytes;
+	
+	private RequestWorker(QueryContext ctx) {
+		this.queryContext = ctx;
+		if (ctx == null) {
+			startCpuNanos = -1;
+			startAllocatedBytes = -1;
+		}
+		else {
+			ACTIVE_WORKERS.put(Thread.currentThread(), ctx);
+			startCpuNanos = ThreadCost.currentThreadCpuNanos();
+			startAllocatedBytes = ThreadCost.currentThreadAllocatedBytes();
+		}
+	}
+	
+	public void finish() {
+		if (queryContext != null) {
+			ACTIVE_WORKERS.remove(Thread.currentThread());
+			queryContext.addWorkerCost(
+					ThreadCost.difference(startCpuNanos, ThreadCost.currentThreadCpuNanos()),
+					ThreadCost.difference(startAllocatedBytes, ThreadCost.currentThreadAllocatedBytes()));
+		}
+	}
+}
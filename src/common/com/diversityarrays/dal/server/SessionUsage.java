@@ -0,0 +1,108 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The resources used by the requests of a DalSession (or of all of a user's sessions).
+ * <p>
+ * Requests for the same session may be handled concurrently so the totals are
+ * kept in AtomicLongs rather than under a lock.
+ * @author brian
+ *
+ */
+public class SessionUsage {
+	
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong rowCount = new AtomicLong();
+	private final AtomicLong responseBytes = new AtomicLong();
+	private final AtomicLong databaseNanos = new AtomicLong();
+	private final AtomicLong upstreamNanos = new AtomicLong();
+	private final AtomicLong cpuNanos = new AtomicLong();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	
+	/**
+	 * Add a completed request. Negative values (unknown) are ignored.
+	 * @param rows rows read from the database
+	 * @param dbNanos time spent in SQL statements
+	 * @param upNanos time spent waiting for the upstream DAL server
+	 * @param cpu CPU time used by the threads that handled the request
+	 * @param allocated bytes allocated by the threads that handled the request
+	 */
+	public void addRequest(long rows, long dbNanos, long upNanos, long cpu, long allocated) {
+		requestCount.incrementAndGet();
+		addIfPositive(rowCount, rows);
+		addIfPositive(databaseNanos, dbNanos);
+		addIfPositive(upstreamNanos, upNanos);
+		addIfPositive(cpuNanos, cpu);
+		addIfPositive(allocatedBytes, allocated);
+	}
+	
+	/**
+	 * Add the cost of work for a request that finished after the request was added
+	 * (e.g. the rest of a streamed response). Negative values are ignored.
+	 * @param cpu
+	 * @param allocated
+	 */
+	public void addCost(long cpu, long allocated) {
+		addIfPositive(cpuNanos, cpu);
+		addIfPositive(allocatedBytes, allocated);
+	}
+	
+	/**
+	 * @param n bytes of response body sent
+	 */
+	public void addResponseBytes(long n) {
+		addIfPositive(responseBytes, n);
+	}
+	
+	static private void addIfPositive(AtomicLong total, long n) {
+		if (n > 0) {
+			total.addAndGet(n);
+		}
+	}
+	
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+	
+	public long getRowCount() {
+		return rowCount.get();
+	}
+	
+	public long getResponseBytes() {
+		return responseBytes.get();
+	}
+	
+	public long getDatabaseNanos() {
+		return databaseNanos.get();
+	}
+	
+	public long getUpstreamNanos() {
+		return upstreamNanos.get();
+	}
+	
+	public long getCpuNanos() {
+		return cpuNanos.get();
+	}
+	
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Samples the CPU time used and bytes allocated by the current thread so that
+ * the cost of a request can be found from the difference between two samples.
+ * <p>
+ * Allocation counts need the HotSpot <code>com.sun.management.ThreadMXBean</code>;
+ * where a measurement isn't available (or the system property
+ * <code>DAL_REQUEST_COST=false</code>) the methods return -1.
+ * @author brian
+ *
+ */
+public class ThreadCost {
+	
+	static private final boolean ENABLED = ! "false".equalsIgnoreCase(System.getProperty("DAL_REQUEST_COST"));
+	
+	static private final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	
+	static private final boolean CPU_SUPPORTED;
+	static {
+		boolean supported = false;
+		if (ENABLED) {
+			try {
+				if (THREADS.isCurrentThreadCpuTimeSupported()) {
+					if (! THREADS.isThreadCpuTimeEnabled()) {
+						THREADS.setThreadCpuTimeEnabled(true);
+					}
+					supported = true;
+				}
+			} catch (UnsupportedOperationException | SecurityException e) {
+				System.err.println("Thread CPU time is not available: " + e);
+			}
+		}
+		CPU_SUPPORTED = supported;
+	}
+	
+	/**
+	 * Kept separate so that the server still runs where the
+	 * com.sun.management classes are not present.
+	 */
+	static private class Allocation {
+		static final com.sun.management.ThreadMXBean SUN_THREADS;
+		static {
+			com.sun.management.ThreadMXBean sunThreads = null;
+			try {
+				if (THREADS instanceof com.sun.management.ThreadMXBean) {
+					com.sun.management.ThreadMXBean tmp = (com.sun.management.ThreadMXBean) THREADS;
+					if (tmp.isThreadAllocatedMemorySupported()) {
+						if (! tmp.isThreadAllocatedMemoryEnabled()) {
+							tmp.setThreadAllocatedMemoryEnabled(true);
+						}
+						sunThreads = tmp;
+					}
+				}
+			} catch (UnsupportedOperationException | SecurityException e) {
+				System.err.println("Thread allocation counts are not available: " + e);
+			}
+			SUN_THREADS = sunThreads;
+		}
+	}
+	
+	static private final boolean ALLOCATION_SUPPORTED;
+	static {
+		boolean supported = false;
+		if (ENABLED) {
+			try {
+				supported = Allocation.SUN_THREADS != null;
+			} catch (LinkageError e) {
+				// not a HotSpot JVM
+			}
+		}
+		ALLOCATION_SUPPORTED = supported;
+	}
+	
+	/**
+	 * @return the CPU time used by the current thread in nanoseconds or -1
+	 */
+	static public long currentThreadCpuNanos() {
+		return CPU_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : -1;
+	}
+	
+	/**
+	 * @return the number of bytes the current thread has allocated or -1
+	 */
+	static public long currentThreadAllocatedBytes() {
+		return ALLOCATION_SUPPORTED 
+				? Allocation.SUN_THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) 
+				: -1;
+	}
+	
+	/**
+	 * @param start an earlier sample
+	 * @param end
+	 * @return the difference or -1 if either sample is unavailable
+	 */
+	static public long difference(long start, long end) {
+		return start < 0 || end < 0 ? -1 : Math.max(0, end - start);
+	}
+	
+	private ThreadCost() {
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.sqldb;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the deadline and cancellation state for the SQL queries that are
+ * performed while handling a single request.
+ * <p>
+ * The DalServer attaches one to the thread that handles each request. Code
+ * which creates a query Statement should <code>register()</code> it with the
+ * <code>current()</code> QueryContext (if there is one) before executing it;
+ * this applies the time remaining until the deadline as the query timeout and
+ * allows <code>cancel()</code> to stop the query if the client goes away.
+ * <p>
+ * When a query fails, <code>noteFailure()</code> counts whether it was
+ * cancelled or timed out.
+ * <p>
+ * Work done for the request on other (pool) threads adds its CPU time and
+ * allocated bytes with <code>addWorkerCost()</code>.
+ * @author brian
+ *
+ */
+public class QueryContext {
+	
+	static private final ThreadLocal<QueryContext> CURRENT = new ThreadLocal<QueryContext>();
+	
+	static private final AtomicLong TIMED_OUT_COUNT = new AtomicLong();
+	static private final AtomicLong CANCELLED_COUNT = new AtomicLong();
+	
+	/**
+	 * Receives the cost of work that finishes after the request's own cost has been taken.
+	 */
+	public interface CostListener {
+		public void costAdded(long cpuNanos, long allocatedBytes);
+	}
+	
+	/**
+	 * @return the QueryContext for the current thread or null
+	 */
+	static public QueryContext current() {
+		return CURRENT.get();
+	}
+	
+	/**
+	 * Restore the QueryContext returned by <code>attach()</code>.
+	 * @param previous may be null
+	 */
+	static public void restore(QueryContext previous) {
+		if (previous == null) {
+			CURRENT.remove();
+		}
+		else {
+			CURRENT.set(previous);
+		}
+	}
+	
+	/**
+	 * Register the Statement with the current QueryContext (if any).
+	 * @param stmt
+	 * @throws SQLException if the deadline has passed or the request was cancelled
+	 */
+	static public void registerCurrent(Statement stmt) throws SQLException {
+		QueryContext ctx = CURRENT.get();
+		if (ctx != null) {
+			ctx.register(stmt);
+		}
+	}
+	
+	/**
+	 * Record the failure of a query made for the current QueryContext.
+	 * @param e
+	 */
+	static public void noteFailure(SQLException e) {
+		QueryContext ctx = CURRENT.get();
+		if (ctx != null) {
+			ctx.recordFailure(e);
+		}
+	}
+	
+	/**
+	 * @return the number of queries that failed because they timed out
+	 */
+	static public long getTimedOutCount() {
+		return TIMED_OUT_COUNT.get();
+	}
+	
+	/**
+	 * @return the number of queries that failed because they were cancelled
+	 */
+	static public long getCancelledCount() {
+		return CANCELLED_COUNT.get();
+	}
+
+	private final String name;
+	private final long startMillis;
+	// zero if none
+	private volatile long deadlineMillis;
+	private volatile String operation;
+	private volatile boolean cancelled;
+	
+	private final AtomicLong rowCount = new AtomicLong();
+	private final AtomicLong databaseNanos = new AtomicLong();
+	private final AtomicLong upstreamNanos = new AtomicLong();
+	
+	// guarded by this
+	private long workerCpuNanos;
+	private long workerAllocatedBytes;
+	private CostListener lateCostListener;
+	
+	private final Set<Statement> activeStatements = Collections.newSetFromMap(new ConcurrentHashMap<Statement,Boolean>());
+
+	/**
+	 * @param name for display
+	 * @param startMillis when the request was received
+	 */
+	public QueryContext(String name, long startMillis) {
+		this.name = name;
+		this.startMillis = startMillis;
+	}
+	
+	/**
+	 * Make this the QueryContext for the current thread.
+	 * @return the previous value which should be passed to <code>restore()</code>
+	 */
+	public QueryContext attach() {
+		QueryContext previous = CURRENT.get();
+		CURRENT.set(this);
+		return previous;
+	}
+	
+	/**
+	 * @param operation the command template (or other name) of the operation being performed
+	 */
+	public void setOperation(String operation) {
+		this.operation = operation;
+	}
+	
+	/**
+	 * @return the operation set by <code>setOperation()</code> or null
+	 */
+	public String getOperation() {
+		return operation;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Bring the deadline forward so that it is no later than <code>timeoutMillis</code>
+	 * after the request was received.
+	 * @param timeoutMillis ignored if not positive
+	 */
+	public void limitTimeout(long timeoutMillis) {
+		if (timeoutMillis > 0) {
+			long deadline = startMillis + timeoutMillis;
+			if (deadlineMillis == 0 || deadline < deadlineMillis) {
+				deadlineMillis = deadline;
+			}
+		}
+	}
+	
+	/**
+	 * @return milliseconds until the deadline, or Long.MAX_VALUE if there is none
+	 */
+	public long getRemainingMillis() {
+		long deadline = deadlineMillis;
+		return deadline == 0 ? Long.MAX_VALUE : deadline - System.currentTimeMillis();
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * @param rows read or updated by a statement performed for the request
+	 */
+	public void addRowCount(long rows) {
+		rowCount.addAndGet(rows);
+	}
+	
+	/**
+	 * @return the number of rows read or updated for the request so far
+	 */
+	public long getRowCount() {
+		return rowCount.get();
+	}
+	
+	/**
+	 * @param nanos spent executing a statement and reading its rows
+	 */
+	public void addDatabaseNanos(long nanos) {
+		databaseNanos.addAndGet(nanos);
+	}
+	
+	public long getDatabaseNanos() {
+		return databaseNanos.get();
+	}
+	
+	/**
+	 * @param nanos spent waiting for a call to an upstream server
+	 */
+	public void addUpstreamNanos(long nanos) {
+		upstreamNanos.addAndGet(nanos);
+	}
+	
+	public long getUpstreamNanos() {
+		return upstreamNanos.get();
+	}
+
+	/**
+	 * Add the cost of work done for the request on another thread.
+	 * Negative values (unknown) are ignored.
+	 * @param cpuNanos
+	 * @param allocatedBytes
+	 */
+	public synchronized void addWorkerCost(long cpuNanos, long allocatedBytes) {
+		cpuNanos = Math.max(0, cpuNanos);
+		allocatedBytes = Math.max(0, allocatedBytes);
+		if (lateCostListener != null) {
+			lateCostListener.costAdded(cpuNanos, allocatedBytes);
+		}
+		else {
+			workerCpuNanos += cpuNanos;
+			workerAllocatedBytes += allocatedBytes;
+		}
+	}
+	
+	/**
+	 * Return the worker cost added so far; any added after this goes to the listener.
+	 * @param listener
+	 * @return the CPU nanoseconds and allocated bytes
+	 */
+	public synchronized long[] takeWorkerCost(CostListener listener) {
+		lateCostListener = listener;
+		return new long[] { workerCpuNanos, workerAllocatedBytes };
+	}
+
+	/**
+	 * Set the query timeout of the Statement to the time remaining and
+	 * track it so that it can be cancelled.
+	 * @param stmt
+	 * @throws SQLException if the deadline has passed or the request was cancelled
+	 */
+	public void register(Statement stmt) throws SQLException {
+		long remaining = getRemainingMillis();
+		if (remaining <= 0) {
+			throw new SQLTimeoutException("Request deadline exceeded: " + name);
+		}
+		if (remaining != Long.MAX_VALUE) {
+			// Round up: zero would mean no timeout
+			int seconds = (int) Math.min(Integer.MAX_VALUE, (remaining + 999) / 1000);
+			stmt.setQueryTimeout(seconds);
+		}
+		activeStatements.add(stmt);
+		if (cancelled) {
+			activeStatements.remove(stmt);
+			throw new SQLException("Request cancelled: " + name);
+		}
+	}
+	
+	/**
+	 * Stop tracking the Statement, normally because it has been closed.
+	 * @param stmt
+	 */
+	public void unregister(Statement stmt) {
+		activeStatements.remove(stmt);
+	}
+	
+	/**
+	 * Cancel any queries in progress and prevent new ones from starting.
+	 */
+	public void cancel() {
+		cancelled = true;
+		for (Statement stmt : activeStatements) {
+			try {
+				stmt.cancel();
+			} catch (SQLException ignore) {
+				// probably already closed
+			}
+		}
+	}
+	
+	/**
+	 * Count the failure if it was caused by cancellation or a timeout.
+	 * @param e
+	 */
+	public void recordFailure(SQLException e) {
+		if (cancelled) {
+			CANCELLED_COUNT.incrementAndGet();
+		}
+		else if (e instanceof SQLTimeoutException || getRemainingMillis() <= 0) {
+			TIMED_OUT_COUNT.incrementAndGet();
+		}
+	}
+}
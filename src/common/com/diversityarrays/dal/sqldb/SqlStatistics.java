@@ -0,0 +1,480 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.sqldb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.diversityarrays.dal.server.DalEvents;
+
+/**
+ * Aggregates the time spent executing SQL statements and fetching their rows
+ * by <i>fingerprint</i>: the statement text with its literal values replaced
+ * by <code>?</code> so that queries which differ only in their ids or filter
+ * values are counted together.
+ * <p>
+ * Code which executes a statement calls <code>begin()</code> before executing it,
+ * <code>executed()</code> when the execute call returns, <code>addRow()</code>
+ * for each row read and <code>finish()</code> once the rows have been read (or
+ * the attempt has failed).
+ * <p>
+ * Statements which take longer than <code>DAL_SLOW_QUERY_MILLIS</code> (default 1000)
+ * in total are written to the slow query log along with the operation
+ * (from the current QueryContext) that caused them; zero disables the log.
+ * @author brian
+ *
+ */
+public class SqlStatistics {
+	
+	static public final long SLOW_QUERY_MILLIS = Integer.getInteger("DAL_SLOW_QUERY_MILLIS", 1000);
+	
+	/** Beyond this many fingerprints, new ones are counted under OTHER_FINGERPRINT */
+	static private final int MAX_FINGERPRINTS = Integer.getInteger("DAL_SQL_MAX_FINGERPRINTS", 1000);
+	
+	static private final int MAX_FINGERPRINT_LENGTH = 1000;
+	static private final int MAX_LOGGED_SQL_LENGTH = 4000;
+	
+	static public final String OTHER_FINGERPRINT = "(other)";
+	
+	static public final Logger SLOW_QUERY_LOG = Logger.getLogger(SqlStatistics.class.getName() + ".slow");
+	
+	static private final ConcurrentMap<String,FingerprintStats> STATS_BY_FINGERPRINT = new ConcurrentHashMap<String,FingerprintStats>();
+	
+	static private final AtomicLong EXECUTION_COUNT = new AtomicLong();
+	static private final AtomicLong SLOW_COUNT = new AtomicLong();
+	
+	/**
+	 * Totals for all executions of statements with the same fingerprint.
+	 */
+	static public class FingerprintStats {
+		private final String fingerprint;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong errorCount = new AtomicLong();
+		private final AtomicLong slowCount = new AtomicLong();
+		private final AtomicLong executeNanos = new AtomicLong();
+		private final AtomicLong fetchNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final AtomicLong rows = new AtomicLong();
+		
+		FingerprintStats(String fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+		
+		void record(long execNanos, long fetchedNanos, long nRows, boolean error, boolean slow) {
+			count.incrementAndGet();
+			if (error) {
+				errorCount.incrementAndGet();
+			}
+			if (slow) {
+				slowCount.incrementAndGet();
+			}
+			executeNanos.addAndGet(execNanos);
+			fetchNanos.addAndGet(fetchedNanos);
+			rows.addAndGet(nRows);
+			long total = execNanos + fetchedNanos;
+			long current;
+			while (total > (current = maxNanos.get())) {
+				if (maxNanos.compareAndSet(current, total)) {
+					break;
+				}
+			}
+		}
+		
+		public String getFingerprint() {
+			return fingerprint;
+		}
+		
+		public long getCount() {
+			return count.get();
+		}
+		
+		public long getErrorCount() {
+			return errorCount.get();
+		}
+		
+		public long getSlowCount() {
+			return slowCount.get();
+		}
+		
+		public long getExecuteNanos() {
+			return executeNanos.get();
+		}
+		
+		public long getFetchNanos() {
+			return fetchNanos.get();
+		}
+		
+		public long getTotalNanos() {
+			return executeNanos.get() + fetchNanos.get();
+		}
+		
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+		
+		public long getRows() {
+			return rows.get();
+		}
+		
+		@Override
+		public String toString() {
+			long n = count.get();
+			double nanosPerMilli = TimeUnit.MILLISECONDS.toNanos(1);
+			double meanExec = n <= 0 ? 0 : executeNanos.get() / (double) n / nanosPerMilli;
+			double meanFetch = n <= 0 ? 0 : fetchNanos.get() / (double) n / nanosPerMilli;
+			return String.format("%d (mean exec %.2fms, fetch %.2fms, max %.2fms, rows %d, slow %d, errors %d) %s",
+					n, meanExec, meanFetch, maxNanos.get() / nanosPerMilli, rows.get(),
+					slowCount.get(), errorCount.get(), fingerprint);
+		}
+	}
+	
+	/**
+	 * Tracks one execution of a statement.
+	 * Not thread-safe: an Execution should only be used by the code that began it.
+	 */
+	static public class Execution {
+		private final String sql;
+		private final String operation;
+		private final QueryContext queryContext;
+		private final DalEvents.Event event = DalEvents.begin(DalEvents.Type.SQL);
+		private final long startNanos = System.nanoTime();
+		private long executedNanos;
+		private long rows;
+		private boolean failed;
+		private boolean finished;
+		
+		Execution(String sql, String operation, QueryContext ctx) {
+			this.sql = sql;
+			this.operation = operation;
+			this.queryContext = ctx;
+		}
+		
+		/**
+		 * Call when the execute method returns; the remaining time
+		 * until <code>finish()</code> is counted as fetch time.
+		 */
+		public void executed() {
+			if (executedNanos == 0) {
+				executedNanos = System.nanoTime();
+			}
+		}
+		
+		public void addRow() {
+			++rows;
+		}
+		
+		/**
+		 * @param n the number of rows read or updated
+		 */
+		public void addRows(long n) {
+			if (n > 0) {
+				rows += n;
+			}
+		}
+		
+		public void failed() {
+			failed = true;
+		}
+		
+		/**
+		 * Record the execution. Only the first call has any effect.
+		 */
+		public void finish() {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			
+			long now = System.nanoTime();
+			long execEnd = executedNanos == 0 ? now : executedNanos;
+			record(this, execEnd - startNanos, now - execEnd);
+		}
+	}
+	
+	/**
+	 * Start tracking the execution of a statement.
+	 * @param sql
+	 * @return an Execution which must be finished
+	 */
+	static public Execution begin(String sql) {
+		QueryContext ctx = QueryContext.current();
+		String operation = null;
+		if (ctx != null) {
+			operation = ctx.getOperation();
+			if (operation == null) {
+				operation = ctx.getName();
+			}
+		}
+		return new Execution(sql, operation, ctx);
+	}
+	
+	/**
+	 * Start tracking a statement that is not executed on behalf of the current QueryContext.
+	 * @param sql
+	 * @param operation for the slow query log
+	 * @return an Execution which must be finished
+	 */
+	static public Execution begin(String sql, String operation) {
+		return new Execution(sql, operation, null);
+	}
+	
+	static private void record(Execution exec, long execNanos, long fetchNanos) {
+		EXECUTION_COUNT.incrementAndGet();
+		
+		long millis = TimeUnit.NANOSECONDS.toMillis(execNanos + fetchNanos);
+		boolean slow = SLOW_QUERY_MILLIS > 0 && millis >= SLOW_QUERY_MILLIS;
+		
+		String fingerprint = fingerprint(exec.sql);
+		getStats(fingerprint).record(execNanos, fetchNanos, exec.rows, exec.failed, slow);
+		
+		if (exec.queryContext != null) {
+			exec.queryContext.addRowCount(exec.rows);
+			exec.queryContext.addDatabaseNanos(execNanos + fetchNanos);
+		}
+		if (exec.event != null) {
+			exec.event.commit(fingerprint, exec.rows);
+		}
+		
+		if (slow) {
+			SLOW_COUNT.incrementAndGet();
+			if (SLOW_QUERY_LOG.isLoggable(Level.WARNING)) {
+				String sql = exec.sql;
+				if (sql != null && sql.length() > MAX_LOGGED_SQL_LENGTH) {
+					sql = sql.substring(0, MAX_LOGGED_SQL_LENGTH) + "...";
+				}
+				SLOW_QUERY_LOG.log(Level.WARNING, String.format(
+						"Slow query: %dms (exec %.2fms, fetch %.2fms) rows=%d%s operation=%s fingerprint=%s sql=%s",
+						millis,
+						execNanos / 1_000_000.0,
+						fetchNanos / 1_000_000.0,
+						exec.rows,
+						exec.failed ? " FAILED" : "",
+						exec.operation,
+						fingerprint,
+						sql));
+			}
+		}
+	}
+	
+	static private FingerprintStats getStats(String fingerprint) {
+		FingerprintStats stats = STATS_BY_FINGERPRINT.get(fingerprint);
+		if (stats == null) {
+			if (STATS_BY_FINGERPRINT.size() >= MAX_FINGERPRINTS) {
+				fingerprint = OTHER_FINGERPRINT;
+				stats = STATS_BY_FINGERPRINT.get(fingerprint);
+			}
+			if (stats == null) {
+				stats = new FingerprintStats(fingerprint);
+				FingerprintStats prev = STATS_BY_FINGERPRINT.putIfAbsent(fingerprint, stats);
+				if (prev != null) {
+					stats = prev;
+				}
+			}
+		}
+		return stats;
+	}
+	
+	/**
+	 * Normalise the SQL by replacing quoted strings and numbers with <code>?</code>,
+	 * collapsing lists of them (e.g. in an <code>IN</code> clause) to a single
+	 * <code>?+</code>, reducing whitespace to single spaces and converting the
+	 * rest to lower case.
+	 * @param sql
+	 * @return the fingerprint
+	 */
+	static public String fingerprint(String sql) {
+		if (sql == null) {
+			return "";
+		}
+		
+		StringBuilder sb = new StringBuilder(Math.min(sql.length(), MAX_FINGERPRINT_LENGTH + 10));
+		int len = sql.length();
+		int pos = 0;
+		while (pos < len && sb.length() < MAX_FINGERPRINT_LENGTH) {
+			char ch = sql.charAt(pos);
+			if (ch == '\'' || ch == '"') {
+				pos = skipQuoted(sql, pos, ch);
+				appendLiteral(sb);
+			}
+			else if (Character.isDigit(ch) && ! isIdentifierPart(sb)) {
+				++pos;
+				while (pos < len && (Character.isLetterOrDigit(sql.charAt(pos)) || sql.charAt(pos) == '.')) {
+					++pos;
+				}
+				appendLiteral(sb);
+			}
+			else if (Character.isWhitespace(ch)) {
+				while (pos < len && Character.isWhitespace(sql.charAt(pos))) {
+					++pos;
+				}
+				if (sb.length() > 0) {
+					sb.append(' ');
+				}
+			}
+			else {
+				sb.append(Character.toLowerCase(ch));
+				++pos;
+			}
+		}
+		
+		int end = sb.length();
+		while (end > 0 && sb.charAt(end - 1) == ' ') {
+			--end;
+		}
+		sb.setLength(end);
+		if (pos < len) {
+			sb.append("...");
+		}
+		return sb.toString();
+	}
+	
+	static private boolean isIdentifierPart(StringBuilder sb) {
+		if (sb.length() <= 0) {
+			return false;
+		}
+		char prev = sb.charAt(sb.length() - 1);
+		return prev == '_' || prev == '$' || Character.isLetterOrDigit(prev);
+	}
+	
+	/**
+	 * @return the position after the closing quote
+	 */
+	static private int skipQuoted(String sql, int start, char quote) {
+		int len = sql.length();
+		int pos = start + 1;
+		while (pos < len) {
+			char ch = sql.charAt(pos++);
+			if (ch == '\\') {
+				++pos;
+			}
+			else if (ch == quote) {
+				if (pos < len && sql.charAt(pos) == quote) {
+					++pos;
+				}
+				else {
+					break;
+				}
+			}
+		}
+		return Math.min(pos, len);
+	}
+	
+	/**
+	 * Append a <code>?</code> unless it continues a comma separated list
+	 * of literals, in which case the list becomes <code>?+</code>.
+	 */
+	static private void appendLiteral(StringBuilder sb) {
+		int end = sb.length();
+		int p = end;
+		if (p > 0 && sb.charAt(p - 1) == ' ') {
+			--p;
+		}
+		if (p > 0 && sb.charAt(p - 1) == ',') {
+			int q = p - 1;
+			if (q > 0 && sb.charAt(q - 1) == ' ') {
+				--q;
+			}
+			if (q > 0 && sb.charAt(q - 1) == '?') {
+				sb.setLength(q);
+				sb.append('+');
+				return;
+			}
+			if (q > 1 && sb.charAt(q - 1) == '+' && sb.charAt(q - 2) == '?') {
+				sb.setLength(q);
+				return;
+			}
+		}
+		sb.append('?');
+	}
+	
+	/**
+	 * @return the total number of statements recorded
+	 */
+	static public long getExecutionCount() {
+		return EXECUTION_COUNT.get();
+	}
+	
+	/**
+	 * @return the number of statements that exceeded SLOW_QUERY_MILLIS
+	 */
+	static public long getSlowCount() {
+		return SLOW_COUNT.get();
+	}
+	
+	/**
+	 * @param max
+	 * @return up to <code>max</code> FingerprintStats in descending order of total time
+	 */
+	static public List<FingerprintStats> getTopFingerprints(int max) {
+		// The totals keep changing so sort on a copy of each one
+		List<RankedStats> ranked = new ArrayList<RankedStats>();
+		for (FingerprintStats fs : STATS_BY_FINGERPRINT.values()) {
+			ranked.add(new RankedStats(fs));
+		}
+		Collections.sort(ranked, new Comparator<RankedStats>() {
+			@Override
+			public int compare(RankedStats o1, RankedStats o2) {
+				return Long.compare(o2.totalNanos, o1.totalNanos);
+			}
+		});
+		List<FingerprintStats> result = new ArrayList<FingerprintStats>();
+		for (RankedStats r : ranked) {
+			if (result.size() >= max) {
+				break;
+			}
+			result.add(r.stats);
+		}
+		return result;
+	}
+	
+	/**
+	 * A FingerprintStats with its total time when ranked.
+	 */
+	static private class RankedStats {
+		final FingerprintStats stats;
+		final long totalNanos;
+		
+		RankedStats(FingerprintStats stats) {
+			this.stats = stats;
+			this.totalNanos = stats.getTotalNanos();
+		}
+	}
+	
+	/**
+	 * @return a one-line summary or null if no statements have been recorded
+	 */
+	static public String getSummary() {
+		long n = EXECUTION_COUNT.get();
+		if (n <= 0) {
+			return null;
+		}
+		return n + " statements, " + STATS_BY_FINGERPRINT.size() + " fingerprints, "
+				+ SLOW_COUNT.get() + " slow (>= " + SLOW_QUERY_MILLIS + "ms)";
+	}
+	
+	private SqlStatistics() {
+	}
+}
@@ -24,6 +24,7 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,9 +51,11 @@ public class SqlUtil {
 		}
 	}
 	
-	static int logIdCount = 0;
+	static private final AtomicInteger logIdCount = new AtomicInteger();
+	
 	/**
 	 * Run the query on the given Connection and visit each ResultSet which is returned.
+	 * The execution is recorded in SqlStatistics.
 	 * @param conn
 	 * @param sql
 	 * @param visitor
@@ -62,30 +65,44 @@ public class SqlUtil {
 	static public Continue performQuery(Connection conn, String sql, ResultSetVisitor visitor) {
 		Statement stmt = null;
 		ResultSet rs = null;
+		QueryContext ctx = QueryContext.current();
+		SqlStatistics.Execution exec = SqlStatistics.begin(sql);
 		try {
 			stmt = createQueryStatement(conn);
+			if (ctx != null) {
+				ctx.register(stmt);
+			}
 			
 			int logId = 0;
 			if (logger != null) {
-				logId = ++logIdCount;
+				logId = logIdCount.incrementAndGet();
 				logger.log(Level.INFO, "SqlUtil.performQuery#" + logId + ": " + sql);
 			}
 
 			long startNanos = System.nanoTime();
 			rs = stmt.executeQuery(sql);
 			long elapsed = System.nanoTime() - startNanos;
+			exec.executed();
 
 			if (logger != null) {
 				logger.log(Level.INFO, "SqlUtil.performQuery#" + logId + ": time=" + (elapsed / 1_000_000.0) + " ms");
 			}
 			
-			return visitResults(rs, visitor);
+			return visitResults(rs, visitor, exec);
 		}
 		catch (SQLException e) {
+			exec.failed();
+			if (ctx != null) {
+				ctx.recordFailure(e);
+			}
 			return Continue.error(e);
 		}
 		finally {
+			if (ctx != null && stmt != null) {
+				ctx.unregister(stmt);
+			}
 			closeSandRS(stmt, rs);
+			exec.finish();
 		}
 	}
 	
@@ -99,58 +116,109 @@ public class SqlUtil {
 	static public int executeUpdate(Connection conn, String sql) throws SQLException {
 		int res = Integer.MIN_VALUE;
 		Statement stmt = null;
+		SqlStatistics.Execution exec = SqlStatistics.begin(sql);
 		try {
 			stmt = conn.createStatement();
 			
 			int logId = 0;
 			if (logger != null) {
-				logId = ++logIdCount;
+				logId = logIdCount.incrementAndGet();
 				logger.log(Level.INFO, "SqlUtil.executeUpdate#" + logId + ": " + sql);
 			}
 			
 			long startNanos = System.nanoTime();
-			res = stmt.executeUpdate(sql);
+			try {
+				res = stmt.executeUpdate(sql);
+			} catch (SQLException e) {
+				exec.failed();
+				throw e;
+			}
 			long elapsed = System.nanoTime() - startNanos;
+			exec.executed();
+			exec.addRows(res);
 
 			if (logger != null) {
 				logger.log(Level.INFO, "SqlUtil.executeUpdate#" + logId + ": time=" + (elapsed / 1_000_000.0) + " ms");
 			}
 		} finally {
 			closeSandRS(stmt, null);
+			exec.finish();
 		}
 		return res;
 	}
 	
 	public static int executeUpdate(PreparedStatement stmt) throws DalDbException, SQLException {
+		return executeUpdate(stmt, null);
+	}
+	
+	/**
+	 * Execute the PreparedStatement and return its update count.
+	 * @param stmt
+	 * @param sql the SQL the statement was prepared from; used for SqlStatistics
+	 * @return the update count
+	 * @throws DalDbException if the statement returned a ResultSet
+	 * @throws SQLException
+	 */
+	public static int executeUpdate(PreparedStatement stmt, String sql) throws DalDbException, SQLException {
 		int result = -1;
 		
+		SqlStatistics.Execution exec = SqlStatistics.begin(sql != null ? sql : stmt.toString());
+		boolean status;
 		long startNanos = System.nanoTime();
-		boolean status = stmt.execute();
+		try {
+			status = stmt.execute();
+		} catch (SQLException e) {
+			exec.failed();
+			exec.finish();
+			throw e;
+		}
 		long elapsed = System.nanoTime() - startNanos;
+		exec.executed();
 
 		if (logger != null) {
-			int logId = ++logIdCount;
+			int logId = logIdCount.incrementAndGet();
 			logger.log(Level.INFO, "SqlUtil.executeUpdate#" + logId + ": time=" + (elapsed / 1_000_000.0) + " ms");
 		}
 		
 		if (status) {
+			exec.failed();
+			exec.finish();
 			throw new DalDbException("PreparedStatement.execute() returned true: "+stmt.toString());
 		}
 		else {
 			result = stmt.getUpdateCount();
 		}
+		exec.addRows(result);
+		exec.finish();
 		return result;
 	}
 	
 	static public Continue visitResults(ResultSet rs, ResultSetVisitor visitor) {
+		return visitResults(rs, visitor, null);
+	}
+	
+	/**
+	 * Visit each row of the ResultSet, counting them in the Execution.
+	 * @param rs
+	 * @param visitor
+	 * @param exec may be null
+	 * @return as for <code>visitResults(ResultSet,ResultSetVisitor)</code>
+	 */
+	static public Continue visitResults(ResultSet rs, ResultSetVisitor visitor, SqlStatistics.Execution exec) {
 		try {
 			while (rs.next()) {
+				if (exec != null) {
+					exec.addRow();
+				}
 				Continue c = visitor.visit(rs);
 				if (! c.shouldContinue) {
 					return c;
 				}
 			}
 		} catch (SQLException e) {
+			if (exec != null) {
+				exec.failed();
+			}
 			return Continue.error(e);
 		}
 		return Continue.CONTINUE;
@@ -270,5 +338,34 @@ public class SqlUtil {
 		return c.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
 	}
 
+	/**
+	 * Create a Statement whose ResultSet is streamed from the server a row at a time
+	 * instead of being read completely into memory before the first row is available.
+	 * <p>
+	 * Note that (with MySQL Connector/J) no other statement may be executed on the
+	 * Connection until the streaming ResultSet has been fully read or closed, so the
+	 * caller should normally use a Connection that is not shared.
+	 * @param c
+	 * @return a Statement
+	 * @throws SQLException
+	 */
+	public static Statement createStreamingQueryStatement(Connection c) throws SQLException {
+		Statement stmt = createQueryStatement(c);
+		stmt.setFetchSize(Integer.MIN_VALUE);
+		return stmt;
+	}
+	
+	/**
+	 * @param stmt
+	 * @return true if the Statement was created by <code>createStreamingQueryStatement()</code>
+	 */
+	public static boolean isStreaming(Statement stmt) {
+		try {
+			return stmt.getFetchSize() == Integer.MIN_VALUE;
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
 	
 }
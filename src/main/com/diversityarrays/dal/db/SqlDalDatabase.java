@@ -37,6 +37,14 @@ public interface SqlDalDatabase extends DalDatabase {
 	 */
 	public Connection getConnection(boolean createIfNotPresent) throws DalDbException;
 	
+	/**
+	 * Return a new JDBC Connection that is not shared with the DAL operations.
+	 * This is used by the SQL console; the caller is responsible for closing it.
+	 * @return Connection
+	 * @throws DalDbException
+	 */
+	public Connection createConnection() throws DalDbException;
+	
 	/**
 	 * Return the RecordCountCache for this database. The RecordCountCache is used
 	 * to save the number of records for each table as a performance hack.
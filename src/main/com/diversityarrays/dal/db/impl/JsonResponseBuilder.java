@@ -36,12 +36,27 @@ public class JsonResponseBuilder extends DalResponseBuilder {
 	Stack<JsonMap> stack = new Stack<JsonMap>();
 	JsonMap tos = null;
 	String error = null;
+	String passThroughBody = null;
 	
 	public JsonResponseBuilder() {
 		tos = new JsonMap(true);
 		stack.push(tos);
 	}
 	
+	@Override
+	public DalResponseBuilder createEmptyBuilder() {
+		return new JsonResponseBuilder();
+	}
+	
+	@Override
+	public boolean passThrough(String body, boolean bodyIsJson) {
+		if (! bodyIsJson || error!=null || hasResponseMetaTags() || stack.size()!=1 || ! tos.getKeysInOrder().isEmpty()) {
+			return false;
+		}
+		passThroughBody = body;
+		return true;
+	}
+	
 	@Override
 	public DalResponseBuilder startTag(String tag) {
 		if (error==null) {
@@ -63,12 +78,12 @@ public class JsonResponseBuilder extends DalResponseBuilder {
 	@Override
 	public DalResponseBuilder endTag(String tag) {
 		if (error==null) {
-			if (stack.isEmpty()) {
+			if (stack.size() <= 1) {
 				error = "Invalid attempt to endTag("+tag+")";
 			}
 			else {
 				stack.pop();
-				tos = stack.firstElement();
+				tos = stack.peek();
 				if (tag!=null && ! tag.isEmpty()) {
 					List<String> keys = tos.getKeysInOrder();
 					if (keys.isEmpty()) {
@@ -85,6 +100,9 @@ public class JsonResponseBuilder extends DalResponseBuilder {
 	
 	@Override
 	public String asString() {
+		if (passThroughBody!=null) {
+			return passThroughBody;
+		}
 		if (error==null) {
 			int ssize = stack.size();
 			if (ssize<1) {
@@ -135,6 +153,9 @@ public class JsonResponseBuilder extends DalResponseBuilder {
 
 	@Override
 	public Response build(Response.IStatus status) {
+		if (passThroughBody!=null) {
+			return new Response(status, DalServer.MIME_JSON, passThroughBody);
+		}
 		if (error==null) {
 			int ssize = stack.size();
 			if (ssize<1) {
@@ -0,0 +1,197 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Stack;
+
+import net.pearcan.json.JsonMap;
+
+import com.diversityarrays.dal.db.DalResponseBuilder;
+import com.diversityarrays.dal.server.DalServer;
+import com.diversityarrays.dalclient.DALClient;
+
+/**
+ * Streaming equivalent of JsonResponseBuilder.
+ * <p>
+ * Consecutive tags with the same name are written as a single list so (as with
+ * the DAL) a DalOperation must not interleave its different record types at
+ * the same level. The RecordMeta list is written at the end, as JsonMap would.
+ * @author brian
+ *
+ */
+public class StreamingJsonResponseBuilder extends StreamingResponseBuilder {
+	
+	/**
+	 * Provides access to the value formatting used by JsonMap.
+	 */
+	static private class ValueWriter extends JsonMap {
+		static void write(OutputStream out, Object value) throws IOException {
+			writeObject(out, value, false);
+		}
+	}
+	
+	/**
+	 * One JSON object being written.
+	 */
+	static private class Frame {
+		int nKeys;
+		// Name of the list still open in this object (or null)
+		String openListTag;
+	}
+	
+	private final Stack<Frame> stack = new Stack<Frame>();
+
+	public StreamingJsonResponseBuilder(OutputStream out) {
+		super(out);
+	}
+	
+	@Override
+	public String getMimeType() {
+		return DalServer.MIME_JSON;
+	}
+	
+	private void write(String s) throws IOException {
+		out.write(s.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private Frame top() throws IOException {
+		if (stack.isEmpty()) {
+			write("{");
+			stack.push(new Frame());
+		}
+		return stack.peek();
+	}
+	
+	private void startKey(Frame frame, String key) throws IOException {
+		if (frame.openListTag != null) {
+			write("]");
+			frame.openListTag = null;
+		}
+		if (frame.nKeys > 0) {
+			write(",\n");
+		}
+		++frame.nKeys;
+		ValueWriter.write(out, key);
+		write(":");
+	}
+	
+	private void startListElement(Frame frame, String tag) throws IOException {
+		if (tag.equals(frame.openListTag)) {
+			write(",");
+		}
+		else {
+			startKey(frame, tag);
+			write("[");
+			frame.openListTag = tag;
+		}
+		write("{");
+		stack.push(new Frame());
+	}
+	
+	private void endObject() throws IOException {
+		Frame frame = stack.pop();
+		if (frame.openListTag != null) {
+			write("]");
+		}
+		write("}");
+	}
+
+	@Override
+	public DalResponseBuilder startTag(String tag) {
+		try {
+			startListElement(top(), tag);
+		} catch (IOException e) {
+			throw new ResponseStreamClosedException(e);
+		}
+		return this;
+	}
+
+	@Override
+	public DalResponseBuilder attribute(String attrName, String attrValue) {
+		try {
+			startKey(top(), attrName);
+			ValueWriter.write(out, attrValue);
+		} catch (IOException e) {
+			throw new ResponseStreamClosedException(e);
+		}
+		return this;
+	}
+
+	@Override
+	public DalResponseBuilder endTag(String tag) {
+		if (stack.size() < 2) {
+			throw new IllegalStateException("Invalid attempt to endTag(" + tag + ")");
+		}
+		try {
+			endObject();
+		} catch (IOException e) {
+			throw new ResponseStreamClosedException(e);
+		}
+		return this;
+	}
+	
+	private void writeRecordMeta(Frame root) throws IOException {
+		for (String meta : getResponseMetaTags()) {
+			startListElement(root, DALClient.TAG_RECORD_META);
+			startKey(stack.peek(), DALClient.ATTR_TAG_NAME);
+			ValueWriter.write(out, meta);
+			endObject();
+		}
+	}
+
+	@Override
+	public void finish() {
+		try {
+			Frame root = top();
+			if (stack.size() > 1) {
+				throw new IllegalStateException("not enough endTag() calls");
+			}
+			writeRecordMeta(root);
+			endObject();
+			out.flush();
+		} catch (IOException e) {
+			throw new ResponseStreamClosedException(e);
+		} finally {
+			closeQuietly();
+		}
+	}
+
+	@Override
+	public void finishWithError(String message) {
+		try {
+			top();
+			Frame root = stack.firstElement();
+			while (stack.size() > 1) {
+				endObject();
+			}
+			startListElement(root, DALClient.TAG_ERROR);
+			startKey(stack.peek(), DALClient.ATTR_MESSAGE);
+			ValueWriter.write(out, message);
+			endObject();
+			endObject();
+			out.flush();
+		} catch (IOException ignore) {
+		} finally {
+			closeQuietly();
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.diversityarrays.dal.db.DalResponseBuilder;
+
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * A DalResponseBuilder that writes the response to an OutputStream as it
+ * is built instead of holding it all in memory. The RecordMeta tags must be
+ * added before the first <code>startTag()</code> and the caller must finish the
+ * response with either <code>finish()</code> or <code>finishWithError()</code>.
+ * <p>
+ * If the response can no longer be written (usually because the client
+ * has gone away) a ResponseStreamClosedException is thrown from whichever
+ * method was writing so that the DalOperation stops producing output.
+ * @author brian
+ *
+ */
+public abstract class StreamingResponseBuilder extends DalResponseBuilder {
+	
+	static public class ResponseStreamClosedException extends RuntimeException {
+		
+		public ResponseStreamClosedException(Throwable cause) {
+			super("Response stream closed", cause);
+		}
+	}
+	
+	static public StreamingResponseBuilder create(boolean wantJson, OutputStream out) {
+		return wantJson 
+				? new StreamingJsonResponseBuilder(out) 
+				: new StreamingXmlResponseBuilder(out);
+	}
+	
+	protected final OutputStream out;
+
+	protected StreamingResponseBuilder(OutputStream out) {
+		this.out = out;
+	}
+	
+	abstract public String getMimeType();
+	
+	/**
+	 * Complete the response and close the OutputStream.
+	 */
+	abstract public void finish();
+	
+	/**
+	 * Close any open tags, append an Error record with the message
+	 * and then close the OutputStream. Any failure to write is ignored.
+	 * @param message
+	 */
+	abstract public void finishWithError(String message);
+	
+	protected void closeQuietly() {
+		try {
+			out.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+	@Override
+	public String asString() {
+		throw new UnsupportedOperationException("Streaming response cannot be returned as a String");
+	}
+
+	@Override
+	public Response build(Response.IStatus status) {
+		throw new UnsupportedOperationException("Streaming response has already been sent");
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import com.diversityarrays.dal.db.DalResponseBuilder;
+import com.diversityarrays.dalclient.DALClient;
+import com.generationjava.io.WritingException;
+import com.generationjava.io.xml.XmlWriter;
+
+/**
+ * Streaming equivalent of XmlResponseBuilder; the output is the same
+ * apart from the RecordMeta tags which are written when the first tag is started.
+ * @author brian
+ *
+ */
+public class StreamingXmlResponseBuilder extends StreamingResponseBuilder {
+	
+	private final Writer writer;
+	private final XmlWriter w;
+	
+	private boolean started;
+	private int depth;
+
+	public StreamingXmlResponseBuilder(OutputStream out) {
+		super(out);
+		writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		w = new XmlWriter(writer);
+	}
+	
+	@Override
+	public String getMimeType() {
+		return XmlResponseBuilder.MIME_TEXT_XML;
+	}
+	
+	private void ensureStarted() throws IOException {
+		if (! started) {
+			started = true;
+			writer.write(XmlResponseBuilder.XML_HEADER);
+			writer.write(XmlResponseBuilder.XML_DATA_BEGIN);
+			for (String meta : getResponseMetaTags()) {
+				writer.write("<" + DALClient.TAG_RECORD_META + " "
+						+ DALClient.ATTR_TAG_NAME + "=\"" + meta + "\" />\n");
+			}
+		}
+	}
+
+	@Override
+	public DalResponseBuilder startTag(String tag) {
+		try {
+			ensureStarted();
+			w.startEntity(tag);
+			++depth;
+		} catch (IOException e) {
+			throw new ResponseStreamClosedException(e);
+		} catch (WritingException e) {
+			throw new ResponseStreamClosedException(e);
+		}
+		return this;
+	}
+
+	@Override
+	public DalResponseBuilder attribute(String attrName, String attrValue) {
+		try {
+			w.writeAttribute(attrName, attrValue);
+		} catch (WritingException e) {
+			throw new ResponseStreamClosedException(e);
+		}
+		return this;
+	}
+
+	@Override
+	public DalResponseBuilder endTag(String tag) {
+		try {
+			w.endEntity(tag);
+			--depth;
+		} catch (WritingException e) {
+			throw new ResponseStreamClosedException(e);
+		}
+		return this;
+	}
+
+	@Override
+	public void finish() {
+		try {
+			ensureStarted();
+			w.close();
+			writer.write(XmlResponseBuilder.XML_DATA_END);
+			writer.close();
+		} catch (IOException e) {
+			throw new ResponseStreamClosedException(e);
+		} catch (WritingException e) {
+			throw new ResponseStreamClosedException(e);
+		} finally {
+			closeQuietly();
+		}
+	}
+
+	@Override
+	public void finishWithError(String message) {
+		try {
+			ensureStarted();
+			for ( ; depth > 0; --depth) {
+				w.endEntity();
+			}
+			w.startEntity(DALClient.TAG_ERROR)
+				.writeAttribute(DALClient.ATTR_MESSAGE, message)
+				.endEntity();
+			w.close();
+			writer.write(XmlResponseBuilder.XML_DATA_END);
+			writer.close();
+		} catch (IOException ignore) {
+		} catch (WritingException ignore) {
+		} finally {
+			closeQuietly();
+		}
+	}
+
+}
@@ -39,10 +39,25 @@ public class XmlResponseBuilder extends DalResponseBuilder {
 	StringWriter sw = new StringWriter();
 	XmlWriter w = new XmlWriter(sw);
 	WritingException error = null;
+	String passThroughBody = null;
 
 	public XmlResponseBuilder() {
 	}
 	
+	@Override
+	public DalResponseBuilder createEmptyBuilder() {
+		return new XmlResponseBuilder();
+	}
+	
+	@Override
+	public boolean passThrough(String body, boolean bodyIsJson) {
+		if (bodyIsJson || error!=null || hasResponseMetaTags() || sw.getBuffer().length() > 0) {
+			return false;
+		}
+		passThroughBody = body;
+		return true;
+	}
+	
 	@Override
 	public DalResponseBuilder startTag(String tag) {
 		if (error==null) {
@@ -81,6 +96,9 @@ public class XmlResponseBuilder extends DalResponseBuilder {
 	
 	@Override
 	public String asString() {
+		if (passThroughBody!=null) {
+			return passThroughBody;
+		}
 		String result;
 		if (error==null) {
 			try {
@@ -110,6 +128,9 @@ public class XmlResponseBuilder extends DalResponseBuilder {
 	
 	@Override
 	public Response build(Response.IStatus status) {
+		if (passThroughBody!=null) {
+			return new Response(status, MIME_TEXT_XML, passThroughBody);
+		}
 		Response result;
 		if (error==null) {
 			try {
@@ -0,0 +1,263 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.db.DbUtil;
+import com.diversityarrays.dal.db.PoolStatistics;
+import com.diversityarrays.dal.db.SqlDalDatabase;
+import com.diversityarrays.dal.sqldb.SqlStatistics;
+import com.diversityarrays.dal.sqldb.SqlUtil;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Runs the SQL from the <code>/sql</code> and <code>/table</code> console on its own
+ * threads and JDBC connections so that ad-hoc queries can't take capacity from
+ * the DAL operations.
+ * <p>
+ * The rows are streamed to the client (as a chunked HTML Response) while they are
+ * being read. Each statement has a query timeout and a row limit, set with the system
+ * properties <code>DAL_CONSOLE_SQL_TIMEOUT_SECONDS</code> (default 30) and
+ * <code>DAL_CONSOLE_SQL_MAX_ROWS</code> (default 1000). At most
+ * <code>DAL_CONSOLE_SQL_THREADS</code> (default 1) statements run at once, each
+ * with its own connection, and <code>DAL_CONSOLE_SQL_QUEUED</code> (default 2) may wait;
+ * any more are rejected.
+ * @author brian
+ *
+ */
+class ConsoleSqlLane {
+	
+	static private final int THREADS = Integer.getInteger("DAL_CONSOLE_SQL_THREADS", 1);
+	static private final int QUEUED = Integer.getInteger("DAL_CONSOLE_SQL_QUEUED", 2);
+	static private final int MAX_ROWS = Integer.getInteger("DAL_CONSOLE_SQL_MAX_ROWS", 1000);
+	static private final int TIMEOUT_SECONDS = Integer.getInteger("DAL_CONSOLE_SQL_TIMEOUT_SECONDS", 30);
+	
+	static private final int FETCH_SIZE = 100;
+	
+	/**
+	 * How long a statement will wait for the client to read some of the response.
+	 */
+	static private final long STALL_TIMEOUT_MILLIS = 60 * 1000;
+	
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final SqlDalDatabase db;
+	
+	private final ThreadPoolExecutor executor;
+	private final PoolStatistics.Pool pool;
+	
+	private final BlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<Connection>();
+	
+	private volatile boolean closed;
+	
+	ConsoleSqlLane(SqlDalDatabase db) {
+		this.db = db;
+		
+		int nThreads = Math.max(1, THREADS);
+		executor = new ThreadPoolExecutor(nThreads, nThreads, 
+				60, TimeUnit.SECONDS, 
+				new ArrayBlockingQueue<Runnable>(Math.max(1, QUEUED)),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "DalConsoleSql-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		
+		pool = PoolStatistics.forExecutor("SQL console threads", executor);
+		PoolStatistics.register(pool);
+	}
+	
+	/**
+	 * Execute the SQL and return a Response that streams the results.
+	 * @param sql
+	 * @return Response
+	 */
+	Response run(final String sql) {
+		if (closed) {
+			return new Response(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "The SQL console has been closed");
+		}
+		
+		final ResponsePipe pipe = new ResponsePipe(STALL_TIMEOUT_MILLIS);
+		final AtomicReference<Response> errorResponse = new AtomicReference<Response>();
+		
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				Writer out = new OutputStreamWriter(pipe.getOutputStream(), UTF8);
+				Connection conn = null;
+				boolean reusable = false;
+				Statement stmt = null;
+				ResultSet rs = null;
+				SqlStatistics.Execution exec = SqlStatistics.begin(sql, "console");
+				try {
+					conn = leaseConnection();
+					stmt = conn.createStatement();
+					stmt.setQueryTimeout(TIMEOUT_SECONDS);
+					stmt.setMaxRows(MAX_ROWS + 1);
+					stmt.setFetchSize(FETCH_SIZE);
+					
+					boolean hasResultSet = stmt.execute(sql);
+					exec.executed();
+					
+					out.write("<html><body><code>");
+					out.write(DbUtil.htmlEscape(sql));
+					out.write("</code><hr/>");
+					if (hasResultSet) {
+						rs = stmt.getResultSet();
+						int nRows = DalServerUtil.appendResultSetRowsAsTable("No data rows returned", rs, out, MAX_ROWS);
+						exec.addRows(nRows);
+						if (nRows > MAX_ROWS) {
+							out.write("<p>Only the first " + MAX_ROWS + " rows are shown</p>");
+						}
+					}
+					else {
+						out.write("Update count=" + stmt.getUpdateCount());
+					}
+					out.write("</body></html>");
+					out.flush();
+					reusable = true;
+				} catch (SQLException e) {
+					exec.failed();
+					// Once for the log
+					e.printStackTrace();
+					fail(out, e);
+				} catch (DalDbException e) {
+					fail(out, e);
+				} catch (IOException e) {
+					// The client has gone away or stopped reading
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					fail(out, e);
+				} finally {
+					SqlUtil.closeSandRS(stmt, rs);
+					exec.finish();
+					releaseConnection(conn, reusable);
+					try {
+						out.close();
+					} catch (IOException ignore) {
+					}
+				}
+			}
+			
+			private void fail(Writer out, Throwable t) {
+				if (pipe.isCommitted()) {
+					try {
+						out.write("<hr/><b>Error:</b> " + DbUtil.htmlEscape(String.valueOf(t.getMessage())) + "</body></html>");
+					} catch (IOException ignore) {
+					}
+				}
+				else {
+					// Browser request gets it all as text
+					StringWriter sw = new StringWriter();
+					PrintWriter pw = new PrintWriter(sw);
+					t.printStackTrace(pw);
+					pw.close();
+					errorResponse.set(new Response(Response.Status.OK, NanoHTTPD.MIME_PLAINTEXT, sw.toString()));
+					pipe.abandon();
+				}
+			}
+		};
+		
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			return new Response(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, 
+					"The SQL console is busy - please try again later");
+		}
+		
+		try {
+			pipe.awaitOpened();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			try {
+				pipe.getInputStream().close();
+			} catch (IOException ignore) {
+			}
+			return new Response(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "Interrupted");
+		}
+		
+		Response result = errorResponse.get();
+		if (result == null) {
+			result = new Response(Response.Status.OK, NanoHTTPD.MIME_HTML + "; charset=UTF-8", pipe.getInputStream());
+			result.setChunkedTransfer(true);
+		}
+		return result;
+	}
+	
+	private Connection leaseConnection() throws DalDbException, SQLException {
+		Connection conn;
+		while (null != (conn = idleConnections.poll())) {
+			if (! conn.isClosed()) {
+				return conn;
+			}
+		}
+		return db.createConnection();
+	}
+	
+	private void releaseConnection(Connection conn, boolean reusable) {
+		if (conn == null) {
+			return;
+		}
+		if (reusable && ! closed) {
+			idleConnections.offer(conn);
+		}
+		else {
+			try { conn.close(); } catch (SQLException ignore) {}
+		}
+	}
+	
+	/**
+	 * Stop accepting statements and close the idle connections.
+	 */
+	void close() {
+		closed = true;
+		PoolStatistics.unregister(pool);
+		executor.shutdownNow();
+		Connection conn;
+		while (null != (conn = idleConnections.poll())) {
+			try { conn.close(); } catch (SQLException ignore) {}
+		}
+	}
+}
@@ -18,10 +18,12 @@
 package com.diversityarrays.dal.server;
 
 import java.awt.Image;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.Socket;
 import java.net.UnknownHostException;
 import java.sql.Connection;
 import java.sql.ResultSet;
@@ -38,8 +40,11 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import java.util.prefs.Preferences;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.imageio.ImageIO;
 import javax.imageio.spi.ServiceRegistry;
@@ -58,15 +63,21 @@ import com.diversityarrays.dal.db.DalDatabaseUtil;
 import com.diversityarrays.dal.db.DalDbException;
 import com.diversityarrays.dal.db.DalResponseBuilder;
 import com.diversityarrays.dal.db.DbUtil;
+import com.diversityarrays.dal.db.GetBatchStatistics;
+import com.diversityarrays.dal.db.SingleFlightStatistics;
 import com.diversityarrays.dal.db.SqlDalDatabase;
 import com.diversityarrays.dal.db.SystemGroupInfo;
+import com.diversityarrays.dal.db.UpstreamHttpStatistics;
 import com.diversityarrays.dal.db.UserInfo;
 import com.diversityarrays.dal.ops.DalOperation;
 import com.diversityarrays.dal.ops.OperationMatch;
+import com.diversityarrays.dal.ops.StreamingDalOperation;
 import com.diversityarrays.dal.ops.WordNode;
 import com.diversityarrays.dal.service.DalDbProviderService;
 import com.diversityarrays.dal.service.Parameter;
 import com.diversityarrays.dal.service.ParameterValue;
+import com.diversityarrays.dal.sqldb.QueryContext;
+import com.diversityarrays.dal.sqldb.SqlStatistics;
 import com.diversityarrays.dal.sqldb.SqlUtil;
 import com.diversityarrays.dalclient.DALClient;
 import com.diversityarrays.dalclient.SessionExpiryOption;
@@ -78,8 +89,34 @@ import fi.iki.elonen.SimpleWebServer;
 public class DalServer extends SimpleWebServer implements IDalServer {
 
 	private static final String YOU_NEED_TO_LOGIN_FIRST = "You need to login first";
+	
+	static private final String MIME_PROMETHEUS_TEXT = "text/plain; version=0.0.4";
+	
+	/**
+	 * Set the system property <code>DAL_SERVER_TIMING=true</code> to send each
+	 * request's phase timings in a <code>Server-Timing</code> response header.
+	 */
+	static private final boolean SERVER_TIMING = Boolean.getBoolean("DAL_SERVER_TIMING");
 
 	static final private String DAL_SERVER_VERSION = "1.0.1";
+	
+	/**
+	 * System property for the default time limit (in seconds) on the queries for a DAL operation.
+	 * Append "." and the operation's command template to set the limit for a single operation, e.g.
+	 * <code>-DDAL_QUERY_TIMEOUT_SECONDS.list/genotype/_nperpage/page/_num=30</code>.
+	 * A value of zero means no limit.
+	 */
+	static private final String QUERY_TIMEOUT_PROPERTY = "DAL_QUERY_TIMEOUT_SECONDS";
+	static private final int DEFAULT_QUERY_TIMEOUT_SECONDS = 120;
+	
+	/** The number of SQL fingerprints listed on the /sessions page */
+	static private final int SQL_FINGERPRINTS_SHOWN = 20;
+	
+	/**
+	 * Request header with which a client may ask for a shorter time limit (in seconds).
+	 * NanoHTTPD provides the header names in lower case.
+	 */
+	static private final String HEADER_REQUEST_TIMEOUT = "x-dal-timeout";
 
 	static private void fatal(String msg) {
 		System.err.println("?" + msg);
@@ -374,6 +411,11 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 
 	private DalSessionStore dalSessionStore = new DalSessionStore();
 
+	/**
+	 * Runs the /sql and /table console statements; created when first needed.
+	 */
+	private ConsoleSqlLane consoleSqlLane;
+
 	private int maximumInactivityMinutes = DalServerUtil.DEFAULT_MAX_INACTIVE_MINUTES;
 	private long maximumInactivityMillis = maximumInactivityMinutes * 60 * 1000L;
 
@@ -387,6 +429,18 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 		this.dalDatabase = dd;
 
 		DalServerUtil.buildWordTree(dalDatabase.getOperations(), wordNodeRoot);
+		
+		installEventRecorder();
+	}
+	
+	/**
+	 * Record DalEvents as Flight Recorder events if the runtime supports them
+	 * unless the system property <code>DAL_JFR_EVENTS=false</code>.
+	 */
+	static private synchronized void installEventRecorder() {
+		if (DalEvents.getRecorder() == null && ! "false".equalsIgnoreCase(System.getProperty("DAL_JFR_EVENTS"))) {
+			DalEvents.setRecorder(JfrEventRecorder.create());
+		}
 	}
 
 	public NanoHTTPD getHttpServer() {
@@ -411,6 +465,10 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 		return dalDatabase.getOperations().size();
 	}
 
+	public int getSessionCount() {
+		return dalSessionStore.getSessions().length;
+	}
+
 	public DalDatabase getDalDatabase() {
 		return dalDatabase;
 	}
@@ -433,11 +491,16 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 
 	public Response serve(IHTTPSession session) {
 
+		long startNanos = System.nanoTime();
+		long startCpuNanos = ThreadCost.currentThreadCpuNanos();
+		long startAllocatedBytes = ThreadCost.currentThreadAllocatedBytes();
+		RequestTrace trace = new RequestTrace(session.getUri(), System.currentTimeMillis(), startNanos);
 		Map<String, String> filePathByName = new HashMap<String, String>();
 		Method method = session.getMethod();
 		if (Method.PUT.equals(method) || Method.POST.equals(method)) {
 			try {
 				session.parseBody(filePathByName);
+				trace.record("parse", startNanos);
 			} catch (IOException ioe) {
 				ioe.printStackTrace();
 				return new Response(Response.Status.INTERNAL_ERROR,
@@ -450,7 +513,52 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 			}
 		}
 
-		Response r = serveImpl(session.getUri(), method, session, filePathByName);
+		QueryContext queryContext = new QueryContext(session.getUri(), System.currentTimeMillis());
+		String clientTimeout = session.getHeaders().get(HEADER_REQUEST_TIMEOUT);
+		if (clientTimeout != null) {
+			try {
+				queryContext.limitTimeout(Long.parseLong(clientTimeout.trim()) * 1000);
+			} catch (NumberFormatException ignore) {
+			}
+		}
+		
+		QueryContext previous = queryContext.attach();
+		RequestTrace previousTrace = trace.attach();
+		Response r;
+		StackSampler.requestStarted(queryContext);
+		RequestLog.beginRequest();
+		try {
+			r = serveImpl(session.getUri(), method, session, filePathByName);
+		} finally {
+			StackSampler.requestFinished();
+			RequestLog.endRequest();
+			RequestTrace.restore(previousTrace);
+			QueryContext.restore(previous);
+		}
+		
+		final String operation = getMetricsOperation(session.getUri(), queryContext);
+		trace.setOperation(operation);
+		trace.finish(r.getStatus().getRequestStatus());
+		final RequestTrace finishedTrace = trace;
+		long[] workerCost = queryContext.takeWorkerCost(new QueryContext.CostListener() {
+			@Override
+			public void costAdded(long cpuNanos, long allocatedBytes) {
+				// e.g. the rest of a streamed response
+				RequestMetrics.addLateCost(operation, cpuNanos, allocatedBytes);
+				UsageAccounting.addLateCost(finishedTrace, cpuNanos, allocatedBytes);
+			}
+		});
+		long cpuNanos = ThreadCost.difference(startCpuNanos, ThreadCost.currentThreadCpuNanos());
+		long allocatedBytes = ThreadCost.difference(startAllocatedBytes, ThreadCost.currentThreadAllocatedBytes());
+		trace.setCost(cpuNanos < 0 ? cpuNanos : cpuNanos + workerCost[0],
+				allocatedBytes < 0 ? allocatedBytes : allocatedBytes + workerCost[1]);
+		if (SERVER_TIMING) {
+			r.addHeader("Server-Timing", trace.getServerTimingHeader());
+		}
+		RequestTraceLog.record(trace, r);
+		UsageAccounting.record(trace, queryContext, r);
+		
+		RequestMetrics.record(operation, r, trace);
 
 		r.addHeader("Access-Control-Allow-Methods", "GET, POST");
 		// r.addHeader("Access-Control-Allow-Credentials", "true");
@@ -461,6 +569,30 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 		return r;
 	}
 
+	/**
+	 * @param uri
+	 * @param queryContext
+	 * @return the name under which the request's metrics are recorded
+	 */
+	static private String getMetricsOperation(String uri, QueryContext queryContext) {
+		String result = queryContext.getOperation();
+		if (result == null) {
+			if (uri.startsWith("/dal/")) {
+				result = RequestMetrics.UNKNOWN_OPERATION;
+			}
+			else {
+				Matcher m = CONSOLE_URI.matcher(uri);
+				result = m.matches() ? "/" + m.group(1) : "file";
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * The URIs of the console requests (i.e. not DAL operations or files).
+	 */
+	static private final Pattern CONSOLE_URI = Pattern.compile("^/(help|sessions|usage|metrics|traces|profile|entity|sql|table)(:.*|/.*)?$", Pattern.DOTALL);
+
 	private Response serveImpl(String uri, 
 			Method method, 
 			IHTTPSession session,
@@ -470,44 +602,60 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 
 		boolean wantJson = "json".equals(session.getParms().get("ctype"));
 
-		if (verbose) {
-			System.out.println(method + " '" + uri + "' ");
+		if (verbose && RequestLog.isEnabled(RequestLog.Level.INFO)) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(method).append(" '").append(uri).append("' ");
 
 			Map<String, String> headers = session.getHeaders();
 			Iterator<String> e = headers.keySet().iterator();
 			while (e.hasNext()) {
 				String value = e.next();
-				System.out.println("  HDR: '" + value + "' = '"
-						+ headers.get(value) + "'");
+				sb.append("\n  HDR: '").append(value).append("' = '")
+						.append(headers.get(value)).append("'");
 			}
 
 			Map<String, String> parms = session.getParms();
 			e = parms.keySet().iterator();
 			while (e.hasNext()) {
 				String value = e.next();
-				System.out.println("  PRM: '" + value + "' = '"
-						+ parms.get(value) + "'");
+				sb.append("\n  PRM: '").append(value).append("' = '")
+						.append(parms.get(value)).append("'");
 			}
+			RequestLog.info(sb.toString());
 		}
 
 		if ("/help".equals(uri)) {
 			result = giveHelp();
 		} else if (uri.equals("/sessions")) {
 			result = doListSessions();
+		} else if (uri.equals("/metrics")) {
+			result = new Response(Response.Status.OK, MIME_PROMETHEUS_TEXT, RequestMetrics.toPrometheusText());
+		} else if (uri.equals("/traces")) {
+			result = checkGroupOwner(session, "view the request traces");
+			if (result == null) {
+				result = new Response(Response.Status.OK, MIME_HTML, RequestTraceLog.toHtml());
+			}
+		} else if (uri.equals("/profile")) {
+			result = doProfile(session);
+		} else if (uri.equals("/usage")) {
+			result = checkGroupOwner(session, "view the usage");
+			if (result == null) {
+				result = doUsage(! "xml".equals(session.getParms().get("ctype")), session.getParms());
+			}
 		} else if (Method.GET.equals(method) && uri.startsWith("/entity:")) {
 			result = doEntityInfo(uri.substring(8));
 		} else if (Method.POST.equals(method) && uri.endsWith("/entity")) {
 			result = doEntityInfo(session.getParms().get("entity"));
 		} else if (Method.GET.equals(method) && uri.startsWith("/sql:")) {
 			if (dalDatabase instanceof SqlDalDatabase) {
-				result = createSqlQueryResponse((SqlDalDatabase) dalDatabase, uri.substring(5), null);
+				result = createSqlQueryResponse((SqlDalDatabase) dalDatabase, uri.substring(5));
 			}
 			else {
 				result = DalServerUtil.buildNotSqlDalDatabaseTextResponse(dalDatabase);
 			}
 		} else if (Method.POST.equals(method) && uri.endsWith("/sql")) {
 			if (dalDatabase instanceof SqlDalDatabase) {
-				result = createSqlQueryResponse((SqlDalDatabase) dalDatabase, session.getParms().get("sql"), null);
+				result = createSqlQueryResponse((SqlDalDatabase) dalDatabase, session.getParms().get("sql"));
 			}
 			else {
 				result = DalServerUtil.buildNotSqlDalDatabaseTextResponse(dalDatabase);
@@ -522,9 +670,9 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 			if (result != null) {
 				IStatus status = result.getStatus();
 				String desc = status.getDescription();
-				System.out.println("\tresult.status=" + desc);
+				RequestLog.info("\tresult.status=" + desc);
 				if (returnSql[0] != null) {
-					System.out.println("\tSQL: " + returnSql[0]);
+					RequestLog.info("\tSQL: " + returnSql[0]);
 				}
 			}
 		} else {
@@ -544,11 +692,158 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 		if (sessions.length > 0) {
 			emitSessions(sessions, sb);
 		}
+		sb.append("<p>Queries timed out: ").append(QueryContext.getTimedOutCount())
+			.append("<br>Queries cancelled: ").append(QueryContext.getCancelledCount())
+			.append("</p>");
+		String batchSummary = GetBatchStatistics.getSummary();
+		if (batchSummary != null) {
+			sb.append("<p>Batched gets: ").append(batchSummary).append("</p>");
+		}
+		if (SingleFlightStatistics.getSharedCount() > 0) {
+			sb.append("<p>Requests sharing an identical request's result: ")
+				.append(SingleFlightStatistics.getSharedCount())
+				.append(" (").append(SingleFlightStatistics.getPerformedCount()).append(" performed)</p>");
+		}
+		String upstreamSummary = UpstreamHttpStatistics.getSummary();
+		if (upstreamSummary != null) {
+			sb.append("<p>Upstream HTTP: ").append(upstreamSummary).append("</p>");
+		}
+		String sqlSummary = SqlStatistics.getSummary();
+		if (sqlSummary != null) {
+			sb.append("<p>SQL: ").append(sqlSummary).append("</p>");
+			emitSqlFingerprints(SqlStatistics.getTopFingerprints(SQL_FINGERPRINTS_SHOWN), sb);
+		}
 		sb.append("</body></html>");
 
 		return new Response(Response.Status.OK, MIME_HTML, sb.toString());
 	}
 
+	/**
+	 * List the sessions and users that have used the most of a resource.
+	 * Only available to a group owner.
+	 * @param wantJson
+	 * @param parms <code>by</code> names the resource (default requests) and <code>top</code> the number to list
+	 * @return the Response
+	 */
+	private Response doUsage(boolean wantJson, Map<String,String> parms) {
+		UsageAccounting.Measure measure = UsageAccounting.Measure.REQUESTS;
+		String by = parms.get("by");
+		if (by != null) {
+			measure = UsageAccounting.Measure.lookup(by);
+			if (measure == null) {
+				return DalServerUtil.buildErrorResponse(wantJson, "Unknown value for 'by': " + by);
+			}
+		}
+		int top = UsageAccounting.DEFAULT_TOP;
+		String topValue = parms.get("top");
+		if (topValue != null) {
+			try {
+				top = Math.max(1, Integer.parseInt(topValue.trim()));
+			} catch (NumberFormatException e) {
+				return DalServerUtil.buildErrorResponse(wantJson, "Invalid value for 'top': " + topValue);
+			}
+		}
+		
+		DalResponseBuilder builder = DalServerUtil.createBuilder(wantJson);
+		UsageAccounting.appendTopUsage(dalSessionStore.getSessions(), measure, top, builder);
+		return builder.build(Response.Status.OK);
+	}
+
+	/**
+	 * Sample the stacks of the request threads and return them in the collapsed
+	 * stack format used by flame graph tools. Only available to a group owner.
+	 * @param session <code>seconds</code> is the sampling duration (default 10) and <code>interval</code> the milliseconds between samples (default 10)
+	 * @return the Response
+	 */
+	private Response doProfile(IHTTPSession session) {
+		Response denied = checkGroupOwner(session, "profile the server");
+		if (denied != null) {
+			return denied;
+		}
+		
+		Map<String,String> parms = session.getParms();
+		long seconds;
+		long intervalMillis;
+		try {
+			String value = parms.get("seconds");
+			seconds = value == null ? 10 : Long.parseLong(value.trim());
+			value = parms.get("interval");
+			intervalMillis = value == null ? 10 : Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return new Response(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid number: " + e.getMessage());
+		}
+		seconds = Math.max(1, Math.min(seconds, StackSampler.MAX_SECONDS));
+		intervalMillis = Math.max(1, intervalMillis);
+		
+		String stacks;
+		try {
+			stacks = StackSampler.profile(TimeUnit.SECONDS.toMillis(seconds), intervalMillis);
+		} catch (InterruptedException e) {
+			return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Interrupted");
+		}
+		if (stacks == null) {
+			return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, 
+					"A profile is already being taken - please try again later");
+		}
+		return new Response(Response.Status.OK, MIME_PLAINTEXT, stacks);
+	}
+
+	/**
+	 * Check that the request is from a logged-in group owner.
+	 * @param session
+	 * @param action what is being done, for the error message
+	 * @return null if it is, otherwise the Response to send
+	 */
+	private Response checkGroupOwner(IHTTPSession session, String action) {
+		String sessionId = session.getCookies().read(DalSession.COOKIE_NAME_DAL_SESSION_ID);
+		DalSession dalSession = sessionId == null ? null : dalSessionStore.getSession(sessionId);
+		if (dalSession == null || dalSession.hasExpired(maximumInactivityMillis)) {
+			return new Response(Response.Status.UNAUTHORIZED, MIME_PLAINTEXT, "You are not logged-in");
+		}
+		try {
+			SystemGroupInfo groupInfo = dalDatabase.getSystemGroupInfo(dalSession);
+			if (groupInfo == null || ! groupInfo.isGroupOwner()) {
+				return new Response(Response.Status.FORBIDDEN, MIME_PLAINTEXT, "Only a group owner may " + action);
+			}
+		} catch (DalDbException e) {
+			return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.getMessage());
+		}
+		return null;
+	}
+
+	private void emitSqlFingerprints(List<SqlStatistics.FingerprintStats> list, StringBuilder sb) {
+		double nanosPerMilli = TimeUnit.MILLISECONDS.toNanos(1);
+
+		sb.append("<table border='1'>");
+		sb.append("<thead><tr>");
+		sb.append("<th>Count</th>");
+		sb.append("<th>Total ms</th>");
+		sb.append("<th>Mean Exec ms</th>");
+		sb.append("<th>Mean Fetch ms</th>");
+		sb.append("<th>Max ms</th>");
+		sb.append("<th>Rows</th>");
+		sb.append("<th>Slow</th>");
+		sb.append("<th>Errors</th>");
+		sb.append("<th>Fingerprint</th>");
+		sb.append("</tr></thead><tbody>");
+
+		for (SqlStatistics.FingerprintStats fs : list) {
+			long n = Math.max(1, fs.getCount());
+			sb.append("<tr>")
+				.append("<td>").append(fs.getCount()).append("</td>")
+				.append("<td>").append(String.format("%.1f", fs.getTotalNanos() / nanosPerMilli)).append("</td>")
+				.append("<td>").append(String.format("%.2f", fs.getExecuteNanos() / n / nanosPerMilli)).append("</td>")
+				.append("<td>").append(String.format("%.2f", fs.getFetchNanos() / n / nanosPerMilli)).append("</td>")
+				.append("<td>").append(String.format("%.1f", fs.getMaxNanos() / nanosPerMilli)).append("</td>")
+				.append("<td>").append(fs.getRows()).append("</td>")
+				.append("<td>").append(fs.getSlowCount()).append("</td>")
+				.append("<td>").append(fs.getErrorCount()).append("</td>")
+				.append("<td><code>").append(DbUtil.htmlEscape(fs.getFingerprint())).append("</code></td>")
+				.append("</tr>");
+		}
+		sb.append("</tbody></table>");
+	}
+
 	private void emitSessions(DalSession[] sessions, StringBuilder sb) {
 		DateFormat df = new SimpleDateFormat("yyyy-MM-DD HH:mm:ss");
 
@@ -560,6 +855,12 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 		sb.append("<th>Expiry Option</th>");
 		sb.append("<th>WriteToken</th>");
 		sb.append("<th>Session Id</th>");
+		sb.append("<th>Requests</th>");
+		sb.append("<th>Rows</th>");
+		sb.append("<th>Response KB</th>");
+		sb.append("<th>Database ms</th>");
+		sb.append("<th>Upstream ms</th>");
+		sb.append("<th>CPU ms</th>");
 		sb.append("</tr></thead><tbody>");
 
 		for (DalSession sess : sessions) {
@@ -570,7 +871,14 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 					.append("</td>").append("<td>")
 					.append(sess.sessionExpiryOption).append("</td>")
 					.append("<td>").append(sess.writeToken).append("</td>")
-					.append("<td>").append(sess.sessionId).append("</td>")
+					.append("<td>").append(sess.sessionId).append("</td>");
+			SessionUsage usage = sess.getUsage();
+			sb.append("<td>").append(usage.getRequestCount()).append("</td>")
+					.append("<td>").append(usage.getRowCount()).append("</td>")
+					.append("<td>").append((usage.getResponseBytes() + 1023) / 1024).append("</td>")
+					.append("<td>").append(TimeUnit.NANOSECONDS.toMillis(usage.getDatabaseNanos())).append("</td>")
+					.append("<td>").append(TimeUnit.NANOSECONDS.toMillis(usage.getUpstreamNanos())).append("</td>")
+					.append("<td>").append(TimeUnit.NANOSECONDS.toMillis(usage.getCpuNanos())).append("</td>")
 					.append("</tr>");
 		}
 		sb.append("</tbody></table>");
@@ -584,10 +892,16 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 			String[] returnSql)
 	{
 
-		System.out.println("DAL: " + dalcmd);
+		RequestLog.info("DAL: " + dalcmd);
+		
+		String builtInOperation = getBuiltInOperation(dalcmd);
+		if (builtInOperation != null) {
+			QueryContext.current().setOperation(builtInOperation);
+		}
 
 		Response result;
 
+		long sessionStartNanos = System.nanoTime();
 		CookieHandler cookies = session.getCookies();
 		String sessionId = cookies.read(DalSession.COOKIE_NAME_DAL_SESSION_ID);
 
@@ -596,11 +910,11 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 			dalSession = dalSessionStore.getSession(sessionId);
 
 			if (dalSession == null) {
-				System.out.println("\tNO session for sessionId=" + sessionId);
+				RequestLog.info("\tNO session for sessionId=" + sessionId);
 			} else {
-				System.out.println("\tsession: " + dalSession);
+				RequestLog.info("\tsession: " + dalSession);
 				if (dalSession.hasExpired(maximumInactivityMillis)) {
-					System.out.println("\t **expired**");
+					RequestLog.info("\t **expired**");
 					dalSessionStore.removeSession(dalSession);
 					// But if they are trying to login again, this isn't an error !
 					if (! dalcmd.startsWith(DalOperation.LOGIN_STEM)) {
@@ -611,6 +925,13 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 				}
 			}
 		}
+		RequestTrace.recordCurrent("session", sessionStartNanos);
+		if (dalSession != null) {
+			RequestTrace trace = RequestTrace.current();
+			if (trace != null) {
+				trace.setSession(dalSession);
+			}
+		}
 
 		if (dalcmd.startsWith(DalOperation.LOGIN_STEM)) {
 			if (dalSession == null) {
@@ -619,7 +940,7 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 			else {
 				removeCookies(session);
 				dalSessionStore.removeSession(dalSession);
-				System.out.println("!!! Removed session: " + dalSession);
+				RequestLog.info("!!! Removed session: " + dalSession);
 				result = DalServerUtil.buildAuthErrorResponse(wantJson,
 						"You were already logged-in as " + dalSession.getUserName()
 						+ ". You are now logged-out");
@@ -629,7 +950,7 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 			if (dalSession != null) {
 				result = handleLogout(dalSession, wantJson, dalcmd, session);
 				dalSessionStore.removeSession(dalSession);
-				System.out.println("!!! Removed session: " + dalSession);
+				RequestLog.info("!!! Removed session: " + dalSession);
 			}
 			else {
 				// TODO check if need to do: removeCookies(session);
@@ -666,8 +987,10 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 				result = createGetVersionResult(wantJson, dalSession);
 			}
 			else {
+				long routeStartNanos = System.nanoTime();
 				StringBuilder errmsg = new StringBuilder();
 				OperationMatch match = getOperationMatch(dalcmd, errmsg);
+				RequestTrace.recordCurrent("route", routeStartNanos);
 				if (match == null || match.node.getOperation() == null) {
 					result = DalServerUtil.buildNotFoundResponse(wantJson,
 							"No matching operation for '" + dalcmd + "' ("
@@ -680,6 +1003,28 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 		return result;
 	}
 
+	/**
+	 * @param dalcmd
+	 * @return the command template if <code>dalcmd</code> is handled by the DalServer itself, else null
+	 */
+	static private String getBuiltInOperation(String dalcmd) {
+		if (dalcmd.startsWith(DalOperation.LOGIN_STEM)) {
+			return "login";
+		}
+		if (dalcmd.startsWith(DalOperation.SWITCH_GROUP_STEM)) {
+			return DalOperation.SWITCH_GROUP_STEM + "_groupid";
+		}
+		if (dalcmd.endsWith(DalOperation.LIST_FIELD_TAIL)) {
+			return "_tname" + DalOperation.LIST_FIELD_TAIL;
+		}
+		for (String op : DalOperation.MORE_OPS) {
+			if (op.equals(dalcmd)) {
+				return op;
+			}
+		}
+		return null;
+	}
+
 	public Response createGetVersionResult(boolean wantJson, DalSession session) {
 		try {
 			return DalServerUtil
@@ -722,9 +1067,6 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 	{
 		Response result;
 			
-		// TODO pass this on to dalDatabase.switchGroup() in case it is a forwarder
-		//      and react appropriately
-
 		String[] parts = dalcmd.split("/");
 		if (parts.length == 3 && parts[2].matches("\\d+")) {
 			String groupId = parts[2];
@@ -740,6 +1082,7 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 				} else {
 					// Yup - and this user is a member...
 					dalSession.setGroupId(groupInfo.getGroupId());
+					dalDatabase.groupSwitched(dalSession);
 
 					result = DalServerUtil
 							.createBuilder(wantJson)
@@ -864,9 +1207,9 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 
 				List<Cookie> cookies = dalSession.getCookies();
 				if (cookies != null) {
-					System.out.println("Cookies for dalSession:" + dalSession);
+					RequestLog.debug("Cookies for dalSession:" + dalSession);
 					for (Cookie cookie : cookies) {
-						System.out.println("\t" + cookie);
+						RequestLog.debug("\t" + cookie);
 						session.getCookies().set(cookie);
 					}
 				}
@@ -876,7 +1219,7 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 					e = ae;
 				}
 
-				System.err.println(e.getMessage());
+				RequestLog.warn(e.getMessage());
 				result = DalServerUtil.buildAuthErrorResponse(wantJson, "(3) "
 						+ e.getMessage());
 			}
@@ -1018,30 +1361,83 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 			// NOT "list/operation"
 			DalOperation dalop = match.node.getOperation();
 			List<String> dalOpParameters = collectDalOperationParameters(match, dalop);
+			
+			QueryContext queryContext = QueryContext.current();
+			if (queryContext != null) {
+				queryContext.setOperation(dalop.getCommandTemplate());
+				queryContext.limitTimeout(getQueryTimeoutSeconds(dalop) * 1000L);
+			}
 
-			DalResponseBuilder responseBuilder = DalServerUtil.createBuilder(wantJson);
-
-			try {
-				dalop.execute(dalSession,
-						responseBuilder, method, uri, 
+			DalEvents.Event operationEvent = DalEvents.begin(DalEvents.Type.OPERATION);
+			if (dalop instanceof StreamingDalOperation && ((StreamingDalOperation) dalop).isStreamingResponse()) {
+				// Records are sent as they are produced
+				result = StreamingOperationRunner.run((StreamingDalOperation) dalop, 
+						dalSession, wantJson, method, uri, 
 						dalOpParameters, 
 						session.getParms(), 
 						filePathByName);
-				result = responseBuilder.build(Response.Status.OK);
-			} catch (AuthenticationException e) {
-				result = DalServerUtil.buildAuthErrorResponse(wantJson, e.getMessage());
-			} catch (DalDbException e) {
-				Throwable t = e.getCause();
-				if (t == null) {
-					t = e;
+			}
+			else {
+				DalResponseBuilder responseBuilder = DalServerUtil.createBuilder(wantJson);
+
+				try {
+					dalop.execute(dalSession,
+							responseBuilder, method, uri, 
+							dalOpParameters, 
+							session.getParms(), 
+							filePathByName);
+					long buildStartNanos = System.nanoTime();
+					DalEvents.Event buildEvent = DalEvents.begin(DalEvents.Type.BUILD);
+					result = responseBuilder.build(Response.Status.OK);
+					RequestTrace.recordCurrent("build", buildStartNanos);
+					if (buildEvent != null) {
+						buildEvent.commit(responseBuilder.getClass().getSimpleName(), getResponseLength(result));
+					}
+				} catch (AuthenticationException e) {
+					result = DalServerUtil.buildAuthErrorResponse(wantJson, e.getMessage());
+				} catch (DalDbException e) {
+					Throwable t = e.getCause();
+					if (t == null) {
+						t = e;
+					}
+					result = DalServerUtil.buildInternalErrorResponse(wantJson, t);
 				}
-				result = DalServerUtil.buildInternalErrorResponse(wantJson, t);
+			}
+			if (operationEvent != null) {
+				operationEvent.commit(dalop.getCommandTemplate(), 
+						queryContext == null ? 0 : queryContext.getRowCount(), 
+						getResponseLength(result));
 			}
 		}
 
 		return result;
 	}
 	
+	/**
+	 * @param response
+	 * @return the length of the Response body or -1 if it isn't known before it is sent
+	 */
+	static private long getResponseLength(Response response) {
+		InputStream data = response.getData();
+		return data instanceof ByteArrayInputStream ? ((ByteArrayInputStream) data).available() : -1;
+	}
+	
+	static private int getQueryTimeoutSeconds(DalOperation dalop) {
+		Integer seconds = Integer.getInteger(QUERY_TIMEOUT_PROPERTY + "." + dalop.getCommandTemplate());
+		if (seconds == null) {
+			seconds = Integer.getInteger(QUERY_TIMEOUT_PROPERTY, DEFAULT_QUERY_TIMEOUT_SECONDS);
+		}
+		return seconds;
+	}
+	
+	@Override
+	public void unRegisterConnection(Socket socket) {
+		super.unRegisterConnection(socket);
+		// NanoHTTPD calls this on the thread that served the connection once the
+		// client has gone; stop any response that is still being streamed to it.
+		StreamingOperationRunner.connectionClosed();
+	}
+	
 	/**
 	 * List all of the operations available for the DalDatabase we are serving.
 	 * @param wantJson
@@ -1113,7 +1509,11 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 			"sql:SQL          runs the SQL statement (SELECT/INSERT/UPDATE/DELETE)",
 			"table:NAME       describes the NAMEd table or lists all tables if NAME is not supplied",
 			"entity:NAME      lists the operations for NAME or all entity names if NAME is not supplied",
-			"sessions         lists details of all sessions", "",
+			"sessions         lists details of all sessions",
+			"usage            sessions and users using the most (?by=requests|rows|bytes|db|upstream|cpu|allocated&top=N, group owner only)",
+			"metrics          request metrics in the Prometheus text format",
+			"traces           phase timings of the slowest recent requests (group owner only)",
+			"profile          samples request thread stacks for flame graphs (?seconds=N&interval=MS, group owner only)", "",
 			"dal/...          are treated as DAL commands" };
 
 	private Response giveHelp() {
@@ -1137,23 +1537,32 @@ public class DalServer extends SimpleWebServer implements IDalServer {
 		} else {
 			sql = sqldb.createShowTableColumnsSql(tableName);
 		}
-		return createSqlQueryResponse(sqldb, sql, null);
+		return createSqlQueryResponse(sqldb, sql);
 	}
 
-	private SqlWorker createSqlWorker(SqlDalDatabase sqldb) {
-		SqlWorker w = new SqlWorker(sqldb);
-		w.setVerbose(isVerbose());
-		return w;
+	private synchronized ConsoleSqlLane getConsoleSqlLane(SqlDalDatabase sqldb) {
+		if (consoleSqlLane == null) {
+			consoleSqlLane = new ConsoleSqlLane(sqldb);
+		}
+		return consoleSqlLane;
 	}
 
-	private Response createSqlQueryResponse(SqlDalDatabase sqldb, String sql, String metaTagName) {
-		SqlWorker sqlWorker = createSqlWorker(sqldb);
-		try {
-			return sqlWorker.createResponse(SqlResponseType.TEXT, sql,
-					metaTagName, null);
-		} finally {
-			sqlWorker.close();
+	private Response createSqlQueryResponse(SqlDalDatabase sqldb, String sql) {
+		if (isVerbose()) {
+			RequestLog.info("sql: "+sql);
+		}
+		return getConsoleSqlLane(sqldb).run(sql);
+	}
+	
+	@Override
+	public void stop() {
+		synchronized (this) {
+			if (consoleSqlLane != null) {
+				consoleSqlLane.close();
+				consoleSqlLane = null;
+			}
 		}
+		super.stop();
 	}
 
 }
@@ -17,6 +17,7 @@
  */
 package com.diversityarrays.dal.server;
 
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
@@ -46,6 +47,7 @@ import com.diversityarrays.dal.db.impl.JsonResponseBuilder;
 import com.diversityarrays.dal.db.impl.XmlResponseBuilder;
 import com.diversityarrays.dal.ops.DalOperation;
 import com.diversityarrays.dal.ops.WordNode;
+import com.diversityarrays.dal.sqldb.SqlStatistics;
 import com.diversityarrays.dal.sqldb.SqlUtil;
 import com.diversityarrays.dalclient.DALClient;
 
@@ -102,24 +104,51 @@ public class DalServerUtil {
 	}
 
 	static public void appendResultSetRowsAsTable(String messageIfEmpty, ResultSet rs, StringBuilder sb) throws SQLException {
+		try {
+			appendResultSetRowsAsTable(messageIfEmpty, rs, sb, 0);
+		} catch (IOException e) {
+			// StringBuilder doesn't throw IOException
+			throw new SQLException(e);
+		}
+	}
+	
+	/**
+	 * Append the rows of the ResultSet as an HTML table.
+	 * @param messageIfEmpty
+	 * @param rs
+	 * @param out
+	 * @param maxRows if greater than zero, at most this many rows are appended
+	 * @return the number of rows appended, or maxRows+1 if there were more rows
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	static public int appendResultSetRowsAsTable(String messageIfEmpty, ResultSet rs, Appendable out, int maxRows) 
+	throws SQLException, IOException 
+	{
 		int nColumns = -1;
+		int nRows = 0;
 		boolean[] isdouble = null;
 		DecimalFormat dformat = new DecimalFormat("0.000");
 		while (rs.next()) {
+			if (maxRows > 0 && nRows >= maxRows) {
+				++nRows;
+				break;
+			}
+			++nRows;
 			if (nColumns<0) {
 				ResultSetMetaData rsmd = rs.getMetaData();
 				nColumns = rsmd.getColumnCount();
 				isdouble = new boolean[nColumns];
-				sb.append("<table border='1'><thead><tr>");
+				out.append("<table border='1'><thead><tr>");
 				for (int i = 0; i < nColumns; ++i) {
-					sb.append("<th>").append(DbUtil.htmlEscape(rsmd.getColumnLabel(i+1))).append("</th>");
+					out.append("<th>").append(DbUtil.htmlEscape(rsmd.getColumnLabel(i+1))).append("</th>");
 					int sqlType = rsmd.getColumnType(i+1);
 					isdouble[i] = java.sql.Types.DOUBLE==sqlType; // || java.sql.Types.DECIMAL==sqlType;
 				}
-				sb.append("</tr></thead><tbody>");
+				out.append("</tr></thead><tbody>");
 			}
 
-			sb.append("<tr>");
+			out.append("<tr>");
 			for (int i = 0; i < nColumns; ++i) {
 				String s = rs.getString(i+1);
 				if (s!=null && isdouble[i]) {
@@ -129,21 +158,22 @@ public class DalServerUtil {
 					}
 					catch (NumberFormatException ignore) { }
 				}
-				sb.append("<td>").append(s==null?"":DbUtil.htmlEscape(s)).append("</td>");
+				out.append("<td>").append(s==null?"":DbUtil.htmlEscape(s)).append("</td>");
 			}
-			sb.append("</tr>");
+			out.append("</tr>");
 
 		}
 
 
 		if (nColumns==-1) {
 			if (messageIfEmpty!=null) {
-				sb.append(messageIfEmpty);
+				out.append(messageIfEmpty);
 			}
 		}
 		else {
-			sb.append("</tbody></table>");
+			out.append("</tbody></table>");
 		}
+		return nRows;
 	}
 
 
@@ -152,26 +182,41 @@ public class DalServerUtil {
 	{
 		Statement stmt = null;
 		ResultSet rs = null;
+		SqlStatistics.Execution exec = SqlStatistics.begin(sql);
 		try {
 			stmt = conn.createStatement();
 			boolean hasResultSet = stmt.execute(sql);
+			exec.executed();
 
 			if (hasResultSet) {
 				rs = stmt.getResultSet();
-				DalServerUtil.appendResultSetRows(rs, builder, metaTagName);
+				exec.addRows(DalServerUtil.appendResultSetRows(rs, builder, metaTagName));
 			}
 			else {
 				int n = stmt.getUpdateCount();
+				exec.addRows(n);
 				builder.startTag(DALClient.TAG_INFO)
 				.attribute(DALClient.ATTR_MESSAGE, "Update Count="+n)
 				.endTag();
 			}
+		} catch (SQLException e) {
+			exec.failed();
+			throw e;
 		} finally {
 			SqlUtil.closeSandRS(stmt, rs);
+			exec.finish();
 		}
 	}
 
-	static public void appendResultSetRows(ResultSet rs, DalResponseBuilder builder, String metaTagName) 
+	/**
+	 * Append each row of the ResultSet as a <code>metaTagName</code> element.
+	 * @param rs
+	 * @param builder
+	 * @param metaTagName
+	 * @return the number of rows appended
+	 * @throws SQLException
+	 */
+	static public int appendResultSetRows(ResultSet rs, DalResponseBuilder builder, String metaTagName) 
 			throws SQLException {
 
 		if (metaTagName!=null) {
@@ -180,9 +225,11 @@ public class DalServerUtil {
 
 		DecimalFormat dformat = new DecimalFormat("0.000");
 		int nColumns = -1;
+		int nRows = 0;
 		String[] columnNames = null;
 		boolean[] isdouble = null;
 		while (rs.next()) {
+			++nRows;
 			if (nColumns==-1) {
 				ResultSetMetaData rsmd = rs.getMetaData();
 				nColumns = rsmd.getColumnCount();
@@ -210,7 +257,7 @@ public class DalServerUtil {
 			}
 			builder.endTag();
 		}
-
+		return nRows;
 	}
 
 	static public DalResponseBuilder createBuilder(boolean wantJson) {
@@ -61,6 +61,8 @@ public interface IDalServer {
 
 	int getDalOperationCount();
 
+	int getSessionCount();
+
 	boolean getUseSimpleDatabase();
 
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records DalEvents as Java Flight Recorder events named
+ * <code>com.diversityarrays.dal.</code><i>eventName</i> in the "DAL" category.
+ * <p>
+ * The server is built for Java 7 so the <code>jdk.jfr</code> API (Java 11 onwards)
+ * is used reflectively through <code>jdk.jfr.EventFactory</code>; on older
+ * runtimes <code>create()</code> returns null and no events are recorded.
+ * An event type costs one <code>isEnabled()</code> check per event unless a
+ * recording has enabled it.
+ * @author brian
+ *
+ */
+class JfrEventRecorder implements DalEvents.Recorder {
+	
+	static private final String EVENT_NAME_PREFIX = "com.diversityarrays.dal.";
+	static private final String CATEGORY = "DAL";
+	
+	/**
+	 * @return a JfrEventRecorder or null if this runtime does not support the jdk.jfr API
+	 */
+	static JfrEventRecorder create() {
+		try {
+			return new JfrEventRecorder();
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			System.err.println("Unable to register Flight Recorder events: " + e);
+			return null;
+		}
+	}
+	
+	private final Object[] factoryByType;
+	private final Object[] eventTypeByType;
+	
+	private final Method newEvent;
+	private final Method isEnabled;
+	private final Method begin;
+	private final Method end;
+	private final Method shouldCommit;
+	private final Method set;
+	private final Method commit;
+	
+	private JfrEventRecorder() throws ReflectiveOperationException {
+		Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+		Class<?> eventClass = Class.forName("jdk.jfr.Event");
+		Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+		Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+		Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+		
+		Class<?> nameClass = Class.forName("jdk.jfr.Name");
+		Class<?> labelClass = Class.forName("jdk.jfr.Label");
+		Class<?> descriptionClass = Class.forName("jdk.jfr.Description");
+		Class<?> categoryClass = Class.forName("jdk.jfr.Category");
+		
+		Constructor<?> newAnnotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+		Constructor<?> newValueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class);
+		Method createFactory = eventFactoryClass.getMethod("create", List.class, List.class);
+		Method getEventType = eventFactoryClass.getMethod("getEventType");
+		
+		newEvent = eventFactoryClass.getMethod("newEvent");
+		isEnabled = eventTypeClass.getMethod("isEnabled");
+		begin = eventClass.getMethod("begin");
+		end = eventClass.getMethod("end");
+		shouldCommit = eventClass.getMethod("shouldCommit");
+		set = eventClass.getMethod("set", int.class, Object.class);
+		commit = eventClass.getMethod("commit");
+		
+		DalEvents.Type[] types = DalEvents.Type.values();
+		factoryByType = new Object[types.length];
+		eventTypeByType = new Object[types.length];
+		for (DalEvents.Type type : types) {
+			List<Object> annotations = Arrays.asList(
+					newAnnotationElement.newInstance(nameClass, EVENT_NAME_PREFIX + type.eventName),
+					newAnnotationElement.newInstance(labelClass, "DAL " + type.eventName),
+					newAnnotationElement.newInstance(descriptionClass, type.description),
+					newAnnotationElement.newInstance(categoryClass, new String[] { CATEGORY }));
+			
+			List<Object> fields = new ArrayList<Object>();
+			for (int i = 0; i < type.fieldNames.length; ++i) {
+				fields.add(newValueDescriptor.newInstance(type.fieldTypes[i], type.fieldNames[i]));
+			}
+			
+			Object factory = createFactory.invoke(null, 
+					Collections.unmodifiableList(annotations), 
+					Collections.unmodifiableList(fields));
+			factoryByType[type.ordinal()] = factory;
+			eventTypeByType[type.ordinal()] = getEventType.invoke(factory);
+		}
+	}
+
+	@Override
+	public DalEvents.Event begin(final DalEvents.Type type) {
+		try {
+			if (! (Boolean) isEnabled.invoke(eventTypeByType[type.ordinal()])) {
+				return null;
+			}
+			final Object event = newEvent.invoke(factoryByType[type.ordinal()]);
+			begin.invoke(event);
+			return new DalEvents.Event() {
+				@Override
+				public void commit(Object... values) {
+					try {
+						end.invoke(event);
+						if (! (Boolean) shouldCommit.invoke(event)) {
+							return;
+						}
+						int n = Math.min(values.length, type.fieldTypes.length);
+						for (int i = 0; i < n; ++i) {
+							Object value = values[i];
+							if (type.fieldTypes[i] == long.class && value instanceof Number) {
+								value = ((Number) value).longValue();
+							}
+							if (value != null) {
+								set.invoke(event, i, value);
+							}
+						}
+						commit.invoke(event);
+					} catch (ReflectiveOperationException ignore) {
+					}
+				}
+			};
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations with log-linear buckets (in the style of
+ * HdrHistogram): each power of two is split into 16 sub-buckets so any
+ * percentile is accurate to within about 6%. Durations are recorded in
+ * microseconds, from 1&micro;s to about 12 days.
+ * <p>
+ * Recording is one array increment plus a few atomic updates so it is cheap
+ * enough to leave on permanently.
+ * @author brian
+ *
+ */
+class LatencyHistogram {
+	
+	static private final int SUB_BUCKET_BITS = 4;
+	static private final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static private final int MAX_EXPONENT = 40;
+	static private final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+	
+	static int bucketIndex(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return micros < 0 ? 0 : (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+		int subBucket = (int) (micros >> (exponent - SUB_BUCKET_BITS));
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (subBucket - SUB_BUCKETS);
+	}
+	
+	/**
+	 * @param index
+	 * @return the largest value (in microseconds) that is counted in the bucket
+	 */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+	
+	public void recordNanos(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		counts.incrementAndGet(bucketIndex(micros));
+		totalCount.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		long current;
+		while (micros > (current = maxMicros.get())) {
+			if (maxMicros.compareAndSet(current, micros)) {
+				break;
+			}
+		}
+	}
+	
+	public long getCount() {
+		return totalCount.get();
+	}
+	
+	public long getTotalMicros() {
+		return totalMicros.get();
+	}
+	
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+	
+	/**
+	 * @param snapshot from <code>getBucketCounts()</code>
+	 * @param maxMicros
+	 * @return the number of values in the snapshot no greater than <code>maxMicros</code>
+	 */
+	static long getCountAtOrBelow(long[] snapshot, long maxMicros) {
+		long result = 0;
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			if (bucketUpperBound(i) > maxMicros) {
+				break;
+			}
+			result += snapshot[i];
+		}
+		return result;
+	}
+	
+	/**
+	 * @param snapshot from <code>getBucketCounts()</code>
+	 * @return the number of values in the snapshot
+	 */
+	static long getTotalCount(long[] snapshot) {
+		long result = 0;
+		for (long n : snapshot) {
+			result += n;
+		}
+		return result;
+	}
+	
+	/**
+	 * Subtracting an earlier snapshot from a later one gives the counts
+	 * of the values recorded in between.
+	 * @return a copy of the bucket counts
+	 */
+	public long[] getBucketCounts() {
+		long[] result = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			result[i] = counts.get(i);
+		}
+		return result;
+	}
+	
+	/**
+	 * @param quantiles each in the range 0 to 1, in ascending order
+	 * @return the value (in microseconds) at each quantile; zero if nothing has been recorded
+	 */
+	public long[] getQuantileMicros(double... quantiles) {
+		return getQuantileMicros(getBucketCounts(), maxMicros.get(), quantiles);
+	}
+	
+	/**
+	 * @param snapshot from <code>getBucketCounts()</code>
+	 * @param max the largest value (in microseconds) to return
+	 * @param quantiles each in the range 0 to 1, in ascending order
+	 * @return the value (in microseconds) at each quantile; zero if nothing was counted
+	 */
+	static long[] getQuantileMicros(long[] snapshot, long max, double... quantiles) {
+		long n = getTotalCount(snapshot);
+		
+		long[] result = new long[quantiles.length];
+		if (n <= 0) {
+			return result;
+		}
+		int qi = 0;
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT && qi < quantiles.length; ++i) {
+			seen += snapshot[i];
+			while (qi < quantiles.length && seen >= Math.ceil(quantiles[qi] * n)) {
+				result[qi++] = Math.min(bucketUpperBound(i), max);
+			}
+		}
+		while (qi < quantiles.length) {
+			result[qi++] = max;
+		}
+		return result;
+	}
+}
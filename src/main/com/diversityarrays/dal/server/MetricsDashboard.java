@@ -0,0 +1,452 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.awt.BorderLayout;
+import java.awt.GridLayout;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.BorderFactory;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSplitPane;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+
+import net.pearcan.ui.table.BspAbstractTableModel;
+
+import com.diversityarrays.dal.db.PoolStatistics;
+import com.diversityarrays.dal.db.SingleFlightStatistics;
+import com.diversityarrays.dal.db.UpstreamHttpStatistics;
+
+/**
+ * A live view of the throughput and latency of each operation, the sessions,
+ * the requests in progress, the cache hit ratios and the utilisation of the
+ * thread and connection pools (from PoolStatistics),
+ * read from RequestMetrics and the other statistics the server keeps.
+ * <p>
+ * The figures are collected on a background thread every
+ * <code>DAL_DASHBOARD_REFRESH_SECONDS</code> (default 2), and only while the panel
+ * is showing, then displayed on the EDT. The requests per second are for the
+ * last refresh interval; the percentiles and ratios are for the last one to two
+ * <code>DAL_DASHBOARD_WINDOW_SECONDS</code> (default 60).
+ * @author brian
+ *
+ */
+class MetricsDashboard extends JPanel {
+	
+	static private final int REFRESH_SECONDS = Math.max(1, Integer.getInteger("DAL_DASHBOARD_REFRESH_SECONDS", 2));
+	
+	static private final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(
+			Math.max(REFRESH_SECONDS, Integer.getInteger("DAL_DASHBOARD_WINDOW_SECONDS", 60)));
+	
+	static private final double[] PERCENTILES = { 0.5, 0.95, 0.99 };
+	
+	static private final String NO_VALUE = "-";
+	
+	/**
+	 * The counters at one time.
+	 */
+	static class Snapshot {
+		final long nanoTime = System.nanoTime();
+		final Map<String,long[]> bucketsByOperation = new HashMap<String,long[]>();
+		final Map<String,Long> maxMicrosByOperation = new HashMap<String,Long>();
+		final long cacheHits = UpstreamHttpStatistics.CACHE_HITS.get() + UpstreamHttpStatistics.CACHE_STALE_HITS.get();
+		final long cacheMisses = UpstreamHttpStatistics.CACHE_MISSES.get();
+		final long singleFlightPerformed = SingleFlightStatistics.getPerformedCount();
+		final long singleFlightShared = SingleFlightStatistics.getSharedCount();
+		
+		Snapshot() {
+			for (RequestMetrics.OperationMetrics m : RequestMetrics.getAllOperationMetrics()) {
+				if (m.latency.getCount() > 0) {
+					bucketsByOperation.put(m.operation, m.latency.getBucketCounts());
+					maxMicrosByOperation.put(m.operation, m.latency.getMaxMicros());
+				}
+			}
+		}
+	}
+	
+	static class Row {
+		final String operation;
+		final double perSecond;
+		final long count;
+		final long[] percentileMicros;
+		
+		Row(String operation, double perSecond, long count, long[] percentileMicros) {
+			this.operation = operation;
+			this.perSecond = perSecond;
+			this.count = count;
+			this.percentileMicros = percentileMicros;
+		}
+	}
+	
+	static class OperationTableModel extends BspAbstractTableModel {
+		
+		private List<Row> rows = Collections.emptyList();
+		
+		OperationTableModel() {
+			super("Operation", "Req/s", "Requests", "p50 ms", "p95 ms", "p99 ms");
+		}
+		
+		void setRows(List<Row> rows) {
+			this.rows = rows;
+			fireTableDataChanged();
+		}
+		
+		@Override
+		public int getRowCount() {
+			return rows.size();
+		}
+		
+		@Override
+		public Class<?> getColumnClass(int columnIndex) {
+			switch (columnIndex) {
+			case 0: return String.class;
+			case 1: return Double.class;
+			case 2: return Long.class;
+			default: return Double.class;
+			}
+		}
+		
+		@Override
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			Row row = rows.get(rowIndex);
+			switch (columnIndex) {
+			case 0: return row.operation;
+			case 1: return round(row.perSecond);
+			case 2: return row.count;
+			default: return round(row.percentileMicros[columnIndex - 3] / 1000.0);
+			}
+		}
+	}
+	
+	/**
+	 * The use of one pool at one time.
+	 */
+	static class PoolRow {
+		final String name;
+		final int inUse;
+		final int idle;
+		final int waiting;
+		final int max;
+		
+		PoolRow(PoolStatistics.Pool pool) {
+			name = pool.getName();
+			inUse = pool.getInUse();
+			idle = pool.getIdle();
+			waiting = pool.getWaiting();
+			max = pool.getMax();
+		}
+	}
+	
+	static class PoolTableModel extends BspAbstractTableModel {
+		
+		private List<PoolRow> rows = Collections.emptyList();
+		
+		PoolTableModel() {
+			super("Pool", "In use", "Idle", "Waiting", "Max", "Utilisation %");
+		}
+		
+		void setRows(List<PoolRow> rows) {
+			this.rows = rows;
+			fireTableDataChanged();
+		}
+		
+		@Override
+		public int getRowCount() {
+			return rows.size();
+		}
+		
+		@Override
+		public Class<?> getColumnClass(int columnIndex) {
+			switch (columnIndex) {
+			case 0: return String.class;
+			case 5: return Double.class;
+			default: return Integer.class;
+			}
+		}
+		
+		@Override
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			PoolRow row = rows.get(rowIndex);
+			switch (columnIndex) {
+			case 0: return row.name;
+			case 1: return row.inUse;
+			case 2: return row.idle;
+			case 3: return row.waiting;
+			case 4: return row.max < 0 ? null : row.max;
+			default: return row.max <= 0 ? null : round(100.0 * row.inUse / row.max);
+			}
+		}
+	}
+	
+	/**
+	 * Keeps the snapshots needed to work out the rates and percentiles.
+	 * A new one is used each time the panel is shown and it is only used by
+	 * the refresh thread.
+	 */
+	class Collector implements Runnable {
+		
+		private Snapshot previous;
+		private Snapshot windowStart;
+		private Snapshot nextWindowStart;
+		
+		@Override
+		public void run() {
+			try {
+				collect();
+			} catch (RuntimeException e) {
+				// Keep refreshing
+				e.printStackTrace();
+			}
+		}
+		
+		private void collect() {
+			Snapshot now = new Snapshot();
+			if (windowStart == null) {
+				windowStart = now;
+			}
+			else if (nextWindowStart == null) {
+				if (now.nanoTime - windowStart.nanoTime >= WINDOW_NANOS) {
+					nextWindowStart = now;
+				}
+			}
+			else if (now.nanoTime - nextWindowStart.nanoTime >= WINDOW_NANOS) {
+				windowStart = nextWindowStart;
+				nextWindowStart = now;
+			}
+			
+			double seconds = previous == null ? 0 : (now.nanoTime - previous.nanoTime) / 1e9;
+			
+			final List<Row> rows = new ArrayList<Row>();
+			long[] allBuckets = null;
+			long allMaxMicros = 0;
+			long allCount = 0;
+			long allPrevious = 0;
+			for (Map.Entry<String,long[]> e : now.bucketsByOperation.entrySet()) {
+				String operation = e.getKey();
+				long[] window = subtract(e.getValue(), windowStart.bucketsByOperation.get(operation));
+				long count = sum(e.getValue());
+				long previousCount = previous == null ? count : sum(previous.bucketsByOperation.get(operation));
+				long maxMicros = now.maxMicrosByOperation.get(operation);
+				
+				long windowCount = sum(window);
+				if (windowCount > 0) {
+					rows.add(new Row(operation, 
+							seconds > 0 ? (count - previousCount) / seconds : 0, 
+							windowCount,
+							LatencyHistogram.getQuantileMicros(window, maxMicros, PERCENTILES)));
+				}
+				
+				if (allBuckets == null) {
+					allBuckets = window;
+				}
+				else {
+					for (int i = 0; i < window.length; ++i) {
+						allBuckets[i] += window[i];
+					}
+				}
+				allMaxMicros = Math.max(allMaxMicros, maxMicros);
+				allCount += count;
+				allPrevious += previousCount;
+			}
+			Collections.sort(rows, new Comparator<Row>() {
+				@Override
+				public int compare(Row o1, Row o2) {
+					return Long.compare(o2.count, o1.count);
+				}
+			});
+			
+			final String requestsPerSecond = seconds > 0 ? format(round((allCount - allPrevious) / seconds)) : NO_VALUE;
+			final String latency;
+			if (allBuckets == null || sum(allBuckets) <= 0) {
+				latency = NO_VALUE;
+			}
+			else {
+				long[] micros = LatencyHistogram.getQuantileMicros(allBuckets, allMaxMicros, PERCENTILES);
+				latency = String.format(Locale.ROOT, "%.1f / %.1f / %.1f ms", micros[0] / 1000.0, micros[1] / 1000.0, micros[2] / 1000.0);
+			}
+			
+			IDalServer srv = server;
+			final String sessions = srv == null ? NO_VALUE : Integer.toString(srv.getSessionCount());
+			final String inProgress = Integer.toString(StackSampler.getActiveRequestCount());
+			int maxSessions = UpstreamHttpStatistics.getMaxSessions();
+			final String upstreamSessions = maxSessions <= 0 ? NO_VALUE 
+					: UpstreamHttpStatistics.SESSIONS_LEASED.get() + " of " + maxSessions;
+			final String cacheRatio = ratio(now.cacheHits - windowStart.cacheHits, 
+					now.cacheMisses - windowStart.cacheMisses);
+			final String sharedRatio = ratio(now.singleFlightShared - windowStart.singleFlightShared,
+					now.singleFlightPerformed - windowStart.singleFlightPerformed);
+			
+			final List<PoolRow> poolRows = new ArrayList<PoolRow>();
+			for (PoolStatistics.Pool pool : PoolStatistics.getPools()) {
+				poolRows.add(new PoolRow(pool));
+			}
+			
+			previous = now;
+			
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					requestsPerSecondLabel.setText(requestsPerSecond);
+					latencyLabel.setText(latency);
+					sessionsLabel.setText(sessions);
+					inProgressLabel.setText(inProgress);
+					upstreamSessionsLabel.setText(upstreamSessions);
+					cacheRatioLabel.setText(cacheRatio);
+					sharedRatioLabel.setText(sharedRatio);
+					tableModel.setRows(rows);
+					poolTableModel.setRows(poolRows);
+				}
+			});
+		}
+	}
+	
+	private final JLabel requestsPerSecondLabel = new JLabel(NO_VALUE);
+	private final JLabel latencyLabel = new JLabel(NO_VALUE);
+	private final JLabel sessionsLabel = new JLabel(NO_VALUE);
+	private final JLabel inProgressLabel = new JLabel(NO_VALUE);
+	private final JLabel upstreamSessionsLabel = new JLabel(NO_VALUE);
+	private final JLabel cacheRatioLabel = new JLabel(NO_VALUE);
+	private final JLabel sharedRatioLabel = new JLabel(NO_VALUE);
+	
+	private final OperationTableModel tableModel = new OperationTableModel();
+	private final PoolTableModel poolTableModel = new PoolTableModel();
+	
+	private volatile IDalServer server;
+	
+	private ScheduledExecutorService executor;
+	
+	MetricsDashboard() {
+		super(new BorderLayout());
+		
+		JPanel summary = new JPanel(new GridLayout(0, 2, 8, 2));
+		summary.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+		addSummary(summary, "Requests/s", requestsPerSecondLabel);
+		addSummary(summary, "Latency p50 / p95 / p99", latencyLabel);
+		addSummary(summary, "Sessions", sessionsLabel);
+		addSummary(summary, "Requests in progress", inProgressLabel);
+		addSummary(summary, "Upstream sessions in use", upstreamSessionsLabel);
+		addSummary(summary, "Upstream cache hit ratio", cacheRatioLabel);
+		addSummary(summary, "Identical requests shared", sharedRatioLabel);
+		
+		JTable table = new JTable(tableModel);
+		table.setAutoCreateRowSorter(true);
+		
+		JTable poolTable = new JTable(poolTableModel);
+		poolTable.setAutoCreateRowSorter(true);
+		
+		JSplitPane tables = new JSplitPane(JSplitPane.VERTICAL_SPLIT, 
+				new JScrollPane(table), new JScrollPane(poolTable));
+		tables.setResizeWeight(0.7);
+		
+		add(BorderLayout.NORTH, summary);
+		add(BorderLayout.CENTER, tables);
+		
+		addHierarchyListener(new HierarchyListener() {
+			@Override
+			public void hierarchyChanged(HierarchyEvent e) {
+				if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) {
+					if (isShowing()) {
+						start();
+					}
+					else {
+						stop();
+					}
+				}
+			}
+		});
+	}
+	
+	void setServer(IDalServer server) {
+		this.server = server;
+	}
+	
+	private void addSummary(JPanel summary, String name, JLabel value) {
+		summary.add(new JLabel(name + ":"));
+		summary.add(value);
+	}
+	
+	private void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DAL-Dashboard");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Collector(), 0, REFRESH_SECONDS, TimeUnit.SECONDS);
+	}
+	
+	private void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+	
+	static private long[] subtract(long[] later, long[] earlier) {
+		long[] result = later.clone();
+		if (earlier != null) {
+			for (int i = 0; i < result.length; ++i) {
+				result[i] -= earlier[i];
+			}
+		}
+		return result;
+	}
+	
+	static private long sum(long[] counts) {
+		long result = 0;
+		if (counts != null) {
+			for (long n : counts) {
+				result += n;
+			}
+		}
+		return result;
+	}
+	
+	static private String ratio(long hits, long others) {
+		long total = hits + others;
+		return total <= 0 ? NO_VALUE : String.format(Locale.ROOT, "%.1f%% of %d", 100.0 * hits / total, total);
+	}
+	
+	static private double round(double d) {
+		return Math.round(d * 10) / 10.0;
+	}
+	
+	static private String format(double d) {
+		return String.format(Locale.ROOT, "%.1f", d);
+	}
+}
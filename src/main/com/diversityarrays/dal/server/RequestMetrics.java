@@ -0,0 +1,457 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.diversityarrays.dal.db.GetBatchStatistics;
+import com.diversityarrays.dal.db.PoolStatistics;
+import com.diversityarrays.dal.db.SingleFlightStatistics;
+import com.diversityarrays.dal.db.UpstreamHttpStatistics;
+import com.diversityarrays.dal.sqldb.QueryContext;
+import com.diversityarrays.dal.sqldb.SqlStatistics;
+
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Request counts, latency histograms, status counts and response sizes for each
+ * operation (labelled by DalOperation command template) and the text for the
+ * <code>/metrics</code> page in the Prometheus exposition format.
+ * <p>
+ * The latency is the time taken to produce the Response; for a streamed
+ * response that is the time until its first chunk was ready. The CPU time and
+ * allocated bytes are those of the thread that handled the request plus those of
+ * the pool threads that worked for it (streaming, replica reads and upstream calls);
+ * work that finishes after the Response was produced is added when it finishes.
+ * The totals for each user come from UsageAccounting.
+ * @author brian
+ *
+ */
+class RequestMetrics {
+	
+	/**
+	 * Used when the operation of a request is unknown.
+	 */
+	static final String UNKNOWN_OPERATION = "unknown";
+	
+	/** The upper bounds (in seconds) of the exported histogram buckets */
+	static private final double[] BUCKET_SECONDS = {
+		0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+	};
+	
+	static private final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	
+	/** Only the SQL fingerprints with the most total time are exported */
+	static private final int MAX_SQL_FINGERPRINTS = Integer.getInteger("DAL_METRICS_SQL_FINGERPRINTS", 50);
+	
+	/**
+	 * CPU time and allocated bytes of the threads that handled each request.
+	 */
+	static class Cost {
+		final AtomicLong cpuNanos = new AtomicLong();
+		final AtomicLong allocatedBytes = new AtomicLong();
+		
+		void add(long cpu, long allocated) {
+			if (cpu > 0) {
+				cpuNanos.addAndGet(cpu);
+			}
+			if (allocated > 0) {
+				allocatedBytes.addAndGet(allocated);
+			}
+		}
+	}
+	
+	static class OperationMetrics {
+		final String operation;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final ConcurrentMap<Integer,AtomicLong> countByStatus = new ConcurrentHashMap<Integer,AtomicLong>();
+		final AtomicLong responseBytes = new AtomicLong();
+		final Cost cost = new Cost();
+		
+		OperationMetrics(String operation) {
+			this.operation = operation;
+		}
+		
+		void record(int status, long nanos) {
+			latency.recordNanos(nanos);
+			AtomicLong count = countByStatus.get(status);
+			if (count == null) {
+				AtomicLong tmp = new AtomicLong();
+				count = countByStatus.putIfAbsent(status, tmp);
+				if (count == null) {
+					count = tmp;
+				}
+			}
+			count.incrementAndGet();
+		}
+	}
+	
+	static private final ConcurrentMap<String,OperationMetrics> METRICS_BY_OPERATION = new ConcurrentHashMap<String,OperationMetrics>();
+	
+	static OperationMetrics getOperationMetrics(String operation) {
+		OperationMetrics result = METRICS_BY_OPERATION.get(operation);
+		if (result == null) {
+			OperationMetrics tmp = new OperationMetrics(operation);
+			result = METRICS_BY_OPERATION.putIfAbsent(operation, tmp);
+			if (result == null) {
+				result = tmp;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Record a completed request and arrange for the bytes of its Response body
+	 * to be counted as they are sent.
+	 * @param operation
+	 * @param response
+	 * @param trace the finished RequestTrace for the request
+	 */
+	static void record(String operation, Response response, RequestTrace trace) {
+		final OperationMetrics metrics = getOperationMetrics(operation == null ? UNKNOWN_OPERATION : operation);
+		metrics.record(response.getStatus().getRequestStatus(), trace.getTotalNanos());
+		
+		metrics.cost.add(trace.getCpuNanos(), trace.getAllocatedBytes());
+		
+		InputStream data = response.getData();
+		if (data != null) {
+			response.setData(new FilterInputStream(data) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b >= 0) {
+						metrics.responseBytes.incrementAndGet();
+					}
+					return b;
+				}
+				
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0) {
+						metrics.responseBytes.addAndGet(n);
+					}
+					return n;
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Add the cost of work for a request that finished after it was recorded.
+	 * @param operation
+	 * @param cpuNanos
+	 * @param allocatedBytes
+	 */
+	static void addLateCost(String operation, long cpuNanos, long allocatedBytes) {
+		getOperationMetrics(operation == null ? UNKNOWN_OPERATION : operation).cost.add(cpuNanos, allocatedBytes);
+	}
+	
+	/**
+	 * @return a snapshot of the metrics for each operation, sorted by operation
+	 */
+	static List<OperationMetrics> getAllOperationMetrics() {
+		List<OperationMetrics> result = new ArrayList<OperationMetrics>(METRICS_BY_OPERATION.values());
+		Collections.sort(result, new Comparator<OperationMetrics>() {
+			@Override
+			public int compare(OperationMetrics o1, OperationMetrics o2) {
+				return o1.operation.compareTo(o2.operation);
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * @return the metrics in the Prometheus text exposition format (version 0.0.4)
+	 */
+	static String toPrometheusText() {
+		StringBuilder sb = new StringBuilder();
+		List<OperationMetrics> all = getAllOperationMetrics();
+		
+		header(sb, "dal_requests_total", "counter", "Requests handled, by operation and HTTP status");
+		for (OperationMetrics m : all) {
+			for (Map.Entry<Integer,AtomicLong> e : m.countByStatus.entrySet()) {
+				sb.append("dal_requests_total{operation=\"").append(escape(m.operation))
+					.append("\",status=\"").append(e.getKey()).append("\"} ")
+					.append(e.getValue().get()).append('\n');
+			}
+		}
+		
+		header(sb, "dal_request_errors_total", "counter", "Requests that failed, by operation and HTTP status");
+		for (OperationMetrics m : all) {
+			for (Map.Entry<Integer,AtomicLong> e : m.countByStatus.entrySet()) {
+				if (e.getKey() >= 400) {
+					sb.append("dal_request_errors_total{operation=\"").append(escape(m.operation))
+						.append("\",status=\"").append(e.getKey()).append("\"} ")
+						.append(e.getValue().get()).append('\n');
+				}
+			}
+		}
+		
+		header(sb, "dal_request_duration_seconds", "histogram", "Time taken to produce the response");
+		for (OperationMetrics m : all) {
+			String label = "operation=\"" + escape(m.operation) + "\"";
+			// All of the counts come from one snapshot so that they are consistent
+			long[] snapshot = m.latency.getBucketCounts();
+			for (double le : BUCKET_SECONDS) {
+				sb.append("dal_request_duration_seconds_bucket{").append(label)
+					.append(",le=\"").append(format(le)).append("\"} ")
+					.append(LatencyHistogram.getCountAtOrBelow(snapshot, (long) (le * 1000000))).append('\n');
+			}
+			long count = LatencyHistogram.getTotalCount(snapshot);
+			sb.append("dal_request_duration_seconds_bucket{").append(label).append(",le=\"+Inf\"} ").append(count).append('\n');
+			sb.append("dal_request_duration_seconds_sum{").append(label).append("} ")
+				.append(format(m.latency.getTotalMicros() / 1e6)).append('\n');
+			sb.append("dal_request_duration_seconds_count{").append(label).append("} ").append(count).append('\n');
+		}
+		
+		header(sb, "dal_request_duration_quantile_seconds", "gauge", "Percentiles of the time taken to produce the response");
+		for (OperationMetrics m : all) {
+			long[] values = m.latency.getQuantileMicros(QUANTILES);
+			for (int i = 0; i < QUANTILES.length; ++i) {
+				sb.append("dal_request_duration_quantile_seconds{operation=\"").append(escape(m.operation))
+					.append("\",quantile=\"").append(format(QUANTILES[i])).append("\"} ")
+					.append(format(values[i] / 1e6)).append('\n');
+			}
+		}
+		
+		header(sb, "dal_request_duration_max_seconds", "gauge", "Longest time taken to produce the response");
+		for (OperationMetrics m : all) {
+			sb.append("dal_request_duration_max_seconds{operation=\"").append(escape(m.operation)).append("\"} ")
+				.append(format(m.latency.getMaxMicros() / 1e6)).append('\n');
+		}
+		
+		header(sb, "dal_response_bytes_total", "counter", "Bytes of response body sent");
+		for (OperationMetrics m : all) {
+			sb.append("dal_response_bytes_total{operation=\"").append(escape(m.operation)).append("\"} ")
+				.append(m.responseBytes.get()).append('\n');
+		}
+		
+		header(sb, "dal_request_cpu_seconds_total", "counter", "CPU time used by the threads handling the requests");
+		for (OperationMetrics m : all) {
+			sb.append("dal_request_cpu_seconds_total{operation=\"").append(escape(m.operation)).append("\"} ")
+				.append(format(m.cost.cpuNanos.get() / 1e9)).append('\n');
+		}
+		
+		header(sb, "dal_request_allocated_bytes_total", "counter", "Bytes allocated by the threads handling the requests");
+		for (OperationMetrics m : all) {
+			sb.append("dal_request_allocated_bytes_total{operation=\"").append(escape(m.operation)).append("\"} ")
+				.append(m.cost.allocatedBytes.get()).append('\n');
+		}
+		
+		appendUserUsage(sb);
+		
+		appendStatistics(sb);
+		return sb.toString();
+	}
+	
+	/**
+	 * The usage by each user from UsageAccounting.
+	 */
+	static private void appendUserUsage(StringBuilder sb) {
+		Map<String,SessionUsage> usageByUser = UsageAccounting.getUsageByUser();
+		if (usageByUser.isEmpty()) {
+			return;
+		}
+		
+		header(sb, "dal_user_requests_total", "counter", "Requests handled, by user");
+		for (Map.Entry<String,SessionUsage> e : usageByUser.entrySet()) {
+			userSample(sb, "dal_user_requests_total", e.getKey(), Long.toString(e.getValue().getRequestCount()));
+		}
+		header(sb, "dal_user_rows_total", "counter", "Rows read from the database, by user");
+		for (Map.Entry<String,SessionUsage> e : usageByUser.entrySet()) {
+			userSample(sb, "dal_user_rows_total", e.getKey(), Long.toString(e.getValue().getRowCount()));
+		}
+		header(sb, "dal_user_response_bytes_total", "counter", "Bytes of response body sent, by user");
+		for (Map.Entry<String,SessionUsage> e : usageByUser.entrySet()) {
+			userSample(sb, "dal_user_response_bytes_total", e.getKey(), Long.toString(e.getValue().getResponseBytes()));
+		}
+		header(sb, "dal_user_database_seconds_total", "counter", "Time spent in SQL statements, by user");
+		for (Map.Entry<String,SessionUsage> e : usageByUser.entrySet()) {
+			userSample(sb, "dal_user_database_seconds_total", e.getKey(), format(e.getValue().getDatabaseNanos() / 1e9));
+		}
+		header(sb, "dal_user_upstream_seconds_total", "counter", "Time spent waiting for the upstream DAL server, by user");
+		for (Map.Entry<String,SessionUsage> e : usageByUser.entrySet()) {
+			userSample(sb, "dal_user_upstream_seconds_total", e.getKey(), format(e.getValue().getUpstreamNanos() / 1e9));
+		}
+		header(sb, "dal_user_cpu_seconds_total", "counter", "CPU time used by the threads handling the requests, by user");
+		for (Map.Entry<String,SessionUsage> e : usageByUser.entrySet()) {
+			userSample(sb, "dal_user_cpu_seconds_total", e.getKey(), format(e.getValue().getCpuNanos() / 1e9));
+		}
+		header(sb, "dal_user_allocated_bytes_total", "counter", "Bytes allocated by the threads handling the requests, by user");
+		for (Map.Entry<String,SessionUsage> e : usageByUser.entrySet()) {
+			userSample(sb, "dal_user_allocated_bytes_total", e.getKey(), Long.toString(e.getValue().getAllocatedBytes()));
+		}
+	}
+	
+	static private void userSample(StringBuilder sb, String name, String user, String value) {
+		sb.append(name).append("{user=\"").append(escape(user)).append("\"} ").append(value).append('\n');
+	}
+	
+	/**
+	 * The counters also shown on the <code>/sessions</code> page.
+	 */
+	static private void appendStatistics(StringBuilder sb) {
+		gauge(sb, "dal_requests_in_progress", "Requests currently being handled", StackSampler.getActiveRequestCount());
+		counter(sb, "dal_queries_timed_out_total", "SQL queries that timed out", QueryContext.getTimedOutCount());
+		counter(sb, "dal_queries_cancelled_total", "SQL queries cancelled because the client went away", QueryContext.getCancelledCount());
+		counter(sb, "dal_get_batches_total", "Batched multi-id gets performed", GetBatchStatistics.getBatchCount());
+		counter(sb, "dal_get_batch_requests_total", "Get requests served by a batch", GetBatchStatistics.getRequestCount());
+		counter(sb, "dal_single_flight_performed_total", "Requests performed on behalf of identical requests", SingleFlightStatistics.getPerformedCount());
+		counter(sb, "dal_single_flight_shared_total", "Requests that shared an identical request's result", SingleFlightStatistics.getSharedCount());
+		
+		counter(sb, "dal_log_messages_written_total", "Request log messages written to the console", RequestLog.getWrittenCount());
+		counter(sb, "dal_log_messages_dropped_total", "Request log messages dropped because the buffer was full", RequestLog.getDroppedCount());
+		
+		appendSqlStatistics(sb);
+		appendPoolStatistics(sb);
+		
+		if (UpstreamHttpStatistics.RESPONSE.getCount() <= 0 && UpstreamHttpStatistics.getBreakerState() == null) {
+			return;
+		}
+		
+		header(sb, "dal_upstream_seconds_total", "counter", "Total time spent in each phase of upstream HTTP requests");
+		for (UpstreamHttpStatistics.Timing t : UpstreamHttpStatistics.getTimings()) {
+			sb.append("dal_upstream_seconds_total{phase=\"").append(t.getName()).append("\"} ")
+				.append(format(t.getTotalNanos() / 1e9)).append('\n');
+		}
+		header(sb, "dal_upstream_phase_total", "counter", "Upstream HTTP requests timed in each phase");
+		for (UpstreamHttpStatistics.Timing t : UpstreamHttpStatistics.getTimings()) {
+			sb.append("dal_upstream_phase_total{phase=\"").append(t.getName()).append("\"} ")
+				.append(t.getCount()).append('\n');
+		}
+		counter(sb, "dal_upstream_cache_hits_total", "Upstream responses served from the cache", UpstreamHttpStatistics.CACHE_HITS.get());
+		counter(sb, "dal_upstream_cache_stale_hits_total", "Stale upstream responses served while refreshing", UpstreamHttpStatistics.CACHE_STALE_HITS.get());
+		counter(sb, "dal_upstream_cache_misses_total", "Cacheable requests sent upstream", UpstreamHttpStatistics.CACHE_MISSES.get());
+		counter(sb, "dal_upstream_breaker_rejected_total", "Upstream calls rejected by the open circuit breaker", UpstreamHttpStatistics.BREAKER_REJECTED.get());
+		counter(sb, "dal_upstream_bulkhead_rejected_total", "Upstream calls rejected because too many were in progress", UpstreamHttpStatistics.BULKHEAD_REJECTED.get());
+		counter(sb, "dal_upstream_deadline_exceeded_total", "Upstream calls abandoned at their deadline", UpstreamHttpStatistics.DEADLINE_EXCEEDED.get());
+		if (UpstreamHttpStatistics.getMaxSessions() > 0) {
+			gauge(sb, "dal_upstream_sessions_leased", "Upstream DAL sessions in use", UpstreamHttpStatistics.SESSIONS_LEASED.get());
+			gauge(sb, "dal_upstream_sessions_max", "Size of the upstream DAL session pool", UpstreamHttpStatistics.getMaxSessions());
+		}
+		
+		String state = UpstreamHttpStatistics.getBreakerState();
+		if (state != null) {
+			header(sb, "dal_upstream_breaker_open", "gauge", "1 if the upstream circuit breaker is not closed");
+			sb.append("dal_upstream_breaker_open{state=\"").append(escape(state)).append("\"} ")
+				.append("CLOSED".equals(state) ? 0 : 1).append('\n');
+		}
+	}
+	
+	/**
+	 * The utilisation of each thread and connection pool.
+	 */
+	static private void appendPoolStatistics(StringBuilder sb) {
+		List<PoolStatistics.Pool> pools = PoolStatistics.getPools();
+		if (pools.isEmpty()) {
+			return;
+		}
+		header(sb, "dal_pool_in_use", "gauge", "Threads or connections in use, by pool");
+		for (PoolStatistics.Pool pool : pools) {
+			poolSample(sb, "dal_pool_in_use", pool.getName(), pool.getInUse());
+		}
+		header(sb, "dal_pool_idle", "gauge", "Threads or connections kept but not in use, by pool");
+		for (PoolStatistics.Pool pool : pools) {
+			poolSample(sb, "dal_pool_idle", pool.getName(), pool.getIdle());
+		}
+		header(sb, "dal_pool_waiting", "gauge", "Callers or tasks waiting for a thread or connection, by pool");
+		for (PoolStatistics.Pool pool : pools) {
+			poolSample(sb, "dal_pool_waiting", pool.getName(), pool.getWaiting());
+		}
+		header(sb, "dal_pool_max", "gauge", "Most threads or connections that may be in use, by pool (-1 if unlimited)");
+		for (PoolStatistics.Pool pool : pools) {
+			poolSample(sb, "dal_pool_max", pool.getName(), pool.getMax());
+		}
+	}
+	
+	static private void poolSample(StringBuilder sb, String name, String pool, int value) {
+		sb.append(name).append("{pool=\"").append(escape(pool)).append("\"} ").append(value).append('\n');
+	}
+	
+	/**
+	 * Totals by SQL fingerprint for the fingerprints with the most total time.
+	 */
+	static private void appendSqlStatistics(StringBuilder sb) {
+		counter(sb, "dal_sql_statements_total", "SQL statements executed", SqlStatistics.getExecutionCount());
+		counter(sb, "dal_sql_slow_statements_total", "SQL statements that took at least " + SqlStatistics.SLOW_QUERY_MILLIS + "ms", SqlStatistics.getSlowCount());
+		
+		List<SqlStatistics.FingerprintStats> top = SqlStatistics.getTopFingerprints(MAX_SQL_FINGERPRINTS);
+		if (top.isEmpty()) {
+			return;
+		}
+		header(sb, "dal_sql_fingerprint_total", "counter", "SQL statements executed by fingerprint");
+		for (SqlStatistics.FingerprintStats fs : top) {
+			sb.append("dal_sql_fingerprint_total{fingerprint=\"").append(escape(fs.getFingerprint())).append("\"} ")
+				.append(fs.getCount()).append('\n');
+		}
+		header(sb, "dal_sql_fingerprint_execute_seconds_total", "counter", "Time spent executing SQL statements by fingerprint");
+		for (SqlStatistics.FingerprintStats fs : top) {
+			sb.append("dal_sql_fingerprint_execute_seconds_total{fingerprint=\"").append(escape(fs.getFingerprint())).append("\"} ")
+				.append(format(fs.getExecuteNanos() / 1e9)).append('\n');
+		}
+		header(sb, "dal_sql_fingerprint_fetch_seconds_total", "counter", "Time spent reading SQL results by fingerprint");
+		for (SqlStatistics.FingerprintStats fs : top) {
+			sb.append("dal_sql_fingerprint_fetch_seconds_total{fingerprint=\"").append(escape(fs.getFingerprint())).append("\"} ")
+				.append(format(fs.getFetchNanos() / 1e9)).append('\n');
+		}
+		header(sb, "dal_sql_fingerprint_rows_total", "counter", "Rows returned or updated by fingerprint");
+		for (SqlStatistics.FingerprintStats fs : top) {
+			sb.append("dal_sql_fingerprint_rows_total{fingerprint=\"").append(escape(fs.getFingerprint())).append("\"} ")
+				.append(fs.getRows()).append('\n');
+		}
+		header(sb, "dal_sql_fingerprint_max_seconds", "gauge", "Longest SQL statement by fingerprint");
+		for (SqlStatistics.FingerprintStats fs : top) {
+			sb.append("dal_sql_fingerprint_max_seconds{fingerprint=\"").append(escape(fs.getFingerprint())).append("\"} ")
+				.append(format(fs.getMaxNanos() / 1e9)).append('\n');
+		}
+	}
+	
+	static private void header(StringBuilder sb, String name, String type, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+	
+	static private void counter(StringBuilder sb, String name, String help, long value) {
+		header(sb, name, "counter", help);
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+	
+	static private void gauge(StringBuilder sb, String name, String help, long value) {
+		header(sb, name, "gauge", help);
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+	
+	static private String format(double d) {
+		return Double.toString(d);
+	}
+	
+	static private String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.diversityarrays.dal.db.DbUtil;
+
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Keeps the RequestTraces of the most recent requests that took at least
+ * <code>DAL_TRACE_SLOW_MILLIS</code> (default 250) in a ring buffer of
+ * <code>DAL_TRACE_BUFFER_SIZE</code> (default 100) entries for the <code>/traces</code> page.
+ * @author brian
+ *
+ */
+class RequestTraceLog {
+	
+	static private final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("DAL_TRACE_SLOW_MILLIS", 250));
+	
+	static private final int BUFFER_SIZE = Math.max(1, Integer.getInteger("DAL_TRACE_BUFFER_SIZE", 100));
+	
+	static private final AtomicReferenceArray<RequestTrace> RING = new AtomicReferenceArray<RequestTrace>(BUFFER_SIZE);
+	static private final AtomicLong NEXT_INDEX = new AtomicLong();
+	
+	/**
+	 * Keep the finished RequestTrace if the request was slow, and arrange
+	 * for the time taken to send its Response body to be added to it.
+	 * @param trace
+	 * @param response
+	 */
+	static void record(final RequestTrace trace, Response response) {
+		if (trace.getTotalNanos() < SLOW_NANOS) {
+			return;
+		}
+		RING.set((int) (NEXT_INDEX.getAndIncrement() % BUFFER_SIZE), trace);
+		
+		InputStream data = response.getData();
+		if (data != null) {
+			final long sendStartNanos = System.nanoTime();
+			response.setData(new FilterInputStream(data) {
+				private boolean closed;
+				
+				@Override
+				public void close() throws IOException {
+					if (! closed) {
+						closed = true;
+						trace.setWriteNanos(System.nanoTime() - sendStartNanos);
+					}
+					super.close();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * @return the RequestTraces in the buffer, slowest first
+	 */
+	static List<RequestTrace> getSlowestTraces() {
+		List<RequestTrace> result = new ArrayList<RequestTrace>(BUFFER_SIZE);
+		for (int i = 0; i < BUFFER_SIZE; ++i) {
+			RequestTrace trace = RING.get(i);
+			if (trace != null) {
+				result.add(trace);
+			}
+		}
+		Collections.sort(result, new Comparator<RequestTrace>() {
+			@Override
+			public int compare(RequestTrace o1, RequestTrace o2) {
+				return Long.compare(o2.getTotalNanos(), o1.getTotalNanos());
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * @return an HTML page listing the slowest recent requests and their phases
+	 */
+	static String toHtml() {
+		List<RequestTrace> traces = getSlowestTraces();
+		DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		double nanosPerMilli = TimeUnit.MILLISECONDS.toNanos(1);
+		
+		StringBuilder sb = new StringBuilder("<html><body>");
+		sb.append("<h2>Slowest Recent Requests:").append(traces.size()).append("</h2>");
+		sb.append("<p>Requests taking at least ").append(TimeUnit.NANOSECONDS.toMillis(SLOW_NANOS))
+			.append("ms; the most recent ").append(BUFFER_SIZE).append(" are kept.</p>");
+		if (! traces.isEmpty()) {
+			sb.append("<table border='1'>");
+			sb.append("<thead><tr>");
+			sb.append("<th>Received</th>");
+			sb.append("<th>Request</th>");
+			sb.append("<th>Operation</th>");
+			sb.append("<th>User</th>");
+			sb.append("<th>Status</th>");
+			sb.append("<th>Total ms</th>");
+			sb.append("<th>Send ms</th>");
+			sb.append("<th>CPU ms</th>");
+			sb.append("<th>Allocated KB</th>");
+			sb.append("<th>Phases</th>");
+			sb.append("</tr></thead><tbody>");
+			for (RequestTrace trace : traces) {
+				long writeNanos = trace.getWriteNanos();
+				String operation = trace.getOperation();
+				String userName = trace.getUserName();
+				long cpuNanos = trace.getCpuNanos();
+				long allocatedBytes = trace.getAllocatedBytes();
+				sb.append("<tr>")
+					.append("<td>").append(df.format(new Date(trace.getStartMillis()))).append("</td>")
+					.append("<td>").append(DbUtil.htmlEscape(trace.getName())).append("</td>")
+					.append("<td>").append(operation == null ? "" : DbUtil.htmlEscape(operation)).append("</td>")
+					.append("<td>").append(userName == null ? "" : DbUtil.htmlEscape(userName)).append("</td>")
+					.append("<td>").append(trace.getStatus()).append("</td>")
+					.append("<td>").append(String.format("%.1f", trace.getTotalNanos() / nanosPerMilli)).append("</td>")
+					.append("<td>").append(writeNanos < 0 ? "" : String.format("%.1f", writeNanos / nanosPerMilli)).append("</td>")
+					.append("<td>").append(cpuNanos < 0 ? "" : String.format("%.1f", cpuNanos / nanosPerMilli)).append("</td>")
+					.append("<td>").append(allocatedBytes < 0 ? "" : Long.toString((allocatedBytes + 1023) / 1024)).append("</td>")
+					.append("<td>");
+				String sep = "";
+				for (RequestTrace.Phase phase : trace.getPhases()) {
+					sb.append(sep).append(DbUtil.htmlEscape(phase.toString()));
+					sep = "<br>";
+				}
+				sb.append("</td></tr>");
+			}
+			sb.append("</tbody></table>");
+		}
+		sb.append("</body></html>");
+		return sb.toString();
+	}
+	
+	private RequestTraceLog() {
+	}
+}
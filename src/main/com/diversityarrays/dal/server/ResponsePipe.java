@@ -0,0 +1,213 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects a streaming DalOperation, running on its own thread, to the
+ * InputStream that NanoHTTPD sends as the body of a chunked Response.
+ * <p>
+ * Only a few chunks are held so a slow client holds up the writer (and so the
+ * database cursor behind it) rather than the response piling up in memory.
+ * If the client stops reading for longer than the stall timeout the writer
+ * gets an IOException.
+ * @author brian
+ *
+ */
+class ResponsePipe {
+	
+	static final int CHUNK_SIZE = 16 * 1024;
+	static final int MAX_CHUNKS = 8;
+	
+	static private final byte[] EOF = new byte[0];
+	
+	private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(MAX_CHUNKS);
+	private final CountDownLatch opened = new CountDownLatch(1);
+	private final long stallTimeoutMillis;
+	
+	private volatile boolean committed;
+	private volatile boolean abandoned;
+	private volatile boolean readerClosed;
+	
+	private final OutputStream outputStream = new OutputStream() {
+		
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private int count;
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count >= buffer.length) {
+				flush();
+			}
+			buffer[count++] = (byte) b;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count >= buffer.length) {
+					flush();
+				}
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0) {
+				put(Arrays.copyOf(buffer, count));
+				count = 0;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (! closed) {
+				closed = true;
+				try {
+					flush();
+					put(EOF);
+				}
+				finally {
+					opened.countDown();
+				}
+			}
+		}
+	};
+	
+	private final InputStream inputStream = new InputStream() {
+		
+		private byte[] current;
+		private int pos;
+		private boolean eof;
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			int n = read(one, 0, 1);
+			return n < 0 ? -1 : (one[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (current == null || pos >= current.length) {
+				if (eof) {
+					return -1;
+				}
+				try {
+					current = chunks.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				pos = 0;
+				if (current == EOF) {
+					eof = true;
+				}
+			}
+			int n = Math.min(len, current.length - pos);
+			System.arraycopy(current, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			readerClosed = true;
+			// Let a blocked writer see that we've gone
+			chunks.clear();
+		}
+	};
+
+	ResponsePipe(long stallTimeoutMillis) {
+		this.stallTimeoutMillis = stallTimeoutMillis;
+	}
+	
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+	
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+	
+	/**
+	 * @return true once any output has been passed to the reader
+	 */
+	public boolean isCommitted() {
+		return committed;
+	}
+	
+	/**
+	 * Wait until there is some output for the reader, the writer has
+	 * finished or the pipe has been abandoned.
+	 * @throws InterruptedException
+	 */
+	public void awaitOpened() throws InterruptedException {
+		opened.await();
+	}
+	
+	/**
+	 * Called by the writer (before any output has been committed) when the
+	 * response will be sent some other way; any further output is discarded.
+	 */
+	public void abandon() {
+		abandoned = true;
+		opened.countDown();
+	}
+	
+	private void put(byte[] chunk) throws IOException {
+		if (abandoned) {
+			return;
+		}
+		if (readerClosed) {
+			throw new IOException("Response stream closed by reader");
+		}
+		committed = true;
+		opened.countDown();
+		try {
+			if (! chunks.offer(chunk, stallTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new IOException("Client stopped reading the response");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (readerClosed) {
+			chunks.clear();
+			throw new IOException("Response stream closed by reader");
+		}
+	}
+}
@@ -49,6 +49,7 @@ import javax.swing.JMenuItem;
 import javax.swing.JPanel;
 import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
+import javax.swing.JTabbedPane;
 import javax.swing.JTable;
 import javax.swing.JTextArea;
 import javax.swing.event.ChangeEvent;
@@ -210,6 +211,8 @@ public class ServerGui extends JFrame {
 	private IDalServer server;
 
 	private StatusInfoLine statusInfoLine = new StatusInfoLine();
+	
+	private MetricsDashboard metricsDashboard = new MetricsDashboard();
 
 	private File wwwRoot;
 	
@@ -300,13 +303,18 @@ public class ServerGui extends JFrame {
 		box.add(quietOption);
 		box.add(Box.createHorizontalGlue());
 
-		JPanel bottom = new JPanel(new BorderLayout());
-		bottom.add(BorderLayout.NORTH, box);
-		bottom.add(BorderLayout.SOUTH, statusInfoLine);
+		JPanel messagesPanel = new JPanel(new BorderLayout());
+		messagesPanel.add(BorderLayout.CENTER, scrollPane);
+		messagesPanel.add(BorderLayout.SOUTH, box);
+		
+		// The dashboard only refreshes while its tab is selected
+		JTabbedPane tabbedPane = new JTabbedPane();
+		tabbedPane.addTab("Messages", messagesPanel);
+		tabbedPane.addTab("Performance", metricsDashboard);
 		
 		Container cp = getContentPane();
-		cp.add(BorderLayout.CENTER, scrollPane);
-		cp.add(BorderLayout.SOUTH,  bottom);
+		cp.add(BorderLayout.CENTER, tabbedPane);
+		cp.add(BorderLayout.SOUTH,  statusInfoLine);
 
 		pack();
 		setSize(640, 480);
@@ -358,6 +366,7 @@ public class ServerGui extends JFrame {
 			server.removePropertyChangeListener(SimpleWebServer.PROPERTY_RUNSTATE, serverRunstateChangeListener);
 		}
 		this.server = svr;
+		metricsDashboard.setServer(svr);
 		
 		boolean haveServer = this.server!=null;
 		copyDalUrlAction.setEnabled(haveServer);
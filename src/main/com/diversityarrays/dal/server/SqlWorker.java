@@ -17,6 +17,7 @@
  */
 package com.diversityarrays.dal.server;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.sql.Connection;
@@ -36,6 +37,7 @@ import com.diversityarrays.dal.db.DalResponseBuilder;
 import com.diversityarrays.dal.db.DbUtil;
 import com.diversityarrays.dal.db.SqlDalDatabase;
 import com.diversityarrays.dal.sqldb.ResultSetVisitor;
+import com.diversityarrays.dal.sqldb.SqlStatistics;
 import com.diversityarrays.dal.sqldb.SqlUtil;
 import com.diversityarrays.dalclient.DALClient;
 import com.diversityarrays.util.Continue;
@@ -208,7 +210,7 @@ public class SqlWorker {
 			
 			int result = -1;
 			if (! testOnly) {
-				result = SqlUtil.executeUpdate(stmt);
+				result = SqlUtil.executeUpdate(stmt, upd);
 			}
 			success = true;
 			return result;
@@ -243,6 +245,7 @@ public class SqlWorker {
 		
 		Statement stmt = null;
 		ResultSet rs = null;
+		SqlStatistics.Execution exec = SqlStatistics.begin(sql);
 		try {
 
 			Connection conn = getConnection();
@@ -255,14 +258,21 @@ public class SqlWorker {
 				sb.append("<code>").append(DbUtil.htmlEscape(sql)).append("</code><hr/>");
 
 				boolean hasResultSet = stmt.execute(sql);
+				exec.executed();
 					
 				if (hasResultSet) {
 					rs = stmt.getResultSet();
-					DalServerUtil.appendResultSetRowsAsTable("No data rows returned", rs, sb);
+					try {
+						exec.addRows(DalServerUtil.appendResultSetRowsAsTable("No data rows returned", rs, sb, 0));
+					} catch (IOException e) {
+						// StringBuilder doesn't throw IOException
+						throw new SQLException(e);
+					}
 					sb.append("</body></html>");
 				}
 				else {
 					int n = stmt.getUpdateCount();
+					exec.addRows(n);
 					sb.append("Update count=").append(n);
 				}
 				
@@ -270,19 +280,21 @@ public class SqlWorker {
 			}
 			else {
 				if (verbose) {
-					System.err.println("sql: "+sql);
+					RequestLog.info("sql: "+sql);
 				}
 
 				DalResponseBuilder builder = builderFactory==null ? DalServerUtil.createBuilder(rtype.isJson()) : builderFactory.transform(rtype.isJson());
 				boolean hasResultSet = stmt.execute(sql);
+				exec.executed();
 				
 				if (hasResultSet) {
 					rs = stmt.getResultSet();
-					DalServerUtil.appendResultSetRows(rs, builder, metaTagName);
+					exec.addRows(DalServerUtil.appendResultSetRows(rs, builder, metaTagName));
 					result = builder.build(Response.Status.OK);	
 				}
 				else {
 					int n = stmt.getUpdateCount();
+					exec.addRows(n);
 					builder.startTag(DALClient.TAG_INFO)
 						.attribute(DALClient.ATTR_MESSAGE, "Update Count="+n)
 						.endTag();
@@ -290,6 +302,7 @@ public class SqlWorker {
 				}
 			}
 		} catch (SQLException e) {
+			exec.failed();
 			// Once for the log
 			e.printStackTrace();
 			
@@ -306,9 +319,11 @@ public class SqlWorker {
 				result = DalServerUtil.buildErrorResponse(SqlResponseType.JSON==rtype, e.getMessage());
 			}
 		} catch (DalDbException e) {
+			exec.failed();
 			result = DalServerUtil.buildErrorResponse(SqlResponseType.JSON==rtype, e.getMessage());
 		} finally {
 			SqlUtil.closeSandRS(stmt, rs);
+			exec.finish();
 		}
 		
 		return result;
@@ -319,18 +334,11 @@ public class SqlWorker {
 		int count = -1;
 		Connection conn = getConnection();
 		
-		Statement stmt = null;
-		ResultSet rs = null;
-		
 		try {
-			stmt = conn.createStatement();
-			count = stmt.executeUpdate(update);
+			count = SqlUtil.executeUpdate(conn, update);
 		} catch (SQLException e) {
 			throw new DalDbException(e);
 		}
-		finally {
-			SqlUtil.closeSandRS(stmt, rs);
-		}
 		
 		return count;
 	}
@@ -0,0 +1,199 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.diversityarrays.dal.sqldb.QueryContext;
+
+/**
+ * A sampling profiler for the threads that are handling requests.
+ * <p>
+ * The DalServer registers each request's thread (with its QueryContext) while
+ * the request is being handled, and the pool threads that work for a request
+ * (streaming, replica reads and upstream calls) are registered with RequestWorker.
+ * <code>profile()</code> takes the stacks of all of those threads at a fixed interval and returns the number of times each
+ * distinct stack was seen in the "collapsed stack" format read by flame graph
+ * tools: one line per stack, with the frames from the outermost inwards separated
+ * by <code>;</code>, then a space and the count. The first frame is the operation
+ * (command template) being performed by the thread.
+ * @author brian
+ *
+ */
+class StackSampler {
+	
+	static final int MAX_SECONDS = Integer.getInteger("DAL_PROFILE_MAX_SECONDS", 60);
+	
+	static private final ConcurrentMap<Thread,QueryContext> ACTIVE_REQUESTS = new ConcurrentHashMap<Thread,QueryContext>();
+	
+	static private final AtomicBoolean RUNNING = new AtomicBoolean();
+	
+	/**
+	 * Make the current thread's stack available for sampling.
+	 * @param queryContext of the request being handled by the thread
+	 */
+	static void requestStarted(QueryContext queryContext) {
+		ACTIVE_REQUESTS.put(Thread.currentThread(), queryContext);
+	}
+	
+	static void requestFinished() {
+		ACTIVE_REQUESTS.remove(Thread.currentThread());
+	}
+	
+	/**
+	 * @return the number of requests currently being handled
+	 */
+	static int getActiveRequestCount() {
+		return ACTIVE_REQUESTS.size();
+	}
+	
+	/**
+	 * Sample the request threads (other than the current one) for <code>millis</code>.
+	 * Only one profile can be taken at a time.
+	 * @param millis
+	 * @param intervalMillis between samples
+	 * @return the collapsed stacks, most frequent first, or null if a profile is already being taken
+	 * @throws InterruptedException
+	 */
+	static String profile(long millis, long intervalMillis) throws InterruptedException {
+		if (! RUNNING.compareAndSet(false, true)) {
+			return null;
+		}
+		try {
+			Map<String,long[]> countByStack = collect(millis, intervalMillis);
+			
+			List<Map.Entry<String,long[]>> entries = new ArrayList<Map.Entry<String,long[]>>(countByStack.entrySet());
+			Collections.sort(entries, new Comparator<Map.Entry<String,long[]>>() {
+				@Override
+				public int compare(Map.Entry<String,long[]> o1, Map.Entry<String,long[]> o2) {
+					return Long.compare(o2.getValue()[0], o1.getValue()[0]);
+				}
+			});
+			
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String,long[]> e : entries) {
+				sb.append(e.getKey()).append(' ').append(e.getValue()[0]).append('\n');
+			}
+			return sb.toString();
+		}
+		finally {
+			RUNNING.set(false);
+		}
+	}
+	
+	static private Map<String,long[]> collect(long millis, long intervalMillis) throws InterruptedException {
+		Map<String,long[]> result = new HashMap<String,long[]>();
+		
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		Thread self = Thread.currentThread();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		
+		List<Long> ids = new ArrayList<Long>();
+		List<QueryContext> contexts = new ArrayList<QueryContext>();
+		StringBuilder sb = new StringBuilder();
+		while (System.nanoTime() < deadline) {
+			ids.clear();
+			contexts.clear();
+			addThreads(ACTIVE_REQUESTS, self, ids, contexts);
+			addThreads(RequestWorker.getActiveWorkers(), self, ids, contexts);
+			
+			if (! ids.isEmpty()) {
+				long[] idArray = new long[ids.size()];
+				for (int i = idArray.length; --i >= 0; ) {
+					idArray[i] = ids.get(i);
+				}
+				// One call so that all of the stacks are taken at the same safepoint
+				ThreadInfo[] infos = threadMXBean.getThreadInfo(idArray, Integer.MAX_VALUE);
+				for (int i = 0; i < infos.length; ++i) {
+					ThreadInfo info = infos[i];
+					if (info == null) {
+						continue; // it has ended
+					}
+					StackTraceElement[] stack = info.getStackTrace();
+					if (stack.length <= 0) {
+						continue;
+					}
+					
+					sb.setLength(0);
+					String operation = contexts.get(i).getOperation();
+					appendFrame(sb, operation == null ? RequestMetrics.UNKNOWN_OPERATION : operation);
+					for (int f = stack.length; --f >= 0; ) {
+						sb.append(';');
+						appendFrame(sb, stack[f].getClassName() + "." + stack[f].getMethodName());
+					}
+					switch (info.getThreadState()) {
+					case BLOCKED:
+					case WAITING:
+					case TIMED_WAITING:
+						sb.append(";(").append(info.getThreadState()).append(')');
+						break;
+					default:
+						break;
+					}
+					
+					String key = sb.toString();
+					long[] count = result.get(key);
+					if (count == null) {
+						count = new long[1];
+						result.put(key, count);
+					}
+					++count[0];
+				}
+			}
+			
+			Thread.sleep(intervalMillis);
+		}
+		return result;
+	}
+	
+	static private void addThreads(Map<Thread,QueryContext> contextByThread, Thread self, 
+			List<Long> ids, List<QueryContext> contexts) 
+	{
+		for (Map.Entry<Thread,QueryContext> e : contextByThread.entrySet()) {
+			if (e.getKey() != self) {
+				ids.add(e.getKey().getId());
+				contexts.add(e.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * The separators of the collapsed stack format can't appear in a frame.
+	 */
+	static private void appendFrame(StringBuilder sb, String frame) {
+		for (int i = 0; i < frame.length(); ++i) {
+			char ch = frame.charAt(i);
+			sb.append(ch == ';' || Character.isWhitespace(ch) ? '_' : ch);
+		}
+	}
+	
+	private StackSampler() {
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.diversityarrays.dal.db.AuthenticationException;
+import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.db.PoolStatistics;
+import com.diversityarrays.dal.db.impl.StreamingResponseBuilder;
+import com.diversityarrays.dal.db.impl.StreamingResponseBuilder.ResponseStreamClosedException;
+import com.diversityarrays.dal.ops.StreamingDalOperation;
+import com.diversityarrays.dal.sqldb.QueryContext;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Runs a StreamingDalOperation on a worker thread so that its records can
+ * be sent (as a chunked Response) while the operation is still producing them.
+ * <p>
+ * Errors which occur before any output has been sent produce the same
+ * Response as for a non-streaming operation; after that the error is
+ * appended to the response as an Error record.
+ * <p>
+ * At most <code>DAL_STREAM_MAX_THREADS</code> (default 32) operations are streamed
+ * at once; any more are rejected with an error response.
+ * @author brian
+ *
+ */
+class StreamingOperationRunner {
+	
+	/**
+	 * How long the operation will wait for the client to read some of the response.
+	 */
+	static private final long STALL_TIMEOUT_MILLIS = 60 * 1000;
+	
+	static private final int MAX_THREADS = Math.max(1, Integer.getInteger("DAL_STREAM_MAX_THREADS", 32));
+	
+	/**
+	 * The stream (if any) currently being sent by a request on this thread's connection.
+	 * It is removed once the response has been read to the end (or closed) so that
+	 * a later request on a keep-alive connection is not affected.
+	 */
+	static private final ThreadLocal<Runnable> ABORT_STREAM = new ThreadLocal<Runnable>();
+	
+	/**
+	 * Called on the thread serving a connection when the connection has been closed;
+	 * cancels the queries of the response being streamed to it (if any).
+	 */
+	static public void connectionClosed() {
+		Runnable abort = ABORT_STREAM.get();
+		if (abort != null) {
+			ABORT_STREAM.remove();
+			abort.run();
+		}
+	}
+	
+	static private final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(0, MAX_THREADS,
+			60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "DalStream-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	
+	static {
+		PoolStatistics.register(PoolStatistics.forExecutor("Streaming response threads", EXECUTOR));
+	}
+
+	static public Response run(final StreamingDalOperation dalop, 
+			final DalSession dalSession,
+			final boolean wantJson,
+			final Method method,
+			final String uri,
+			final List<String> dalOpParameters,
+			final Map<String, String> methodParms,
+			final Map<String, String> filePathByName)
+	{
+		final ResponsePipe pipe = new ResponsePipe(STALL_TIMEOUT_MILLIS);
+		final StreamingResponseBuilder builder = StreamingResponseBuilder.create(wantJson, pipe.getOutputStream());
+		final AtomicReference<Response> errorResponse = new AtomicReference<Response>();
+		final QueryContext queryContext = QueryContext.current();
+		
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				QueryContext previous = queryContext == null ? null : queryContext.attach();
+				RequestWorker worker = RequestWorker.start(queryContext);
+				try {
+					dalop.execute(dalSession, builder, method, uri,
+							dalOpParameters, methodParms, filePathByName);
+					builder.finish();
+				} catch (ResponseStreamClosedException e) {
+					// The client has gone away - nothing else to do
+				} catch (AuthenticationException e) {
+					fail(DalServerUtil.buildAuthErrorResponse(wantJson, e.getMessage()), e.getMessage());
+				} catch (DalDbException e) {
+					Throwable t = e.getCause();
+					if (t == null) {
+						t = e;
+					}
+					fail(DalServerUtil.buildInternalErrorResponse(wantJson, t), t.getMessage());
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					fail(DalServerUtil.buildInternalErrorResponse(wantJson, e), e.getMessage());
+				} finally {
+					if (queryContext != null) {
+						QueryContext.restore(previous);
+					}
+					try {
+						pipe.getOutputStream().close();
+					} catch (IOException ignore) {
+					}
+					worker.finish();
+				}
+			}
+			
+			private void fail(Response response, String message) {
+				if (pipe.isCommitted()) {
+					builder.finishWithError(message);
+				}
+				else {
+					errorResponse.set(response);
+					pipe.abandon();
+				}
+			}
+		};
+		
+		try {
+			EXECUTOR.execute(task);
+		} catch (RejectedExecutionException e) {
+			return DalServerUtil.buildInternalErrorResponse(wantJson, 
+					"The server is busy - please try again later");
+		}
+		
+		final Runnable abort = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pipe.getInputStream().close();
+				} catch (IOException ignore) {
+				}
+				if (queryContext != null) {
+					queryContext.cancel();
+				}
+			}
+		};
+		ABORT_STREAM.set(abort);
+		
+		try {
+			pipe.awaitOpened();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			ABORT_STREAM.remove();
+			try {
+				pipe.getInputStream().close();
+			} catch (IOException ignore) {
+			}
+			return DalServerUtil.buildInternalErrorResponse(wantJson, e);
+		}
+		
+		Response result = errorResponse.get();
+		if (result != null) {
+			ABORT_STREAM.remove();
+		}
+		else {
+			// The connection thread reads this until the end, so that is
+			// where the stream can be forgotten.
+			InputStream input = new FilterInputStream(pipe.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					return ended(super.read());
+				}
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return ended(super.read(b, off, len));
+				}
+				@Override
+				public void close() throws IOException {
+					forget();
+					super.close();
+				}
+				private int ended(int n) {
+					if (n < 0) {
+						forget();
+					}
+					return n;
+				}
+				private void forget() {
+					if (ABORT_STREAM.get() == abort) {
+						ABORT_STREAM.remove();
+					}
+				}
+			};
+			result = new Response(Response.Status.OK, builder.getMimeType(), input);
+			result.setChunkedTransfer(true);
+		}
+		return result;
+	}
+
+}
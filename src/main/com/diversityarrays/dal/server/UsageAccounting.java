@@ -0,0 +1,269 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.diversityarrays.dal.db.DalResponseBuilder;
+import com.diversityarrays.dal.sqldb.QueryContext;
+
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * Adds the resources used by each request to the SessionUsage of its DalSession
+ * and to a total for its user, and builds the <code>/usage</code> response
+ * listing the sessions and users that have used the most.
+ * @author brian
+ *
+ */
+class UsageAccounting {
+	
+	/** Beyond this many users, usage is added to OTHER_USER */
+	static private final int MAX_USERS = Integer.getInteger("DAL_METRICS_MAX_USERS", 1000);
+	
+	static final String OTHER_USER = "(other)";
+	
+	static final int DEFAULT_TOP = 10;
+	
+	static private final ConcurrentMap<String,SessionUsage> USAGE_BY_USER = new ConcurrentHashMap<String,SessionUsage>();
+	
+	/**
+	 * The values by which <code>/usage</code> can order the sessions and users.
+	 */
+	enum Measure {
+		REQUESTS("requests"),
+		ROWS("rows"),
+		BYTES("bytes"),
+		DATABASE("db"),
+		UPSTREAM("upstream"),
+		CPU("cpu"),
+		ALLOCATED("allocated");
+		
+		final String parameterValue;
+		
+		Measure(String v) {
+			parameterValue = v;
+		}
+		
+		long valueOf(SessionUsage u) {
+			switch (this) {
+			case REQUESTS: return u.getRequestCount();
+			case ROWS: return u.getRowCount();
+			case BYTES: return u.getResponseBytes();
+			case DATABASE: return u.getDatabaseNanos();
+			case UPSTREAM: return u.getUpstreamNanos();
+			case CPU: return u.getCpuNanos();
+			case ALLOCATED: return u.getAllocatedBytes();
+			}
+			throw new IllegalStateException(this.name());
+		}
+		
+		/**
+		 * @param s
+		 * @return the Measure with the parameterValue or null
+		 */
+		static Measure lookup(String s) {
+			for (Measure m : values()) {
+				if (m.parameterValue.equalsIgnoreCase(s)) {
+					return m;
+				}
+			}
+			return null;
+		}
+	}
+	
+	static private SessionUsage getUserUsage(String user) {
+		SessionUsage result = USAGE_BY_USER.get(user);
+		if (result == null) {
+			if (USAGE_BY_USER.size() >= MAX_USERS) {
+				user = OTHER_USER;
+			}
+			SessionUsage tmp = new SessionUsage();
+			result = USAGE_BY_USER.putIfAbsent(user, tmp);
+			if (result == null) {
+				result = tmp;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return a snapshot of the usage by user name
+	 */
+	static Map<String,SessionUsage> getUsageByUser() {
+		return new TreeMap<String,SessionUsage>(USAGE_BY_USER);
+	}
+	
+	/**
+	 * Add the finished request to the usage of its session and user (if it had
+	 * a session) and arrange for the bytes of the Response body to be counted as they are sent.
+	 * @param trace
+	 * @param queryContext
+	 * @param response
+	 */
+	static void record(RequestTrace trace, QueryContext queryContext, Response response) {
+		final SessionUsage sessionUsage = trace.getSessionUsage();
+		if (sessionUsage == null) {
+			return;
+		}
+		final SessionUsage userUsage = getUserUsage(trace.getUserName());
+		
+		long rows = queryContext.getRowCount();
+		long dbNanos = queryContext.getDatabaseNanos();
+		long upNanos = queryContext.getUpstreamNanos();
+		sessionUsage.addRequest(rows, dbNanos, upNanos, trace.getCpuNanos(), trace.getAllocatedBytes());
+		userUsage.addRequest(rows, dbNanos, upNanos, trace.getCpuNanos(), trace.getAllocatedBytes());
+		
+		InputStream data = response.getData();
+		if (data != null) {
+			response.setData(new FilterInputStream(data) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b >= 0) {
+						sessionUsage.addResponseBytes(1);
+						userUsage.addResponseBytes(1);
+					}
+					return b;
+				}
+				
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0) {
+						sessionUsage.addResponseBytes(n);
+						userUsage.addResponseBytes(n);
+					}
+					return n;
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Add the cost of work for a request that finished after it was recorded.
+	 * @param trace
+	 * @param cpuNanos
+	 * @param allocatedBytes
+	 */
+	static void addLateCost(RequestTrace trace, long cpuNanos, long allocatedBytes) {
+		SessionUsage sessionUsage = trace.getSessionUsage();
+		if (sessionUsage != null) {
+			sessionUsage.addCost(cpuNanos, allocatedBytes);
+			getUserUsage(trace.getUserName()).addCost(cpuNanos, allocatedBytes);
+		}
+	}
+	
+	/**
+	 * Append a <code>Session</code> element for each of the <code>top</code> sessions
+	 * and a <code>User</code> element for each of the <code>top</code> users.
+	 * @param sessions the current sessions
+	 * @param measure the order
+	 * @param top
+	 * @param builder
+	 */
+	static void appendTopUsage(DalSession[] sessions, Measure measure, int top, DalResponseBuilder builder) {
+		// The usage keeps changing so rank on a copy of each value
+		List<Ranked<DalSession>> rankedSessions = new ArrayList<Ranked<DalSession>>(sessions.length);
+		for (DalSession s : sessions) {
+			rankedSessions.add(new Ranked<DalSession>(s, measure.valueOf(s.getUsage())));
+		}
+		
+		List<Ranked<Map.Entry<String,SessionUsage>>> rankedUsers = new ArrayList<Ranked<Map.Entry<String,SessionUsage>>>();
+		for (Map.Entry<String,SessionUsage> e : USAGE_BY_USER.entrySet()) {
+			rankedUsers.add(new Ranked<Map.Entry<String,SessionUsage>>(e, measure.valueOf(e.getValue())));
+		}
+		
+		builder.addResponseMeta("Session");
+		builder.addResponseMeta("User");
+		
+		for (DalSession s : getTop(rankedSessions, top)) {
+			builder.startTag("Session")
+				.attribute("UserName", s.getUserName())
+				.attribute("UserId", s.getUserId())
+				// Enough to tell them apart without giving away the session id
+				.attribute("Session", s.sessionId.substring(0, Math.min(8, s.sessionId.length())));
+			appendUsage(s.getUsage(), builder);
+			builder.endTag();
+		}
+		
+		for (Map.Entry<String,SessionUsage> e : getTop(rankedUsers, top)) {
+			builder.startTag("User")
+				.attribute("UserName", e.getKey());
+			appendUsage(e.getValue(), builder);
+			builder.endTag();
+		}
+	}
+	
+	/**
+	 * An item with the value of its Measure when ranked.
+	 */
+	static private class Ranked<T> {
+		final T item;
+		final long value;
+		
+		Ranked(T item, long value) {
+			this.item = item;
+			this.value = value;
+		}
+	}
+	
+	/**
+	 * @return up to <code>top</code> of the items in descending order of their value
+	 */
+	static private <T> List<T> getTop(List<Ranked<T>> ranked, int top) {
+		Collections.sort(ranked, new Comparator<Ranked<T>>() {
+			@Override
+			public int compare(Ranked<T> o1, Ranked<T> o2) {
+				return Long.compare(o2.value, o1.value);
+			}
+		});
+		List<T> result = new ArrayList<T>();
+		for (Ranked<T> r : ranked) {
+			if (result.size() >= top) {
+				break;
+			}
+			result.add(r.item);
+		}
+		return result;
+	}
+	
+	static private void appendUsage(SessionUsage u, DalResponseBuilder builder) {
+		builder.attribute("Requests", Long.toString(u.getRequestCount()))
+			.attribute("Rows", Long.toString(u.getRowCount()))
+			.attribute("ResponseBytes", Long.toString(u.getResponseBytes()))
+			.attribute("DatabaseMillis", Long.toString(TimeUnit.NANOSECONDS.toMillis(u.getDatabaseNanos())))
+			.attribute("UpstreamMillis", Long.toString(TimeUnit.NANOSECONDS.toMillis(u.getUpstreamNanos())))
+			.attribute("CpuMillis", Long.toString(TimeUnit.NANOSECONDS.toMillis(u.getCpuNanos())))
+			.attribute("AllocatedBytes", Long.toString(u.getAllocatedBytes()));
+	}
+	
+	private UsageAccounting() {
+	}
+}
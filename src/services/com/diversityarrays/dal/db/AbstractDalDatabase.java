@@ -17,6 +17,8 @@
  */
 package com.diversityarrays.dal.db;
 
+import com.diversityarrays.dal.server.DalSession;
+
 
 
 public abstract class AbstractDalDatabase implements DalDatabase {
@@ -53,4 +55,8 @@ public abstract class AbstractDalDatabase implements DalDatabase {
 		return null;
 	}
 
+	@Override
+	public void groupSwitched(DalSession session) {
+	}
+
 }
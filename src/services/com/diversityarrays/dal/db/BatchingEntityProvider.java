@@ -0,0 +1,279 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.diversityarrays.dal.entity.DalEntity;
+import com.diversityarrays.dal.sqldb.QueryContext;
+
+/**
+ * Combines the single-id <code>getEntity()</code> requests that arrive at about the
+ * same time (e.g. from a client making many <code>get/genotype/_id</code> requests in
+ * parallel) into a single <code>getEntities()</code> call on the MultiIdEntityProvider.
+ * <p>
+ * The first request to arrive starts a batch and waits for up to
+ * <code>windowMillis</code> (or until the batch has <code>maxIds</code> ids) for other
+ * requests to join it. It then performs the query for the whole batch and the results
+ * are handed to each of the waiting requests.
+ * <p>
+ * The batch query does not run under the QueryContext of any one request: it has
+ * its own, whose deadline is the latest of those of the requests in the batch, so
+ * that it isn't cut short (or cancelled) by the request that happened to start it.
+ * Each request is charged the rows it received and the database time of the batch,
+ * and a request stops waiting for the batch when its own deadline passes.
+ * <p>
+ * Requests with a filter clause are not batched.
+ * The batch sizes and the time each request waits for its batch to start are
+ * recorded in GetBatchStatistics.
+ * @author brian
+ *
+ * @param <T>
+ */
+public class BatchingEntityProvider<T extends DalEntity> implements MultiIdEntityProvider<T> {
+	
+	/**
+	 * Return a BatchingEntityProvider for the delegate or the delegate
+	 * itself if windowMillis is not positive.
+	 * @param delegate
+	 * @param windowMillis
+	 * @param maxIds
+	 * @return MultiIdEntityProvider
+	 */
+	static public <E extends DalEntity> MultiIdEntityProvider<E> wrap(MultiIdEntityProvider<E> delegate, int windowMillis, int maxIds) {
+		if (windowMillis <= 0) {
+			return delegate;
+		}
+		return new BatchingEntityProvider<E>(delegate, windowMillis, maxIds);
+	}
+	
+	class Batch {
+		final long startNanos = System.nanoTime();
+		final Set<Integer> ids = new LinkedHashSet<Integer>();
+		// of the requests with one
+		final List<QueryContext> contexts = new ArrayList<QueryContext>();
+		boolean anyWithoutDeadline;
+		
+		long databaseNanos;
+		long queryStartNanos;
+		boolean done;
+		Map<Integer,T> entityById = Collections.emptyMap();
+		Throwable error;
+		
+		synchronized void finished(Map<Integer,T> map, Throwable t) {
+			if (map != null) {
+				entityById = map;
+			}
+			error = t;
+			done = true;
+			notifyAll();
+		}
+		
+		synchronized void awaitDone(long timeoutMillis) throws DalDbException {
+			long deadlineNanos = timeoutMillis == Long.MAX_VALUE 
+					? 0 
+					: System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			while (! done) {
+				try {
+					if (deadlineNanos == 0) {
+						wait();
+					}
+					else {
+						long remaining = deadlineNanos - System.nanoTime();
+						if (remaining <= 0) {
+							throw new DalDbException("Request deadline exceeded while waiting for batch");
+						}
+						TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DalDbException("Interrupted while waiting for batch", e);
+				}
+			}
+		}
+		
+		/**
+		 * @return milliseconds until the latest deadline of the requests, or Long.MAX_VALUE
+		 */
+		long getLatestRemainingMillis() {
+			if (anyWithoutDeadline || contexts.isEmpty()) {
+				return Long.MAX_VALUE;
+			}
+			long result = Long.MIN_VALUE;
+			for (QueryContext ctx : contexts) {
+				result = Math.max(result, ctx.getRemainingMillis());
+			}
+			return result;
+		}
+	}
+	
+	private final MultiIdEntityProvider<T> delegate;
+	private final long windowNanos;
+	private final int maxIds;
+	
+	private final Object lock = new Object();
+	private Batch pending;
+	
+	public BatchingEntityProvider(MultiIdEntityProvider<T> delegate, int windowMillis, int maxIds) {
+		this.delegate = delegate;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.maxIds = Math.max(1, maxIds);
+	}
+
+	@Override
+	public T getEntity(String id, String filterClause) throws DalDbException {
+		if (filterClause != null) {
+			return delegate.getEntity(id, filterClause);
+		}
+		
+		Integer key;
+		try {
+			key = Integer.valueOf(id);
+		} catch (NumberFormatException e) {
+			return delegate.getEntity(id, filterClause);
+		}
+		
+		long enqueueNanos = System.nanoTime();
+		QueryContext ctx = QueryContext.current();
+
+		Batch batch;
+		boolean leader;
+		synchronized (lock) {
+			leader = pending == null;
+			if (leader) {
+				pending = new Batch();
+			}
+			batch = pending;
+			batch.ids.add(key);
+			if (ctx == null || ctx.getRemainingMillis() == Long.MAX_VALUE) {
+				batch.anyWithoutDeadline = true;
+			}
+			else {
+				batch.contexts.add(ctx);
+			}
+			if (batch.ids.size() >= maxIds) {
+				// Full - no more may join and the leader can start now
+				pending = null;
+				lock.notifyAll();
+			}
+		}
+		
+		if (leader) {
+			performBatch(batch);
+		}
+		else {
+			batch.awaitDone(ctx == null ? Long.MAX_VALUE : ctx.getRemainingMillis());
+		}
+		
+		GetBatchStatistics.recordWait(Math.max(0, batch.queryStartNanos - enqueueNanos));
+		if (ctx != null) {
+			ctx.addDatabaseNanos(batch.databaseNanos);
+		}
+		
+		if (batch.error != null) {
+			if (leader) {
+				if (batch.error instanceof DalDbException) {
+					throw (DalDbException) batch.error;
+				}
+				throw (RuntimeException) batch.error;
+			}
+			throw new DalDbException("Batch query failed: " + batch.error.getMessage(), batch.error);
+		}
+		T result = batch.entityById.get(key);
+		if (ctx != null && result != null) {
+			ctx.addRowCount(1);
+		}
+		return result;
+	}
+	
+	private void performBatch(Batch batch) throws DalDbException {
+		Collection<Integer> ids;
+		QueryContext batchContext;
+		synchronized (lock) {
+			long remaining;
+			while (pending == batch && (remaining = batch.startNanos + windowNanos - System.nanoTime()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (pending == batch) {
+				pending = null;
+			}
+			ids = new ArrayList<Integer>(batch.ids);
+			
+			long now = System.currentTimeMillis();
+			batchContext = new QueryContext("batch of " + ids.size(), now);
+			long latestRemaining = batch.getLatestRemainingMillis();
+			if (latestRemaining != Long.MAX_VALUE) {
+				// If every deadline has passed the query fails almost at once
+				batchContext.limitTimeout(Math.max(1, latestRemaining));
+			}
+		}
+		
+		batch.queryStartNanos = System.nanoTime();
+		GetBatchStatistics.recordBatch(ids.size());
+		
+		Map<Integer,T> map = null;
+		Throwable error = null;
+		QueryContext previous = batchContext.attach();
+		try {
+			map = delegate.getEntities(ids, null);
+		} catch (DalDbException e) {
+			error = e;
+		} catch (RuntimeException e) {
+			error = e;
+		} finally {
+			QueryContext.restore(previous);
+			batch.databaseNanos = batchContext.getDatabaseNanos();
+			batch.finished(map, error);
+		}
+	}
+
+	@Override
+	public Map<Integer,T> getEntities(Collection<Integer> ids, String filterClause) throws DalDbException {
+		return delegate.getEntities(ids, filterClause);
+	}
+
+	@Override
+	public int getEntityCount(String filterClause) throws DalDbException {
+		return delegate.getEntityCount(filterClause);
+	}
+
+	@Override
+	public EntityIterator<? extends T> createIdIterator(String id, int firstRecord, int nRecords, String filterClause) 
+	throws DalDbException {
+		return delegate.createIdIterator(id, firstRecord, nRecords, filterClause);
+	}
+
+	@Override
+	public EntityIterator<? extends T> createIterator(int firstRecord, int nRecords, String filterClause) 
+	throws DalDbException {
+		return delegate.createIterator(firstRecord, nRecords, filterClause);
+	}
+
+}
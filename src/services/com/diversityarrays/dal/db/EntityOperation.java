@@ -20,13 +20,23 @@ package com.diversityarrays.dal.db;
 import java.lang.reflect.Field;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.persistence.Column;
 
 import com.diversityarrays.dal.entity.DalEntity;
+import com.diversityarrays.dal.entity.EntityMetadata;
 import com.diversityarrays.dal.entity.EntityTag;
 import com.diversityarrays.dal.ops.AbstractDalOperation;
+import com.diversityarrays.dal.ops.StreamingDalOperation;
+import com.diversityarrays.dal.server.DalSession;
+
+import fi.iki.elonen.NanoHTTPD.Method;
 
 public abstract class EntityOperation<T extends DalEntity,DB extends DalDatabase> extends AbstractDalOperation<DB> {
 	
@@ -38,6 +48,9 @@ public abstract class EntityOperation<T extends DalEntity,DB extends DalDatabase
 	
 	protected NumberFormat doubleFormat = new DecimalFormat("0.000");
 	
+	// true if identical GET requests share a single execution
+	private final boolean singleFlight;
+	
 	public EntityOperation(DB db, String entityName, String template, 
 			Class<? extends T> tclass, EntityProvider<T> provider)
 	{
@@ -46,42 +59,154 @@ public abstract class EntityOperation<T extends DalEntity,DB extends DalDatabase
 		this.entityClass = tclass;
 		this.entityProvider = provider;
 		
-		EntityTag entityTag = entityClass.getAnnotation(EntityTag.class);
-		if (entityTag == null) {
+		EntityMetadata metadata = EntityMetadata.forClass(entityClass);
+		if (metadata.getTagName() == null) {
 			throw new RuntimeException(entityClass.getName() + " is missing annotation @" + EntityTag.class.getSimpleName());
 		}
-		this.entityTagName = entityTag.value();
+		this.entityTagName = metadata.getTagName();
+		
+		this.columnByField = metadata.getColumnByField();
+		
+		this.singleFlight = SINGLE_FLIGHT_TEMPLATES.contains(template);
+	}
+	
+	/**
+	 * The operations whose identical GET requests share a single execution: by default
+	 * the (expensive) paged lists. Sharing needs the response to be recorded
+	 * and replayed so it isn't worth doing for cheap operations such as
+	 * <code>get/<i>entity</i>/_id</code> (which are batched instead) or possible for
+	 * streamed responses such as the unpaged <code>list/genus</code>. Set the system
+	 * property <code>DAL_SINGLE_FLIGHT_OPERATIONS</code> to a comma-separated list
+	 * of templates to change this.
+	 */
+	static private final Set<String> SINGLE_FLIGHT_TEMPLATES = new HashSet<String>();
+	static {
+		String names = System.getProperty("DAL_SINGLE_FLIGHT_OPERATIONS");
+		if (names == null) {
+			SINGLE_FLIGHT_TEMPLATES.addAll(Arrays.asList(
+					"list/genotype/_nperpage/page/_num",
+					"list/genotypealias/_nperpage/page/_num",
+					"genus/_genusid/list/genotype/_nperpage/page/_num"));
+		}
+		else {
+			for (String name : names.split(",")) {
+				name = name.trim();
+				if (! name.isEmpty()) {
+					SINGLE_FLIGHT_TEMPLATES.add(name);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Identical GET requests that are in progress at the same time share
+	 * a single execution.
+	 */
+	static private final SingleFlight<RecordedResponse> SINGLE_FLIGHT = new SingleFlight<RecordedResponse>();
+
+	/**
+	 * Perform the operation using <code>performExecute()</code>. For the operations
+	 * in SINGLE_FLIGHT_TEMPLATES the response for a GET request (that isn't streamed)
+	 * is shared with any identical requests that arrive while it is being performed.
+	 */
+	@Override
+	public final void execute(final DalSession session,
+			DalResponseBuilder responseBuilder,
+			final Method method,
+			final String dalcmd,
+			final List<String> dalOpParameters,
+			final Map<String, String> methodParms,
+			final Map<String, String> filePathByName)
+	throws DalDbException 
+	{
+		boolean streaming = this instanceof StreamingDalOperation 
+				&& ((StreamingDalOperation) this).isStreamingResponse();
+		
+		if (! singleFlight || Method.GET != method || streaming) {
+			performExecute(session, responseBuilder, method, dalcmd, dalOpParameters, methodParms, filePathByName);
+			return;
+		}
 		
-		this.columnByField = DalDatabaseUtil.buildEntityFieldColumnMap(entityClass);
+		String key = SingleFlight.createKey(dalcmd, methodParms, session);
+		RecordedResponse recorded = SINGLE_FLIGHT.execute(key, new SingleFlight.Call<RecordedResponse>() {
+			@Override
+			public RecordedResponse call() throws DalDbException {
+				RecordedResponse result = new RecordedResponse();
+				performExecute(session, result, method, dalcmd, dalOpParameters, methodParms, filePathByName);
+				return result;
+			}
+		});
+		recorded.replayTo(responseBuilder);
 	}
+	
+	/**
+	 * Perform the operation; see DalOperation.execute().
+	 */
+	abstract protected void performExecute(DalSession session,
+			DalResponseBuilder responseBuilder, 
+			Method method, 
+			String dalcmd,
+			List<String> dalOpParameters, 
+			Map<String, String> methodParms, 
+			Map<String, String> filePathByName) 
+	throws DalDbException;
 
 	protected void appendEntity(DalResponseBuilder responseBuilder, T entity)
-			throws DalDbException {
-				DalResponseBuilder builder = responseBuilder.startTag(entityTagName);
-				for (Field fld : columnByField.keySet()) {
-					try {
-						Object value = fld.get(entity);
-						String attrValue = "";
-						if (value != null) {
-							Class<?> ftype = value.getClass();
-							if (Double.class == ftype) {
-								attrValue = doubleFormat.format(((Double) value).doubleValue());
-							}
-							else if (Boolean.class == ftype) {
-								attrValue = ((Boolean) value).booleanValue() ? "1" : "0";
-							}
-							else {
-								attrValue = value.toString();
-							}
-						}
-						builder.attribute(columnByField.get(fld).name(), attrValue);
-					} catch (IllegalArgumentException e) {
-						throw new DalDbException(e);
-					} catch (IllegalAccessException e) {
-						throw new DalDbException(e);
+	throws DalDbException {
+		appendEntity(responseBuilder, entity, null, null, null);
+	}
+
+	/**
+	 * Append the entity and nest each of the <code>nested</code> entities inside it.
+	 * @param responseBuilder
+	 * @param entity
+	 * @param nestedTagName the tag used for each nested entity
+	 * @param nestedColumnByField as returned by DalDatabaseUtil.buildEntityFieldColumnMap()
+	 * @param nested may be null
+	 * @throws DalDbException
+	 */
+	protected void appendEntity(DalResponseBuilder responseBuilder, T entity,
+			String nestedTagName,
+			Map<Field,Column> nestedColumnByField,
+			Collection<? extends DalEntity> nested)
+	throws DalDbException {
+		DalResponseBuilder builder = responseBuilder.startTag(entityTagName);
+		appendAttributes(builder, entity, columnByField);
+		if (nested != null) {
+			for (DalEntity child : nested) {
+				builder.startTag(nestedTagName);
+				appendAttributes(builder, child, nestedColumnByField);
+				builder.endTag();
+			}
+		}
+		builder.endTag();
+	}
+
+	protected void appendAttributes(DalResponseBuilder builder, DalEntity entity, Map<Field,Column> columns)
+	throws DalDbException {
+		for (Map.Entry<Field,Column> entry : columns.entrySet()) {
+			try {
+				Object value = entry.getKey().get(entity);
+				String attrValue = "";
+				if (value != null) {
+					Class<?> ftype = value.getClass();
+					if (Double.class == ftype) {
+						attrValue = doubleFormat.format(((Double) value).doubleValue());
+					}
+					else if (Boolean.class == ftype) {
+						attrValue = ((Boolean) value).booleanValue() ? "1" : "0";
+					}
+					else {
+						attrValue = value.toString();
 					}
 				}
-				builder.endTag();
+				builder.attribute(entry.getValue().name(), attrValue);
+			} catch (IllegalArgumentException e) {
+				throw new DalDbException(e);
+			} catch (IllegalAccessException e) {
+				throw new DalDbException(e);
 			}
+		}
+	}
 
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.diversityarrays.dal.entity.DalEntity;
+
+/**
+ * An EntityProvider that can retrieve many entities, by id, at once
+ * (e.g. for <code>get/genotype/1,2,3</code>).
+ * @author brian
+ *
+ * @param <T>
+ */
+public interface MultiIdEntityProvider<T extends DalEntity> extends EntityProvider<T> {
+
+	/**
+	 * @param ids
+	 * @param filterClause may be null
+	 * @return the entities which were found, keyed by id
+	 * @throws DalDbException
+	 */
+	public Map<Integer,T> getEntities(Collection<Integer> ids, String filterClause) throws DalDbException;
+
+}
@@ -0,0 +1,110 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.iki.elonen.NanoHTTPD.Response;
+
+/**
+ * A DalResponseBuilder that records what is built so that it can be
+ * replayed into other DalResponseBuilders (e.g. for a cached or shared response).
+ * Once recorded, it may be replayed by several threads at once.
+ * @author brian
+ *
+ */
+public class RecordedResponse extends DalResponseBuilder {
+	
+	static private final int RESPONSE_META = 0;
+	static private final int START_TAG = 1;
+	static private final int ATTRIBUTE = 2;
+	static private final int END_TAG = 3;
+	
+	static class Event {
+		final int type;
+		final String name;
+		final String value;
+		
+		Event(int type, String name, String value) {
+			this.type = type;
+			this.name = name;
+			this.value = value;
+		}
+	}
+	
+	private final List<Event> events = new ArrayList<Event>();
+	
+	/**
+	 * Build the recorded response into the builder.
+	 * @param builder
+	 */
+	public void replayTo(DalResponseBuilder builder) {
+		for (Event e : events) {
+			switch (e.type) {
+			case RESPONSE_META:
+				builder.addResponseMeta(e.name);
+				break;
+			case START_TAG:
+				builder.startTag(e.name);
+				break;
+			case ATTRIBUTE:
+				builder.attribute(e.name, e.value);
+				break;
+			case END_TAG:
+				builder.endTag(e.name);
+				break;
+			}
+		}
+	}
+
+	@Override
+	public DalResponseBuilder addResponseMeta(String tag) {
+		events.add(new Event(RESPONSE_META, tag, null));
+		return this;
+	}
+
+	@Override
+	public DalResponseBuilder startTag(String tag) {
+		events.add(new Event(START_TAG, tag, null));
+		return this;
+	}
+
+	@Override
+	public DalResponseBuilder attribute(String attrName, String attrValue) {
+		events.add(new Event(ATTRIBUTE, attrName, attrValue));
+		return this;
+	}
+
+	@Override
+	public DalResponseBuilder endTag(String tag) {
+		events.add(new Event(END_TAG, tag, null));
+		return this;
+	}
+
+	@Override
+	public String asString() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Response build(Response.IStatus status) {
+		throw new UnsupportedOperationException();
+	}
+
+}
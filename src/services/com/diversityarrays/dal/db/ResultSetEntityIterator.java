@@ -24,32 +24,82 @@ import java.sql.SQLException;
 import java.sql.Statement;
 
 import com.diversityarrays.dal.entity.DalEntity;
+import com.diversityarrays.dal.sqldb.QueryContext;
+import com.diversityarrays.dal.sqldb.SqlStatistics;
 import com.diversityarrays.dal.sqldb.SqlUtil;
 
 public class ResultSetEntityIterator<T extends DalEntity> implements EntityIterator<T>, Closeable {
 
 	private final Statement stmt;
 	private final ResultSet rs;
+	// Gives back the Connection dedicated to this iterator (if any)
+	private final Closeable connectionLease;
+	
+	// The Statement may have been registered with this
+	private final QueryContext queryContext = QueryContext.current();
 	
 	private final EntityFactory<T> tfactory;
 	
 	private boolean noMore;
 	
+	private SqlStatistics.Execution execution;
+	
 	public ResultSetEntityIterator(Statement s, ResultSet r, EntityFactory<T> tfactory) throws SQLException {
+		this(null, s, r, tfactory);
+	}
+	
+	/**
+	 * Use this constructor when the Statement was created on a Connection that
+	 * has been leased to this iterator (e.g. from a pool); the lease is closed
+	 * when the iterator is closed.
+	 * @param connectionLease may be null
+	 * @param s
+	 * @param r
+	 * @param tfactory
+	 * @throws SQLException
+	 */
+	public ResultSetEntityIterator(Closeable connectionLease, Statement s, ResultSet r, EntityFactory<T> tfactory) throws SQLException {
+		this.connectionLease = connectionLease;
 		stmt = s;
 		rs = r;
 		this.tfactory = tfactory;
-		
 	}
 
+	
+	/**
+	 * @param exec counts the rows read and is finished when the iterator is closed
+	 */
+	public void setExecution(SqlStatistics.Execution exec) {
+		this.execution = exec;
+	}
 
 	@Override
 	public void close() throws IOException {
+		if (execution != null) {
+			execution.finish();
+		}
 		try {
+			if (! noMore && SqlUtil.isStreaming(stmt)) {
+				// Abandoned before the end: stop the server from sending
+				// the remaining rows (closing a streaming ResultSet would
+				// otherwise read them all).
+				try { stmt.cancel(); }
+				catch (SQLException ignore) { }
+			}
+			if (queryContext != null) {
+				queryContext.unregister(stmt);
+			}
 			SqlUtil.closeSandRS(stmt, rs);
 		}
 		finally {
-			tfactory.close();
+			try {
+				if (connectionLease != null) {
+					connectionLease.close();
+				}
+			}
+			finally {
+				tfactory.close();
+			}
 		}
 	}
 
@@ -59,12 +109,21 @@ public class ResultSetEntityIterator<T extends DalEntity> implements EntityItera
 		if (! noMore) {
 			try {
 				if (rs.next()) {
+					if (execution != null) {
+						execution.addRow();
+					}
 					result = tfactory.createEntity(rs);
 				}
 				else {
 					noMore = true;
 				}
 			} catch (SQLException e) {
+				if (execution != null) {
+					execution.failed();
+				}
+				if (queryContext != null) {
+					queryContext.recordFailure(e);
+				}
 				throw new DalDbException(e);
 			}
 		}
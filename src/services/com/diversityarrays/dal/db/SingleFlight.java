@@ -0,0 +1,167 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.diversityarrays.dal.server.DalSession;
+import com.diversityarrays.dal.sqldb.QueryContext;
+
+/**
+ * Ensures that only one of a set of identical requests is performed at a time.
+ * A request that arrives while an identical one (i.e. with the same key) is in
+ * progress waits for, and shares, its result instead of performing its own.
+ * <p>
+ * Only a successful result is shared. If the request being waited for fails (which
+ * may be because of its own deadline or cancellation) the waiting requests try again,
+ * one of them performing the call for the others.
+ * <p>
+ * Nothing is kept once the request has finished; this is not a cache.
+ * @author brian
+ *
+ * @param <V> the type of the shared result; it must be safe to use from several threads
+ */
+public class SingleFlight<V> {
+	
+	/**
+	 * Set the system property <code>DAL_NO_SINGLE_FLIGHT=true</code>
+	 * to have every request performed separately.
+	 */
+	static public final boolean ENABLED = ! Boolean.getBoolean("DAL_NO_SINGLE_FLIGHT");
+	
+	/**
+	 * Request parameters that don't affect the content of the result.
+	 */
+	static private final String PARAM_CTYPE = "ctype";
+	
+	/**
+	 * Produces the result for a request.
+	 * @param <V>
+	 */
+	public interface Call<V> {
+		public V call() throws DalDbException;
+	}
+	
+	/**
+	 * Return a key for the request that includes the parameters (in a fixed order)
+	 * and the user and group, so that results are only shared between requests
+	 * that have the same permissions.
+	 * @param dalcmd
+	 * @param methodParms may be null
+	 * @param session may be null
+	 * @return String
+	 */
+	static public String createKey(String dalcmd, Map<String,String> methodParms, DalSession session) {
+		StringBuilder sb = new StringBuilder(dalcmd);
+		if (methodParms != null) {
+			char sep = '?';
+			for (Map.Entry<String,String> e : new TreeMap<String,String>(methodParms).entrySet()) {
+				if (! PARAM_CTYPE.equals(e.getKey())) {
+					sb.append(sep).append(e.getKey()).append('=').append(e.getValue());
+					sep = '&';
+				}
+			}
+		}
+		if (session != null) {
+			sb.append('|').append(session.getUserId())
+				.append('|').append(session.getGroupId());
+		}
+		return sb.toString();
+	}
+	
+	class Flight {
+		private boolean done;
+		private boolean succeeded;
+		private V result;
+		
+		synchronized void finish(V v, boolean success) {
+			result = v;
+			succeeded = success;
+			done = true;
+			notifyAll();
+		}
+		
+		/**
+		 * Wait until the call has finished.
+		 * @return true if it succeeded, in which case <code>result</code> is its result
+		 * @throws DalDbException if this request's own deadline passes first
+		 */
+		synchronized boolean await() throws DalDbException {
+			QueryContext ctx = QueryContext.current();
+			while (! done) {
+				long remaining = ctx == null ? Long.MAX_VALUE : ctx.getRemainingMillis();
+				if (remaining <= 0) {
+					throw new DalDbException("Request deadline exceeded while waiting for an identical request");
+				}
+				try {
+					if (remaining == Long.MAX_VALUE) {
+						wait();
+					}
+					else {
+						wait(remaining);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DalDbException("Interrupted while waiting for an identical request", e);
+				}
+			}
+			return succeeded;
+		}
+	}
+	
+	private final ConcurrentMap<String,Flight> flightByKey = new ConcurrentHashMap<String,Flight>();
+	
+	/**
+	 * Perform the call unless an identical one is already in progress,
+	 * in which case wait for and return its result.
+	 * @param key
+	 * @param call
+	 * @return the result of the call
+	 * @throws DalDbException
+	 */
+	public V execute(String key, Call<V> call) throws DalDbException {
+		if (! ENABLED) {
+			return call.call();
+		}
+		
+		Flight flight = new Flight();
+		Flight inProgress;
+		while (null != (inProgress = flightByKey.putIfAbsent(key, flight))) {
+			if (inProgress.await()) {
+				SingleFlightStatistics.recordShared();
+				return inProgress.result;
+			}
+			// It failed: perform it (or wait for whoever got in first)
+		}
+		
+		SingleFlightStatistics.recordPerformed();
+		V result = null;
+		boolean success = false;
+		try {
+			result = call.call();
+			success = true;
+			return result;
+		} finally {
+			flightByKey.remove(key, flight);
+			flight.finish(result, success);
+		}
+	}
+}
@@ -23,7 +23,9 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -39,13 +41,16 @@ import org.apache.commons.collections15.ClosureUtils;
 
 import com.diversityarrays.dal.db.AbstractDalDatabase;
 import com.diversityarrays.dal.db.AuthenticationException;
+import com.diversityarrays.dal.db.BatchingEntityProvider;
 import com.diversityarrays.dal.db.CollectionEntityIterator;
 import com.diversityarrays.dal.db.DalDatabaseUtil;
 import com.diversityarrays.dal.db.DalDbException;
 import com.diversityarrays.dal.db.DalResponseBuilder;
 import com.diversityarrays.dal.db.DbUtil;
+import com.diversityarrays.dal.db.EntityFactory;
 import com.diversityarrays.dal.db.EntityIterator;
 import com.diversityarrays.dal.db.EntityProvider;
+import com.diversityarrays.dal.db.MultiIdEntityProvider;
 import com.diversityarrays.dal.db.RecordCountCache;
 import com.diversityarrays.dal.db.RecordCountCacheEntry;
 import com.diversityarrays.dal.db.RecordCountCacheImpl;
@@ -58,9 +63,12 @@ import com.diversityarrays.dal.entity.GenotypeAlias;
 import com.diversityarrays.dal.entity.Genus;
 import com.diversityarrays.dal.ops.DalOperation;
 import com.diversityarrays.dal.server.DalSession;
+import com.diversityarrays.dal.server.RequestLog;
 import com.diversityarrays.dal.service.DalDbNotYetImplementedException;
 import com.diversityarrays.dal.sqldb.JdbcConnectionParameters;
+import com.diversityarrays.dal.sqldb.QueryContext;
 import com.diversityarrays.dal.sqldb.ResultSetVisitor;
+import com.diversityarrays.dal.sqldb.SqlStatistics;
 import com.diversityarrays.dal.sqldb.SqlUtil;
 import com.diversityarrays.dalclient.SessionExpiryOption;
 import com.diversityarrays.util.Continue;
@@ -171,6 +179,7 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 	
 	private final JdbcConnectionParameters localParams;
 	private final JdbcConnectionParameters centralParams;
+	private final List<JdbcConnectionParameters> replicaParams;
 	
 	private BmsConnectionInfo bmsConnections;
 
@@ -180,7 +189,33 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 	
 	private Map<String,Class<? extends DalEntity>> entityClassByName = new HashMap<String,Class<? extends DalEntity>>();
 
-	private EntityProvider<Genus> genusProvider = new EntityProvider<Genus>() {
+	/**
+	 * Single-id get requests for genotypes and aliases that arrive within this many
+	 * milliseconds of each other are combined into one query. Zero disables this.
+	 */
+	static private final int GET_BATCH_WINDOW_MILLIS = Integer.getInteger("BMS_GET_BATCH_WINDOW_MILLIS", 0);
+	static private final int GET_BATCH_MAX_IDS = Integer.getInteger("BMS_GET_BATCH_MAX_IDS", 100);
+	
+	static private <T extends DalEntity> MultiIdEntityProvider<T> batching(MultiIdEntityProvider<T> provider) {
+		return BatchingEntityProvider.wrap(provider, GET_BATCH_WINDOW_MILLIS, GET_BATCH_MAX_IDS);
+	}
+
+	private EntityProvider<Genus> genusProvider = new MultiIdEntityProvider<Genus>() {
+		
+		@Override
+		public Map<Integer,Genus> getEntities(Collection<Integer> ids, String filterClause) throws DalDbNotYetImplementedException {
+			if (filterClause != null) {
+				throw new DalDbNotYetImplementedException("Filtering clause for genus");
+			}
+			Map<Integer,Genus> result = new HashMap<Integer,Genus>();
+			for (Integer id : ids) {
+				Genus genus = bmsConnections.genusStore.getGenusById(id.toString());
+				if (genus != null) {
+					result.put(id, genus);
+				}
+			}
+			return result;
+		}
 		
 		@Override
 		public Genus getEntity(String id, String filterClause) throws DalDbNotYetImplementedException {
@@ -217,18 +252,105 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 		}
 	};
 	
-	private EntityProvider<Genotype> genotypeProvider = new EntityProvider<Genotype>() {
+	/**
+	 * Run the query on the central database (or one of its replicas) and return
+	 * an iterator over the results.
+	 * <p>
+	 * When nRecords is zero (i.e. an unpaged list) the rows are streamed from the
+	 * server instead of being read into memory first. A streaming ResultSet prevents
+	 * any other use of its Connection until it is closed so this leases a Connection
+	 * from a bounded pool for the iterator rather than using the shared one.
+	 * @param sql
+	 * @param nRecords
+	 * @param factory
+	 * @return an EntityIterator that must be closed
+	 * @throws DalDbException
+	 */
+	private <T extends DalEntity> EntityIterator<T> createCentralIterator(String sql, int nRecords, EntityFactory<T> factory)
+	throws DalDbException 
+	{
+		LeasedConnection lease = null;
+		Statement stmt = null;
+		SqlStatistics.Execution exec = SqlStatistics.begin(sql);
+		try {
+			ResultSetEntityIterator<T> result;
+			if (nRecords > 0) {
+				ReplicaRouter.QueryResult qr = bmsConnections.executeCentralRead(sql);
+				exec.executed();
+				// Closing the QueryResult gives its Connection back to the pool
+				result = new ResultSetEntityIterator<T>(qr, qr.statement, qr.resultSet, factory);
+			}
+			else {
+				lease = bmsConnections.leaseStreamingConnection();
+				stmt = SqlUtil.createStreamingQueryStatement(lease.connection);
+				QueryContext.registerCurrent(stmt);
+				ResultSet rs = stmt.executeQuery(sql);
+				exec.executed();
+				
+				result = new ResultSetEntityIterator<T>(lease, stmt, rs, factory);
+			}
+			result.setExecution(exec);
+			return result;
+		} catch (SQLException e) {
+			exec.failed();
+			exec.finish();
+			QueryContext.noteFailure(e);
+			if (stmt != null) {
+				QueryContext ctx = QueryContext.current();
+				if (ctx != null) {
+					ctx.unregister(stmt);
+				}
+			}
+			SqlUtil.closeSandRS(stmt, null);
+			if (lease != null) {
+				lease.release(false);
+			}
+			throw new DalDbException(e);
+		}
+	}
+
+	private EntityProvider<Genotype> genotypeProvider = batching(new MultiIdEntityProvider<Genotype>() {
 
 		private GenotypeFactory createFactory() {
 			return new GenotypeFactory(bmsConnections.genusStore);
 		}
+		
+		@Override
+		public Map<Integer,Genotype> getEntities(Collection<Integer> ids, final String filterClause) throws DalDbException {
+			final GenotypeFactory factory = createFactory();
+			final Map<Integer,Genotype> result = new HashMap<Integer,Genotype>();
+			
+			performIdChunkQueries(ids, new IdChunkQuery() {
+				@Override
+				public String createQuery(List<Integer> chunk) {
+					return factory.createMultiGetQuery(chunk, filterClause);
+				}
+			}, 
+			new ResultSetVisitor() {
+				@Override
+				public Continue visit(ResultSet rs) {
+					try {
+						Genotype genotype = factory.createEntity(rs);
+						// only the first for each gid
+						if (! result.containsKey(genotype.getGenotypeId())) {
+							result.put(genotype.getGenotypeId(), genotype);
+						}
+					} catch (DalDbException e) {
+						return Continue.error(e);
+					}
+					return Continue.CONTINUE;
+				}
+			});
+			
+			return result;
+		}
 
 		@Override
 		public int getEntityCount(String filterClause) throws DalDbException {
 			String sql = createFactory().createCountQuery(filterClause);
 			int total = 0;
 			for (Connection c : bmsConnections.getConnections()) {
-				total += SqlUtil.getSingleInteger(c, sql);
+				total += bmsConnections.getSingleInteger(c, sql);
 			}
 			return total;
 		}
@@ -257,7 +379,7 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 				
 				Connection c = bmsConnections.getConnectionFor(id);
 				if (c != null) {
-					Continue cont = SqlUtil.performQuery(c, sql, visitor);
+					Continue cont = bmsConnections.performRead(c, sql, visitor);
 					if (cont.isError()) {
 						Throwable t = cont.throwable;
 						if (t instanceof DalDbException) {
@@ -284,20 +406,7 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 			
 			String sql = sb.toString();
 			
-			GenotypeFactory factory = createFactory();
-			
-			try {
-				Statement stmt = SqlUtil.createQueryStatement(bmsConnections.centralConnection);
-				ResultSet rs = stmt.executeQuery(sql);
-				
-				
-				return new ResultSetEntityIterator<Genotype>(stmt, rs, factory);
-			} catch (SQLException e) {
-				throw new DalDbException(e);
-			} finally {
-				try { factory.close(); } 
-				catch (IOException ignore) { }
-			}
+			return createCentralIterator(sql, nRecords, createFactory());
 		}
 
 		@Override
@@ -307,17 +416,117 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 			throw new UnsupportedOperationException();
 		}
 
-	};
+	});
+
+	/**
+	 * Provides the Genotypes for a single Genus using <code>createIdIterator()</code>
+	 * where the id is the GenusId.
+	 */
+	class GenusGenotypeProvider implements EntityProvider<Genotype> {
+
+		private Genus getGenus(String genusId) throws DalDbException {
+			Genus genus = bmsConnections.genusStore.getGenusById(genusId);
+			if (genus == null) {
+				throw new DalDbException("Unknown GenusId: '" + genusId + "'");
+			}
+			return genus;
+		}
 
-	private EntityProvider<GenotypeAlias> genotypeAliasProvider = new EntityProvider<GenotypeAlias>() {
+		/**
+		 * Return the number of Genotypes in the Genus satisfying the filterClause.
+		 * The unfiltered count is cached in the GenusStore.
+		 * @param genusId
+		 * @param filterClause may be null
+		 * @return int
+		 * @throws DalDbException
+		 */
+		public int getEntityCountForId(String genusId, String filterClause) throws DalDbException {
+			Genus genus = getGenus(genusId);
+			GenusStore genusStore = bmsConnections.genusStore;
+			if (filterClause == null) {
+				Integer cached = genusStore.getGenotypeCount(genus.getGenusId());
+				if (cached != null) {
+					return cached.intValue();
+				}
+			}
+			
+			String sql = new GenotypeFactory(genusStore).createGenusCountQuery(genus, filterClause);
+			Integer count = bmsConnections.getSingleInteger(bmsConnections.centralConnection, sql);
+			int result = count==null ? 0 : count.intValue();
+			
+			if (filterClause == null) {
+				genusStore.setGenotypeCount(genus.getGenusId(), result);
+			}
+			return result;
+		}
+
+		@Override
+		public int getEntityCount(String filterClause) throws DalDbException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Genotype getEntity(String id, String filterClause) throws DalDbException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public EntityIterator<? extends Genotype> createIterator(int firstRecord, int nRecords, String filterClause) 
+		throws DalDbException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public EntityIterator<? extends Genotype> createIdIterator(String genusId,
+				int firstRecord, int nRecords, String filterClause)
+		throws DalDbException {
+			
+			Genus genus = getGenus(genusId);
+
+			GenotypeFactory factory = new GenotypeFactory(bmsConnections.genusStore);
+			String sql = factory.createGenusListQuery(genus, filterClause, firstRecord, nRecords);
+			
+			return createCentralIterator(sql, nRecords, factory);
+		}
+	}
+	
+	private GenusGenotypeProvider genusGenotypeProvider = new GenusGenotypeProvider();
+
+	private EntityProvider<GenotypeAlias> genotypeAliasProvider = batching(new MultiIdEntityProvider<GenotypeAlias>() {
 		
 		GenotypeAliasFactory genotypeAliasFactory = new GenotypeAliasFactory();
 		
+		@Override
+		public Map<Integer,GenotypeAlias> getEntities(Collection<Integer> ids, final String filterClause) throws DalDbException {
+			final Map<Integer,GenotypeAlias> result = new HashMap<Integer,GenotypeAlias>();
+			
+			performIdChunkQueries(ids, new IdChunkQuery() {
+				@Override
+				public String createQuery(List<Integer> chunk) throws DalDbException {
+					return genotypeAliasFactory.createMultiGetQuery(chunk, filterClause);
+				}
+			}, 
+			new ResultSetVisitor() {
+				@Override
+				public Continue visit(ResultSet rs) {
+					try {
+						GenotypeAlias alias = genotypeAliasFactory.createEntity(rs);
+						result.put(alias.getGenotypeAliasId(), alias);
+					} catch (DalDbException e) {
+						return Continue.error(e);
+					}
+					return Continue.CONTINUE;
+				}
+			});
+			
+			return result;
+		}
+		
 		@Override
 		public int getEntityCount(String filterClause) throws DalDbException {
 			String sql = genotypeAliasFactory.createCountQuery(filterClause);
 			// TODO count across both connections
-			return SqlUtil.getSingleInteger(bmsConnections.centralConnection, sql);
+			return bmsConnections.getSingleInteger(bmsConnections.centralConnection, sql);
 		}
 		
 		@Override
@@ -340,7 +549,7 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 			String sql = genotypeAliasFactory.createGetQuery(id, filterClause);
 
 			// TODO query across both? but what about the JOIN?
-			Continue cont = SqlUtil.performQuery(bmsConnections.centralConnection,
+			Continue cont = bmsConnections.performRead(bmsConnections.centralConnection,
 					sql,
 					visitor);
 
@@ -362,15 +571,8 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 
 			String sql = genotypeAliasFactory.createPagedListQuery(firstRecord, nRecords, filterClause);
 			
-			try {
-				// TODO query across both? but what about the JOIN?
-				Statement stmt = SqlUtil.createQueryStatement(bmsConnections.centralConnection);
-				ResultSet rs = stmt.executeQuery(sql);
-				
-				return new ResultSetEntityIterator<GenotypeAlias>(stmt, rs, genotypeAliasFactory);
-			} catch (SQLException e) {
-				throw new DalDbException(e);
-			}
+			// TODO query across both? but what about the JOIN?
+			return createCentralIterator(sql, nRecords, genotypeAliasFactory);
 		}
 
 		@Override
@@ -380,23 +582,129 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 			
 			String sql = genotypeAliasFactory.createListAliasQuery(id, firstRecord, nRecords, filterClause);
 			
-			try {
-				// TODO query across both? but what about the JOIN?
-				Statement stmt = SqlUtil.createQueryStatement(bmsConnections.centralConnection);
-				ResultSet rs = stmt.executeQuery(sql);
-				
-				return new ResultSetEntityIterator<GenotypeAlias>(stmt, rs, genotypeAliasFactory);
-			} catch (SQLException e) {
-				throw new DalDbException(e);
+			// TODO query across both? but what about the JOIN?
+			return createCentralIterator(sql, nRecords, genotypeAliasFactory);
+		}
+	});
+
+	/**
+	 * Return the (non-deleted) aliases for all of the gids using as few queries as possible.
+	 * @param gids
+	 * @return Map of the aliases keyed by GenotypeId; gids without aliases are not present
+	 * @throws DalDbException
+	 */
+	Map<Integer,List<GenotypeAlias>> getGenotypeAliasesByGenotypeId(Collection<Integer> gids) throws DalDbException {
+
+		final Map<Integer,List<GenotypeAlias>> result = new HashMap<Integer,List<GenotypeAlias>>();
+
+		final GenotypeAliasFactory factory = new GenotypeAliasFactory();
+		IdChunkQuery query = new IdChunkQuery() {
+			@Override
+			public String createQuery(List<Integer> chunk) {
+				return factory.createListAliasesForGenotypesQuery(chunk);
+			}
+		};
+		ResultSetVisitor visitor = new ResultSetVisitor() {
+			@Override
+			public Continue visit(ResultSet rs) {
+				try {
+					GenotypeAlias alias = factory.createEntity(rs);
+					List<GenotypeAlias> list = result.get(alias.getGenotypeId());
+					if (list == null) {
+						list = new ArrayList<GenotypeAlias>();
+						result.put(alias.getGenotypeId(), list);
+					}
+					list.add(alias);
+				} catch (DalDbException e) {
+					return Continue.error(e);
+				}
+				return Continue.CONTINUE;
+			}
+		};
+
+		performIdChunkQueries(gids, query, visitor);
+		
+		return result;
+	}
+	
+	/**
+	 * Limit on the number of ids in the IN clause of a single query.
+	 */
+	static private final int MAX_IDS_PER_QUERY = 500;
+	
+	/**
+	 * Creates the query for a list of ids which are all from the same database.
+	 */
+	static interface IdChunkQuery {
+		public String createQuery(List<Integer> ids) throws DalDbException;
+	}
+	
+	/**
+	 * Visit the results of the queries for all of the ids. The ids are split
+	 * between the central and local databases by sign (as for <code>getConnectionFor()</code>)
+	 * and each query is given at most MAX_IDS_PER_QUERY of them.
+	 * @param ids null values are ignored
+	 * @param query
+	 * @param visitor
+	 * @throws DalDbException
+	 */
+	private void performIdChunkQueries(Collection<Integer> ids, IdChunkQuery query, ResultSetVisitor visitor) 
+	throws DalDbException 
+	{
+		List<Integer> centralIds = new ArrayList<Integer>();
+		List<Integer> localIds = new ArrayList<Integer>();
+		for (Integer id : ids) {
+			if (id != null) {
+				(id.intValue() < 0 ? localIds : centralIds).add(id);
 			}
 		}
-	};
+
+		for (List<Integer> list : Arrays.asList(centralIds, localIds)) {
+			if (list.isEmpty()) {
+				continue;
+			}
+			Connection c = bmsConnections.getConnectionFor(list.get(0).toString());
+			if (c == null) {
+				continue;
+			}
+			for (int from = 0; from < list.size(); from += MAX_IDS_PER_QUERY) {
+				List<Integer> chunk = list.subList(from, Math.min(list.size(), from + MAX_IDS_PER_QUERY));
+				Continue cont = bmsConnections.performRead(c, query.createQuery(chunk), visitor);
+				if (cont.isError()) {
+					Throwable t = cont.throwable;
+					if (t instanceof DalDbException) {
+						throw ((DalDbException) t);
+					}
+					throw new DalDbException(t);
+				}
+			}
+		}
+	}
 
 	public BMS_DalDatabase(Closure<String> progress, boolean initialise, JdbcConnectionParameters localParams, JdbcConnectionParameters centralParams) throws DalDbException {
-		super("BMS-Interop[Central=" + centralParams + " Local=" + localParams + "]");
+		this(progress, initialise, localParams, centralParams, Collections.<JdbcConnectionParameters>emptyList());
+	}
+	
+	/**
+	 * @param progress
+	 * @param initialise
+	 * @param localParams may be null
+	 * @param centralParams
+	 * @param replicaParams replicas of the central database to use for read queries; may be empty
+	 * @throws DalDbException
+	 */
+	public BMS_DalDatabase(Closure<String> progress, boolean initialise, 
+			JdbcConnectionParameters localParams, 
+			JdbcConnectionParameters centralParams,
+			List<JdbcConnectionParameters> replicaParams) 
+	throws DalDbException 
+	{
+		super("BMS-Interop[Central=" + centralParams + " Local=" + localParams 
+				+ (replicaParams.isEmpty() ? "" : " Replicas=" + replicaParams) + "]");
 		
 		this.localParams = localParams;
 		this.centralParams = centralParams;
+		this.replicaParams = replicaParams;
 		
 		if (localParams != null) {
 			String local   = StringUtil.substringBefore(localParams.connectionUrl, "?");
@@ -430,7 +738,7 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 	
 	private BmsConnectionInfo getBmsConnections(Closure<String> progress, boolean createIfNotPresent) throws DalDbException {
 		if (bmsConnections == null && createIfNotPresent) {
-			bmsConnections = new BmsConnectionInfo(localParams, centralParams, progress);
+			bmsConnections = new BmsConnectionInfo(localParams, centralParams, replicaParams, progress);
 		}
 		return bmsConnections;
 	}
@@ -456,8 +764,8 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 					tmp.add(createOperation("get/genotypealias/_id", GenotypeAlias.class, genotypeAliasProvider));
 					tmp.add(createOperation("list/genotypealias/_nperpage/page/_num", GenotypeAlias.class, genotypeAliasProvider));
 
-//					tmp.add(createOperation("genus/_genusid/list/genotype", Genotype.class, genusGenotypeProvider));
-//					tmp.add(createOperation("genus/_genusid/list/genotype/_nperpage/page/_num", Genotype.class, genusGenotypeProvider));
+					tmp.add(createOperation("genus/_genusid/list/genotype", Genotype.class, genusGenotypeProvider));
+					tmp.add(createOperation("genus/_genusid/list/genotype/_nperpage/page/_num", Genotype.class, genusGenotypeProvider));
 					
 					tmp.add(createOperation("genotype/_genoid/list/alias", GenotypeAlias.class, genotypeAliasProvider));
 					
@@ -547,6 +855,15 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 			}
 		});
 		
+		map.put(GenusListGenotypeOperation.PATTERN, new MatcherToOperation() {
+			@Override
+			public DalOperation makeOperation(Matcher m, Class<? extends DalEntity> entityClass, EntityProvider<? extends DalEntity> provider) {
+				return new GenusListGenotypeOperation(BMS_DalDatabase.this, 
+						GenusListGenotypeOperation.isPaged(m),
+						(GenusGenotypeProvider) provider);
+			}
+		});
+		
 //		map.put(GenotypeListSpecimenOperation.PATTERN, new MatcherToOperation() {
 //			@Override
 //			public DalOperation makeOperation(Matcher m, Class<? extends DalEntity> entityClass, EntityProvider<? extends DalEntity> provider) {
@@ -623,7 +940,7 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 
 		UdfldsRecord r = bmsConnections.userTypesByFldno.get(userInfo.utype);
 		if (r == null) {
-			System.err.println("WARNING: Missing UDFLDS record for utype=" + userInfo.utype);
+			RequestLog.warn("Missing UDFLDS record for utype=" + userInfo.utype);
 
 			builder.startTag("SystemGroup")
 			.attribute("SystemGroupId", "0")
@@ -705,6 +1022,14 @@ public class BMS_DalDatabase extends AbstractDalDatabase {
 		return ui;	
 	}
 
+	/**
+	 * @return a description of the state of each replica or null if none are in use
+	 */
+	public String getReplicaStatus() {
+		BmsConnectionInfo info = bmsConnections;
+		return info == null ? null : info.getReplicaStatus();
+	}
+
 	@Override
 	public String getDatabasePath() {
 		StringBuilder sb = new StringBuilder();
@@ -54,8 +54,12 @@ public class BMS_DalDbProviderService extends AbstractJdbcDalDbProviderService {
 	
 	static private final StringParameter LOCAL_URL = new StringParameter("Local JDBC URL", "", Parameter.OPTIONAL);
 	
+	// Space or comma separated
+	static private final StringParameter REPLICA_URLS = new StringParameter("Central Replica JDBC URLs", "", Parameter.OPTIONAL);
+	
 	private static final StringParameter[] PARAMETERS = {
 		CENTRAL_URL,
+		REPLICA_URLS,
 //		LOCAL_URL, // TODO local incarnation delayed until I get a chance to talk to BMS folks
 	};
 	
@@ -78,6 +82,7 @@ public class BMS_DalDbProviderService extends AbstractJdbcDalDbProviderService {
 		List<ParameterValue<?>> result = new ArrayList<ParameterValue<?>>();
 		result.add(new ParameterValue<String>(CENTRAL_URL, "jdbc:mysql://localhost:13306/DBNAME_central?user=root"));
 		result.add(new ParameterValue<String>(LOCAL_URL,   "jdbc:mysql://localhost:13306/DBNAME_local?user=root"));
+		result.add(new ParameterValue<String>(REPLICA_URLS, ""));
 		return result;
 	}
 
@@ -101,8 +106,17 @@ public class BMS_DalDbProviderService extends AbstractJdbcDalDbProviderService {
 			local   = new JdbcConnectionParameters(localUrl,   null, null); // base.get(LOCAL_USERNAME),   base.get(LOCAL_PASSWORD));
 		}
 
+		List<JdbcConnectionParameters> replicas = new ArrayList<JdbcConnectionParameters>();
+		String replicaUrls = base.get(REPLICA_URLS);
+		if (replicaUrls != null) {
+			for (String url : replicaUrls.split("[\\s,]+")) {
+				if (! url.isEmpty()) {
+					replicas.add(new JdbcConnectionParameters(url, null, null));
+				}
+			}
+		}
 		
-		return new BMS_DalDatabase(progress, initialise, local, central);
+		return new BMS_DalDatabase(progress, initialise, local, central, replicas);
 	}
 
 }
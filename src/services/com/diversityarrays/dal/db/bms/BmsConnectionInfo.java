@@ -20,19 +20,27 @@ package com.diversityarrays.dal.db.bms;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.collections15.Closure;
 import org.apache.commons.collections15.ClosureUtils;
 
 import com.diversityarrays.dal.db.DalDbException;
 import com.diversityarrays.dal.db.DbUtil;
+import com.diversityarrays.dal.db.PoolStatistics;
 import com.diversityarrays.dal.sqldb.JdbcConnectionParameters;
+import com.diversityarrays.dal.sqldb.QueryContext;
 import com.diversityarrays.dal.sqldb.ResultSetVisitor;
+import com.diversityarrays.dal.sqldb.SqlStatistics;
 import com.diversityarrays.dal.sqldb.SqlUtil;
 import com.diversityarrays.util.Continue;
 
@@ -55,6 +63,43 @@ class BmsConnectionInfo {
 	
 	// default is to use the Taxonomy one
 	private final boolean genusFromSpecies = Boolean.getBoolean("BMS_GENUS_FROM_SPPCODE");
+	
+	// Replicas lagging by more than this are taken out of rotation
+	private final int replicaMaxLagSeconds = Integer.getInteger("BMS_REPLICA_MAX_LAG_SECONDS", 30);
+	
+	// Each unpaged list holds a Connection while its rows are streamed
+	static private final int MAX_STREAMING_CONNECTIONS = Math.max(1, Integer.getInteger("BMS_MAX_STREAMING_CONNECTIONS", 8));
+	static private final long STREAMING_CONNECTION_WAIT_MILLIS = 30 * 1000;
+	
+	private final Semaphore streamingPermits = new Semaphore(MAX_STREAMING_CONNECTIONS, true);
+	// Only used when there are no replicas
+	private final ConcurrentLinkedQueue<Connection> idleStreamingConnections = new ConcurrentLinkedQueue<Connection>();
+	
+	private final PoolStatistics.Pool streamingPool = new PoolStatistics.Pool("BMS streaming connections") {
+		@Override
+		public int getInUse() {
+			return MAX_STREAMING_CONNECTIONS - streamingPermits.availablePermits();
+		}
+		
+		@Override
+		public int getIdle() {
+			return idleStreamingConnections.size();
+		}
+		
+		@Override
+		public int getWaiting() {
+			return streamingPermits.getQueueLength();
+		}
+		
+		@Override
+		public int getMax() {
+			return MAX_STREAMING_CONNECTIONS;
+		}
+	};
+	private volatile boolean closed;
+	
+	// null unless replicas have been provided
+	private ReplicaRouter replicaRouter;
 	public Integer fldNoForGenus;
 	
 	public GenusStore genusStore;
@@ -66,7 +111,12 @@ class BmsConnectionInfo {
 	
 	
 	@SuppressWarnings("unchecked")
-	BmsConnectionInfo(JdbcConnectionParameters local, JdbcConnectionParameters central, Closure<String> progress) throws DalDbException {
+	BmsConnectionInfo(JdbcConnectionParameters local, 
+			JdbcConnectionParameters central, 
+			List<JdbcConnectionParameters> replicas,
+			Closure<String> progress) 
+	throws DalDbException 
+	{
 		
 		if (progress==null) {
 			progress = ClosureUtils.nopClosure();
@@ -84,6 +134,13 @@ class BmsConnectionInfo {
 			
 			progress.execute("Connecting to " + centralParams.connectionUrl);
 			centralConnection = createCentralConnection();
+			
+			if (replicas != null && ! replicas.isEmpty()) {
+				for (JdbcConnectionParameters r : replicas) {
+					progress.execute("Using replica " + r.connectionUrl);
+				}
+				replicaRouter = new ReplicaRouter(centralParams, replicas, replicaMaxLagSeconds);
+			}
 
 			int totalGids = 0;
 			for (Connection c : Arrays.asList(centralConnection , localConnection) ) {
@@ -121,6 +178,8 @@ class BmsConnectionInfo {
 			// Just the first one!
 			throw new DalDbException(errors.get(0));
 		}
+		
+		PoolStatistics.register(streamingPool);
 	}
 
 	public Connection createLocalConnection() throws SQLException {
@@ -194,6 +253,18 @@ class BmsConnectionInfo {
 	}
 	
 	public void closeConnections() {
+		closed = true;
+		PoolStatistics.unregister(streamingPool);
+		Connection c;
+		while (null != (c = idleStreamingConnections.poll())) {
+			closeOne(c);
+		}
+		
+		if (replicaRouter != null) {
+			replicaRouter.close();
+			replicaRouter = null;
+		}
+		
 		closeOne(localConnection);
 		localConnection = null;
 		
@@ -204,4 +275,167 @@ class BmsConnectionInfo {
 	public Connection getConnectionFor(String id) {
 		return id.startsWith("-") ? localConnection : centralConnection;
 	}
+	
+	/**
+	 * Run a read-only query on the Connection. Queries for the central database
+	 * are sent to one of the replicas if any have been provided.
+	 * @param c
+	 * @param sql
+	 * @param visitor
+	 * @return as for SqlUtil.performQuery()
+	 */
+	public Continue performRead(Connection c, String sql, ResultSetVisitor visitor) {
+		ReplicaRouter router = replicaRouter;
+		if (router == null || c != centralConnection) {
+			return SqlUtil.performQuery(c, sql, visitor);
+		}
+		
+		ReplicaRouter.QueryResult qr = null;
+		SqlStatistics.Execution exec = SqlStatistics.begin(sql);
+		try {
+			qr = router.executeQuery(sql);
+			exec.executed();
+			return SqlUtil.visitResults(qr.resultSet, visitor, exec);
+		} catch (SQLException e) {
+			exec.failed();
+			QueryContext.noteFailure(e);
+			return Continue.error(e);
+		} finally {
+			if (qr != null) {
+				qr.close();
+			}
+			exec.finish();
+		}
+	}
+	
+	/**
+	 * Read-only equivalent of SqlUtil.getSingleInteger().
+	 * @param c
+	 * @param sql
+	 * @return Integer or null
+	 */
+	public Integer getSingleInteger(Connection c, String sql) {
+		final Integer[] result = new Integer[1];
+		performRead(c, sql, new ResultSetVisitor() {
+			@Override
+			public Continue visit(ResultSet rs) {
+				try {
+					result[0] = rs.getInt(1);
+				} catch (SQLException e) {
+					return Continue.error(e);
+				}
+				return Continue.STOP;
+			}
+		});
+		return result[0];
+	}
+	
+	/**
+	 * Execute a read-only query on the central database (or a replica) and
+	 * return its buffered ResultSet.
+	 * @param sql
+	 * @return the Statement and ResultSet which the caller must close
+	 * @throws SQLException
+	 */
+	public ReplicaRouter.QueryResult executeCentralRead(String sql) throws SQLException {
+		ReplicaRouter router = replicaRouter;
+		if (router != null) {
+			return router.executeQuery(sql);
+		}
+		Statement stmt = SqlUtil.createQueryStatement(centralConnection);
+		try {
+			QueryContext.registerCurrent(stmt);
+			// The shared Connection stays open
+			LeasedConnection shared = new LeasedConnection(centralConnection) {
+				@Override
+				protected void doRelease(boolean reusable) {
+				}
+			};
+			return new ReplicaRouter.QueryResult(shared, stmt, stmt.executeQuery(sql), QueryContext.current());
+		} catch (SQLException e) {
+			SqlUtil.closeSandRS(stmt, null);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Lease a Connection for a single streaming read-only query on the central
+	 * database or the least busy replica. At most <code>BMS_MAX_STREAMING_CONNECTIONS</code>
+	 * (default 8) are leased at once; when they are all in use this waits for one
+	 * until the request's deadline (or 30 seconds).
+	 * @return LeasedConnection which the caller must close
+	 * @throws SQLException
+	 */
+	LeasedConnection leaseStreamingConnection() throws SQLException {
+		long waitMillis = STREAMING_CONNECTION_WAIT_MILLIS;
+		QueryContext ctx = QueryContext.current();
+		if (ctx != null) {
+			waitMillis = Math.min(waitMillis, ctx.getRemainingMillis());
+		}
+		try {
+			if (waitMillis <= 0 || ! streamingPermits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+				throw new SQLTimeoutException("Timed out waiting for one of the " 
+						+ MAX_STREAMING_CONNECTIONS + " streaming database connections");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a streaming database connection", e);
+		}
+		
+		boolean success = false;
+		try {
+			ReplicaRouter router = replicaRouter;
+			final LeasedConnection inner = router != null ? router.leaseConnection() : leaseCentralConnection();
+			LeasedConnection result = new LeasedConnection(inner.connection) {
+				@Override
+				protected void doRelease(boolean reusable) {
+					try {
+						inner.release(reusable);
+					}
+					finally {
+						streamingPermits.release();
+					}
+				}
+			};
+			success = true;
+			return result;
+		}
+		finally {
+			if (! success) {
+				streamingPermits.release();
+			}
+		}
+	}
+	
+	private LeasedConnection leaseCentralConnection() throws SQLException {
+		Connection c;
+		while (null != (c = idleStreamingConnections.poll())) {
+			if (c.isValid(2)) {
+				break;
+			}
+			closeOne(c);
+		}
+		if (c == null) {
+			c = createCentralConnection();
+		}
+		return new LeasedConnection(c) {
+			@Override
+			protected void doRelease(boolean reusable) {
+				if (reusable && ! closed) {
+					idleStreamingConnections.offer(connection);
+				}
+				else {
+					closeOne(connection);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * @return description of the replicas or null if there are none
+	 */
+	public String getReplicaStatus() {
+		ReplicaRouter router = replicaRouter;
+		return router == null ? null : router.getStatus();
+	}
 }
\ No newline at end of file
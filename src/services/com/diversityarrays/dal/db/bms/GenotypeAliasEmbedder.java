@@ -0,0 +1,85 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.bms;
+
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.Column;
+
+import com.diversityarrays.dal.db.DalDatabaseUtil;
+import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.entity.DalEntity;
+import com.diversityarrays.dal.entity.EntityTag;
+import com.diversityarrays.dal.entity.Genotype;
+import com.diversityarrays.dal.entity.GenotypeAlias;
+import com.diversityarrays.dal.ops.DalOperation;
+
+/**
+ * Supports the <code>IncludeAlias</code> option for Genotype operations.
+ * All of the aliases for the Genotypes in a response are retrieved with a
+ * single query instead of the client making a <code>genotype/_genoid/list/alias</code>
+ * request (and so a query) per Genotype.
+ * @author brian
+ *
+ */
+class GenotypeAliasEmbedder {
+	
+	static final String ALIAS_TAG_NAME = GenotypeAlias.class.getAnnotation(EntityTag.class).value();
+
+	static final Map<Field,Column> ALIAS_COLUMN_BY_FIELD = DalDatabaseUtil.buildEntityFieldColumnMap(GenotypeAlias.class);
+
+	static boolean isRequested(Class<?> entityClass, Map<String,String> methodParms) {
+		if (Genotype.class != entityClass || methodParms == null) {
+			return false;
+		}
+		String value = methodParms.get(DalOperation.OPTION_INCLUDE_ALIAS);
+		return value != null && ("1".equals(value.trim()) || "true".equalsIgnoreCase(value.trim()));
+	}
+	
+	private final Map<Integer,List<GenotypeAlias>> aliasesByGenotypeId;
+	
+	GenotypeAliasEmbedder(BMS_DalDatabase db, Collection<? extends DalEntity> genotypes) throws DalDbException {
+		Set<Integer> gids = new LinkedHashSet<Integer>();
+		for (DalEntity entity : genotypes) {
+			Integer gid = ((Genotype) entity).getGenotypeId();
+			if (gid != null) {
+				gids.add(gid);
+			}
+		}
+		if (gids.isEmpty()) {
+			aliasesByGenotypeId = Collections.emptyMap();
+		}
+		else {
+			aliasesByGenotypeId = db.getGenotypeAliasesByGenotypeId(gids);
+		}
+	}
+	
+	List<GenotypeAlias> getAliases(DalEntity genotype) {
+		List<GenotypeAlias> result = aliasesByGenotypeId.get(((Genotype) genotype).getGenotypeId());
+		if (result == null) {
+			return Collections.emptyList();
+		}
+		return result;
+	}
+}
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.script.ScriptEngine;
@@ -32,6 +33,7 @@ import com.diversityarrays.dal.db.SqlEntityFactory;
 import com.diversityarrays.dal.entity.ColumnNameMapping;
 import com.diversityarrays.dal.entity.GenotypeAlias;
 import com.diversityarrays.dal.ops.FilteringTerm;
+import com.diversityarrays.dal.server.RequestLog;
 
 public class GenotypeAliasFactory implements SqlEntityFactory<GenotypeAlias> {
 	
@@ -119,7 +121,7 @@ public class GenotypeAliasFactory implements SqlEntityFactory<GenotypeAlias> {
 								matching.add(nn);
 							}
 						} catch (ScriptException se) {
-							System.err.println(term.toString() + ": " + se.getMessage());
+							RequestLog.warn(term.toString() + ": " + se.getMessage());
 						}
 
 					}
@@ -173,21 +175,60 @@ public class GenotypeAliasFactory implements SqlEntityFactory<GenotypeAlias> {
 		return sb.toString();
 	}
 	
+	/**
+	 * Return the query for the (non-deleted) aliases with the given nids.
+	 * @param nids must not be empty
+	 * @param filterClause may be null
+	 * @return String
+	 * @throws DalDbException
+	 */
+	public String createMultiGetQuery(Collection<Integer> nids, String filterClause) throws DalDbException {
+		if (nids.isEmpty()) {
+			throw new IllegalArgumentException("no nids supplied");
+		}
+		StringBuilder sb = new StringBuilder(
+				"SELECT nid, gid, ntype, nstat, nval FROM NAMES");
+		sb.append(" WHERE nid IN ");
+		String sep = "(";
+		for (Integer nid : nids) {
+			sb.append(sep).append(nid.intValue());
+			sep = ",";
+		}
+		sb.append(")");
+		sb.append(" AND (nstat!=").append(NamesNSTAT.DELETED.value).append(")");
+		
+		// TODO test filterClause field name translation
+		if (filterClause != null) {
+			sb.append(" AND ( ").append(COLUMN_NAME_MAPPING.translate(filterClause)).append(" )");
+		}
+		return sb.toString();
+	}
+	
 	public String createListAliasQuery(String id, 
 			int firstRecord,
 			int nRecords, 
 			String filterClause) throws DalDbException 
 	{
+		int gid;
+		try {
+			gid = Integer.parseInt(id);
+		} catch (NumberFormatException e) {
+			throw new DalDbException("Invalid GenotypeId: '" + id + "'");
+		}
+
+		// Lead with the equality on gid so that the NAMES index on gid is used
 		StringBuilder sb = new StringBuilder(
 				"SELECT nid, gid, ntype, nstat, nval FROM NAMES");
-		sb.append(" WHERE (nstat!=").append(NamesNSTAT.DELETED.value).append(")");
-		sb.append(" AND (nid=").append(id).append(")");
+		sb.append(" WHERE gid=").append(gid);
+		sb.append(" AND (nstat!=").append(NamesNSTAT.DELETED.value).append(")");
 		
 		// TODO test filterClause field name translation
 		if (filterClause != null) {
 			sb.append(" AND ( ").append(COLUMN_NAME_MAPPING.translate(filterClause)).append(" )");
 		}
 		
+		sb.append(" ORDER BY nid");
+		
 		if (nRecords > 0) {
 			sb.append(" LIMIT ").append(nRecords)
 			.append(" OFFSET ").append(firstRecord);
@@ -196,6 +237,30 @@ public class GenotypeAliasFactory implements SqlEntityFactory<GenotypeAlias> {
 		return sb.toString();
 	}
 
+
+	/**
+	 * Return the query to retrieve all of the (non-deleted) aliases for
+	 * the given GERMPLSM gids in a single round trip.
+	 * @param gids must not be empty
+	 * @return the SQL
+	 */
+	public String createListAliasesForGenotypesQuery(Collection<Integer> gids) {
+		if (gids.isEmpty()) {
+			throw new IllegalArgumentException("no gids supplied");
+		}
+		StringBuilder sb = new StringBuilder(
+				"SELECT nid, gid, ntype, nstat, nval FROM NAMES");
+		sb.append(" WHERE gid IN ");
+		String sep = "(";
+		for (Integer gid : gids) {
+			sb.append(sep).append(gid.intValue());
+			sep = ",";
+		}
+		sb.append(")");
+		sb.append(" AND (nstat!=").append(NamesNSTAT.DELETED.value).append(")");
+		sb.append(" ORDER BY gid, nid");
+		return sb.toString();
+	}
 	
 	@Override
 	public String createPagedListQuery(int firstRecord, int nRecords, String filterClause) throws DalDbException {
@@ -20,12 +20,15 @@ package com.diversityarrays.dal.db.bms;
 import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 
 import net.pearcan.util.StringTemplate;
 
 import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.db.DbUtil;
 import com.diversityarrays.dal.db.SqlEntityFactory;
 import com.diversityarrays.dal.entity.Genotype;
+import com.diversityarrays.dal.entity.Genus;
 import com.diversityarrays.dal.service.DalDbNotYetImplementedException;
 import com.diversityarrays.dalclient.Permission;
 
@@ -115,6 +118,33 @@ public class GenotypeFactory implements SqlEntityFactory<Genotype> {
 		return sb.toString();
 	}
 	
+	/**
+	 * Return the query for all of the Genotypes with the given gids.
+	 * As with <code>createGetQuery()</code> there may be more than one row per gid.
+	 * @param gids must not be empty
+	 * @param filterClause may be null
+	 * @return String
+	 */
+	public String createMultiGetQuery(Collection<Integer> gids, String filterClause) {
+		if (gids.isEmpty()) {
+			throw new IllegalArgumentException("no gids supplied");
+		}
+		StringBuilder whereBuilder = new StringBuilder("g.gid IN ");
+		String sep = "(";
+		for (Integer gid : gids) {
+			whereBuilder.append(sep).append(gid.intValue());
+			sep = ",";
+		}
+		whereBuilder.append(")");
+		if (filterClause != null) {
+			whereBuilder.append(" AND (").append(filterClause).append(")");
+		}
+		
+		StringBuilder sb = createBaseQuery("g", "a", genusStore.getFldnoForGenus(), whereBuilder.toString());
+
+		return sb.toString();
+	}
+	
 	@Override
 	public String createPagedListQuery(int firstRecord, int nRecords, String filterClause) throws DalDbNotYetImplementedException {
 	
@@ -140,7 +170,6 @@ public class GenotypeFactory implements SqlEntityFactory<Genotype> {
 			genotype.setGenotypeName(rs.getString("GenotypeName"));
 			
 			String genusName = rs.getString("GenusName");
-			genotype.setGenusName(genusName);
 
 			String speciesName = rs.getString("SpeciesName");
 			genotype.setSpeciesName(speciesName);	
@@ -149,8 +178,20 @@ public class GenotypeFactory implements SqlEntityFactory<Genotype> {
 //			BMS_Genus genus = genusStore.getGenusByName(genusName, speciesName);
 //			genotype.setGenusId(genus.getGenusId());
 				
-			// createBaseQuery
-			genotype.setGenusId(rs.getInt("GenusId"));
+			int genusId = rs.getInt("GenusId");
+			if (rs.wasNull()) {
+				// createBaseQuery: as for a LEFT JOIN with the genus table
+				Genus genus = genusStore.getGenusByName(genusName);
+				if (genus == null) {
+					genusName = null;
+				}
+				else {
+					genusId = genus.getGenusId();
+					genusName = genus.getGenusName();
+				}
+			}
+			genotype.setGenusId(genusId);
+			genotype.setGenusName(genusName);
 			
 			genotype.setGenotypeAcronym(null);
 			genotype.setOriginId(null);
@@ -230,7 +271,8 @@ public class GenotypeFactory implements SqlEntityFactory<Genotype> {
 		String whereClause = wc.toString();
 
 		String sql = StringTemplate.buildString(
-				"SELECT GenotypeId, GenotypeName, genus.GenusId, genus.GenusName, SpeciesName"
+				// GenusId is filled in from the GenusStore by createEntity()
+				"SELECT GenotypeId, GenotypeName, NULL AS GenusId, GenusName, SpeciesName"
 				+ " FROM"
 				+ " (SELECT ${germplsmAlias}.gid AS GenotypeId"
 				+ ", CONCAT('Germplasm GID ',CAST(${germplsmAlias}.gid AS CHAR)) AS GenotypeName"
@@ -244,8 +286,7 @@ public class GenotypeFactory implements SqlEntityFactory<Genotype> {
 				+ " LEFT JOIN atributs AS ${atributsAlias}"
 				+ " ON ${atributsAlias}.gid=${germplsmAlias}.gid AND ${atributsAlias}.atype=${fldnoForGenus}"
 				+ " ${whereClause}"
-				+ ") AS X"
-				+ " LEFT JOIN genus ON X.GenusName=genus.GenusName")
+				+ ") AS X")
 			.replace("germplsmAlias", "g")
 			.replace("atributsAlias", "a")
 			.replace("fldnoForGenus", fldnoForGenus)
@@ -255,13 +296,77 @@ public class GenotypeFactory implements SqlEntityFactory<Genotype> {
 		return new StringBuilder(sql);
 	}
 
+	/**
+	 * Return the query for the Genotypes of a single Genus.
+	 * <p>
+	 * Rather than deriving the GenusName for every GERMPLSM record and then
+	 * filtering on that (as <code>createBaseQuery</code> does) this constrains
+	 * ATRIBUTS.aval to the genus prefix so that MySQL can use an index range
+	 * scan on <code>atributs(atype, aval)</code>.
+	 * @param genus from the GenusStore
+	 * @param filterClause may be null
+	 * @param firstRecord
+	 * @param nRecords zero means all records
+	 * @return the SQL
+	 */
+	public String createGenusListQuery(Genus genus, String filterClause, int firstRecord, int nRecords) {
+		StringBuilder sb = createGenusBaseQuery(genus, filterClause);
+		if (nRecords > 0) {
+			sb.append(" LIMIT ").append(nRecords).append(" OFFSET ").append(firstRecord);
+		}
+		return sb.toString();
+	}
+
+	public String createGenusCountQuery(Genus genus, String filterClause) {
+		StringBuilder sb = new StringBuilder("SELECT COUNT(*) FROM (");
+		sb.append(createGenusBaseQuery(genus, filterClause));
+		sb.append(") AS X");
+		return sb.toString();
+	}
+
+	private StringBuilder createGenusBaseQuery(Genus genus, String filterClause) {
+		
+		String genusName = genus.getGenusName().trim();
+		String quoted = DbUtil.doubleUpSingleQuote(genusName);
+		String likeQuoted = DbUtil.doubleUpSingleQuote(genusName
+				.replace("\\", "\\\\")
+				.replace("%", "\\%")
+				.replace("_", "\\_"));
+
+		String sql = StringTemplate.buildString(
+				"SELECT a.gid AS GenotypeId"
+				+ ", CONCAT('Germplasm GID ',CAST(a.gid AS CHAR)) AS GenotypeName"
+				+ ", ${genusId} AS GenusId"
+				+ ", '${genusName}' AS GenusName"
+				+ ", CASE WHEN INSTR(a.aval, ' ')>0 THEN UPPER(LTRIM(SUBSTR(a.aval,INSTR(a.aval,' ')+1)))"
+				+ "  ELSE null"
+				+ "  END AS SpeciesName"
+				+ " FROM atributs AS a"
+				+ " JOIN germplsm AS g ON g.gid=a.gid"
+				+ " WHERE a.atype=${fldnoForGenus}"
+				+ " AND (a.aval='${genusName}' OR a.aval LIKE '${likeGenusName} %')")
+			.replace("genusId", genus.getGenusId())
+			.replace("genusName", quoted)
+			.replace("likeGenusName", likeQuoted)
+			.replace("fldnoForGenus", genusStore.getFldnoForGenus())
+			.build();
+		
+		StringBuilder sb = new StringBuilder(sql);
+		if (filterClause != null) {
+			sb.append(" HAVING ").append(filterClause);
+		}
+		return sb;
+	}
+
 	public static String buildWhereAndLimit(String filterClause, int nRecords, int firstRecord) {
 		
 		StringBuilder whereAndLimit = new StringBuilder();
 		if (filterClause != null) {
 			whereAndLimit.append(filterClause);
 		}
-		whereAndLimit.append(" LIMIT ").append(nRecords).append(" OFFSET ").append(firstRecord);
+		if (nRecords > 0) {
+			whereAndLimit.append(" LIMIT ").append(nRecords).append(" OFFSET ").append(firstRecord);
+		}
 
 		return whereAndLimit.toString();
 	}
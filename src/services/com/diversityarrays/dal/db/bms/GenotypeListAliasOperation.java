@@ -29,11 +29,12 @@ import com.diversityarrays.dal.db.EntityIterator;
 import com.diversityarrays.dal.db.EntityOperation;
 import com.diversityarrays.dal.db.EntityProvider;
 import com.diversityarrays.dal.entity.GenotypeAlias;
+import com.diversityarrays.dal.ops.StreamingDalOperation;
 import com.diversityarrays.dal.server.DalSession;
 
 import fi.iki.elonen.NanoHTTPD.Method;
 
-public class GenotypeListAliasOperation extends EntityOperation<GenotypeAlias,BMS_DalDatabase> {
+public class GenotypeListAliasOperation extends EntityOperation<GenotypeAlias,BMS_DalDatabase> implements StreamingDalOperation {
 	
 	public static final Pattern PATTERN = Pattern.compile("^genotype/_[a-z]*/list/alias$");
 	
@@ -46,7 +47,12 @@ public class GenotypeListAliasOperation extends EntityOperation<GenotypeAlias,BM
 	}
 
 	@Override
-	public void execute(DalSession session, DalResponseBuilder responseBuilder,
+	public boolean isStreamingResponse() {
+		return true;
+	}
+
+	@Override
+	protected void performExecute(DalSession session, DalResponseBuilder responseBuilder,
 			Method method, String dalcmd, List<String> dalOpParameters,
 			Map<String, String> methodParms, Map<String, String> filePathByName)
 	throws DalDbException {
@@ -0,0 +1,135 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.bms;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.diversityarrays.dal.db.DalDatabaseUtil;
+import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.db.DalResponseBuilder;
+import com.diversityarrays.dal.db.EntityIterator;
+import com.diversityarrays.dal.db.EntityOperation;
+import com.diversityarrays.dal.db.RecordCountCacheEntry;
+import com.diversityarrays.dal.entity.Genotype;
+import com.diversityarrays.dal.ops.StreamingDalOperation;
+import com.diversityarrays.dal.server.DalSession;
+import com.diversityarrays.dalclient.DALClient;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+
+/**
+ * Implements <code>genus/_genusid/list/genotype</code> and
+ * <code>genus/_genusid/list/genotype/_nperpage/page/_num</code>.
+ * @author brian
+ *
+ */
+class GenusListGenotypeOperation extends EntityOperation<Genotype,BMS_DalDatabase> implements StreamingDalOperation {
+
+	public static final Pattern PATTERN = Pattern.compile("^genus/_[a-z]*/list/genotype(/_nperpage/page/_num)?$");
+	
+	public static final String ENTITY_NAME = "genotype";
+	
+	static boolean isPaged(Matcher m) {
+		return m.group(1) != null;
+	}
+	
+	private final boolean paged;
+	private final BMS_DalDatabase.GenusGenotypeProvider genusGenotypeProvider;
+
+	public GenusListGenotypeOperation(BMS_DalDatabase db, boolean paged,
+			BMS_DalDatabase.GenusGenotypeProvider provider) 
+	{
+		super(db, ENTITY_NAME, 
+				paged ? "genus/_genusid/list/genotype/_nperpage/page/_num" : "genus/_genusid/list/genotype",
+				Genotype.class, provider);
+		this.paged = paged;
+		this.genusGenotypeProvider = provider;
+	}
+
+	@Override
+	public boolean isStreamingResponse() {
+		// Only the unpaged variant can return a large number of records
+		return ! paged;
+	}
+
+	@Override
+	protected void performExecute(DalSession session, DalResponseBuilder responseBuilder,
+			Method method, String dalcmd, List<String> dalOpParameters,
+			Map<String, String> methodParms, Map<String, String> filePathByName)
+	throws DalDbException {
+		
+		String filterClause = DalDatabaseUtil.getFilteringClause(methodParms);
+		
+		String genusId = dalOpParameters.get(0);
+		
+		int firstRecord = 0;
+		int nPerPage = 0;
+		
+		responseBuilder.addResponseMeta(entityTagName);
+
+		if (paged) {
+			int nRecords = getGenotypeCount(session, genusId, filterClause);
+			
+			nPerPage = PagedListOperation.getIntParameter(1, dalOpParameters, "_nperpage", 1);
+			int pageNum = PagedListOperation.getIntParameter(2, dalOpParameters, "_num", 1);
+
+			int numOfPages = (nRecords + nPerPage - 1) / nPerPage;
+			
+			firstRecord = (pageNum - 1) * nPerPage;
+
+			responseBuilder.startTag(DALClient.TAG_PAGINATION)
+				.attribute(DALClient.ATTR_PAGE, Integer.toString(pageNum))
+				.attribute(DALClient.ATTR_NUM_OF_RECORDS, Integer.toString(nRecords))
+				.attribute(DALClient.ATTR_NUM_OF_PAGES, Integer.toString(numOfPages))
+				.attribute(DALClient.ATTR_NUM_PER_PAGE, Integer.toString(nPerPage))
+				.endTag();
+		}
+		
+		EntityIterator<? extends Genotype> iter = entityProvider.createIdIterator(genusId, firstRecord, nPerPage, filterClause);
+		try {
+			Genotype entity;
+			while (null != (entity = iter.nextEntity())) {
+				appendEntity(responseBuilder, entity);
+			}
+		} finally {
+			try { iter.close(); }
+			catch (IOException ignore) { }
+		}
+	}
+
+	private int getGenotypeCount(DalSession session, String genusId, String filterClause) throws DalDbException {
+		if (filterClause == null) {
+			// The GenusStore holds the unfiltered counts for all users
+			return genusGenotypeProvider.getEntityCountForId(genusId, null);
+		}
+		
+		// Filtered counts are cached per session in the same way as PagedListOperation
+		String cacheKey = "GenusId=" + genusId + ":" + filterClause;
+		RecordCountCacheEntry cacheEntry = context.getRecordCountCacheEntry(session, GenusListGenotypeOperation.class);
+		if (cacheEntry != null && cacheEntry.isFor(cacheKey)) {
+			return cacheEntry.count;
+		}
+		int result = genusGenotypeProvider.getEntityCountForId(genusId, filterClause);
+		context.setRecordCountCacheEntry(session, GenusListGenotypeOperation.class, cacheKey, result);
+		return result;
+	}
+}
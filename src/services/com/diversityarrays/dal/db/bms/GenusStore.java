@@ -23,6 +23,9 @@ import java.sql.SQLException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import net.pearcan.util.StringTemplate;
 
@@ -45,8 +48,8 @@ public class GenusStore {
 			+ ", INDEX tx_genus_genusName USING HASH (GenusName)"
 			+ ")";
 
-	static private final String INSERT_GENUS_RECORDS_TEMPLATE = "INSERT INTO genus"
-			+ " SELECT MIN(gid) AS GenusId, "
+	static private final String SELECT_GENUS_RECORDS_TEMPLATE = 
+			"SELECT MIN(gid) AS GenusId, "
 			+ " CASE WHEN INSTR(GenusSpecies,' ')>0 THEN LTRIM(LEFT(GenusSpecies,INSTR(GenusSpecies,' ')))"
 			+ " ELSE LTRIM(GenusSpecies)"
 			+ " END AS GenusName"
@@ -55,6 +58,8 @@ public class GenusStore {
 			+ " FROM germplsm AS g JOIN atributs AS a ON a.gid=g.gid AND a.atype=${fldno}) AS X"
 			+ " GROUP BY GenusName";
 
+	static private final String INSERT_GENUS_RECORDS_TEMPLATE = "INSERT INTO genus " + SELECT_GENUS_RECORDS_TEMPLATE;
+
 	private void createGenusTable(Connection conn, Closure<String> progress)
 			throws SQLException {
 
@@ -124,20 +129,47 @@ public class GenusStore {
 
 	private final Map<Integer, Genus> genusById = new HashMap<Integer, Genus>();
 
+	private final Map<String, Genus> genusByName = new HashMap<String, Genus>();
+
 	private final Bag<Genus> counts = new HashBag<Genus>();
 
+	// How long an unfiltered genotype count is used before it is counted again
+	static private final long GENOTYPE_COUNT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(
+			Integer.getInteger("BMS_GENUS_COUNT_TTL_SECONDS", 300));
+
+	static private class CachedCount {
+		final int count;
+		final long expiresMillis;
+
+		CachedCount(int count, long expiresMillis) {
+			this.count = count;
+			this.expiresMillis = expiresMillis;
+		}
+	}
+
+	// Genotype counts are the same for every user so these are not per-session
+	private final ConcurrentMap<Integer, CachedCount> genotypeCountByGenusId = new ConcurrentHashMap<Integer, CachedCount>();
+
 	private final int fldNoForGenus;
 
 	public GenusStore(Connection connection, int fldNoForGenus,
 			Closure<String> progress) throws DalDbException, SQLException {
 		this.fldNoForGenus = fldNoForGenus;
 
-		createGenusTable(connection, progress);
+		// The genus TEMPORARY table only exists on this Connection so the
+		// queries made for requests (which may use other Connections or replicas)
+		// must not refer to it; they use getGenusByName() instead.
+		String sql;
 		if (WANT_GENUS_GENOTYPE_TABLE) {
+			createGenusTable(connection, progress);
 			createGenusGenotypeTable(connection, progress);
+			sql = "SELECT GenusId, GenusName FROM genus";
+		}
+		else {
+			progress.execute("Reading Genus records...");
+			sql = StringTemplate.buildString(SELECT_GENUS_RECORDS_TEMPLATE)
+					.replace("fldno", fldNoForGenus).build();
 		}
-
-		String sql = "SELECT GenusId, GenusName FROM genus";
 		Continue cont = SqlUtil.performQuery(connection, sql,
 				new ResultSetVisitor() {
 					@Override
@@ -147,6 +179,10 @@ public class GenusStore {
 							g.setGenusId(rs.getInt(1));
 							g.setGenusName(rs.getString(2));
 							genusById.put(g.getGenusId(), g);
+							String key = normaliseGenusName(g.getGenusName());
+							if (key != null && ! genusByName.containsKey(key)) {
+								genusByName.put(key, g);
+							}
 
 							if ("UNKNOWN".equalsIgnoreCase(g.getGenusName())) {
 								if (UNKNOWN_GENUS != null) {
@@ -205,8 +241,49 @@ public class GenusStore {
 		return result;
 	}
 
+	static private String normaliseGenusName(String name) {
+		return name == null ? null : name.trim().toUpperCase();
+	}
+
+	/**
+	 * Return the Genus with the name, ignoring case and leading or trailing spaces
+	 * (as the MySQL comparison with the genus table did).
+	 * @param genusName may be null
+	 * @return Genus or null
+	 */
+	public Genus getGenusByName(String genusName) {
+		String key = normaliseGenusName(genusName);
+		return key == null ? null : genusByName.get(key);
+	}
+
 	public int getGenusCount() {
 		return genusById.size();
 	}
 
+	/**
+	 * Return the cached number of Genotypes for the Genus (unfiltered) or null
+	 * if it hasn't been recorded or was recorded more than
+	 * <code>BMS_GENUS_COUNT_TTL_SECONDS</code> (default 300) ago.
+	 * @param genusId
+	 * @return Integer or null
+	 */
+	public Integer getGenotypeCount(Integer genusId) {
+		CachedCount cached = genotypeCountByGenusId.get(genusId);
+		if (cached == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() >= cached.expiresMillis) {
+			genotypeCountByGenusId.remove(genusId, cached);
+			return null;
+		}
+		return cached.count;
+	}
+
+	public void setGenotypeCount(Integer genusId, int count) {
+		if (GENOTYPE_COUNT_TTL_MILLIS > 0) {
+			genotypeCountByGenusId.put(genusId, 
+					new CachedCount(count, System.currentTimeMillis() + GENOTYPE_COUNT_TTL_MILLIS));
+		}
+	}
+
 }
@@ -18,8 +18,13 @@
 package com.diversityarrays.dal.db.bms;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,6 +35,7 @@ import com.diversityarrays.dal.db.DalDbException;
 import com.diversityarrays.dal.db.DalResponseBuilder;
 import com.diversityarrays.dal.db.EntityOperation;
 import com.diversityarrays.dal.db.EntityProvider;
+import com.diversityarrays.dal.db.MultiIdEntityProvider;
 import com.diversityarrays.dal.entity.DalEntity;
 import com.diversityarrays.dal.server.DalSession;
 
@@ -51,7 +57,7 @@ class GetOperation<T extends DalEntity> extends EntityOperation<T,BMS_DalDatabas
 
 
 	@Override
-	public void execute(DalSession session, 
+	protected void performExecute(DalSession session, 
 			DalResponseBuilder responseBuilder,
 			Method method, 
 			String dalcmd, 
@@ -65,30 +71,102 @@ class GetOperation<T extends DalEntity> extends EntityOperation<T,BMS_DalDatabas
 		// TODO implement filtering translation (in entityProvider)
 		String filterClause = DalDatabaseUtil.getFilteringClause(methodParms);
 
-		T entity = entityProvider.getEntity(id, filterClause);
+		List<T> entities;
+		if (id.indexOf(',') < 0) {
+			T entity = entityProvider.getEntity(id, filterClause);
+			entities = entity == null ? Collections.<T>emptyList() : Collections.singletonList(entity);
+		}
+		else {
+			entities = getEntities(parseIds(id), filterClause);
+		}
 		
-		if (entity != null) {
+		if (! entities.isEmpty()) {
 			
 			DalResponseBuilder builder = responseBuilder
 					.addResponseMeta(entityTagName);
-					
-			builder.startTag(entityTagName);
 			
-			for (Field fld : columnByField.keySet()) {
-				Column column = columnByField.get(fld);
+			GenotypeAliasEmbedder embedder = null;
+			if (GenotypeAliasEmbedder.isRequested(entityClass, methodParms)) {
+				embedder = new GenotypeAliasEmbedder(context, entities);
+			}
+			
+			for (T entity : entities) {
+				builder.startTag(entityTagName);
 				
-				try {
-					Object value = fld.get(entity);
-					builder.attribute(column.name(), value==null ? "" : value.toString());
-				} catch (IllegalArgumentException e) {
-					throw new DalDbException(e);
-				} catch (IllegalAccessException e) {
-					throw new DalDbException(e);
+				for (Field fld : columnByField.keySet()) {
+					Column column = columnByField.get(fld);
+					
+					try {
+						Object value = fld.get(entity);
+						builder.attribute(column.name(), value==null ? "" : value.toString());
+					} catch (IllegalArgumentException e) {
+						throw new DalDbException(e);
+					} catch (IllegalAccessException e) {
+						throw new DalDbException(e);
+					}
+					
 				}
 				
+				if (embedder != null) {
+					for (DalEntity alias : embedder.getAliases(entity)) {
+						builder.startTag(GenotypeAliasEmbedder.ALIAS_TAG_NAME);
+						appendAttributes(builder, alias, GenotypeAliasEmbedder.ALIAS_COLUMN_BY_FIELD);
+						builder.endTag();
+					}
+				}
+				builder.endTag();
+			}
+		}
+	}
+	
+	/**
+	 * Return the entities (in the order requested) for those ids which are found.
+	 * @param ids
+	 * @param filterClause may be null
+	 * @return List
+	 * @throws DalDbException
+	 */
+	private List<T> getEntities(Collection<Integer> ids, String filterClause) throws DalDbException {
+		List<T> result = new ArrayList<T>();
+		if (entityProvider instanceof MultiIdEntityProvider) {
+			Map<Integer,T> entityById = ((MultiIdEntityProvider<T>) entityProvider).getEntities(ids, filterClause);
+			for (Integer id : ids) {
+				T entity = entityById.get(id);
+				if (entity != null) {
+					result.add(entity);
+				}
+			}
+		}
+		else {
+			for (Integer id : ids) {
+				T entity = entityProvider.getEntity(id.toString(), filterClause);
+				if (entity != null) {
+					result.add(entity);
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Parse the comma-separated list of ids, ignoring empty values and duplicates.
+	 * @param csv
+	 * @return the ids in the order provided
+	 * @throws DalDbException if any are not integers
+	 */
+	static Collection<Integer> parseIds(String csv) throws DalDbException {
+		Set<Integer> result = new LinkedHashSet<Integer>();
+		for (String s : csv.split(",")) {
+			s = s.trim();
+			if (! s.isEmpty()) {
+				try {
+					result.add(Integer.valueOf(s));
+				} catch (NumberFormatException e) {
+					throw new DalDbException("Invalid id: '" + s + "'");
+				}
 			}
-			builder.endTag();
 		}
+		return result;
 	}
 	
 }
\ No newline at end of file
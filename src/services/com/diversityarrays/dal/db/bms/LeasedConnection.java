@@ -0,0 +1,56 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.bms;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A Connection that has been taken from a pool for the use of a single query.
+ * Closing it (or calling <code>release()</code>) gives the Connection back;
+ * only the first call has any effect.
+ * @author brian
+ *
+ */
+abstract class LeasedConnection implements Closeable {
+	
+	final Connection connection;
+	
+	private final AtomicBoolean released = new AtomicBoolean();
+	
+	LeasedConnection(Connection c) {
+		this.connection = c;
+	}
+	
+	/**
+	 * @param reusable false if the Connection might be broken and should be closed instead
+	 */
+	void release(boolean reusable) {
+		if (released.compareAndSet(false, true)) {
+			doRelease(reusable);
+		}
+	}
+	
+	abstract protected void doRelease(boolean reusable);
+	
+	@Override
+	public void close() {
+		release(true);
+	}
+}
@@ -18,6 +18,7 @@
 package com.diversityarrays.dal.db.bms;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -32,6 +33,8 @@ import com.diversityarrays.dal.db.EntityProvider;
 import com.diversityarrays.dal.db.RecordCountCacheEntry;
 import com.diversityarrays.dal.entity.DalEntity;
 import com.diversityarrays.dal.server.DalSession;
+import com.diversityarrays.dal.server.RequestLog;
+import com.diversityarrays.dal.server.RequestTrace;
 import com.diversityarrays.dalclient.DALClient;
 
 import fi.iki.elonen.NanoHTTPD.Method;
@@ -51,26 +54,36 @@ class PagedListOperation<T extends DalEntity> extends EntityOperation<T,BMS_DalD
 	}
 	
 	@Override
-	public void execute(DalSession session, DalResponseBuilder responseBuilder,
+	protected void performExecute(DalSession session, DalResponseBuilder responseBuilder,
 			Method method, String uri, List<String> dalOpParameters,
 			Map<String, String> methodParms,
 			Map<String, String> filePathByName)
 	throws DalDbException {
 
+		RequestTrace trace = RequestTrace.current();
+		
 		String filterClause = DalDatabaseUtil.getFilteringClause(methodParms);
 		
 		int nRecords;
 		
+		long phaseStartNanos = System.nanoTime();
 		RecordCountCacheEntry cacheEntry = context.getRecordCountCacheEntry(session, entityClass);
 		if (cacheEntry!=null && cacheEntry.isFor(filterClause)) {
 			nRecords = cacheEntry.count;
-			System.err.println(session.getUserId()+":"+entityClass.getName()+"."+filterClause+": cached value=" + nRecords);
+			if (RequestLog.isEnabled(RequestLog.Level.DEBUG)) {
+				RequestLog.debug(session.getUserId()+":"+entityClass.getName()+"."+filterClause+": cached value=" + nRecords);
+			}
 		}
 		else {
 			nRecords = entityProvider.getEntityCount(filterClause);
 			context.setRecordCountCacheEntry(session, entityClass, filterClause, nRecords);
 
-			System.err.println(session.getUserId()+":"+entityClass.getName()+"."+filterClause+": CACHING value=" + nRecords);
+			if (RequestLog.isEnabled(RequestLog.Level.DEBUG)) {
+				RequestLog.debug(session.getUserId()+":"+entityClass.getName()+"."+filterClause+": CACHING value=" + nRecords);
+			}
+		}
+		if (trace != null) {
+			trace.record("count", phaseStartNanos);
 		}
 		
 		int nPerPage = getIntParameter(0, dalOpParameters, "_nperpage", 1);
@@ -91,20 +104,63 @@ class PagedListOperation<T extends DalEntity> extends EntityOperation<T,BMS_DalD
 			.endTag();
 		
 		
+		boolean includeAliases = GenotypeAliasEmbedder.isRequested(entityClass, methodParms);
+		List<T> page = includeAliases ? new ArrayList<T>(nPerPage) : null;
+		
+		phaseStartNanos = System.nanoTime();
 		EntityIterator<? extends T> iter = entityProvider.createIterator(firstRecord, nPerPage, filterClause);
+		if (trace != null) {
+			trace.record("query", phaseStartNanos);
+		}
+		// Reading rows (and creating entities from them) alternates with
+		// appending the entities so time each separately
+		long mapNanos = 0;
+		long serializeNanos = 0;
 		try {
 			T entity;
+			long t0 = System.nanoTime();
 			while (null != (entity = iter.nextEntity())) {
-				appendEntity(responseBuilder, entity);
+				long t1 = System.nanoTime();
+				mapNanos += t1 - t0;
+				if (page == null) {
+					appendEntity(responseBuilder, entity);
+				}
+				else {
+					page.add(entity);
+				}
+				t0 = System.nanoTime();
+				serializeNanos += t0 - t1;
 			}
+			mapNanos += System.nanoTime() - t0;
 		}
 		finally {
 			try { iter.close(); }
 			catch (IOException ignore) { }
 		}
+		
+		if (page != null) {
+			phaseStartNanos = System.nanoTime();
+			GenotypeAliasEmbedder embedder = new GenotypeAliasEmbedder(context, page);
+			if (trace != null) {
+				trace.record("aliases", phaseStartNanos);
+			}
+			long t0 = System.nanoTime();
+			for (T entity : page) {
+				appendEntity(responseBuilder, entity, 
+						GenotypeAliasEmbedder.ALIAS_TAG_NAME,
+						GenotypeAliasEmbedder.ALIAS_COLUMN_BY_FIELD,
+						embedder.getAliases(entity));
+			}
+			serializeNanos += System.nanoTime() - t0;
+		}
+		
+		if (trace != null) {
+			trace.add("map", mapNanos);
+			trace.add("serialize", serializeNanos);
+		}
 	}
 
-	private int getIntParameter(int pIndex, List<String> dalOpParameters, String paramName, int minValue) throws DalDbException {
+	static int getIntParameter(int pIndex, List<String> dalOpParameters, String paramName, int minValue) throws DalDbException {
 		try {
 			
 			String paramValue = dalOpParameters==null ? null : dalOpParameters.get(pIndex);
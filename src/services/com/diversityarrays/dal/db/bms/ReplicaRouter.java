@@ -0,0 +1,703 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.bms;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.diversityarrays.dal.db.DbUtil;
+import com.diversityarrays.dal.db.PoolStatistics;
+import com.diversityarrays.dal.server.RequestLog;
+import com.diversityarrays.dal.server.RequestWorker;
+import com.diversityarrays.dal.sqldb.JdbcConnectionParameters;
+import com.diversityarrays.dal.sqldb.QueryContext;
+import com.diversityarrays.dal.sqldb.SqlUtil;
+
+/**
+ * Routes the read-only queries for the central BMS database across a set of
+ * MySQL replicas.
+ * <ul>
+ * <li>Each query is sent to the healthy replica with the fewest outstanding queries.</li>
+ * <li>If it hasn't completed within the 95th percentile of recent query times the
+ * query is hedged by also sending it to another replica (or to the central database
+ * if there is no other) and the first result is used; the other query is cancelled.</li>
+ * <li>A background check drops a replica from rotation while it is unreachable,
+ * not replicating or lagging by more than <code>maxLagSeconds</code>.</li>
+ * </ul>
+ * If no replica is available the central database is used.
+ * <p>
+ * Each node keeps a few idle Connections rather than sharing a single one because
+ * MySQL Connector/J executes only one statement at a time on a Connection.
+ * The Connection used by <code>executeQuery()</code> is held by its QueryResult
+ * and only returned to the pool when that is closed.
+ * <p>
+ * A query that can't be hedged (there are too few recent query times or no other
+ * node) runs on the caller's thread. Otherwise each attempt runs on one of at most
+ * <code>BMS_READ_MAX_THREADS</code> (default 32) threads; when they are all busy
+ * the query runs on the caller's thread without hedging.
+ * @author brian
+ *
+ */
+class ReplicaRouter {
+	
+	static private final long HEALTH_CHECK_INTERVAL_SECONDS = 10;
+	static private final int MAX_IDLE_PER_NODE = 4;
+	static private final int MIN_SAMPLES_FOR_HEDGING = 20;
+	static private final long MIN_HEDGE_DELAY_MILLIS = 5;
+	static private final int MAX_READ_THREADS = Math.max(1, Integer.getInteger("BMS_READ_MAX_THREADS", 32));
+	
+	// SQLState class for connection exceptions
+	static private final String SQLSTATE_CONNECTION = "08";
+	
+	/**
+	 * The result of <code>executeQuery()</code>. The caller must close it; that
+	 * also returns its Connection to the pool.
+	 */
+	static class QueryResult implements Closeable {
+		final Statement statement;
+		final ResultSet resultSet;
+		
+		private final LeasedConnection lease;
+		private final QueryContext queryContext;
+		
+		QueryResult(LeasedConnection lease, Statement s, ResultSet rs, QueryContext ctx) {
+			this.lease = lease;
+			statement = s;
+			resultSet = rs;
+			queryContext = ctx;
+		}
+		
+		@Override
+		public void close() {
+			try {
+				if (queryContext != null) {
+					queryContext.unregister(statement);
+				}
+				SqlUtil.closeSandRS(statement, resultSet);
+			}
+			finally {
+				lease.close();
+			}
+		}
+	}
+
+	/**
+	 * A database that may be queried: either a replica or the central database itself.
+	 */
+	class Node {
+		final JdbcConnectionParameters params;
+		final boolean isReplica;
+		
+		final AtomicInteger outstanding = new AtomicInteger();
+		final AtomicLong queryCount = new AtomicLong();
+		final AtomicLong hedgeWinCount = new AtomicLong();
+		
+		private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+		
+		volatile boolean healthy = true;
+		// null if unknown or not replicating
+		volatile Integer lagSeconds;
+		volatile String lastError;
+		
+		Node(JdbcConnectionParameters params, boolean isReplica) {
+			this.params = params;
+			this.isReplica = isReplica;
+		}
+		
+		Connection borrow() throws SQLException {
+			Connection c = idle.poll();
+			if (c == null) {
+				c = DbUtil.createConnection(params);
+			}
+			return c;
+		}
+		
+		/**
+		 * Borrow a Connection which counts as outstanding on this node until it is released.
+		 */
+		LeasedConnection lease() throws SQLException {
+			Connection c = borrow();
+			outstanding.incrementAndGet();
+			return new LeasedConnection(c) {
+				@Override
+				protected void doRelease(boolean reusable) {
+					outstanding.decrementAndGet();
+					if (reusable) {
+						giveBack(connection);
+					}
+					else {
+						closeQuietly(connection);
+					}
+				}
+			};
+		}
+		
+		void giveBack(Connection c) {
+			if (closed || idle.size() >= MAX_IDLE_PER_NODE) {
+				closeQuietly(c);
+			}
+			else {
+				idle.offer(c);
+			}
+		}
+		
+		void setHealthy(boolean b, String reason) {
+			lastError = reason;
+			if (isReplica && healthy != b) {
+				healthy = b;
+				RequestLog.warn("ReplicaRouter: " + this);
+			}
+		}
+		
+		void markUnhealthy(SQLException e) {
+			setHealthy(false, e.getMessage());
+			// Any pooled Connections are probably broken too
+			Connection c;
+			while (null != (c = idle.poll())) {
+				closeQuietly(c);
+			}
+		}
+		
+		/**
+		 * @return a Pool reporting the Connections of this node
+		 */
+		PoolStatistics.Pool createPoolStatistics() {
+			return new PoolStatistics.Pool(isReplica ? "BMS replica " + stripQuery(params.connectionUrl) : "BMS central database") {
+				@Override
+				public int getInUse() {
+					return outstanding.get();
+				}
+				
+				@Override
+				public int getIdle() {
+					return idle.size();
+				}
+				
+				@Override
+				public int getWaiting() {
+					return 0;
+				}
+				
+				@Override
+				public int getMax() {
+					return -1;
+				}
+			};
+		}
+		
+		void closeAll() {
+			Connection c;
+			while (null != (c = idle.poll())) {
+				closeQuietly(c);
+			}
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(isReplica ? "Replica " : "Central ");
+			sb.append(stripQuery(params.connectionUrl));
+			sb.append(": ").append(healthy ? "in rotation" : "OUT of rotation");
+			if (lagSeconds != null) {
+				sb.append(", lag=").append(lagSeconds).append("s");
+			}
+			sb.append(", outstanding=").append(outstanding.get())
+				.append(", queries=").append(queryCount.get())
+				.append(", hedgeWins=").append(hedgeWinCount.get());
+			if (! healthy && lastError != null) {
+				sb.append(" (").append(lastError).append(")");
+			}
+			return sb.toString();
+		}
+	}
+	
+	/**
+	 * One execution of a query on a Node.
+	 */
+	private class Attempt implements Callable<QueryResult> {
+		final Node node;
+		final String sql;
+		// from the requesting thread
+		final QueryContext queryContext;
+		
+		private Statement stmt;
+		private QueryResult delivered;
+		private boolean cancelled;
+		private boolean claimed;
+		
+		Attempt(Node node, String sql, QueryContext ctx) {
+			this.node = node;
+			this.sql = sql;
+			this.queryContext = ctx;
+		}
+
+		@Override
+		public QueryResult call() throws SQLException {
+			LeasedConnection lease = null;
+			boolean success = false;
+			boolean broken = false;
+			try {
+				lease = node.lease();
+				Statement s = SqlUtil.createQueryStatement(lease.connection);
+				if (queryContext != null) {
+					try {
+						queryContext.register(s);
+					} catch (SQLException e) {
+						SqlUtil.closeSandRS(s, null);
+						throw e;
+					}
+				}
+				synchronized (this) {
+					stmt = s;
+					if (cancelled) {
+						SqlUtil.closeSandRS(s, null);
+						throw new SQLException("Query cancelled");
+					}
+				}
+				
+				long startNanos = System.nanoTime();
+				ResultSet rs = s.executeQuery(sql);
+				latencies.record(System.nanoTime() - startNanos);
+				node.queryCount.incrementAndGet();
+
+				QueryResult qr = new QueryResult(lease, s, rs, queryContext);
+				synchronized (this) {
+					if (cancelled) {
+						qr.close();
+						throw new SQLException("Query cancelled");
+					}
+					delivered = qr;
+				}
+				success = true;
+				return qr;
+			} catch (SQLException e) {
+				boolean wasCancelled;
+				synchronized (this) {
+					wasCancelled = cancelled;
+				}
+				String state = e.getSQLState();
+				if (lease == null || (! wasCancelled && state != null && state.startsWith(SQLSTATE_CONNECTION))) {
+					broken = true;
+					node.markUnhealthy(e);
+				}
+				throw e;
+			} finally {
+				if (lease != null && ! success) {
+					lease.release(! broken);
+				}
+			}
+		}
+		
+		synchronized QueryResult claim() {
+			claimed = true;
+			return delivered;
+		}
+		
+		void cancel() {
+			Statement s;
+			synchronized (this) {
+				if (claimed || cancelled) {
+					return;
+				}
+				cancelled = true;
+				if (delivered != null) {
+					delivered.close();
+					return;
+				}
+				s = stmt;
+			}
+			if (s != null) {
+				try { s.cancel(); }
+				catch (SQLException ignore) { }
+			}
+		}
+	}
+	
+	/**
+	 * The most recent query times, used to decide when to hedge.
+	 */
+	static class LatencyWindow {
+		private final long[] samples;
+		private int count;
+		private int next;
+		
+		LatencyWindow(int size) {
+			samples = new long[size];
+		}
+		
+		synchronized void record(long nanos) {
+			samples[next] = nanos;
+			next = (next + 1) % samples.length;
+			if (count < samples.length) {
+				++count;
+			}
+		}
+		
+		/**
+		 * @param fraction e.g. 0.95
+		 * @return the value in nanoseconds or -1 if there are too few samples
+		 */
+		long getPercentile(double fraction) {
+			long[] copy;
+			synchronized (this) {
+				if (count < MIN_SAMPLES_FOR_HEDGING) {
+					return -1;
+				}
+				copy = Arrays.copyOf(samples, count);
+			}
+			Arrays.sort(copy);
+			int index = (int) Math.ceil(fraction * copy.length) - 1;
+			return copy[Math.max(0, Math.min(index, copy.length - 1))];
+		}
+	}
+	
+	static private String stripQuery(String url) {
+		int pos = url.indexOf('?');
+		return pos < 0 ? url : url.substring(0, pos);
+	}
+
+	static private void closeQuietly(Connection c) {
+		try { c.close(); }
+		catch (SQLException ignore) { }
+	}
+	
+	static private ThreadFactory createThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	private final Node central;
+	private final List<Node> replicas = new ArrayList<Node>();
+	private final int maxLagSeconds;
+	
+	private final LatencyWindow latencies = new LatencyWindow(256);
+	private final AtomicLong hedgeCount = new AtomicLong();
+	
+	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, MAX_READ_THREADS,
+			60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(),
+			createThreadFactory("BmsRead-"));
+	private final ScheduledExecutorService healthChecker = Executors.newSingleThreadScheduledExecutor(createThreadFactory("BmsReplicaCheck-"));
+	
+	// Registered with PoolStatistics until closed
+	private final List<PoolStatistics.Pool> pools = new ArrayList<PoolStatistics.Pool>();
+	
+	private volatile boolean closed;
+
+	ReplicaRouter(JdbcConnectionParameters centralParams, List<JdbcConnectionParameters> replicaParams, int maxLagSeconds) {
+		this.central = new Node(centralParams, false);
+		for (JdbcConnectionParameters p : replicaParams) {
+			replicas.add(new Node(p, true));
+		}
+		this.maxLagSeconds = maxLagSeconds;
+		
+		pools.add(PoolStatistics.forExecutor("BMS read threads", executor));
+		pools.add(central.createPoolStatistics());
+		for (Node node : replicas) {
+			pools.add(node.createPoolStatistics());
+		}
+		for (PoolStatistics.Pool pool : pools) {
+			PoolStatistics.register(pool);
+		}
+		
+		healthChecker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for (Node node : replicas) {
+					checkHealth(node);
+				}
+			}
+		}, 0, HEALTH_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Run the (read-only) query and return its buffered ResultSet.
+	 * @param sql
+	 * @return QueryResult which the caller must close
+	 * @throws SQLException
+	 */
+	QueryResult executeQuery(String sql) throws SQLException {
+		
+		QueryContext ctx = QueryContext.current();
+		
+		Node first = chooseNode(null);
+		long p95 = latencies.getPercentile(0.95);
+		if (p95 < 0 || chooseNode(first) == first) {
+			// Nothing to hedge with
+			return executeDirect(first, sql, ctx);
+		}
+		
+		CompletionService<QueryResult> completion = new ExecutorCompletionService<QueryResult>(executor);
+		Map<Future<QueryResult>,Attempt> attemptByFuture = new HashMap<Future<QueryResult>,Attempt>();
+		
+		if (! submit(completion, attemptByFuture, new Attempt(first, sql, ctx))) {
+			return executeDirect(first, sql, ctx);
+		}
+		
+		long delayMillis = Math.max(MIN_HEDGE_DELAY_MILLIS, TimeUnit.NANOSECONDS.toMillis(p95));
+		boolean hedged = false;
+		SQLException lastError = null;
+		try {
+			while (! attemptByFuture.isEmpty()) {
+				Future<QueryResult> done;
+				if (hedged) {
+					done = completion.take();
+				}
+				else {
+					done = completion.poll(delayMillis, TimeUnit.MILLISECONDS);
+					if (done == null) {
+						// Too slow - try another node as well
+						hedged = true;
+						Node second = chooseNode(first);
+						if (second != first && submit(completion, attemptByFuture, new Attempt(second, sql, ctx))) {
+							hedgeCount.incrementAndGet();
+						}
+						continue;
+					}
+				}
+				
+				Attempt attempt = attemptByFuture.remove(done);
+				try {
+					done.get();
+					QueryResult result = attempt.claim();
+					if (hedged && attempt.node != first) {
+						attempt.node.hedgeWinCount.incrementAndGet();
+					}
+					return result;
+				} catch (ExecutionException e) {
+					Throwable t = e.getCause();
+					lastError = t instanceof SQLException ? (SQLException) t : new SQLException(t);
+					if (attemptByFuture.isEmpty() && attempt.node != central && ! attempt.node.healthy) {
+						// The replica has failed; fall back to the central database
+						hedged = true;
+						if (! submit(completion, attemptByFuture, new Attempt(central, sql, ctx))) {
+							return new Attempt(central, sql, ctx).call();
+						}
+					}
+				}
+			}
+			throw lastError;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for query", e);
+		} finally {
+			// Cancel the loser (if any)
+			for (Attempt a : attemptByFuture.values()) {
+				a.cancel();
+			}
+		}
+	}
+	
+	/**
+	 * Run the query on the caller's thread, falling back to the central
+	 * database if the node fails.
+	 */
+	private QueryResult executeDirect(Node node, String sql, QueryContext ctx) throws SQLException {
+		try {
+			return new Attempt(node, sql, ctx).call();
+		} catch (SQLException e) {
+			if (node == central || node.healthy) {
+				throw e;
+			}
+			return new Attempt(central, sql, ctx).call();
+		}
+	}
+	
+	/**
+	 * Lease a pooled Connection to the least busy healthy node, for use by a single
+	 * (e.g. streaming) query. It counts as outstanding on the node until released.
+	 * @return LeasedConnection which the caller must close
+	 * @throws SQLException
+	 */
+	LeasedConnection leaseConnection() throws SQLException {
+		Node node = chooseNode(null);
+		try {
+			return node.lease();
+		} catch (SQLException e) {
+			if (node == central) {
+				throw e;
+			}
+			node.markUnhealthy(e);
+			return central.lease();
+		}
+	}
+	
+	/**
+	 * @return false if all of the threads are busy
+	 */
+	private boolean submit(CompletionService<QueryResult> completion, 
+			Map<Future<QueryResult>,Attempt> attemptByFuture, 
+			final Attempt attempt) 
+	{
+		Callable<QueryResult> task = new Callable<QueryResult>() {
+			@Override
+			public QueryResult call() throws SQLException {
+				RequestWorker worker = RequestWorker.start(attempt.queryContext);
+				try {
+					return attempt.call();
+				}
+				finally {
+					worker.finish();
+				}
+			}
+		};
+		try {
+			attemptByFuture.put(completion.submit(task), attempt);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Choose the healthy replica with the fewest outstanding queries, excluding
+	 * <code>exclude</code>. If there is none, the central database is returned.
+	 */
+	private Node chooseNode(Node exclude) {
+		Node result = null;
+		int best = Integer.MAX_VALUE;
+		for (Node node : replicas) {
+			if (node == exclude || ! node.healthy) {
+				continue;
+			}
+			int n = node.outstanding.get();
+			if (n < best) {
+				best = n;
+				result = node;
+			}
+		}
+		return result == null ? central : result;
+	}
+	
+	private void checkHealth(Node node) {
+		if (closed) {
+			return;
+		}
+		Connection c = null;
+		try {
+			c = node.borrow();
+			Integer lag = null;
+			boolean replicating = true;
+			Statement stmt = null;
+			ResultSet rs = null;
+			try {
+				stmt = SqlUtil.createQueryStatement(c);
+				rs = stmt.executeQuery("SHOW SLAVE STATUS");
+				if (rs.next()) {
+					Object value = rs.getObject("Seconds_Behind_Master");
+					if (value == null) {
+						// replication is not running
+						replicating = false;
+					}
+					else {
+						lag = ((Number) value).intValue();
+					}
+				}
+			} catch (SQLException e) {
+				String state = e.getSQLState();
+				if (state != null && state.startsWith(SQLSTATE_CONNECTION)) {
+					throw e;
+				}
+				// Probably no REPLICATION CLIENT privilege; just check that it's alive
+				SqlUtil.closeSandRS(stmt, rs);
+				rs = null;
+				stmt = SqlUtil.createQueryStatement(c);
+				stmt.executeQuery("SELECT 1").close();
+			} finally {
+				SqlUtil.closeSandRS(stmt, rs);
+			}
+			
+			node.lagSeconds = lag;
+			if (! replicating) {
+				node.setHealthy(false, "replication is not running");
+			}
+			else if (lag != null && lag > maxLagSeconds) {
+				node.setHealthy(false, "lag of " + lag + "s exceeds " + maxLagSeconds + "s");
+			}
+			else {
+				node.setHealthy(true, null);
+			}
+			node.giveBack(c);
+		} catch (SQLException e) {
+			if (c != null) {
+				closeQuietly(c);
+			}
+			node.lagSeconds = null;
+			node.markUnhealthy(e);
+		}
+	}
+	
+	/**
+	 * @return a line per node describing its state
+	 */
+	String getStatus() {
+		StringBuilder sb = new StringBuilder();
+		long p95 = latencies.getPercentile(0.95);
+		sb.append("Hedged queries: ").append(hedgeCount.get());
+		if (p95 >= 0) {
+			sb.append(", p95=").append(TimeUnit.NANOSECONDS.toMillis(p95)).append("ms");
+		}
+		sb.append("\n").append(central);
+		for (Node node : replicas) {
+			sb.append("\n").append(node);
+		}
+		return sb.toString();
+	}
+
+	void close() {
+		closed = true;
+		for (PoolStatistics.Pool pool : pools) {
+			PoolStatistics.unregister(pool);
+		}
+		healthChecker.shutdownNow();
+		executor.shutdown();
+		central.closeAll();
+		for (Node node : replicas) {
+			node.closeAll();
+		}
+	}
+}
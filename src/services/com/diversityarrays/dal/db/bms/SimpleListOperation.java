@@ -30,11 +30,12 @@ import com.diversityarrays.dal.db.EntityIterator;
 import com.diversityarrays.dal.db.EntityOperation;
 import com.diversityarrays.dal.db.EntityProvider;
 import com.diversityarrays.dal.entity.DalEntity;
+import com.diversityarrays.dal.ops.StreamingDalOperation;
 import com.diversityarrays.dal.server.DalSession;
 
 import fi.iki.elonen.NanoHTTPD.Method;
 
-class SimpleListOperation<T extends DalEntity> extends EntityOperation<T,BMS_DalDatabase> {
+class SimpleListOperation<T extends DalEntity> extends EntityOperation<T,BMS_DalDatabase> implements StreamingDalOperation {
 
 	public static final Pattern PATTERN = Pattern.compile("^list/([a-z]+)$");
 
@@ -49,7 +50,12 @@ class SimpleListOperation<T extends DalEntity> extends EntityOperation<T,BMS_Dal
 	}
 
 	@Override
-	public void execute(DalSession session, 
+	public boolean isStreamingResponse() {
+		return true;
+	}
+
+	@Override
+	protected void performExecute(DalSession session, 
 			DalResponseBuilder responseBuilder,
 			Method method,
 			String dalcmd, 
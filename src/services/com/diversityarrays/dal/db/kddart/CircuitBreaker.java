@@ -0,0 +1,115 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.kddart;
+
+import java.util.Date;
+
+import com.diversityarrays.dal.db.UpstreamHttpStatistics;
+import com.diversityarrays.dal.server.RequestLog;
+
+/**
+ * Stops requests being sent to the upstream DAL server while it appears to be unhealthy.
+ * <p>
+ * After <code>failureThreshold</code> consecutive failures the breaker opens and
+ * requests are rejected immediately. Once <code>openMillis</code> has elapsed a single
+ * trial request is allowed through (half-open); if it succeeds the breaker closes,
+ * otherwise it opens again.
+ * @author brian
+ *
+ */
+class CircuitBreaker {
+	
+	enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+	
+	private final String name;
+	private final int failureThreshold;
+	private final long openMillis;
+	
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	private boolean trialInProgress;
+
+	CircuitBreaker(String name, int failureThreshold, long openMillis) {
+		this.name = name;
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openMillis = openMillis;
+		UpstreamHttpStatistics.setBreakerState(state.name());
+	}
+	
+	/**
+	 * @return true if a request may be sent now; if so, one of the
+	 * <code>record</code> methods must be called when it completes
+	 */
+	synchronized boolean allowRequest() {
+		if (state == State.OPEN) {
+			if (System.currentTimeMillis() - openedAt < openMillis) {
+				return false;
+			}
+			setState(State.HALF_OPEN);
+			trialInProgress = false;
+		}
+		if (state == State.HALF_OPEN) {
+			if (trialInProgress) {
+				return false;
+			}
+			trialInProgress = true;
+		}
+		return true;
+	}
+	
+	synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		trialInProgress = false;
+		if (state != State.CLOSED) {
+			setState(State.CLOSED);
+		}
+	}
+	
+	synchronized void recordFailure() {
+		++consecutiveFailures;
+		trialInProgress = false;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+			openedAt = System.currentTimeMillis();
+			setState(State.OPEN);
+		}
+	}
+	
+	/**
+	 * The request completed without showing whether the upstream server is healthy
+	 * (e.g. the client's own deadline was too short).
+	 */
+	synchronized void recordIgnored() {
+		trialInProgress = false;
+	}
+	
+	synchronized State getState() {
+		return state;
+	}
+	
+	private void setState(State s) {
+		state = s;
+		UpstreamHttpStatistics.setBreakerState(s.name());
+		RequestLog.warn(new Date() + ": circuit breaker for " + name + " is now " + s
+				+ (s == State.OPEN ? " after " + consecutiveFailures + " failures" : ""));
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.kddart;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.db.RecordedResponse;
+import com.diversityarrays.dal.db.UpstreamHttpStatistics;
+import com.diversityarrays.dal.server.RequestLog;
+
+/**
+ * A size-bounded cache of the upstream responses for forwarded GET requests.
+ * The responses are held as RecordedResponses because the DalResponse
+ * implementations are not safe to share between threads.
+ * <p>
+ * Each operation template has its own time-to-live, from the system property
+ * <code>KDDART_CACHE_TTL_SECONDS.<i>template</i></code> or else
+ * <code>KDDART_CACHE_TTL_SECONDS</code>. Zero (the default except for the
+ * genus operations) means the responses are not cached.
+ * <p>
+ * Once an entry is older than its TTL it may still be returned for up to
+ * <code>KDDART_CACHE_STALE_SECONDS</code> (default 60) longer while it is
+ * refreshed in the background.
+ * <p>
+ * Responses for local sessions that haven't chosen a group are not cached.
+ * @author brian
+ *
+ */
+class ForwardingResponseCache {
+	
+	static private final String TTL_PROPERTY = "KDDART_CACHE_TTL_SECONDS";
+	
+	static private final Map<String,Integer> DEFAULT_TTL_SECONDS_BY_TEMPLATE = new HashMap<String,Integer>();
+	static {
+		// Reference data that rarely changes
+		DEFAULT_TTL_SECONDS_BY_TEMPLATE.put("get/genus/_id", 300);
+		DEFAULT_TTL_SECONDS_BY_TEMPLATE.put("list/genus", 300);
+	}
+	
+	static private final int STALE_SECONDS = Integer.getInteger("KDDART_CACHE_STALE_SECONDS", 60);
+	static private final int MAX_ENTRIES = Integer.getInteger("KDDART_CACHE_MAX_ENTRIES", 1000);
+	
+	/**
+	 * @param template
+	 * @return the time-to-live for responses to the operation
+	 */
+	static long getTtlMillis(String template) {
+		Integer seconds = Integer.getInteger(TTL_PROPERTY + "." + template);
+		if (seconds == null) {
+			seconds = DEFAULT_TTL_SECONDS_BY_TEMPLATE.get(template);
+			if (seconds == null) {
+				seconds = Integer.getInteger(TTL_PROPERTY, 0);
+			}
+		}
+		return TimeUnit.SECONDS.toMillis(seconds);
+	}
+	
+	/**
+	 * Obtains the response from the upstream server.
+	 */
+	interface Loader {
+		public RecordedResponse load() throws DalDbException;
+	}
+	
+	static class CachedResponse {
+		final RecordedResponse response;
+		final long loadedAt;
+		boolean refreshing;
+		
+		CachedResponse(RecordedResponse response, long loadedAt) {
+			this.response = response;
+			this.loadedAt = loadedAt;
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	private final Map<String,CachedResponse> responseByKey = new LinkedHashMap<String,CachedResponse>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,CachedResponse> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	
+	private final long staleMillis;
+	
+	private final ExecutorService refresher = Executors.newFixedThreadPool(2, new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "KDDart-CacheRefresh-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	ForwardingResponseCache() {
+		this(TimeUnit.SECONDS.toMillis(STALE_SECONDS));
+	}
+	
+	/**
+	 * @param staleMillis how long after its TTL an entry may be returned while it is refreshed
+	 */
+	ForwardingResponseCache(long staleMillis) {
+		this.staleMillis = staleMillis;
+	}
+	
+	/**
+	 * @param dalcmd
+	 * @param filtering may be null
+	 * @param groupId may be null
+	 * @return the key for the response
+	 */
+	static String createKey(String dalcmd, String filtering, String groupId) {
+		StringBuilder sb = new StringBuilder(dalcmd);
+		if (filtering != null) {
+			sb.append("?Filtering=").append(filtering);
+		}
+		sb.append('|').append(groupId);
+		return sb.toString();
+	}
+	
+	/**
+	 * Return the cached response for the key if it is still usable,
+	 * otherwise load (and cache) a new one.
+	 * @param key
+	 * @param ttlMillis
+	 * @param loader
+	 * @return RecordedResponse
+	 * @throws DalDbException
+	 */
+	RecordedResponse get(final String key, long ttlMillis, final Loader loader) throws DalDbException {
+		long now = System.currentTimeMillis();
+		
+		synchronized (responseByKey) {
+			final CachedResponse cached = responseByKey.get(key);
+			if (cached != null) {
+				long age = now - cached.loadedAt;
+				if (age < ttlMillis) {
+					UpstreamHttpStatistics.CACHE_HITS.incrementAndGet();
+					return cached.response;
+				}
+				if (age < ttlMillis + staleMillis) {
+					UpstreamHttpStatistics.CACHE_STALE_HITS.incrementAndGet();
+					if (! cached.refreshing) {
+						cached.refreshing = true;
+						refresher.execute(new Runnable() {
+							@Override
+							public void run() {
+								refresh(key, cached, loader);
+							}
+						});
+					}
+					return cached.response;
+				}
+			}
+		}
+		
+		UpstreamHttpStatistics.CACHE_MISSES.incrementAndGet();
+		RecordedResponse response = loader.load();
+		synchronized (responseByKey) {
+			responseByKey.put(key, new CachedResponse(response, System.currentTimeMillis()));
+		}
+		return response;
+	}
+	
+	private void refresh(String key, CachedResponse cached, Loader loader) {
+		try {
+			RecordedResponse response = loader.load();
+			synchronized (responseByKey) {
+				responseByKey.put(key, new CachedResponse(response, System.currentTimeMillis()));
+			}
+		} catch (DalDbException e) {
+			RequestLog.warn("Unable to refresh cached response for " + key + ": " + e.getMessage());
+			synchronized (responseByKey) {
+				cached.refreshing = false;
+			}
+		}
+	}
+	
+	void remove(String key) {
+		synchronized (responseByKey) {
+			responseByKey.remove(key);
+		}
+	}
+	
+	void clear() {
+		synchronized (responseByKey) {
+			responseByKey.clear();
+		}
+	}
+	
+	void shutdown() {
+		refresher.shutdownNow();
+		clear();
+	}
+}
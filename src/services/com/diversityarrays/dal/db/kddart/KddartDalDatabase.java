@@ -27,6 +27,10 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.collections15.Closure;
 
@@ -36,14 +40,20 @@ import com.diversityarrays.dal.db.DalDatabaseUtil;
 import com.diversityarrays.dal.db.DalDbException;
 import com.diversityarrays.dal.db.DalResponseBuilder;
 import com.diversityarrays.dal.db.DbDataLoader;
+import com.diversityarrays.dal.db.RecordedResponse;
+import com.diversityarrays.dal.db.SingleFlight;
 import com.diversityarrays.dal.db.SystemGroupInfo;
+import com.diversityarrays.dal.db.UpstreamHttpStatistics;
 import com.diversityarrays.dal.db.UserInfo;
+import com.diversityarrays.dal.db.kddart.UpstreamSessionPool.UpstreamCall;
 import com.diversityarrays.dal.entity.DalEntity;
 import com.diversityarrays.dal.entity.Genotype;
 import com.diversityarrays.dal.entity.Genus;
 import com.diversityarrays.dal.ops.AbstractDalOperation;
 import com.diversityarrays.dal.ops.DalOperation;
+import com.diversityarrays.dal.server.DalEvents;
 import com.diversityarrays.dal.server.DalSession;
+import com.diversityarrays.dal.sqldb.QueryContext;
 import com.diversityarrays.dalclient.DALClient;
 import com.diversityarrays.dalclient.DalException;
 import com.diversityarrays.dalclient.DalResponse;
@@ -51,7 +61,6 @@ import com.diversityarrays.dalclient.DalResponseException;
 import com.diversityarrays.dalclient.DalResponseFormatException;
 import com.diversityarrays.dalclient.DalResponseRecord;
 import com.diversityarrays.dalclient.DalResponseRecordVisitor;
-import com.diversityarrays.dalclient.DefaultDALClient;
 import com.diversityarrays.dalclient.ResponseType;
 import com.diversityarrays.dalclient.SessionExpiryOption;
 
@@ -71,57 +80,285 @@ public class KddartDalDatabase extends AbstractDalDatabase {
 	
 	private final String dalUrl;
 
-	private Map<String,DALClient> clientBySessionId = new HashMap<String, DALClient>();
+	/**
+	 * The maximum number of upstream sessions shared by all of the local sessions.
+	 */
+	static private final int MAX_UPSTREAM_SESSIONS = Integer.getInteger("KDDART_UPSTREAM_SESSIONS", 4);
+	static private final int UPSTREAM_LEASE_SECONDS = Integer.getInteger("KDDART_UPSTREAM_LEASE_SECONDS", 30);
+	
+	/**
+	 * Limits on the calls made to the upstream server; see UpstreamExecutor and CircuitBreaker.
+	 */
+	static private final int UPSTREAM_MAX_CONCURRENT = Integer.getInteger("KDDART_UPSTREAM_MAX_CONCURRENT", 16);
+	static private final int UPSTREAM_MAX_QUEUED = Integer.getInteger("KDDART_UPSTREAM_MAX_QUEUED", 32);
+	static private final int UPSTREAM_TIMEOUT_SECONDS = Integer.getInteger("KDDART_UPSTREAM_TIMEOUT_SECONDS", 60);
+	static private final int BREAKER_FAILURES = Integer.getInteger("KDDART_BREAKER_FAILURES", 5);
+	static private final int BREAKER_OPEN_SECONDS = Integer.getInteger("KDDART_BREAKER_OPEN_SECONDS", 30);
+	
+	/**
+	 * How long the upstream version and field lists are cached; these only change
+	 * when the upstream server is upgraded.
+	 */
+	static private final long METADATA_TTL_MILLIS = TimeUnit.SECONDS.toMillis(
+			Integer.getInteger("KDDART_METADATA_CACHE_SECONDS", 3600));
+	/**
+	 * How long each session's group lists are cached.
+	 */
+	static private final long GROUP_LIST_TTL_MILLIS = TimeUnit.SECONDS.toMillis(
+			Integer.getInteger("KDDART_GROUP_CACHE_SECONDS", 300));
+	
+	private final Map<String,UserInfo> userInfoBySessionId = new ConcurrentHashMap<String,UserInfo>();
+	
+	private final UpstreamSessionPool upstreamSessions;
+	
+	private final UpstreamExecutor upstreamExecutor;
+	
+	private final ForwardingResponseCache responseCache = new ForwardingResponseCache();
+	
+	private final SingleFlight<DalResponse> upstreamFlights = new SingleFlight<DalResponse>();
+	
+	private volatile String upstreamVersion;
+	private volatile long upstreamVersionExpiresAt;
 
 	private final String dalUsername;
 
 	private final String dalPassword;
 	
 	private boolean autoSwitchGroupOnLogin;
+	
+	// Set when this has let go of the shared HTTP connection pool
+	private final AtomicBoolean httpPoolReleased = new AtomicBoolean();
 
 	public KddartDalDatabase(Closure<String> progress, boolean test, URI uri, String username, String password, Boolean autoSwitchGroup) throws DalDbException {
 		super("KDDart-DAL@" + uri.toString());
 		
+		PooledDalHttpFactory.acquirePool();
+		
 		this.dalUrl = uri.toString();
 		this.dalUsername = username;
 		this.dalPassword = password;
 		this.autoSwitchGroupOnLogin = autoSwitchGroup==null ? false : autoSwitchGroup.booleanValue();
 		
+		this.upstreamSessions = new UpstreamSessionPool(dalUrl, username, password, 
+				autoSwitchGroupOnLogin, USE_JSON,
+				MAX_UPSTREAM_SESSIONS, UPSTREAM_LEASE_SECONDS);
+		this.upstreamExecutor = new UpstreamExecutor(UPSTREAM_MAX_CONCURRENT, UPSTREAM_MAX_QUEUED,
+				UPSTREAM_TIMEOUT_SECONDS * 1000L,
+				new CircuitBreaker(dalUrl, BREAKER_FAILURES, BREAKER_OPEN_SECONDS * 1000L));
+		
 		entityClassByName.put("genus", Genus.class);
 		entityClassByName.put("genotype", Genotype.class);
 		
 		if (test) {
-			DALClient client = new DefaultDALClient(dalUrl);
+			DALClient client = new PooledDALClient(dalUrl);
+			boolean success = false;
 			try {
 				progress.execute("Attempting login to "+dalUrl);
 				client.login(username, password);
+				success = true;
 			} catch (DalException e) {
 				throw new DalDbException(e);
 			} catch (IOException e) {
 				throw new DalDbException(e);
 			} finally {
 				client.logout();
+				if (! success) {
+					shutdown();
+				}
 			}
 		}
 	}
 
 	@Override
 	public String getDatabaseVersion(DalSession session) throws DalDbException {
-		DALClient client = session==null ? null : clientBySessionId.get(session.sessionId);
-		if (client == null) {
+		if (session==null || ! userInfoBySessionId.containsKey(session.sessionId)) {
 			return DATABASE_VERSION;
 		}
-		else {
-			try {
+		
+		String version = upstreamVersion;
+		if (version != null && System.currentTimeMillis() < upstreamVersionExpiresAt) {
+			return version;
+		}
+		
+		version = performUpstream(session.getGroupId(), DalOperation.GET_VERSION, new UpstreamCall<String>() {
+			@Override
+			public String call(DALClient client) throws DalException, IOException {
 				DalResponse response = client.performQuery(DalOperation.GET_VERSION);
 				return response.getRecordFieldValue(DALClient.TAG_INFO, DALClient.ATTR_VERSION);
-			} catch (DalResponseException e) {
-				throw new DalDbException(e);
-			} catch (IOException e) {
-				throw new DalDbException(e);
+			}
+		});
+		if (METADATA_TTL_MILLIS > 0) {
+			upstreamVersion = version;
+			upstreamVersionExpiresAt = System.currentTimeMillis() + METADATA_TTL_MILLIS;
+		}
+		return version;
+	}
+	
+	private void checkLoggedIn(DalSession session) throws AuthenticationException {
+		if (! userInfoBySessionId.containsKey(session.sessionId)) {
+			throw new AuthenticationException("Not logged in");
+		}
+	}
+	
+	/**
+	 * Perform the query using one of the shared upstream sessions.
+	 * @param session
+	 * @param command
+	 * @return DalResponse
+	 * @throws DalDbException
+	 */
+	private DalResponse performQuery(DalSession session, String command) throws DalDbException {
+		checkLoggedIn(session);
+		return performUpstreamQuery(session.getGroupId(), command);
+	}
+	
+	/**
+	 * Perform the call using one of the shared upstream sessions on one of the
+	 * upstream threads so that the caller never waits beyond its deadline.
+	 * @param groupId
+	 * @param command what the call does (for the UPSTREAM event)
+	 * @param call
+	 * @return the result of the call
+	 * @throws DalDbException
+	 */
+	private <T> T performUpstream(final String groupId, String command, final UpstreamCall<T> call) throws DalDbException {
+		DalEvents.Event event = DalEvents.begin(DalEvents.Type.UPSTREAM);
+		String outcome = null;
+		long startNanos = System.nanoTime();
+		try {
+			T result = upstreamExecutor.execute(new Callable<T>() {
+				@Override
+				public T call() throws DalDbException {
+					return upstreamSessions.perform(groupId, call);
+				}
+			});
+			outcome = "ok";
+			return result;
+		} catch (DalDbException | RuntimeException e) {
+			outcome = e.getClass().getSimpleName();
+			throw e;
+		} finally {
+			QueryContext ctx = QueryContext.current();
+			if (ctx != null) {
+				ctx.addUpstreamNanos(System.nanoTime() - startNanos);
+			}
+			if (event != null) {
+				event.commit(command, outcome);
+			}
+		}
+	}
+	
+	private DalResponse performUpstreamQuery(String groupId, final String command) throws DalDbException {
+		return performUpstream(groupId, command, new UpstreamCall<DalResponse>() {
+			@Override
+			public DalResponse call(DALClient client) throws DalException, IOException {
+				return client.performQuery(command);
+			}
+		});
+	}
+	
+	/**
+	 * Perform the query upstream unless an identical one is already in progress,
+	 * in which case its response is shared.
+	 * @param flightKey from SingleFlight.createKey()
+	 * @param groupId
+	 * @param command
+	 * @return DalResponse
+	 * @throws DalDbException
+	 */
+	private DalResponse performSharedUpstreamQuery(String flightKey, final String groupId, final String command) 
+	throws DalDbException 
+	{
+		return upstreamFlights.execute(flightKey, new SingleFlight.Call<DalResponse>() {
+			@Override
+			public DalResponse call() throws DalDbException {
+				return performUpstreamQuery(groupId, command);
+			}
+		});
+	}
+	
+	private void forwardQuery(DalSession session, String command, DalResponseBuilder builder) throws DalDbException {
+		feedResponse(performQuery(session, command), builder);
+	}
+	
+	/**
+	 * Forward the query unless a response to it is in the responseCache.
+	 * @param session
+	 * @param command
+	 * @param key for the responseCache
+	 * @param ttlMillis
+	 * @param builder
+	 * @throws DalDbException
+	 */
+	private void forwardCachedQuery(DalSession session, final String command, String key, long ttlMillis,
+			DalResponseBuilder builder) 
+	throws DalDbException 
+	{
+		if (ttlMillis <= 0) {
+			forwardQuery(session, command, builder);
+			return;
+		}
+		
+		checkLoggedIn(session);
+		final String groupId = session.getGroupId();
+		RecordedResponse recorded = responseCache.get(key, ttlMillis, new ForwardingResponseCache.Loader() {
+			@Override
+			public RecordedResponse load() throws DalDbException {
+				RecordedResponse result = new RecordedResponse();
+				feedResponse(performUpstreamQuery(groupId, command), result);
+				return result;
+			}
+		});
+		recorded.replayTo(builder);
+	}
+	
+	/**
+	 * Group lists are cached per local session because the upstream sessions are shared.
+	 * @param session
+	 * @param command
+	 * @return the key for the responseCache
+	 */
+	static private String createGroupListKey(DalSession session, String command) {
+		return ForwardingResponseCache.createKey(command, null, "session:" + session.sessionId);
+	}
+	
+	private void removeCachedGroupLists(DalSession session) {
+		responseCache.remove(createGroupListKey(session, DalOperation.LIST_GROUP));
+		responseCache.remove(createGroupListKey(session, DalOperation.LIST_ALL_GROUP));
+	}
+	
+	/**
+	 * Send the upstream body unchanged if the builder accepts it, otherwise copy the
+	 * records into the builder (with a single streaming pass if the body is XML).
+	 * @param response
+	 * @param builder
+	 * @throws DalDbException
+	 */
+	private void feedResponse(DalResponse response, DalResponseBuilder builder) throws DalDbException {
+		String body = response.getRawResponse();
+		boolean bodyIsJson = ResponseType.JSON == response.getResponseType();
+		if (body != null) {
+			if (builder.passThrough(body, bodyIsJson)) {
+				UpstreamHttpStatistics.PASSED_THROUGH.incrementAndGet();
+				return;
+			}
+			if (! bodyIsJson) {
+				UpstreamHttpStatistics.TRANSCODED.incrementAndGet();
+				XmlResponseTranscoder.feed(body, builder);
+				return;
 			}
 		}
 		
+		UpstreamHttpStatistics.TRANSCODED.incrementAndGet();
+		try {
+			// The response may be shared (see performSharedUpstreamQuery) and
+			// the DalResponse implementations parse lazily.
+			synchronized (response) {
+				feedResponseToResponseBuilder(response, builder);
+			}
+		} catch (DalResponseException e) {
+			throw new DalDbException(e);
+		}
 	}
 
 	@Override
@@ -182,69 +419,42 @@ list/group
 
 	@Override
 	public SystemGroupInfo getSystemGroupInfo(DalSession session) throws DalDbException {
-		DALClient client = clientBySessionId.get(session.sessionId);
-		if (client == null) {
-			throw new AuthenticationException("Not logged in");
-		}
+		checkLoggedIn(session);
 		
-		return new SystemGroupInfoImpl(client.getGroupId(), client.getGroupName(), client.isInAdminGroup());
+		return performUpstream(session.getGroupId(), "systemGroupInfo", new UpstreamCall<SystemGroupInfo>() {
+			@Override
+			public SystemGroupInfo call(DALClient client) {
+				return new SystemGroupInfoImpl(client.getGroupId(), client.getGroupName(), client.isInAdminGroup());
+			}
+		});
 	}
 	
 	@Override
 	public void performListAllGroup(DalSession session, DalResponseBuilder builder,
 			String[] returnSql) throws DalDbException
 	{
-		DALClient client = clientBySessionId.get(session.sessionId);
-		if (client == null) {
-			throw new AuthenticationException("Not logged in");
-		}
-		
-		try {
-			DalResponse response = client.performQuery(DalOperation.LIST_ALL_GROUP);
-			feedResponseToResponseBuilder(response, builder);
-		} catch (DalResponseException e) {
-			throw new DalDbException(e);
-		} catch (IOException e) {
-			throw new DalDbException(e);
-		}
+		forwardCachedQuery(session, DalOperation.LIST_ALL_GROUP, 
+				createGroupListKey(session, DalOperation.LIST_ALL_GROUP), GROUP_LIST_TTL_MILLIS, 
+				builder);
 	}
 
 	@Override
 	public void performListGroup(DalSession session, DalResponseBuilder builder, String[] returnSql)
 	throws DalDbException 
 	{
-		DALClient client = clientBySessionId.get(session.sessionId);
-		if (client == null) {
-			throw new AuthenticationException("Not logged in");
-		}
-		
-		try {
-			DalResponse response = client.performQuery(DalOperation.LIST_GROUP);
-			feedResponseToResponseBuilder(response, builder);
-		} catch (DalResponseException e) {
-			throw new DalDbException(e);
-		} catch (IOException e) {
-			throw new DalDbException(e);
-		}
+		forwardCachedQuery(session, DalOperation.LIST_GROUP, 
+				createGroupListKey(session, DalOperation.LIST_GROUP), GROUP_LIST_TTL_MILLIS, 
+				builder);
 	}
 	
 
 	@Override
 	public void performListField(DalSession session, String tableName, DalResponseBuilder responseBuilder) throws DalDbException {
 		
-		DALClient client = clientBySessionId.get(session.sessionId);
-		if (client == null) {
-			throw new AuthenticationException("Not logged in");
-		}
-		
-		try {
-			DalResponse response = client.performQuery(tableName + DalOperation.LIST_FIELD_TAIL);
-			feedResponseToResponseBuilder(response, responseBuilder);
-		} catch (DalResponseException e) {
-			throw new DalDbException(e);
-		} catch (IOException e) {
-			throw new DalDbException(e);
-		}
+		String command = tableName + DalOperation.LIST_FIELD_TAIL;
+		forwardCachedQuery(session, command, 
+				ForwardingResponseCache.createKey(command, null, null), METADATA_TTL_MILLIS, 
+				responseBuilder);
 	}
 	
 	
@@ -262,6 +472,7 @@ list/group
 	 */
 	public void setAutoSwitchGroupOnLogin(boolean b) {
 		this.autoSwitchGroupOnLogin = b;
+		upstreamSessions.setAutoSwitchGroup(b);
 	}
 
 
@@ -273,29 +484,31 @@ list/group
 			throw new AuthenticationException(errmsg + " (0)");
 		}
 		
+		// Only logs in upstream if none of the shared upstream sessions is free
 		try {
-			DALClient client = new DefaultDALClient(dalUrl);
-			if (USE_JSON) {
-				client.setResponseType(ResponseType.JSON);
-			}
-			client.setSessionExpiryOption(seo);
-			client.setAutoSwitchGroupOnLogin(autoSwitchGroupOnLogin);
-			client.login(dalUsername, dalPassword);
-			clientBySessionId.put(newSessionId, client);
-			return new UserInfoImpl(userName, client.getUserId());
-		} catch (DalException e) {
-			throw new AuthenticationException(e);
-		} catch (IOException e) {
+			String userId = performUpstream(null, "login", new UpstreamCall<String>() {
+				@Override
+				public String call(DALClient client) {
+					return client.getUserId();
+				}
+			});
+			UserInfo userInfo = new UserInfoImpl(userName, userId);
+			userInfoBySessionId.put(newSessionId, userInfo);
+			return userInfo;
+		} catch (DalDbException e) {
 			throw new AuthenticationException(e);
 		}
 	}
 	
 	@Override
 	public void doLogout(DalSession session) {
-		DALClient client = clientBySessionId.remove(session.sessionId);
-		if (client != null) {
-			client.logout();
-		}
+		userInfoBySessionId.remove(session.sessionId);
+		removeCachedGroupLists(session);
+	}
+	
+	@Override
+	public void groupSwitched(DalSession session) {
+		removeCachedGroupLists(session);
 	}
 
 	@Override
@@ -326,10 +539,12 @@ list/group
 
 	@Override
 	public void shutdown() throws DalDbException {
-		Collection<DALClient> clients = clientBySessionId.values();
-		clientBySessionId.clear();
-		for (DALClient client : clients) {
-			client.logout();
+		userInfoBySessionId.clear();
+		responseCache.shutdown();
+		upstreamExecutor.shutdown();
+		upstreamSessions.close();
+		if (httpPoolReleased.compareAndSet(false, true)) {
+			PooledDalHttpFactory.releasePool();
 		}
 	}
 
@@ -420,9 +635,12 @@ list/group
 //	}
 
 	class ForwardingDalOperation extends AbstractDalOperation<KddartDalDatabase> {
+		
+		private final long cacheTtlMillis;
 
 		public ForwardingDalOperation(String entityName, String template) {
 			super(KddartDalDatabase.this, entityName, template);
+			this.cacheTtlMillis = ForwardingResponseCache.getTtlMillis(template);
 		}
 
 		@Override
@@ -435,22 +653,30 @@ list/group
 				Map<String,String> filePathByName) 
 		throws DalDbException {
 			
-			DALClient client = clientBySessionId.get(session.sessionId);
-
-			if (client == null) {
-				throw new AuthenticationException("Not logged in");
-			}
+			checkLoggedIn(session);
 			
 			if (Method.GET == method) {
-				try {
-					DalResponse response = client.performQuery(dalcmd);
-
-					feedResponseToResponseBuilder(response, responseBuilder);
+				final String groupId = session.getGroupId();
+				final String command = dalcmd;
+				final String flightKey = SingleFlight.createKey(dalcmd, methodParms, session);
+				// Without a group the response depends on the upstream session's
+				// login group, so it isn't shared through the cache
+				if (cacheTtlMillis > 0 && groupId != null) {
+					String key = ForwardingResponseCache.createKey(dalcmd, 
+							methodParms.get(DalOperation.OPTION_FILTERING), groupId);
 					
-				} catch (DalResponseException e) {
-					throw new DalDbException(e);
-				} catch (IOException e) {
-					throw new DalDbException(e);
+					RecordedResponse recorded = responseCache.get(key, cacheTtlMillis, new ForwardingResponseCache.Loader() {
+						@Override
+						public RecordedResponse load() throws DalDbException {
+							RecordedResponse result = new RecordedResponse();
+							feedResponse(performSharedUpstreamQuery(flightKey, groupId, command), result);
+							return result;
+						}
+					});
+					recorded.replayTo(responseBuilder);
+				}
+				else {
+					feedResponse(performSharedUpstreamQuery(flightKey, groupId, command), responseBuilder);
 				}
 			}
 			else if (Method.POST == method) {
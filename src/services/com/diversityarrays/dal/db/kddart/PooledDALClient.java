@@ -0,0 +1,45 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.kddart;
+
+import com.diversityarrays.dalclient.DefaultDALClient;
+
+/**
+ * A DefaultDALClient that uses a PooledDalHttpFactory to share
+ * its HTTP connections with the other PooledDALClient instances.
+ * <p>
+ * DefaultDALClient chooses its DalHttpFactory from the system property
+ * <code><i>classname</i>.HTTP_FACTORY_CLASS_NAME</code> so this is set
+ * (unless already provided) for this class only.
+ * @author brian
+ *
+ */
+public class PooledDALClient extends DefaultDALClient {
+	
+	static {
+		String propertyName = PooledDALClient.class.getName() + ".HTTP_FACTORY_CLASS_NAME";
+		if (System.getProperty(propertyName) == null) {
+			System.setProperty(propertyName, PooledDalHttpFactory.class.getName());
+		}
+	}
+
+	public PooledDALClient(String baseUrl) {
+		super(baseUrl);
+	}
+
+}
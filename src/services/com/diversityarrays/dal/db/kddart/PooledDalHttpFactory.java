@@ -0,0 +1,349 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.kddart;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import com.diversityarrays.dal.db.PoolStatistics;
+import com.diversityarrays.dal.db.UpstreamHttpStatistics;
+import com.diversityarrays.dalclient.DalUtil;
+import com.diversityarrays.dalclient.http.DalCloseableHttpClient;
+import com.diversityarrays.dalclient.http.DalCloseableHttpResponse;
+import com.diversityarrays.dalclient.http.DalHeader;
+import com.diversityarrays.dalclient.http.DalRequest;
+import com.diversityarrays.dalclient.httpimpl.DalCloseableHttpClientImpl;
+import com.diversityarrays.dalclient.httpimpl.DalHttpFactoryImpl;
+
+/**
+ * A DalHttpFactory whose HTTP clients all share a single pooled connection manager
+ * so that connections to the upstream DAL server are kept alive and re-used
+ * across DALClient instances (i.e. across DAL sessions).
+ * <p>
+ * Each DALClient still gets its own HttpClient and therefore its own cookie store;
+ * only the connections are shared. Closing one of these clients does not close
+ * the shared pool.
+ * <p>
+ * The pool is owned by the KddartDalDatabase instances that use it: each calls
+ * <code>acquirePool()</code> when it is created and <code>releasePool()</code> when
+ * it is shut down. When the last one releases it the pool and its idle connection
+ * evictor are shut down; the pool is created again if it is needed after that.
+ * <p>
+ * The pool limits and idle time can be changed with the system properties
+ * <code>KDDART_HTTP_MAX_CONNECTIONS</code> (default 50),
+ * <code>KDDART_HTTP_MAX_PER_ROUTE</code> (default 20) and
+ * <code>KDDART_HTTP_IDLE_SECONDS</code> (default 60).
+ * So that a request can never block indefinitely, connecting and waiting for data
+ * are limited by <code>KDDART_HTTP_CONNECT_TIMEOUT_SECONDS</code> (default 10) and
+ * <code>KDDART_HTTP_SOCKET_TIMEOUT_SECONDS</code> (default 60).
+ * Timings are recorded in UpstreamHttpStatistics.
+ * @author brian
+ *
+ */
+public class PooledDalHttpFactory extends DalHttpFactoryImpl {
+	
+	static private final int MAX_CONNECTIONS = Integer.getInteger("KDDART_HTTP_MAX_CONNECTIONS", 50);
+	static private final int MAX_PER_ROUTE = Integer.getInteger("KDDART_HTTP_MAX_PER_ROUTE", 20);
+	static private final int IDLE_SECONDS = Integer.getInteger("KDDART_HTTP_IDLE_SECONDS", 60);
+	static private final int CONNECT_TIMEOUT_SECONDS = Integer.getInteger("KDDART_HTTP_CONNECT_TIMEOUT_SECONDS", 10);
+	static private final int SOCKET_TIMEOUT_SECONDS = Integer.getInteger("KDDART_HTTP_SOCKET_TIMEOUT_SECONDS", 60);
+	
+	static private final RequestConfig REQUEST_CONFIG = RequestConfig.custom()
+			.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(CONNECT_TIMEOUT_SECONDS))
+			.setConnectionRequestTimeout((int) TimeUnit.SECONDS.toMillis(CONNECT_TIMEOUT_SECONDS))
+			.setSocketTimeout((int) TimeUnit.SECONDS.toMillis(SOCKET_TIMEOUT_SECONDS))
+			.build();
+	
+	/**
+	 * Lease-wait and connect times for the request currently being
+	 * executed by this thread.
+	 */
+	static private final ThreadLocal<long[]> CONNECTION_NANOS = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+	
+	static class TimingConnectionManager extends PoolingHttpClientConnectionManager {
+
+		TimingConnectionManager(Registry<ConnectionSocketFactory> registry) {
+			super(registry);
+		}
+
+		@Override
+		public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+			final ConnectionRequest request = super.requestConnection(route, state);
+			return new ConnectionRequest() {
+				@Override
+				public boolean cancel() {
+					return request.cancel();
+				}
+				
+				@Override
+				public HttpClientConnection get(long timeout, TimeUnit tunit) 
+				throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException 
+				{
+					long start = System.nanoTime();
+					try {
+						return request.get(timeout, tunit);
+					} finally {
+						long elapsed = System.nanoTime() - start;
+						UpstreamHttpStatistics.LEASE_WAIT.record(elapsed);
+						CONNECTION_NANOS.get()[0] += elapsed;
+					}
+				}
+			};
+		}
+
+		@Override
+		public void connect(HttpClientConnection managedConn, HttpRoute route, int connectTimeout, HttpContext context) 
+		throws IOException 
+		{
+			long start = System.nanoTime();
+			try {
+				super.connect(managedConn, route, connectTimeout, context);
+			} finally {
+				long elapsed = System.nanoTime() - start;
+				UpstreamHttpStatistics.CONNECT.record(elapsed);
+				CONNECTION_NANOS.get()[0] += elapsed;
+			}
+		}
+	}
+	
+	/**
+	 * Closes expired and idle connections in the shared pool.
+	 */
+	static class IdleConnectionEvictor extends Thread {
+		
+		private final PoolingHttpClientConnectionManager connectionManager;
+
+		IdleConnectionEvictor(PoolingHttpClientConnectionManager cm) {
+			super("KDDart-IdleConnectionEvictor");
+			setDaemon(true);
+			this.connectionManager = cm;
+		}
+		
+		@Override
+		public void run() {
+			long sleepMillis = TimeUnit.SECONDS.toMillis(Math.max(1, IDLE_SECONDS / 2));
+			try {
+				while (true) {
+					Thread.sleep(sleepMillis);
+					connectionManager.closeExpiredConnections();
+					connectionManager.closeIdleConnections(IDLE_SECONDS, TimeUnit.SECONDS);
+				}
+			} catch (InterruptedException e) {
+				// Exit
+			}
+		}
+	}
+	
+	static private TimingConnectionManager connectionManager;
+	static private IdleConnectionEvictor evictor;
+	static private int ownerCount;
+	
+	/**
+	 * Reports the shared pool while it exists.
+	 */
+	static private final PoolStatistics.Pool POOL_STATISTICS = new PoolStatistics.Pool("Upstream HTTP connections") {
+		@Override
+		public int getInUse() {
+			PoolStats stats = getTotalStats();
+			return stats == null ? 0 : stats.getLeased();
+		}
+		
+		@Override
+		public int getIdle() {
+			PoolStats stats = getTotalStats();
+			return stats == null ? 0 : stats.getAvailable();
+		}
+		
+		@Override
+		public int getWaiting() {
+			PoolStats stats = getTotalStats();
+			return stats == null ? 0 : stats.getPending();
+		}
+		
+		@Override
+		public int getMax() {
+			return MAX_CONNECTIONS;
+		}
+	};
+	
+	/**
+	 * @return the totals for the shared pool or null if it hasn't been created
+	 */
+	static synchronized private PoolStats getTotalStats() {
+		return connectionManager == null ? null : connectionManager.getTotalStats();
+	}
+	
+	/**
+	 * Register an owner of the shared pool.
+	 */
+	static synchronized public void acquirePool() {
+		++ownerCount;
+	}
+	
+	/**
+	 * Called once by each owner when it no longer needs the shared pool.
+	 */
+	static synchronized public void releasePool() {
+		if (ownerCount > 0 && --ownerCount == 0) {
+			shutdownPool();
+		}
+	}
+	
+	static synchronized private void shutdownPool() {
+		if (evictor != null) {
+			evictor.interrupt();
+			evictor = null;
+		}
+		if (connectionManager != null) {
+			PoolStatistics.unregister(POOL_STATISTICS);
+			connectionManager.shutdown();
+			connectionManager = null;
+		}
+	}
+	
+	static synchronized private TimingConnectionManager getConnectionManager() {
+		if (connectionManager == null) {
+			// Same trust as DefaultDALClient uses for its own clients
+			SSLContext sslContext = DalUtil.createTrustingSSLContext();
+			Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+					.register("http", PlainConnectionSocketFactory.getSocketFactory())
+					.register("https", new SSLConnectionSocketFactory(sslContext))
+					.build();
+			
+			TimingConnectionManager cm = new TimingConnectionManager(registry);
+			cm.setMaxTotal(MAX_CONNECTIONS);
+			cm.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+			
+			evictor = new IdleConnectionEvictor(cm);
+			evictor.start();
+			
+			connectionManager = cm;
+			PoolStatistics.register(POOL_STATISTICS);
+		}
+		return connectionManager;
+	}
+	
+	/**
+	 * Honour the server's Keep-Alive header but don't keep a connection
+	 * for longer than the idle limit.
+	 */
+	static private final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = new DefaultConnectionKeepAliveStrategy() {
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			long result = super.getKeepAliveDuration(response, context);
+			long max = TimeUnit.SECONDS.toMillis(IDLE_SECONDS);
+			return (result <= 0 || result > max) ? max : result;
+		}
+	};
+	
+	public PooledDalHttpFactory() {
+	}
+
+	@Override
+	public DalCloseableHttpClient createCloseableHttpClient(SSLContext ignored) {
+		// The SSLContext is fixed by the shared connection manager
+		final DalCloseableHttpClient client = new DalCloseableHttpClientImpl(
+				HttpClients.custom()
+					.setConnectionManager(getConnectionManager())
+					.setKeepAliveStrategy(KEEP_ALIVE_STRATEGY)
+					.setDefaultRequestConfig(REQUEST_CONFIG)
+					.build());
+		
+		return new DalCloseableHttpClient() {
+			@Override
+			public DalCloseableHttpResponse execute(DalRequest request) throws IOException {
+				long[] connectionNanos = CONNECTION_NANOS.get();
+				connectionNanos[0] = 0;
+				long start = System.nanoTime();
+				DalCloseableHttpResponse response = client.execute(request);
+				UpstreamHttpStatistics.RESPONSE.record(System.nanoTime() - start - connectionNanos[0]);
+				return new TimingResponse(response);
+			}
+			
+			@Override
+			public void close() throws IOException {
+				// Closing the HttpClient would shut down the shared connection manager
+			}
+		};
+	}
+	
+	static class TimingResponse implements DalCloseableHttpResponse {
+		
+		private final DalCloseableHttpResponse response;
+
+		TimingResponse(DalCloseableHttpResponse response) {
+			this.response = response;
+		}
+
+		@Override
+		public void close() throws IOException {
+			response.close();
+		}
+
+		@Override
+		public DalHeader[] getAllHeaders() {
+			return response.getAllHeaders();
+		}
+
+		@Override
+		public int getStatusCode() {
+			return response.getStatusCode();
+		}
+
+		@Override
+		public String getReasonPhrase() {
+			return response.getReasonPhrase();
+		}
+
+		@Override
+		public String getEntityAsString() throws IOException {
+			long start = System.nanoTime();
+			try {
+				return response.getEntityAsString();
+			} finally {
+				UpstreamHttpStatistics.READ.record(System.nanoTime() - start);
+			}
+		}
+	}
+}
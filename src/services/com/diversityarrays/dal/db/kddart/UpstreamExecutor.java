@@ -0,0 +1,206 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.kddart;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.db.PoolStatistics;
+import com.diversityarrays.dal.db.UpstreamHttpStatistics;
+import com.diversityarrays.dal.server.RequestWorker;
+import com.diversityarrays.dal.sqldb.QueryContext;
+import com.diversityarrays.dalclient.DalLoginException;
+import com.diversityarrays.dalclient.DalResponseException;
+import com.diversityarrays.dalclient.DalResponseHttpException;
+
+/**
+ * Performs the calls to the upstream DAL server on its own bounded set of threads
+ * so that a slow or unresponsive upstream server can't tie up all of the
+ * threads that are serving requests.
+ * <ul>
+ *   <li>The caller waits no longer than the time remaining for its request
+ *       (from its QueryContext) or <code>timeoutMillis</code>, whichever is less.</li>
+ *   <li>At most <code>maxConcurrent</code> calls run at once with up to
+ *       <code>maxQueued</code> waiting; further calls are rejected immediately.</li>
+ *   <li>Calls are rejected immediately while the CircuitBreaker is open.</li>
+ * </ul>
+ * Only errors from (or talking to) the upstream server count as breaker failures
+ * or successes; local errors such as no session being available are ignored.
+ * The CPU time and allocation of each call are added to the caller's QueryContext.
+ * @author brian
+ *
+ */
+class UpstreamExecutor {
+	
+	static private final int SERVER_ERROR = 500;
+	
+	private final ThreadPoolExecutor executor;
+	private final long timeoutMillis;
+	private final CircuitBreaker breaker;
+	private final PoolStatistics.Pool pool;
+
+	UpstreamExecutor(int maxConcurrent, int maxQueued, long timeoutMillis, CircuitBreaker breaker) {
+		this.timeoutMillis = timeoutMillis;
+		this.breaker = breaker;
+		
+		int nThreads = Math.max(1, maxConcurrent);
+		executor = new ThreadPoolExecutor(nThreads, nThreads, 
+				60, TimeUnit.SECONDS, 
+				new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued)),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "KDDart-Upstream-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		
+		pool = PoolStatistics.forExecutor("Upstream DAL call threads", executor);
+		PoolStatistics.register(pool);
+	}
+	
+	/**
+	 * @param task
+	 * @return the result of the task
+	 * @throws DalDbException if the task failed, took too long or was rejected
+	 */
+	<T> T execute(final Callable<T> task) throws DalDbException {
+		if (! breaker.allowRequest()) {
+			UpstreamHttpStatistics.BREAKER_REJECTED.incrementAndGet();
+			throw new DalDbException("Upstream DAL server is unavailable (circuit breaker is open)");
+		}
+		
+		long waitMillis = timeoutMillis;
+		boolean limitedByRequest = false;
+		final QueryContext ctx = QueryContext.current();
+		if (ctx != null) {
+			long remaining = ctx.getRemainingMillis();
+			if (remaining < waitMillis) {
+				waitMillis = remaining;
+				limitedByRequest = true;
+			}
+		}
+		if (waitMillis <= 0) {
+			breaker.recordIgnored();
+			throw new DalDbException("Request deadline exceeded before calling upstream DAL server");
+		}
+		
+		Future<T> future;
+		try {
+			future = executor.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					RequestWorker worker = RequestWorker.start(ctx);
+					try {
+						return task.call();
+					}
+					finally {
+						worker.finish();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			breaker.recordIgnored();
+			UpstreamHttpStatistics.BULKHEAD_REJECTED.incrementAndGet();
+			throw new DalDbException("Too many requests waiting for the upstream DAL server");
+		}
+		
+		try {
+			T result = future.get(waitMillis, TimeUnit.MILLISECONDS);
+			breaker.recordSuccess();
+			return result;
+		} catch (TimeoutException e) {
+			// The upstream call can't be interrupted; it finishes (or hits its
+			// socket timeout) in the background but nobody waits for it.
+			future.cancel(true);
+			UpstreamHttpStatistics.DEADLINE_EXCEEDED.incrementAndGet();
+			if (limitedByRequest) {
+				breaker.recordIgnored();
+			}
+			else {
+				breaker.recordFailure();
+			}
+			throw new DalDbException("No response from upstream DAL server within " + waitMillis + "ms");
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			breaker.recordIgnored();
+			Thread.currentThread().interrupt();
+			throw new DalDbException("Interrupted while waiting for upstream DAL server", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (isUpstreamFailure(cause)) {
+				breaker.recordFailure();
+			}
+			else if (isUpstreamResponse(cause)) {
+				breaker.recordSuccess();
+			}
+			else {
+				// e.g. no upstream session was available; says nothing about the server
+				breaker.recordIgnored();
+			}
+			if (cause instanceof DalDbException) {
+				throw (DalDbException) cause;
+			}
+			throw new DalDbException(cause);
+		}
+	}
+	
+	/**
+	 * @param t
+	 * @return true if the exception shows that the upstream server is not working properly
+	 */
+	private boolean isUpstreamFailure(Throwable t) {
+		Throwable cause = getUpstreamCause(t);
+		if (cause instanceof DalResponseHttpException) {
+			DalResponseHttpException e = (DalResponseHttpException) cause;
+			return e.responseInfo == null || e.responseInfo.httpStatusCode >= SERVER_ERROR;
+		}
+		return cause instanceof IOException || cause instanceof RuntimeException;
+	}
+	
+	/**
+	 * @param t
+	 * @return true if the exception shows that the upstream server responded (with an error)
+	 */
+	private boolean isUpstreamResponse(Throwable t) {
+		Throwable cause = getUpstreamCause(t);
+		return cause instanceof DalResponseException || cause instanceof DalLoginException;
+	}
+	
+	static private Throwable getUpstreamCause(Throwable t) {
+		return t instanceof DalDbException && t.getCause() != null ? t.getCause() : t;
+	}
+	
+	void shutdown() {
+		PoolStatistics.unregister(pool);
+		executor.shutdownNow();
+	}
+}
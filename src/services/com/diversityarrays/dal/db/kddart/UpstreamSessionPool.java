@@ -0,0 +1,292 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.kddart;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.db.UpstreamHttpStatistics;
+import com.diversityarrays.dalclient.DALClient;
+import com.diversityarrays.dalclient.DalException;
+import com.diversityarrays.dalclient.DalResponseHttpException;
+import com.diversityarrays.dalclient.ResponseType;
+
+/**
+ * A bounded pool of DALClient instances that are logged in to the upstream
+ * DAL server with the service credentials.
+ * <p>
+ * All of the local sessions share these upstream sessions: each request leases
+ * one for just as long as it takes to perform its upstream call.
+ * A client that is already in the group of the local session is preferred,
+ * otherwise the leased client is switched to that group first. A local session
+ * that hasn't chosen a group gets a client in the group it was given at login
+ * (switching it back, or logging in again, if necessary) so that its results
+ * don't depend on which group the previous user of the client chose.
+ * If the upstream session has expired (HTTP 401) the client logs in again and
+ * the call is retried once.
+ * @author brian
+ *
+ */
+class UpstreamSessionPool {
+	
+	static private final int UNAUTHORIZED = 401;
+	
+	/**
+	 * A call to be made using a leased DALClient.
+	 * @param <T>
+	 */
+	interface UpstreamCall<T> {
+		public T call(DALClient client) throws DalException, IOException;
+	}
+	
+	private final String dalUrl;
+	private final String username;
+	private final String password;
+	private volatile boolean autoSwitchGroup;
+	private final boolean useJson;
+	private final int maxSessions;
+	private final long leaseTimeoutMillis;
+
+	private final LinkedList<DALClient> idle = new LinkedList<DALClient>();
+	private final List<DALClient> all = new ArrayList<DALClient>();
+	// The group each client was in just after it logged in (null if none)
+	private final Map<DALClient,String> loginGroupByClient = new IdentityHashMap<DALClient,String>();
+	private int nCreating;
+	private boolean closed;
+
+	UpstreamSessionPool(String dalUrl, String username, String password, 
+			boolean autoSwitchGroup, boolean useJson, 
+			int maxSessions, int leaseTimeoutSeconds) 
+	{
+		this.dalUrl = dalUrl;
+		this.username = username;
+		this.password = password;
+		this.autoSwitchGroup = autoSwitchGroup;
+		this.useJson = useJson;
+		this.maxSessions = Math.max(1, maxSessions);
+		this.leaseTimeoutMillis = TimeUnit.SECONDS.toMillis(leaseTimeoutSeconds);
+		UpstreamHttpStatistics.setMaxSessions(this.maxSessions);
+	}
+	
+	/**
+	 * Applies to upstream sessions which are logged in after this call.
+	 * @param b
+	 */
+	void setAutoSwitchGroup(boolean b) {
+		autoSwitchGroup = b;
+	}
+	
+	/**
+	 * Perform the call using an upstream session that is in the required group.
+	 * @param groupId null if the local session hasn't chosen a group
+	 * @param call
+	 * @return the result of the call
+	 * @throws DalDbException
+	 */
+	<T> T perform(String groupId, UpstreamCall<T> call) throws DalDbException {
+		DALClient client = lease(groupId);
+		UpstreamHttpStatistics.SESSIONS_LEASED.incrementAndGet();
+		boolean reusable = false;
+		try {
+			ensureGroup(client, groupId);
+			T result;
+			try {
+				result = call.call(client);
+			} catch (DalResponseHttpException e) {
+				if (e.responseInfo == null || e.responseInfo.httpStatusCode != UNAUTHORIZED) {
+					throw e;
+				}
+				// Upstream session has expired
+				login(client);
+				ensureGroup(client, groupId);
+				result = call.call(client);
+			}
+			reusable = true;
+			return result;
+		} catch (DalResponseHttpException e) {
+			// The upstream server answered so the session is still usable
+			reusable = true;
+			throw new DalDbException(e);
+		} catch (DalException e) {
+			throw new DalDbException(e);
+		} catch (IOException e) {
+			throw new DalDbException(e);
+		} finally {
+			release(client, reusable);
+			UpstreamHttpStatistics.SESSIONS_LEASED.decrementAndGet();
+		}
+	}
+
+	private void ensureGroup(DALClient client, String groupId) throws IOException, DalException {
+		if (groupId == null) {
+			String loginGroupId = getLoginGroupId(client);
+			if (! isSameGroup(loginGroupId, client.getGroupId())) {
+				if (loginGroupId != null) {
+					client.switchGroup(loginGroupId);
+				}
+				else {
+					// There is no way to leave a group other than a new session
+					client.logout();
+					login(client);
+				}
+			}
+		}
+		else if (! groupId.equals(client.getGroupId())) {
+			client.switchGroup(groupId);
+		}
+	}
+	
+	static private boolean isSameGroup(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+	
+	private void login(DALClient client) throws DalException, IOException {
+		client.login(username, password);
+		synchronized (this) {
+			loginGroupByClient.put(client, client.getGroupId());
+		}
+	}
+	
+	synchronized private String getLoginGroupId(DALClient client) {
+		return loginGroupByClient.get(client);
+	}
+	
+	private DALClient lease(String groupId) throws DalDbException {
+		long deadline = System.currentTimeMillis() + leaseTimeoutMillis;
+		synchronized (this) {
+			while (true) {
+				if (closed) {
+					throw new DalDbException("Upstream session pool is closed");
+				}
+				if (! idle.isEmpty()) {
+					return removeIdle(groupId);
+				}
+				if (all.size() + nCreating < maxSessions) {
+					++nCreating;
+					break;
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new DalDbException("Timed out waiting for an upstream DAL session (" + maxSessions + " in use)");
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DalDbException("Interrupted while waiting for an upstream DAL session", e);
+				}
+			}
+		}
+		
+		// Log in outside the lock
+		DALClient client = null;
+		try {
+			client = createClient();
+			return client;
+		} catch (DalException e) {
+			throw new DalDbException(e);
+		} catch (IOException e) {
+			throw new DalDbException(e);
+		} finally {
+			synchronized (this) {
+				--nCreating;
+				if (client != null) {
+					all.add(client);
+				}
+				notifyAll();
+			}
+		}
+	}
+	
+	private DALClient createClient() throws DalException, IOException {
+		DALClient client = new PooledDALClient(dalUrl);
+		if (useJson) {
+			client.setResponseType(ResponseType.JSON);
+		}
+		client.setAutoSwitchGroupOnLogin(autoSwitchGroup);
+		login(client);
+		return client;
+	}
+	
+	private void release(DALClient client, boolean reusable) {
+		boolean logout = false;
+		synchronized (this) {
+			if (reusable && ! closed) {
+				idle.addFirst(client);
+			}
+			else {
+				all.remove(client);
+				loginGroupByClient.remove(client);
+				logout = true;
+			}
+			notifyAll();
+		}
+		if (logout) {
+			client.logout();
+		}
+	}
+	
+	/**
+	 * Remove and return an idle client, preferring one that is already in the group
+	 * (or, if groupId is null, still in its login group).
+	 * Must be called while synchronized.
+	 */
+	private DALClient removeIdle(String groupId) {
+		for (Iterator<DALClient> iter = idle.iterator(); iter.hasNext(); ) {
+			DALClient client = iter.next();
+			String wanted = groupId != null ? groupId : loginGroupByClient.get(client);
+			if (isSameGroup(wanted, client.getGroupId())) {
+				iter.remove();
+				return client;
+			}
+		}
+		return idle.removeFirst();
+	}
+	
+	/**
+	 * @return the number of upstream sessions currently logged in
+	 */
+	synchronized int getSessionCount() {
+		return all.size();
+	}
+	
+	/**
+	 * Log out all of the upstream sessions.
+	 */
+	void close() {
+		List<DALClient> clients;
+		synchronized (this) {
+			closed = true;
+			clients = new ArrayList<DALClient>(all);
+			all.clear();
+			idle.clear();
+			loginGroupByClient.clear();
+			notifyAll();
+		}
+		for (DALClient client : clients) {
+			client.logout();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.kddart;
+
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.db.DalResponseBuilder;
+import com.diversityarrays.dalclient.DALClient;
+
+/**
+ * Copies an XML DAL response into a DalResponseBuilder in a single pass
+ * with a streaming (StAX) parser rather than building a DOM.
+ * <p>
+ * The children of the root (DATA) element become the top-level tags of the
+ * builder, with their attributes and nested elements, except for the
+ * RecordMeta elements which are added using <code>addResponseMeta()</code>.
+ * @author brian
+ *
+ */
+class XmlResponseTranscoder {
+	
+	static private final ThreadLocal<XMLInputFactory> INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+		@Override
+		protected XMLInputFactory initialValue() {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+			return factory;
+		}
+	};
+	
+	/**
+	 * @param xml
+	 * @param builder
+	 * @throws DalDbException if the XML can't be parsed
+	 */
+	static void feed(String xml, DalResponseBuilder builder) throws DalDbException {
+		XMLStreamReader reader = null;
+		try {
+			reader = INPUT_FACTORY.get().createXMLStreamReader(new StringReader(xml));
+			
+			int depth = 0;
+			boolean inRecordMeta = false;
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					++depth;
+					if (depth == 1) {
+						// The DATA element
+						break;
+					}
+					String tag = reader.getLocalName();
+					if (depth == 2 && DALClient.TAG_RECORD_META.equals(tag)) {
+						inRecordMeta = true;
+						String tagName = reader.getAttributeValue(null, DALClient.ATTR_TAG_NAME);
+						if (tagName != null) {
+							builder.addResponseMeta(tagName);
+						}
+					}
+					else if (! inRecordMeta) {
+						builder.startTag(tag);
+						int nAttributes = reader.getAttributeCount();
+						for (int i = 0; i < nAttributes; ++i) {
+							builder.attribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+						}
+					}
+					break;
+					
+				case XMLStreamConstants.END_ELEMENT:
+					if (depth > 1) {
+						if (inRecordMeta) {
+							if (depth == 2) {
+								inRecordMeta = false;
+							}
+						}
+						else {
+							builder.endTag();
+						}
+					}
+					--depth;
+					break;
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new DalDbException("Invalid XML response from upstream DAL server", e);
+		} finally {
+			if (reader != null) {
+				try { reader.close(); }
+				catch (XMLStreamException ignore) { }
+			}
+		}
+	}
+	
+	private XmlResponseTranscoder() {
+	}
+}
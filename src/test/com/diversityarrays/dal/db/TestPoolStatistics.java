@@ -0,0 +1,118 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestPoolStatistics {
+	
+	static private PoolStatistics.Pool fixed(String name) {
+		return new PoolStatistics.Pool(name) {
+			@Override
+			public int getInUse() {
+				return 1;
+			}
+			
+			@Override
+			public int getIdle() {
+				return 2;
+			}
+			
+			@Override
+			public int getWaiting() {
+				return 3;
+			}
+			
+			@Override
+			public int getMax() {
+				return -1;
+			}
+		};
+	}
+
+	@Test
+	public void testRegisterAndUnregister() {
+		PoolStatistics.Pool a = fixed("a");
+		PoolStatistics.Pool b = fixed("b");
+		PoolStatistics.register(a);
+		PoolStatistics.register(b);
+		try {
+			int ia = PoolStatistics.getPools().indexOf(a);
+			int ib = PoolStatistics.getPools().indexOf(b);
+			assertTrue(ia >= 0);
+			assertTrue("registration order is kept", ib > ia);
+			
+			PoolStatistics.unregister(a);
+			assertFalse(PoolStatistics.getPools().contains(a));
+			assertTrue(PoolStatistics.getPools().contains(b));
+			
+			// A second unregister does nothing
+			PoolStatistics.unregister(a);
+		}
+		finally {
+			PoolStatistics.unregister(a);
+			PoolStatistics.unregister(b);
+		}
+	}
+
+	@Test
+	public void testExecutorPool() throws InterruptedException {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 
+				60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(5));
+		final CountDownLatch started = new CountDownLatch(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// Exit
+				}
+			}
+		};
+		try {
+			PoolStatistics.Pool pool = PoolStatistics.forExecutor("test", executor);
+			assertEquals("test", pool.getName());
+			assertEquals(2, pool.getMax());
+			assertEquals(0, pool.getInUse());
+			
+			for (int i = 0; i < 3; ++i) {
+				executor.execute(task);
+			}
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			assertEquals(2, pool.getInUse());
+			assertEquals(0, pool.getIdle());
+			assertEquals(1, pool.getWaiting());
+		}
+		finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.diversityarrays.dal.sqldb.QueryContext;
+
+public class TestSingleFlight {
+	
+	/**
+	 * Counts its calls; the first waits until released and then fails if told to.
+	 */
+	static class BlockingCall implements SingleFlight.Call<Object> {
+		final AtomicInteger count = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		volatile boolean firstFails;
+		
+		@Override
+		public Object call() throws DalDbException {
+			int n = count.incrementAndGet();
+			if (n == 1) {
+				started.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new DalDbException(e);
+				}
+				if (firstFails) {
+					throw new DalDbException("first call failed");
+				}
+			}
+			return "result " + n;
+		}
+	}
+	
+	/**
+	 * Runs <code>execute()</code> on another thread and keeps the outcome.
+	 */
+	static class Follower extends Thread {
+		final SingleFlight<Object> flight;
+		final String key;
+		final SingleFlight.Call<Object> call;
+		final QueryContext queryContext;
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		
+		Follower(SingleFlight<Object> flight, String key, SingleFlight.Call<Object> call, QueryContext ctx) {
+			this.flight = flight;
+			this.key = key;
+			this.call = call;
+			this.queryContext = ctx;
+		}
+		
+		@Override
+		public void run() {
+			QueryContext previous = queryContext == null ? null : queryContext.attach();
+			try {
+				result.set(flight.execute(key, call));
+			} catch (Throwable t) {
+				error.set(t);
+			} finally {
+				if (queryContext != null) {
+					QueryContext.restore(previous);
+				}
+			}
+		}
+	}
+	
+	static private Follower startLeader(SingleFlight<Object> flight, BlockingCall call) throws InterruptedException {
+		Follower leader = new Follower(flight, "k", call, null);
+		leader.start();
+		assertTrue(call.started.await(5, TimeUnit.SECONDS));
+		return leader;
+	}
+
+	@Test
+	public void testConcurrentCallsShareResult() throws Exception {
+		SingleFlight<Object> flight = new SingleFlight<Object>();
+		BlockingCall call = new BlockingCall();
+		
+		Follower leader = startLeader(flight, call);
+		Follower follower = new Follower(flight, "k", call, null);
+		follower.start();
+		// Give the follower time to join the flight
+		Thread.sleep(100);
+		call.release.countDown();
+		leader.join(5000);
+		follower.join(5000);
+		
+		assertEquals(1, call.count.get());
+		assertEquals("result 1", leader.result.get());
+		assertSame(leader.result.get(), follower.result.get());
+	}
+
+	@Test
+	public void testDifferentKeysDontShare() throws Exception {
+		SingleFlight<Object> flight = new SingleFlight<Object>();
+		BlockingCall call = new BlockingCall();
+		
+		Follower leader = startLeader(flight, call);
+		Object other = flight.execute("other", call);
+		call.release.countDown();
+		leader.join(5000);
+		
+		assertEquals(2, call.count.get());
+		assertEquals("result 2", other);
+	}
+
+	@Test
+	public void testResultIsNotKept() throws Exception {
+		SingleFlight<Object> flight = new SingleFlight<Object>();
+		BlockingCall call = new BlockingCall();
+		call.release.countDown();
+		
+		assertEquals("result 1", flight.execute("k", call));
+		assertEquals("result 2", flight.execute("k", call));
+	}
+
+	@Test
+	public void testFailureIsNotShared() throws Exception {
+		SingleFlight<Object> flight = new SingleFlight<Object>();
+		BlockingCall call = new BlockingCall();
+		call.firstFails = true;
+		
+		Follower leader = startLeader(flight, call);
+		Follower follower = new Follower(flight, "k", call, null);
+		follower.start();
+		Thread.sleep(100);
+		call.release.countDown();
+		leader.join(5000);
+		follower.join(5000);
+		
+		assertTrue(leader.error.get() instanceof DalDbException);
+		// The follower performed the call itself
+		assertEquals(null, follower.error.get());
+		assertEquals("result 2", follower.result.get());
+		assertEquals(2, call.count.get());
+	}
+
+	@Test
+	public void testLeaderFailureIsThrownToLeader() throws Exception {
+		SingleFlight<Object> flight = new SingleFlight<Object>();
+		try {
+			flight.execute("k", new SingleFlight.Call<Object>() {
+				@Override
+				public Object call() throws DalDbException {
+					throw new DalDbException("boom");
+				}
+			});
+			fail("expected a DalDbException");
+		} catch (DalDbException e) {
+			assertEquals("boom", e.getMessage());
+		}
+		// and nothing is left behind
+		assertEquals("ok", flight.execute("k", new SingleFlight.Call<Object>() {
+			@Override
+			public Object call() {
+				return "ok";
+			}
+		}));
+	}
+
+	@Test
+	public void testFollowerGivesUpAtItsDeadline() throws Exception {
+		SingleFlight<Object> flight = new SingleFlight<Object>();
+		BlockingCall call = new BlockingCall();
+		
+		Follower leader = startLeader(flight, call);
+		QueryContext ctx = new QueryContext("follower", System.currentTimeMillis());
+		ctx.limitTimeout(50);
+		Follower follower = new Follower(flight, "k", call, ctx);
+		follower.start();
+		follower.join(5000);
+		
+		assertTrue(String.valueOf(follower.error.get()), follower.error.get() instanceof DalDbException);
+		assertEquals(1, call.count.get());
+		
+		call.release.countDown();
+		leader.join(5000);
+		assertEquals("result 1", leader.result.get());
+	}
+
+	@Test
+	public void testCreateKey() {
+		Map<String,String> a = new HashMap<String,String>();
+		a.put("Filtering", "GenusId=1");
+		a.put("ctype", "json");
+		a.put("b", "2");
+		Map<String,String> b = new HashMap<String,String>();
+		b.put("b", "2");
+		b.put("Filtering", "GenusId=1");
+		
+		// ctype is ignored and the order doesn't matter
+		assertEquals(SingleFlight.createKey("list/genus", a, null), SingleFlight.createKey("list/genus", b, null));
+		assertEquals("list/genus?Filtering=GenusId=1&b=2", SingleFlight.createKey("list/genus", b, null));
+		
+		b.put("b", "3");
+		assertTrue(! SingleFlight.createKey("list/genus", a, null).equals(SingleFlight.createKey("list/genus", b, null)));
+	}
+}
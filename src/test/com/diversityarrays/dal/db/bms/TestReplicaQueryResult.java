@@ -0,0 +1,125 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.bms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.db.EntityFactory;
+import com.diversityarrays.dal.db.ResultSetEntityIterator;
+import com.diversityarrays.dal.entity.Genus;
+
+public class TestReplicaQueryResult {
+	
+	/**
+	 * Records the calls made to a Statement or ResultSet and
+	 * returns the default value for everything else.
+	 */
+	static class Recorder implements InvocationHandler {
+		final AtomicInteger cancelCount = new AtomicInteger();
+		final AtomicInteger closeCount = new AtomicInteger();
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if ("cancel".equals(name)) {
+				cancelCount.incrementAndGet();
+			}
+			else if ("close".equals(name)) {
+				closeCount.incrementAndGet();
+			}
+			Class<?> type = method.getReturnType();
+			if (type == boolean.class) {
+				return Boolean.FALSE;
+			}
+			if (type == int.class) {
+				return 0;
+			}
+			return null;
+		}
+	}
+	
+	static private <T> T proxy(Class<T> type, Recorder recorder) {
+		return type.cast(Proxy.newProxyInstance(TestReplicaQueryResult.class.getClassLoader(), 
+				new Class<?>[] { type }, recorder));
+	}
+	
+	static private final EntityFactory<Genus> NO_GENUS = new EntityFactory<Genus>() {
+		@Override
+		public Genus createEntity(ResultSet rs) throws DalDbException {
+			return null;
+		}
+		
+		@Override
+		public void close() throws IOException {
+		}
+	};
+	
+	private final AtomicInteger releaseCount = new AtomicInteger();
+	
+	private final LeasedConnection lease = new LeasedConnection(null) {
+		@Override
+		protected void doRelease(boolean reusable) {
+			releaseCount.incrementAndGet();
+		}
+	};
+	
+	private final Recorder statementCalls = new Recorder();
+	private final Recorder resultSetCalls = new Recorder();
+	
+	private ResultSetEntityIterator<Genus> createPagedIterator() throws SQLException {
+		Statement stmt = proxy(Statement.class, statementCalls);
+		ResultSet rs = proxy(ResultSet.class, resultSetCalls);
+		ReplicaRouter.QueryResult qr = new ReplicaRouter.QueryResult(lease, stmt, rs, null);
+		return new ResultSetEntityIterator<Genus>(qr, qr.statement, qr.resultSet, NO_GENUS);
+	}
+
+	@Test
+	public void testLeaseReleasedWhenPagedIteratorClosed() throws Exception {
+		ResultSetEntityIterator<Genus> iterator = createPagedIterator();
+		assertNull(iterator.nextEntity());
+		assertEquals(0, releaseCount.get());
+		
+		iterator.close();
+		assertEquals(1, releaseCount.get());
+		assertTrue(statementCalls.closeCount.get() > 0);
+		assertTrue(resultSetCalls.closeCount.get() > 0);
+	}
+
+	@Test
+	public void testLeaseReleasedWhenPagedIteratorAbandoned() throws Exception {
+		ResultSetEntityIterator<Genus> iterator = createPagedIterator();
+		iterator.close();
+		assertEquals(1, releaseCount.get());
+		// The rows have already been read so there is nothing to cancel
+		assertEquals(0, statementCalls.cancelCount.get());
+	}
+}
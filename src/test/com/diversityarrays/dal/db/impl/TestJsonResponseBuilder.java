@@ -0,0 +1,78 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.diversityarrays.dal.db.DalResponseBuilder;
+
+public class TestJsonResponseBuilder {
+
+	static private String compact(String json) {
+		return json.replaceAll("\\s+", "");
+	}
+
+	@Test
+	public void testNestedChildrenStayInParent() {
+		DalResponseBuilder builder = new JsonResponseBuilder();
+		builder.startTag("Genotype")
+			.attribute("GenotypeId", "1")
+			.startTag("GenotypeAlias").attribute("n", "a").endTag()
+			.startTag("GenotypeAlias").attribute("n", "b").endTag()
+			.startTag("GenotypeAlias").attribute("n", "c").endTag()
+			.endTag();
+		builder.startTag("Genotype")
+			.attribute("GenotypeId", "2")
+			.endTag();
+
+		String json = compact(builder.asString());
+		assertFalse(json, json.contains("Error"));
+		assertEquals(json, 1, json.split("\"GenotypeAlias\"", -1).length - 1);
+		assertTrue(json, json.contains("{\"n\":\"a\"},{\"n\":\"b\"},{\"n\":\"c\"}"));
+		assertTrue(json, json.indexOf("\"GenotypeId\":\"2\"") > json.indexOf("{\"n\":\"c\"}"));
+	}
+
+	@Test
+	public void testDeeplyNestedTags() {
+		DalResponseBuilder builder = new JsonResponseBuilder();
+		builder.startTag("a")
+				.startTag("b")
+					.startTag("c").attribute("x", "1").endTag()
+					.startTag("c").attribute("x", "2").endTag()
+				.endTag()
+				.startTag("b").attribute("y", "3").endTag()
+			.endTag();
+
+		String json = compact(builder.asString());
+		assertFalse(json, json.contains("Error"));
+		assertEquals(json, 1, json.split("\"b\"", -1).length - 1);
+		assertEquals(json, 1, json.split("\"c\"", -1).length - 1);
+		assertTrue(json, json.contains("[{\"x\":\"1\"},{\"x\":\"2\"}]"));
+	}
+
+	@Test
+	public void testTooManyEndTags() {
+		DalResponseBuilder builder = new JsonResponseBuilder();
+		builder.startTag("a").endTag().endTag();
+		assertTrue(builder.asString().contains("Invalid attempt to endTag"));
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.kddart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.diversityarrays.dal.db.kddart.CircuitBreaker.State;
+
+public class TestCircuitBreaker {
+	
+	static private final long OPEN_MILLIS = 50;
+	// for the tests that don't wait for the breaker to half-open
+	static private final long LONG_OPEN_MILLIS = 60000;
+	
+	static private CircuitBreaker openBreaker() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, OPEN_MILLIS);
+		breaker.recordFailure();
+		breaker.recordFailure();
+		assertEquals(State.OPEN, breaker.getState());
+		return breaker;
+	}
+
+	@Test
+	public void testOpensAfterConsecutiveFailures() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 3, LONG_OPEN_MILLIS);
+		
+		breaker.recordFailure();
+		breaker.recordFailure();
+		assertEquals(State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		
+		breaker.recordFailure();
+		assertEquals(State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void testSuccessResetsFailureCount() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 2, LONG_OPEN_MILLIS);
+		
+		breaker.recordFailure();
+		breaker.recordSuccess();
+		breaker.recordFailure();
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testHalfOpenAllowsOneTrial() throws Exception {
+		CircuitBreaker breaker = openBreaker();
+		Thread.sleep(OPEN_MILLIS + 20);
+		
+		assertTrue(breaker.allowRequest());
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void testTrialSuccessCloses() throws Exception {
+		CircuitBreaker breaker = openBreaker();
+		Thread.sleep(OPEN_MILLIS + 20);
+		
+		assertTrue(breaker.allowRequest());
+		breaker.recordSuccess();
+		assertEquals(State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void testTrialFailureReopens() throws Exception {
+		CircuitBreaker breaker = openBreaker();
+		Thread.sleep(OPEN_MILLIS + 20);
+		
+		assertTrue(breaker.allowRequest());
+		breaker.recordFailure();
+		assertEquals(State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+		
+		// and is given another trial later
+		Thread.sleep(OPEN_MILLIS + 20);
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void testIgnoredTrialAllowsAnother() throws Exception {
+		CircuitBreaker breaker = openBreaker();
+		Thread.sleep(OPEN_MILLIS + 20);
+		
+		assertTrue(breaker.allowRequest());
+		breaker.recordIgnored();
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.allowRequest());
+	}
+}
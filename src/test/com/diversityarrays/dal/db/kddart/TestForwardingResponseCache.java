@@ -0,0 +1,204 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.kddart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.db.RecordedResponse;
+
+public class TestForwardingResponseCache {
+	
+	/**
+	 * Returns a new RecordedResponse for each load (or fails if told to).
+	 */
+	static class CountingLoader implements ForwardingResponseCache.Loader {
+		final List<RecordedResponse> loaded = new ArrayList<RecordedResponse>();
+		volatile boolean failing;
+		
+		@Override
+		public RecordedResponse load() throws DalDbException {
+			if (failing) {
+				throw new DalDbException("upstream unavailable");
+			}
+			RecordedResponse result = new RecordedResponse();
+			synchronized (loaded) {
+				loaded.add(result);
+			}
+			return result;
+		}
+		
+		int getCount() {
+			synchronized (loaded) {
+				return loaded.size();
+			}
+		}
+		
+		RecordedResponse get(int index) {
+			synchronized (loaded) {
+				return loaded.get(index);
+			}
+		}
+		
+		void awaitCount(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (getCount() < count && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			assertEquals(count, getCount());
+		}
+	}
+	
+	private ForwardingResponseCache cache;
+	
+	@After
+	public void shutdown() {
+		if (cache != null) {
+			cache.shutdown();
+		}
+	}
+
+	@Test
+	public void testFreshEntryIsNotReloaded() throws Exception {
+		cache = new ForwardingResponseCache(0);
+		CountingLoader loader = new CountingLoader();
+		
+		RecordedResponse first = cache.get("k", 60000, loader);
+		RecordedResponse second = cache.get("k", 60000, loader);
+		
+		assertSame(first, second);
+		assertEquals(1, loader.getCount());
+	}
+
+	@Test
+	public void testKeysAreSeparate() throws Exception {
+		cache = new ForwardingResponseCache(0);
+		CountingLoader loader = new CountingLoader();
+		
+		String keyA = ForwardingResponseCache.createKey("list/genus", null, "1");
+		String keyB = ForwardingResponseCache.createKey("list/genus", null, "2");
+		assertTrue(! keyA.equals(keyB));
+		
+		cache.get(keyA, 60000, loader);
+		cache.get(keyB, 60000, loader);
+		assertEquals(2, loader.getCount());
+	}
+
+	@Test
+	public void testExpiredEntryIsReloadedWithoutStaleWindow() throws Exception {
+		cache = new ForwardingResponseCache(0);
+		CountingLoader loader = new CountingLoader();
+		
+		RecordedResponse first = cache.get("k", 1, loader);
+		Thread.sleep(10);
+		RecordedResponse second = cache.get("k", 1, loader);
+		
+		assertEquals(2, loader.getCount());
+		assertTrue(first != second);
+		assertSame(loader.get(1), second);
+	}
+
+	@Test
+	public void testStaleEntryIsReturnedWhileRefreshing() throws Exception {
+		cache = new ForwardingResponseCache(TimeUnit.MINUTES.toMillis(1));
+		CountingLoader loader = new CountingLoader();
+		
+		RecordedResponse first = cache.get("k", 1, loader);
+		Thread.sleep(10);
+		
+		// Stale: the old response is returned and a refresh is started
+		assertSame(first, cache.get("k", 1, loader));
+		loader.awaitCount(2);
+		
+		// The refreshed response replaces it
+		Thread.sleep(10);
+		assertSame(loader.get(1), cache.get("k", 1, loader));
+	}
+
+	@Test
+	public void testFailedRefreshKeepsStaleEntry() throws Exception {
+		cache = new ForwardingResponseCache(TimeUnit.MINUTES.toMillis(1));
+		CountingLoader loader = new CountingLoader();
+		
+		RecordedResponse first = cache.get("k", 1, loader);
+		Thread.sleep(10);
+		
+		loader.failing = true;
+		assertSame(first, cache.get("k", 1, loader));
+		Thread.sleep(50);
+		
+		// Still there, and another refresh is attempted
+		loader.failing = false;
+		assertSame(first, cache.get("k", 1, loader));
+		loader.awaitCount(2);
+		Thread.sleep(10);
+		assertSame(loader.get(1), cache.get("k", 1, loader));
+	}
+
+	@Test
+	public void testFailedLoadIsNotCached() throws Exception {
+		cache = new ForwardingResponseCache(0);
+		CountingLoader loader = new CountingLoader();
+		
+		loader.failing = true;
+		try {
+			cache.get("k", 60000, loader);
+			fail("expected the load to fail");
+		} catch (DalDbException expected) {
+		}
+		
+		loader.failing = false;
+		cache.get("k", 60000, loader);
+		assertEquals(1, loader.getCount());
+	}
+
+	@Test
+	public void testRemove() throws Exception {
+		cache = new ForwardingResponseCache(0);
+		CountingLoader loader = new CountingLoader();
+		
+		cache.get("k", 60000, loader);
+		cache.remove("k");
+		cache.get("k", 60000, loader);
+		assertEquals(2, loader.getCount());
+	}
+
+	@Test
+	public void testTtlMillis() {
+		assertEquals(TimeUnit.SECONDS.toMillis(300), ForwardingResponseCache.getTtlMillis("list/genus"));
+		
+		String template = "list/testttl";
+		System.setProperty("KDDART_CACHE_TTL_SECONDS." + template, "7");
+		try {
+			assertEquals(7000, ForwardingResponseCache.getTtlMillis(template));
+		}
+		finally {
+			System.clearProperty("KDDART_CACHE_TTL_SECONDS." + template);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.kddart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.db.kddart.CircuitBreaker.State;
+import com.diversityarrays.dalclient.DalResponseHttpException;
+import com.diversityarrays.dalclient.HttpResponseInfo;
+
+public class TestUpstreamExecutor {
+	
+	static private final long OPEN_MILLIS = 50;
+	
+	private CircuitBreaker breaker;
+	private UpstreamExecutor executor;
+	
+	@Before
+	public void setUp() {
+		breaker = new CircuitBreaker("test", 1, OPEN_MILLIS);
+		executor = new UpstreamExecutor(1, 1, 5000, breaker);
+	}
+	
+	@After
+	public void tearDown() {
+		executor.shutdown();
+	}
+	
+	/**
+	 * Open the breaker and wait until it will allow a trial.
+	 */
+	private void openAndWait() throws InterruptedException {
+		breaker.recordFailure();
+		assertEquals(State.OPEN, breaker.getState());
+		Thread.sleep(OPEN_MILLIS + 20);
+	}
+	
+	private void executeFailing(final Exception e) {
+		try {
+			executor.execute(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					throw e;
+				}
+			});
+			fail("expected a DalDbException");
+		} catch (DalDbException expected) {
+		}
+	}
+	
+	static private DalResponseHttpException httpError(int status) {
+		HttpResponseInfo info = new HttpResponseInfo();
+		info.httpStatusCode = status;
+		return new DalResponseHttpException("error", "error", "http://upstream/", info);
+	}
+
+	@Test
+	public void testLocalSessionErrorDoesNotCloseBreaker() throws Exception {
+		openAndWait();
+		
+		executeFailing(new DalDbException("Timed out waiting for an upstream DAL session (4 in use)"));
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		// and the next call is still a trial
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void testInterruptedLeaseDoesNotCloseBreaker() throws Exception {
+		openAndWait();
+		
+		executeFailing(new DalDbException("Interrupted while waiting for an upstream DAL session", new InterruptedException()));
+		assertEquals(State.HALF_OPEN, breaker.getState());
+	}
+
+	@Test
+	public void testClientErrorResponseClosesBreaker() throws Exception {
+		openAndWait();
+		
+		executeFailing(new DalDbException(httpError(404)));
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testServerErrorReopensBreaker() throws Exception {
+		openAndWait();
+		
+		executeFailing(new DalDbException(httpError(503)));
+		assertEquals(State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void testIOExceptionReopensBreaker() throws Exception {
+		openAndWait();
+		
+		executeFailing(new DalDbException(new IOException("Connection refused")));
+		assertEquals(State.OPEN, breaker.getState());
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.db.kddart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.diversityarrays.dal.db.DalDbException;
+import com.diversityarrays.dal.db.DalResponseBuilder;
+
+import fi.iki.elonen.NanoHTTPD.Response;
+
+public class TestXmlResponseTranscoder {
+	
+	/**
+	 * Records the calls made to it as a compact trace.
+	 */
+	static class TraceBuilder extends DalResponseBuilder {
+		final StringBuilder trace = new StringBuilder();
+		
+		@Override
+		public DalResponseBuilder addResponseMeta(String tag) {
+			trace.append("meta:").append(tag).append(' ');
+			return super.addResponseMeta(tag);
+		}
+
+		@Override
+		public String asString() {
+			return trace.toString().trim();
+		}
+
+		@Override
+		public DalResponseBuilder startTag(String tag) {
+			trace.append('<').append(tag).append(' ');
+			return this;
+		}
+
+		@Override
+		public DalResponseBuilder attribute(String attrName, String attrValue) {
+			trace.append(attrName).append('=').append(attrValue).append(' ');
+			return this;
+		}
+
+		@Override
+		public DalResponseBuilder endTag(String tag) {
+			trace.append("> ");
+			return this;
+		}
+
+		@Override
+		public Response build(Response.IStatus status) {
+			return null;
+		}
+	}
+	
+	static private String transcode(String xml) throws DalDbException {
+		TraceBuilder builder = new TraceBuilder();
+		XmlResponseTranscoder.feed(xml, builder);
+		return builder.asString();
+	}
+
+	@Test
+	public void testRecordsAndMeta() throws Exception {
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<DATA>"
+				+ "<RecordMeta TagName=\"Genus\" />"
+				+ "<Genus GenusId=\"1\" GenusName=\"Oryza\" />"
+				+ "<Genus GenusId=\"2\" GenusName=\"Zea\" />"
+				+ "</DATA>";
+		assertEquals("meta:Genus <Genus GenusId=1 GenusName=Oryza > <Genus GenusId=2 GenusName=Zea >", 
+				transcode(xml));
+	}
+
+	@Test
+	public void testNestedElements() throws Exception {
+		String xml = "<DATA>"
+				+ "<Genotype GenotypeId=\"7\">"
+				+ "<Alias Name=\"a\"/><Alias Name=\"b\"/>"
+				+ "</Genotype>"
+				+ "</DATA>";
+		assertEquals("<Genotype GenotypeId=7 <Alias Name=a > <Alias Name=b > >", transcode(xml));
+	}
+
+	@Test
+	public void testRecordMetaChildrenAreSkipped() throws Exception {
+		String xml = "<DATA>"
+				+ "<RecordMeta TagName=\"Genus\"><Extra x=\"1\"/></RecordMeta>"
+				+ "<Genus GenusId=\"1\"/>"
+				+ "</DATA>";
+		assertEquals("meta:Genus <Genus GenusId=1 >", transcode(xml));
+	}
+
+	@Test
+	public void testEntitiesAreDecoded() throws Exception {
+		String xml = "<DATA><Genus GenusName=\"A &amp; B &lt;c&gt;\"/></DATA>";
+		assertEquals("<Genus GenusName=A & B <c> >", transcode(xml));
+	}
+
+	@Test
+	public void testEmptyData() throws Exception {
+		assertEquals("", transcode("<DATA/>"));
+	}
+
+	@Test
+	public void testInvalidXml() {
+		try {
+			transcode("<DATA><Genus GenusId=\"1\"></DATA>");
+			fail("expected a DalDbException");
+		} catch (DalDbException expected) {
+		}
+	}
+
+	@Test
+	public void testDtdIsNotProcessed() {
+		String xml = "<?xml version=\"1.0\"?>"
+				+ "<!DOCTYPE DATA [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>"
+				+ "<DATA><Genus GenusName=\"&xxe;\"/></DATA>";
+		try {
+			String trace = transcode(xml);
+			assertEquals("<Genus GenusName= >", trace);
+		} catch (DalDbException expected) {
+			// Also acceptable: the reference is rejected rather than resolved
+		}
+	}
+}
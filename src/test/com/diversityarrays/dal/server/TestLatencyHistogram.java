@@ -0,0 +1,112 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+	
+	static private final int BUCKET_COUNT = new LatencyHistogram().getBucketCounts().length;
+	
+	static private void recordMicros(LatencyHistogram h, long micros) {
+		h.recordNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+	}
+
+	@Test
+	public void testSmallValuesHaveTheirOwnBuckets() {
+		for (int micros = 0; micros < 16; ++micros) {
+			assertEquals(micros, LatencyHistogram.bucketIndex(micros));
+			assertEquals(micros, LatencyHistogram.bucketUpperBound(micros));
+		}
+		assertEquals(0, LatencyHistogram.bucketIndex(-5));
+	}
+
+	@Test
+	public void testBucketBoundsAreContiguous() {
+		for (int i = 0; i < BUCKET_COUNT - 1; ++i) {
+			long upper = LatencyHistogram.bucketUpperBound(i);
+			assertEquals("upper bound of " + i, i, LatencyHistogram.bucketIndex(upper));
+			assertEquals("after bucket " + i, i + 1, LatencyHistogram.bucketIndex(upper + 1));
+		}
+	}
+
+	@Test
+	public void testBucketWidthIsWithinSixPercent() {
+		for (long micros = 16; micros < 10000000L; micros = micros * 3 / 2 + 1) {
+			int index = LatencyHistogram.bucketIndex(micros);
+			long upper = LatencyHistogram.bucketUpperBound(index);
+			assertTrue(micros + " -> " + upper, upper >= micros);
+			assertTrue(micros + " -> " + upper, (upper - micros) <= micros / 16.0);
+		}
+	}
+
+	@Test
+	public void testHugeValuesUseTheLastBucket() {
+		assertEquals(BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+		assertEquals(BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(1L << 45));
+	}
+
+	@Test
+	public void testQuantiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int micros = 1; micros <= 1000; ++micros) {
+			recordMicros(h, micros);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(1000, h.getMaxMicros());
+		assertEquals(500500, h.getTotalMicros());
+		
+		long[] values = h.getQuantileMicros(0.5, 0.9, 0.99, 1.0);
+		assertTrue("p50=" + values[0], values[0] >= 500 && values[0] <= 500 * 17 / 16);
+		assertTrue("p90=" + values[1], values[1] >= 900 && values[1] <= 900 * 17 / 16);
+		assertTrue("p99=" + values[2], values[2] >= 990 && values[2] <= 1000);
+		assertEquals(1000, values[3]);
+	}
+
+	@Test
+	public void testQuantilesOfEmptyHistogram() {
+		assertArrayEquals(new long[] { 0, 0 }, new LatencyHistogram().getQuantileMicros(0.5, 0.99));
+	}
+
+	@Test
+	public void testSnapshotCounts() {
+		LatencyHistogram h = new LatencyHistogram();
+		recordMicros(h, 3);
+		recordMicros(h, 3);
+		recordMicros(h, 1000);
+		recordMicros(h, 2000000);
+		
+		long[] snapshot = h.getBucketCounts();
+		assertEquals(4, LatencyHistogram.getTotalCount(snapshot));
+		assertEquals(0, LatencyHistogram.getCountAtOrBelow(snapshot, 2));
+		assertEquals(2, LatencyHistogram.getCountAtOrBelow(snapshot, 100));
+		assertEquals(3, LatencyHistogram.getCountAtOrBelow(snapshot, 1100));
+		assertEquals(4, LatencyHistogram.getCountAtOrBelow(snapshot, 10000000));
+		
+		// Later values don't change the snapshot
+		recordMicros(h, 5);
+		assertEquals(4, LatencyHistogram.getTotalCount(snapshot));
+		assertEquals(5, LatencyHistogram.getTotalCount(h.getBucketCounts()));
+	}
+}
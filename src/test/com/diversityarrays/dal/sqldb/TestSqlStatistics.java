@@ -0,0 +1,82 @@
+/*
+ * dalserver-interop library - implementation of DAL server for interoperability
+ * Copyright (C) 2015  Diversity Arrays Technology
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.diversityarrays.dal.sqldb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestSqlStatistics {
+	
+	static private String fp(String sql) {
+		return SqlStatistics.fingerprint(sql);
+	}
+
+	@Test
+	public void testNumbersAreReplaced() {
+		assertEquals("select * from germplsm where gid = ?", fp("SELECT * FROM germplsm WHERE gid = 123"));
+		assertEquals(fp("SELECT * FROM germplsm WHERE gid = 123"), fp("SELECT * FROM germplsm WHERE gid = 4567"));
+		assertEquals("select * from t where x = ? and y = ?", fp("SELECT * FROM t WHERE x = 1.5 AND y = 2e10"));
+	}
+
+	@Test
+	public void testDigitsInIdentifiersAreKept() {
+		assertEquals("select col1 from t2 where col1 = ?", fp("SELECT col1 FROM t2 WHERE col1 = 7"));
+	}
+
+	@Test
+	public void testQuotedStringsAreReplaced() {
+		assertEquals("select * from names where nval = ? and ntype = ?", 
+				fp("SELECT * FROM names WHERE nval = 'abc' AND ntype = \"x\""));
+		assertEquals("select * from names where nval = ? and x = ?", 
+				fp("SELECT * FROM names WHERE nval = 'it''s' AND x = 'a\\'b'"));
+		// An unterminated string doesn't run past the end
+		assertEquals("select ?", fp("SELECT 'abc"));
+	}
+
+	@Test
+	public void testLiteralListsAreCollapsed() {
+		assertEquals("select * from names where gid in (?+)", fp("SELECT * FROM names WHERE gid IN (1, 2, 3, 4)"));
+		assertEquals(fp("SELECT * FROM names WHERE gid IN (1,2)"), fp("SELECT * FROM names WHERE gid IN (9, 8, 7, 6, 5)"));
+		assertEquals("select * from names where nval in (?+)", fp("SELECT * FROM names WHERE nval IN ('a', 'b')"));
+		assertEquals("select * from names where gid in (?)", fp("SELECT * FROM names WHERE gid IN (5)"));
+	}
+
+	@Test
+	public void testWhitespaceAndCaseAreNormalised() {
+		assertEquals("select * from germplsm where gid = ?", fp("  select *   FROM germplsm\n\tWHERE gid = 1  "));
+	}
+
+	@Test
+	public void testLongStatementsAreTruncated() {
+		StringBuilder sb = new StringBuilder("SELECT ");
+		for (int i = 0; i < 600; ++i) {
+			sb.append("col, ");
+		}
+		String result = fp(sb.toString());
+		assertTrue(result, result.endsWith("..."));
+		assertTrue(String.valueOf(result.length()), result.length() <= 1003);
+	}
+
+	@Test
+	public void testEmpty() {
+		assertEquals("", fp(null));
+		assertEquals("", fp(" \n "));
+	}
+}